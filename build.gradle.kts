@@ -125,9 +125,24 @@ tasks {
         targetCompatibility = "1.8"
     }
     test {
-        useJUnitPlatform()
+        useJUnitPlatform {
+            excludeTags("benchmark")
+        }
+        testLogging {
+            events("passed", "skipped", "failed")
+        }
+    }
+    register<Test>("benchmark") {
+        description = "Runs the tests tagged as benchmarks, which measure instead of check"
+        group = "verification"
+        testClassesDirs = sourceSets.test.get().output.classesDirs
+        classpath = sourceSets.test.get().runtimeClasspath
+        useJUnitPlatform {
+            includeTags("benchmark")
+        }
         testLogging {
             events("passed", "skipped", "failed")
+            showStandardStreams = true
         }
     }
 }
@@ -11,6 +11,8 @@ interface ShipForcesInducer {
     /**
      * Apply forces/torques on the physics tick
      * BE WARNED THIS GETS CALLED ON ANOTHER THREAD (the physics thread)
+     * If [org.valkyrienskies.core.config.VSCoreConfig.Server.parallelForcesInducers] is enabled this is called on
+     * several threads at once, for different ships
      *
      * @param forcesApplier Applies forces and torques to the ship
      * @param physShip The ship in the physics pipeline stage, use this for computing forces.
@@ -2,10 +2,10 @@ package org.valkyrienskies.core.api.impl
 
 import org.joml.Vector3dc
 import org.valkyrienskies.core.api.ForcesApplier
-import org.valkyrienskies.physics_api.RigidBodyReference
+import org.valkyrienskies.core.physics.PhysicsRigidBody
 
 @JvmInline
-value class APIForcesApplier(val rigidBody: RigidBodyReference) : ForcesApplier {
+value class APIForcesApplier(val rigidBody: PhysicsRigidBody) : ForcesApplier {
 
     override fun applyRotDependentForce(force: Vector3dc) {
         rigidBody.addRotDependentForceToNextPhysTick(force)
@@ -0,0 +1,111 @@
+package org.valkyrienskies.core.api.impl
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList
+import org.joml.Vector3d
+import org.joml.Vector3dc
+import org.valkyrienskies.core.api.ForcesApplier
+import org.valkyrienskies.core.physics.PhysicsRigidBody
+
+/**
+ * A [ForcesApplier] that stores forces instead of passing them to a rigid body, so that forces can be computed off
+ * the physics thread and then applied on it with [applyTo].
+ *
+ * Forces and torques without a position are summed as they come in, so [applyTo] makes at most one call per kind of
+ * force no matter how many times they were applied. Forces at a position are stored and applied one by one.
+ *
+ * Not thread safe. Reusable, [applyTo] clears it unless told not to.
+ */
+class BufferedForcesApplier : ForcesApplier {
+
+    private val rotDependentForce = Vector3d()
+    private val invariantForce = Vector3d()
+    private val rotDependentTorque = Vector3d()
+    private val invariantTorque = Vector3d()
+
+    // Each force at a position is stored as 6 doubles: force x, y, z then pos x, y, z
+    private val forcesAtPos = DoubleArrayList()
+
+    private var setStatic: Boolean? = null
+
+    override fun applyRotDependentForce(force: Vector3dc) {
+        rotDependentForce.add(force)
+    }
+
+    override fun applyInvariantForce(force: Vector3dc) {
+        invariantForce.add(force)
+    }
+
+    override fun applyInvariantForceToPos(force: Vector3dc, pos: Vector3dc) {
+        forcesAtPos.add(force.x())
+        forcesAtPos.add(force.y())
+        forcesAtPos.add(force.z())
+        forcesAtPos.add(pos.x())
+        forcesAtPos.add(pos.y())
+        forcesAtPos.add(pos.z())
+    }
+
+    override fun applyRotDependentTorque(torque: Vector3dc) {
+        rotDependentTorque.add(torque)
+    }
+
+    override fun applyInvariantTorque(torque: Vector3dc) {
+        invariantTorque.add(torque)
+    }
+
+    override fun setStatic(b: Boolean) {
+        setStatic = b
+    }
+
+    /**
+     * Pass the stored forces to [rigidBody], then clear them.
+     *
+     * @param clear If false the stored forces are kept, so they can be applied again next tick
+     */
+    fun applyTo(rigidBody: PhysicsRigidBody, clear: Boolean = true) {
+        if (!rotDependentForce.isZero()) rigidBody.addRotDependentForceToNextPhysTick(rotDependentForce)
+        if (!invariantForce.isZero()) rigidBody.addInvariantForceToNextPhysTick(invariantForce)
+        if (!rotDependentTorque.isZero()) rigidBody.addRotDependentTorqueToNextPhysTick(rotDependentTorque)
+        if (!invariantTorque.isZero()) rigidBody.addInvariantTorqueToNextPhysTick(invariantTorque)
+
+        if (!forcesAtPos.isEmpty()) {
+            val force = Vector3d()
+            val pos = Vector3d()
+            val values = forcesAtPos.elements()
+            for (i in 0 until forcesAtPos.size step 6) {
+                force.set(values[i], values[i + 1], values[i + 2])
+                pos.set(values[i + 3], values[i + 4], values[i + 5])
+                rigidBody.addInvariantForceAtPosToNextPhysTick(pos, force)
+            }
+        }
+
+        setStatic?.let { rigidBody.isStatic = it }
+
+        if (clear) clear()
+    }
+
+    /**
+     * True if nothing was applied since the last [applyTo] or [clear]
+     */
+    fun isEmpty(): Boolean =
+        rotDependentForce.isZero() && invariantForce.isZero() && rotDependentTorque.isZero() &&
+            invariantTorque.isZero() && forcesAtPos.isEmpty() && setStatic == null
+
+    /**
+     * True if [other] stores exactly the same forces, torques and static state as this
+     */
+    fun hasSameForcesAs(other: BufferedForcesApplier): Boolean =
+        rotDependentForce == other.rotDependentForce && invariantForce == other.invariantForce &&
+            rotDependentTorque == other.rotDependentTorque && invariantTorque == other.invariantTorque &&
+            forcesAtPos == other.forcesAtPos && setStatic == other.setStatic
+
+    fun clear() {
+        rotDependentForce.zero()
+        invariantForce.zero()
+        rotDependentTorque.zero()
+        invariantTorque.zero()
+        forcesAtPos.clear()
+        setStatic = null
+    }
+
+    private fun Vector3d.isZero(): Boolean = x == 0.0 && y == 0.0 && z == 0.0
+}
@@ -1,6 +1,7 @@
 package org.valkyrienskies.core.config
 
 import com.github.imifou.jsonschema.module.addon.annotation.JsonSchema
+import org.valkyrienskies.core.physics.PhysicsEngineType
 
 object VSCoreConfig {
 
@@ -13,6 +14,36 @@ object VSCoreConfig {
         )
         var udpPort = 25565
 
+        @JsonSchema(
+            description = "Number of threads receiving UDP packets, each on its own socket sharing the UDP port. " +
+                "More than 1 needs SO_REUSEPORT, which Linux has from Java 9 on"
+        )
+        var udpReceiveThreads = 1
+
+        @JsonSchema(
+            description = "Ship positions in transform packets are rounded to 1 / 2^this blocks, from 0 to 16"
+        )
+        var transformPositionPrecisionBits = 10
+
+        @JsonSchema(
+            description = "Bits per rotation component in transform packets, from 6 to 20. 15 is accurate to about " +
+                "0.01 degrees"
+        )
+        var transformRotationBits = 15
+
+        @JsonSchema(
+            description = "Most bytes of ship transforms sent to each player at a time, every other physics tick. " +
+                "When not all of them fit, ships that are close, moving, or haven't been sent for a while are " +
+                "sent first. 0 for no limit"
+        )
+        var transformBytesPerPlayer = 4096
+
+        @JsonSchema(
+            description = "Number of threads that write transform packets for different players at once, 0 to use " +
+                "half the CPU count, 1 to write them all on the network thread"
+        )
+        var networkEncodeThreads = 0
+
         @JsonSchema(
             description = "Ship load distance in blocks"
         )
@@ -22,6 +53,148 @@ object VSCoreConfig {
             description = "Ship unload distance in blocks"
         )
         var shipUnloadDistance = 196.0
+
+        @JsonSchema(
+            description = "The physics engine ships are simulated with. REFERENCE is a simple engine that is only " +
+                "meant for benchmarking, it doesn't need native libraries"
+        )
+        var physicsEngine = PhysicsEngineType.KRUNCH
+
+        @JsonSchema(
+            description = "Number of physics ticks per second, can be changed while the server is running"
+        )
+        var physicsTicksPerSecond = 60
+
+        @JsonSchema(
+            description = "How many ticks behind physics may fall before it skips ticks instead of catching up"
+        )
+        var maxPhysicsCatchUpTicks = 10
+
+        @JsonSchema(
+            description = "Lower the physics sub-steps, and the physics TPS if adaptivePhysicsTps is on, while " +
+                "physics ticks take too long. Raise them back once there's time to spare"
+        )
+        var adaptivePhysicsQuality = true
+
+        @JsonSchema(
+            description = "Physics sub-steps at full quality, and always when adaptivePhysicsQuality is off"
+        )
+        var maxPhysicsSubSteps = 10
+
+        @JsonSchema(
+            description = "The fewest physics sub-steps adaptivePhysicsQuality may lower to"
+        )
+        var minPhysicsSubSteps = 4
+
+        @JsonSchema(
+            description = "Let adaptivePhysicsQuality lower the physics TPS once the sub-steps are at their minimum"
+        )
+        var adaptivePhysicsTps = false
+
+        @JsonSchema(
+            description = "The lowest physics TPS adaptivePhysicsTps may lower to"
+        )
+        var minPhysicsTicksPerSecond = 30
+
+        @JsonSchema(
+            description = "How much adaptivePhysicsTps lowers or raises the physics TPS at a time"
+        )
+        var physicsTpsStep = 10
+
+        @JsonSchema(
+            description = "Physics quality is lowered when ticks take more than this fraction of their time budget"
+        )
+        var physicsQualityDegradeLoad = 0.9
+
+        @JsonSchema(
+            description = "Physics quality is raised when ticks take less than this fraction of their time budget. " +
+                "Keep it well below physicsQualityDegradeLoad, so that raising the quality doesn't lower it again"
+        )
+        var physicsQualityUpgradeLoad = 0.6
+
+        @JsonSchema(
+            description = "Physics ticks in a row that must be over physicsQualityDegradeLoad to lower the quality"
+        )
+        var physicsQualityDegradeTicks = 20
+
+        @JsonSchema(
+            description = "Physics ticks in a row that must be under physicsQualityUpgradeLoad to raise the quality"
+        )
+        var physicsQualityUpgradeTicks = 300
+
+        @JsonSchema(
+            description = "Run the forces inducers of different ships on several threads at once. " +
+                "Only enable this if every installed mod's forces inducers are thread safe"
+        )
+        var parallelForcesInducers = false
+
+        @JsonSchema(
+            description = "Number of threads used by parallelForcesInducers, 0 to use one less than the CPU count"
+        )
+        var forcesInducerThreads = 0
+
+        @JsonSchema(
+            description = "Compute the transforms of ships in each physics frame on several threads at once. " +
+                "Only worth it with many ships"
+        )
+        var parallelPhysicsFrameTransforms = false
+
+        @JsonSchema(
+            description = "Stop simulating ships that have been still for a while, until something wakes them up"
+        )
+        var shipSleeping = true
+
+        @JsonSchema(
+            description = "Ships slower than this (in blocks per second) for shipSleepTicks ticks fall asleep"
+        )
+        var shipSleepLinearVelocity = 0.05
+
+        @JsonSchema(
+            description = "Ships spinning slower than this (in radians per second) for shipSleepTicks ticks fall asleep"
+        )
+        var shipSleepAngularVelocity = 0.05
+
+        @JsonSchema(
+            description = "The number of physics ticks in a row a ship must be still for before it falls asleep"
+        )
+        var shipSleepTicks = 60
+
+        @JsonSchema(
+            description = "Simulate ships that no player is watching at a reduced rate, and freeze them when no " +
+                "player is within lodFrozenDistance"
+        )
+        var simulationLod = true
+
+        @JsonSchema(
+            description = "Ships no player is watching are frozen when no player in their dimension is this close"
+        )
+        var lodFrozenDistance = 512.0
+
+        @JsonSchema(
+            description = "Forces inducers of ships at reduced LOD only run every this many physics ticks"
+        )
+        var lodReducedTickInterval = 4
+
+        @JsonSchema(
+            description = "The number of game ticks in a row a ship must want a lower LOD before it gets it"
+        )
+        var lodDowngradeDelayTicks = 100
+
+        @JsonSchema(
+            description = "Maximum number of game frames waiting to be applied by the physics thread"
+        )
+        var gameFrameQueueCapacity = 16
+
+        @JsonSchema(
+            description = "Maximum number of physics frames kept for physics frame listeners while the game thread " +
+                "catches up. The game thread itself only applies the newest physics frame"
+        )
+        var physicsFrameHistoryCapacity = 128
+
+        @JsonSchema(
+            description = "How long a BLOCK frame queue waits for room before giving up, in milliseconds"
+        )
+        var frameQueueBlockTimeoutMs = 50L
     }
 }
 
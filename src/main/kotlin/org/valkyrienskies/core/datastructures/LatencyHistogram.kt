@@ -0,0 +1,96 @@
+package org.valkyrienskies.core.datastructures
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A fixed size histogram of durations in nanoseconds, for tracking latencies on hot paths.
+ *
+ * Values are grouped into buckets by their highest set bit, and each power of two is split into [SUB_BUCKETS] linear
+ * sub buckets, so any percentile is reported within 12.5% of the real value. Every bucket is allocated up front and
+ * [record] never allocates.
+ *
+ * [record] may be called from any thread, [snapshot] may be called while values are being recorded.
+ */
+class LatencyHistogram {
+
+    private val buckets = AtomicLongArray(BUCKET_COUNT)
+    private val count = AtomicLong()
+    private val max = AtomicLong()
+
+    fun record(valueNs: Long) {
+        val value = valueNs.coerceAtLeast(0)
+        buckets.incrementAndGet(bucketIndex(value))
+        count.incrementAndGet()
+        var currentMax = max.get()
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) currentMax = max.get()
+    }
+
+    /**
+     * Records the time elapsed since [startNs], a value of [System.nanoTime]
+     */
+    fun recordSince(startNs: Long) = record(System.nanoTime() - startNs)
+
+    /**
+     * @param quantile in [0, 1]
+     * @return an upper bound of the value at [quantile], or 0 if nothing was recorded
+     */
+    fun valueAtQuantile(quantile: Double): Long {
+        val total = count.get()
+        if (total == 0L) return 0
+        // The rank of the value we want, 1 based
+        val rank = (quantile.coerceIn(0.0, 1.0) * total).toLong().coerceIn(1, total)
+        var seen = 0L
+        for (i in 0 until BUCKET_COUNT) {
+            seen += buckets.get(i)
+            if (seen >= rank) return bucketUpperBound(i).coerceAtMost(max.get())
+        }
+        // Values were recorded after we read [count], every bucket we saw is below the rank
+        return max.get()
+    }
+
+    fun snapshot(): LatencySnapshot =
+        LatencySnapshot(count.get(), valueAtQuantile(0.5), valueAtQuantile(0.99), max.get())
+
+    /**
+     * Clears every recorded value. Values recorded while this runs may be partially cleared.
+     */
+    fun reset() {
+        for (i in 0 until BUCKET_COUNT) buckets.set(i, 0)
+        count.set(0)
+        max.set(0)
+    }
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 3
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+
+        // Values below [SUB_BUCKETS] each get their own bucket, then every power of two up to 2^62 gets [SUB_BUCKETS]
+        private const val BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS
+
+        internal fun bucketIndex(value: Long): Int {
+            if (value < SUB_BUCKETS) return value.toInt()
+            val highestBit = 63 - java.lang.Long.numberOfLeadingZeros(value)
+            val shift = highestBit - SUB_BUCKET_BITS
+            val subBucket = (value ushr shift).toInt() and (SUB_BUCKETS - 1)
+            return (shift + 1) * SUB_BUCKETS + subBucket
+        }
+
+        internal fun bucketUpperBound(index: Int): Long {
+            if (index < SUB_BUCKETS) return index.toLong()
+            val shift = index / SUB_BUCKETS - 1
+            val subBucket = index % SUB_BUCKETS
+            return ((SUB_BUCKETS + subBucket + 1).toLong() shl shift) - 1
+        }
+    }
+}
+
+/**
+ * The state of a [LatencyHistogram] at one point in time, all durations are in nanoseconds
+ */
+data class LatencySnapshot(
+    val count: Long,
+    val p50Ns: Long,
+    val p99Ns: Long,
+    val maxNs: Long
+)
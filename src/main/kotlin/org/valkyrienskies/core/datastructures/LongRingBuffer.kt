@@ -0,0 +1,55 @@
+package org.valkyrienskies.core.datastructures
+
+/**
+ * A fixed size ring of primitive longs that overwrites its oldest value when full. Nothing is boxed and [add] never
+ * allocates.
+ *
+ * Not thread safe.
+ */
+class LongRingBuffer(val capacity: Int) {
+
+    private val values: LongArray
+
+    // Index the next value is written to
+    private var next = 0
+
+    var size = 0
+        private set
+
+    init {
+        require(capacity > 0) { "Capacity must be positive" }
+        values = LongArray(capacity)
+    }
+
+    fun isEmpty(): Boolean = size == 0
+
+    fun add(value: Long) {
+        values[next] = value
+        next = if (next + 1 == capacity) 0 else next + 1
+        if (size < capacity) size++
+    }
+
+    /**
+     * @param i 0 is the oldest value, [size] - 1 the newest
+     */
+    operator fun get(i: Int): Long {
+        if (i < 0 || i >= size) throw IndexOutOfBoundsException("Index $i out of bounds for size $size")
+        val index = next - size + i
+        return values[if (index < 0) index + capacity else index]
+    }
+
+    fun oldest(): Long = get(0)
+
+    fun newest(): Long = get(size - 1)
+
+    fun sum(): Long {
+        var sum = 0L
+        for (i in 0 until size) sum += get(i)
+        return sum
+    }
+
+    fun clear() {
+        next = 0
+        size = 0
+    }
+}
@@ -0,0 +1,92 @@
+package org.valkyrienskies.core.datastructures
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * A bounded, lock-free ring buffer that moves objects from one producer thread to one consumer thread.
+ *
+ * Every slot is allocated up front, so [offer] and [poll] never allocate. The capacity is rounded up to a power of two
+ * so that indices can be wrapped with a mask.
+ *
+ * Only the producer may call [offer]. [poll] is normally called by the consumer, but the producer is also allowed to
+ * call it to throw away old elements; the head is claimed with a CAS so an element is never taken twice.
+ *
+ * Consumed slots are not cleared, they are overwritten when the producer wraps around. This means up to [capacity]
+ * already consumed elements may stay reachable.
+ */
+class SpscRingBuffer<T : Any>(requestedCapacity: Int) {
+
+    val capacity: Int
+
+    private val mask: Int
+    private val buffer: AtomicReferenceArray<T?>
+
+    // The index of the next element to be polled
+    private val head = AtomicLong()
+
+    // The index of the next element to be offered, only written by the producer
+    private val tail = AtomicLong()
+
+    init {
+        require(requestedCapacity in 1..MAX_CAPACITY) { "Capacity must be in [1, $MAX_CAPACITY]" }
+        capacity = Integer.highestOneBit((requestedCapacity - 1) shl 1).coerceAtLeast(1)
+        mask = capacity - 1
+        buffer = AtomicReferenceArray(capacity)
+    }
+
+    /**
+     * The number of elements waiting in this buffer. This is O(1), but may be stale by the time it returns.
+     */
+    val size: Int
+        get() = (tail.get() - head.get()).toInt().coerceIn(0, capacity)
+
+    fun isEmpty(): Boolean = head.get() >= tail.get()
+
+    fun isFull(): Boolean = tail.get() - head.get() >= capacity
+
+    /**
+     * Adds [value] to the buffer. Must only be called by the producer.
+     *
+     * @return false if the buffer is full
+     */
+    fun offer(value: T): Boolean {
+        val currentTail = tail.get()
+        if (currentTail - head.get() >= capacity) return false
+        buffer.set(currentTail.toInt() and mask, value)
+        // Publish the element, the write to the slot above happens-before this
+        tail.lazySet(currentTail + 1)
+        return true
+    }
+
+    /**
+     * Removes and returns the oldest element in the buffer, or null if the buffer is empty.
+     */
+    fun poll(): T? {
+        while (true) {
+            val currentHead = head.get()
+            if (currentHead >= tail.get()) return null
+            val value = buffer.get(currentHead.toInt() and mask)
+            if (head.compareAndSet(currentHead, currentHead + 1)) return value
+            // Lost the race against the other thread, try again with the new head
+        }
+    }
+
+    /**
+     * Polls every element currently in the buffer and passes it to [action], oldest first.
+     *
+     * @return the number of elements drained
+     */
+    inline fun drain(action: (T) -> Unit): Int {
+        var count = 0
+        while (true) {
+            val value = poll() ?: return count
+            action(value)
+            count++
+        }
+    }
+
+    companion object {
+        private const val MAX_CAPACITY = 1 shl 30
+    }
+}
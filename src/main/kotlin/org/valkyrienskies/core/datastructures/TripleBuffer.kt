@@ -0,0 +1,70 @@
+package org.valkyrienskies.core.datastructures
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Hands the latest value from one writer thread to one reader thread without locks. Values the reader didn't pick up
+ * before the writer published a newer one are skipped.
+ *
+ * There are three slots: the writer owns one, the reader owns one, and the third sits in the middle. Publishing swaps
+ * the writer's slot with the middle slot, and polling swaps the reader's slot with the middle slot, so neither thread
+ * ever waits on the other and neither ever touches a slot the other one owns.
+ *
+ * Only the writer may call [publish] and only the reader may call [poll].
+ */
+class TripleBuffer<T : Any> {
+
+    private val slots = AtomicReferenceArray<T?>(3)
+
+    // Bits 0-1 are the index of the middle slot, [FRESH_BIT] is set if the middle slot holds a value the reader
+    // hasn't seen yet
+    private val middle = AtomicInteger(1)
+
+    // Only accessed by the writer
+    private var writeIndex = 0
+
+    // Only accessed by the reader
+    private var readIndex = 2
+
+    /**
+     * Makes [value] the latest value. Must only be called by the writer.
+     *
+     * @return true if this replaced a value the reader never saw
+     */
+    fun publish(value: T): Boolean {
+        slots.set(writeIndex, value)
+        val previous = middle.getAndSet(writeIndex or FRESH_BIT)
+        writeIndex = previous and INDEX_MASK
+        return previous and FRESH_BIT != 0
+    }
+
+    /**
+     * The value in the writer's slot, which the reader can't see. Writers can reuse it instead of allocating a new
+     * value for the next [publish]. Must only be called by the writer.
+     *
+     * @return null until the writer's slot was used by an earlier [publish]
+     */
+    fun writeSlot(): T? = slots.get(writeIndex)
+
+    /**
+     * Must only be called by the reader.
+     *
+     * @return the latest published value, or null if nothing was published since the last call
+     */
+    fun poll(): T? {
+        if (middle.get() and FRESH_BIT == 0) return null
+        readIndex = middle.getAndSet(readIndex) and INDEX_MASK
+        return slots.get(readIndex)
+    }
+
+    /**
+     * True if a value was published that the reader hasn't polled yet. May be stale by the time it returns.
+     */
+    fun hasFresh(): Boolean = middle.get() and FRESH_BIT != 0
+
+    companion object {
+        private const val INDEX_MASK = 3
+        private const val FRESH_BIT = 4
+    }
+}
@@ -1,14 +1,17 @@
 package org.valkyrienskies.core.game.ships
 
+import org.joml.Vector3d
+import org.joml.primitives.AABBd
 import org.valkyrienskies.core.api.ShipForcesInducer
+import org.valkyrienskies.core.api.impl.BufferedForcesApplier
+import org.valkyrienskies.core.physics.PhysicsRigidBody
 import org.valkyrienskies.physics_api.PoseVel
-import org.valkyrienskies.physics_api.RigidBodyReference
 import org.valkyrienskies.physics_api.SegmentTracker
 
 data class PhysShip internal constructor(
     val shipId: ShipId,
     // Don't use these outside of vs-core, I beg of thee
-    internal val rigidBodyReference: RigidBodyReference,
+    internal val rigidBodyReference: PhysicsRigidBody,
     internal val forceInducers: List<ShipForcesInducer>,
     internal var _inertia: PhysInertia,
 
@@ -18,4 +21,51 @@ data class PhysShip internal constructor(
 ) {
     val inertia: PhysInertia
         get() = _inertia
+
+    // Holds the forces computed by [forceInducers] this tick, until the physics stage passes them to the rigid body
+    internal var forcesBuffer = BufferedForcesApplier()
+        private set
+
+    // The forces [forceInducers] last computed that were passed to [rigidBodyReference]. Held between the runs of
+    // [ShipSimulationLod.REDUCED] inducers, and kept from when the ship fell asleep while it sleeps
+    internal var appliedForces = BufferedForcesApplier()
+        private set
+
+    // Copies of what was last given to [rigidBodyReference], so they don't have to be read back from the engine, and
+    // so updates that don't change them aren't passed to the engine
+    internal val voxelOffset = Vector3d()
+    internal var scaling = 1.0
+    internal var voxelsFullyLoaded = false
+
+    // region Sleeping, managed by the physics stage
+    /**
+     * Sleeping ships are frozen in place and left out of physics frames until something wakes them up
+     */
+    val isSleeping: Boolean
+        get() = ticksAsleep >= 0
+
+    // The number of ticks in a row this ship has been slower than the sleep thresholds
+    internal var ticksAtRest = 0
+
+    // The number of ticks since this ship fell asleep, or -1 if it is awake
+    internal var ticksAsleep = -1
+
+    // Sleeping ships are made static, this is what [rigidBodyReference] was before that
+    internal var wasStaticBeforeSleeping = false
+
+    // The world bounding box of this ship in the last physics frame it was in
+    internal val aabb = AABBd()
+    // endregion
+
+    // Picked by the game, see [ShipSimulationLod]
+    internal var simulationLod = ShipSimulationLod.FULL
+
+    /**
+     * Make [forcesBuffer] the [appliedForces], and empty the old applied forces to be the next buffer
+     */
+    internal fun swapForcesBuffers() {
+        val applied = forcesBuffer
+        forcesBuffer = appliedForces.apply { clear() }
+        appliedForces = applied
+    }
 }
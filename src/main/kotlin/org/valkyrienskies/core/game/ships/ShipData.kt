@@ -36,7 +36,7 @@ class ShipData(
     shipAABB: AABBdc,
     shipVoxelAABB: AABBic?,
     shipActiveChunksSet: IShipActiveChunksSet,
-    var isStatic: Boolean = false
+    isStatic: Boolean = false
 ) : ShipDataCommon(
     id, name, chunkClaim, chunkClaimDimension, physicsData, shipTransform, prevTickShipTransform,
     shipAABB, shipVoxelAABB, shipActiveChunksSet
@@ -54,6 +54,29 @@ class ShipData(
 
     internal val persistentAttachedData = MutableClassToInstanceMap.create<Any>() // TODO a serializable class
 
+    /**
+     * The [PhysicsDirtyFlags] of the state that changed since physics was last told about this ship.
+     */
+    @JsonIgnore
+    internal var physicsDirtyFlags = 0
+        private set
+
+    var isStatic: Boolean = isStatic
+        set(value) {
+            if (field != value) physicsDirtyFlags = physicsDirtyFlags or PhysicsDirtyFlags.STATIC
+            field = value
+        }
+
+    /**
+     * How closely physics simulates this ship, updated every tick by [ShipSimulationLodTracker]
+     */
+    @JsonIgnore
+    var simulationLod: ShipSimulationLod = ShipSimulationLod.FULL
+        internal set(value) {
+            if (field != value) physicsDirtyFlags = physicsDirtyFlags or PhysicsDirtyFlags.SIMULATION_LOD
+            field = value
+        }
+
     /**
      * Generates the [shipVoxelAABB] in O(1) time. However, this object is too large for us to persistently store it,
      * so we make it transient.
@@ -96,6 +119,7 @@ class ShipData(
 
         // Update [inertiaData]
         inertiaData.onSetBlock(posX, posY, posZ, oldBlockMass, newBlockMass)
+        if (oldBlockMass != newBlockMass) physicsDirtyFlags = physicsDirtyFlags or PhysicsDirtyFlags.INERTIA
 
         // Update [shipVoxelAABB]
         updateShipAABBGenerator(posX, posY, posZ, newBlockType != VSBlockType.AIR)
@@ -122,16 +146,35 @@ class ShipData(
 
     fun onLoadChunk(chunkX: Int, chunkZ: Int) {
         if (chunkClaim.contains(chunkX, chunkZ)) {
+            val wasFullyLoaded = areVoxelsFullyLoaded()
             missingLoadedChunks.removeChunkPos(chunkX, chunkZ)
+            onVoxelsFullyLoadedMaybeChanged(wasFullyLoaded)
         }
     }
 
     fun onUnloadChunk(chunkX: Int, chunkZ: Int) {
         if (chunkClaim.contains(chunkX, chunkZ) && shipActiveChunksSet.containsChunkPos(chunkX, chunkZ)) {
+            val wasFullyLoaded = areVoxelsFullyLoaded()
             missingLoadedChunks.addChunkPos(chunkX, chunkZ)
+            onVoxelsFullyLoadedMaybeChanged(wasFullyLoaded)
         }
     }
 
+    private fun onVoxelsFullyLoadedMaybeChanged(wasFullyLoaded: Boolean) {
+        if (wasFullyLoaded != areVoxelsFullyLoaded()) {
+            physicsDirtyFlags = physicsDirtyFlags or PhysicsDirtyFlags.VOXELS_FULLY_LOADED
+        }
+    }
+
+    /**
+     * Returns the [physicsDirtyFlags] and clears them, called once physics has been sent the state of this ship.
+     */
+    internal fun consumePhysicsDirtyFlags(): Int {
+        val flags = physicsDirtyFlags
+        physicsDirtyFlags = 0
+        return flags
+    }
+
     fun areVoxelsFullyLoaded(): Boolean {
         // We are fully loaded if we have 0 missing chunks
         return missingLoadedChunks.getTotalChunks() == 0
@@ -153,6 +196,17 @@ class ShipData(
 
     override fun <T> getAttachment(clazz: Class<T>): T? = persistentAttachedData.getInstance(clazz)
 
+    /**
+     * The parts of a [ShipData] that physics is sent in
+     * [org.valkyrienskies.core.pipelines.UpdateShipInGameFrameData]
+     */
+    internal object PhysicsDirtyFlags {
+        const val INERTIA = 1 // Also changes the voxel offset, which is derived from the center of mass
+        const val STATIC = 1 shl 1
+        const val VOXELS_FULLY_LOADED = 1 shl 2
+        const val SIMULATION_LOD = 1 shl 3
+    }
+
     companion object {
         /**
          * Creates a new [ShipData] from the given name and coordinates. The resulting [ShipData] is completely empty,
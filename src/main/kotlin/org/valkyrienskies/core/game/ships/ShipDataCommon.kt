@@ -1,5 +1,6 @@
 package org.valkyrienskies.core.game.ships
 
+import com.fasterxml.jackson.annotation.JsonIgnore
 import org.joml.Matrix4dc
 import org.joml.primitives.AABBd
 import org.joml.primitives.AABBdc
@@ -16,7 +17,7 @@ import org.valkyrienskies.core.util.toAABBd
 
 open class ShipDataCommon(
     val id: ShipId,
-    var name: String,
+    name: String,
     val chunkClaim: ChunkClaim,
     val chunkClaimDimension: DimensionId,
     @DeltaIgnore
@@ -24,9 +25,28 @@ open class ShipDataCommon(
     shipTransform: ShipTransform,
     prevTickShipTransform: ShipTransform = shipTransform,
     shipAABB: AABBdc = shipTransform.createEmptyAABB(),
-    var shipVoxelAABB: AABBic?,
+    shipVoxelAABB: AABBic?,
     val shipActiveChunksSet: IShipActiveChunksSet
 ) : Ship {
+    /**
+     * The [NetworkDirtyFlags] of the state that changed since clients were last sent a delta of this ship
+     */
+    @JsonIgnore
+    internal var networkDirtyFlags = 0
+        private set
+
+    var name: String = name
+        set(value) {
+            if (field != value) networkDirtyFlags = networkDirtyFlags or NetworkDirtyFlags.NAME
+            field = value
+        }
+
+    var shipVoxelAABB: AABBic? = shipVoxelAABB
+        set(value) {
+            if (field != value) networkDirtyFlags = networkDirtyFlags or NetworkDirtyFlags.VOXEL_AABB
+            field = value
+        }
+
     @DeltaIgnore
     override var shipTransform: ShipTransform = shipTransform
         set(shipTransform) {
@@ -48,6 +68,15 @@ open class ShipDataCommon(
         prevTickShipTransform = shipTransform
     }
 
+    /**
+     * @return the [NetworkDirtyFlags] of the state that changed since this was last called
+     */
+    internal fun consumeNetworkDirtyFlags(): Int {
+        val flags = networkDirtyFlags
+        networkDirtyFlags = 0
+        return flags
+    }
+
     /**
      * Updates the [IBlockPosSet] and [ShipInertiaData] for this [ShipData]
      */
@@ -69,13 +98,14 @@ open class ShipDataCommon(
         ) { "Block at <$posX, $posY, $posZ> is not in the chunk claim belonging to $this" }
 
         // Add the chunk to the active chunk set
-        shipActiveChunksSet.addChunkPos(posX shr 4, posZ shr 4)
+        var addedChunks = shipActiveChunksSet.addChunkPos(posX shr 4, posZ shr 4)
         // Add the neighbors too (Required for rendering code in MC 1.16, chunks without neighbors won't render)
         // TODO: Make a separate set for keeping track of neighbors
-        shipActiveChunksSet.addChunkPos((posX shr 4) - 1, (posZ shr 4))
-        shipActiveChunksSet.addChunkPos((posX shr 4) + 1, (posZ shr 4))
-        shipActiveChunksSet.addChunkPos((posX shr 4), (posZ shr 4) - 1)
-        shipActiveChunksSet.addChunkPos((posX shr 4), (posZ shr 4) + 1)
+        addedChunks = shipActiveChunksSet.addChunkPos((posX shr 4) - 1, (posZ shr 4)) or addedChunks
+        addedChunks = shipActiveChunksSet.addChunkPos((posX shr 4) + 1, (posZ shr 4)) or addedChunks
+        addedChunks = shipActiveChunksSet.addChunkPos((posX shr 4), (posZ shr 4) - 1) or addedChunks
+        addedChunks = shipActiveChunksSet.addChunkPos((posX shr 4), (posZ shr 4) + 1) or addedChunks
+        if (addedChunks) networkDirtyFlags = networkDirtyFlags or NetworkDirtyFlags.ACTIVE_CHUNKS
     }
 
     override val shipToWorld: Matrix4dc
@@ -97,4 +127,14 @@ open class ShipDataCommon(
     override fun hashCode(): Int {
         return id.hashCode()
     }
+
+    /**
+     * The parts of a [ShipDataCommon] that clients are sent deltas of, see
+     * [org.valkyrienskies.core.networking.delta.ShipDataDeltaAlgorithm]
+     */
+    internal object NetworkDirtyFlags {
+        const val NAME = 1
+        const val VOXEL_AABB = 1 shl 1
+        const val ACTIVE_CHUNKS = 1 shl 2
+    }
 }
@@ -2,8 +2,7 @@ package org.valkyrienskies.core.game.ships
 
 import org.joml.primitives.AABBd
 import org.joml.primitives.AABBdc
-import org.valkyrienskies.core.networking.delta.JsonDiffDeltaAlgorithm
-import org.valkyrienskies.core.util.serialization.VSJacksonUtil
+import org.valkyrienskies.core.networking.delta.ShipDataDeltaAlgorithm
 
 /**
  * A [ShipObject] is essentially a [ShipData] that has been loaded.
@@ -23,6 +22,6 @@ open class ShipObject(
 
     companion object {
         @JvmStatic
-        protected val jsonDiffDeltaAlgorithm = JsonDiffDeltaAlgorithm(VSJacksonUtil.deltaMapper)
+        internal val shipDataDeltaAlgorithm = ShipDataDeltaAlgorithm()
     }
 }
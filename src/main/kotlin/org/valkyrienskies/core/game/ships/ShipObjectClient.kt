@@ -1,17 +1,13 @@
 package org.valkyrienskies.core.game.ships
 
-import com.fasterxml.jackson.databind.JsonNode
 import org.joml.primitives.AABBd
 import org.joml.primitives.AABBdc
 import org.valkyrienskies.core.api.ClientShip
 import org.valkyrienskies.core.api.Ship
-import org.valkyrienskies.core.networking.delta.DeltaEncodedChannelClientTCP
-import org.valkyrienskies.core.util.serialization.VSJacksonUtil
 import org.valkyrienskies.core.util.toAABBd
 
 class ShipObjectClient(
-    shipData: ShipDataCommon,
-    shipDataJson: JsonNode = VSJacksonUtil.defaultMapper.valueToTree(shipData)
+    shipData: ShipDataCommon
 ) : ShipObject(shipData), ClientShip, Ship by shipData {
     // The last ship transform sent by the sever
     internal var nextShipTransform: ShipTransform
@@ -25,8 +21,6 @@ class ShipObjectClient(
     internal var latestNetworkTransform: ShipTransform = shipData.shipTransform
     internal var latestNetworkTTick = Int.MIN_VALUE
 
-    internal val shipDataChannel = DeltaEncodedChannelClientTCP(jsonDiffDeltaAlgorithm, shipDataJson)
-
     init {
         nextShipTransform = shipData.shipTransform
         renderTransform = shipData.shipTransform
@@ -30,6 +30,8 @@ class ShipObjectClientWorld(
         shipObjects.forEach { (_, shipObjectClient) ->
             shipObjectClient.tickUpdateShipTransform()
         }
+
+        networkManager.sendTransformAcks()
     }
 
     override fun destroyWorld() {
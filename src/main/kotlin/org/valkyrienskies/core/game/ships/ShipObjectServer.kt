@@ -8,15 +8,15 @@ import org.valkyrienskies.core.api.ServerShipUser
 import org.valkyrienskies.core.api.ShipForcesInducer
 import org.valkyrienskies.core.api.Ticked
 import org.valkyrienskies.core.networking.delta.DeltaEncodedChannelServerTCP
-import org.valkyrienskies.core.util.serialization.VSJacksonUtil
 
 class ShipObjectServer(
     override val shipData: ShipData
 ) : ShipObject(shipData), LoadedServerShip, ServerShip by shipData {
 
+    // Holds a copy of [shipData] as clients last saw it, made by [ShipDataDeltaAlgorithm.snapshot]
     internal val shipDataChannel = DeltaEncodedChannelServerTCP(
-        jsonDiffDeltaAlgorithm,
-        VSJacksonUtil.deltaMapper.valueToTree(shipData)
+        shipDataDeltaAlgorithm,
+        shipDataDeltaAlgorithm.snapshot(shipData)
     )
 
     // runtime attached data only server-side, cus syncing to clients would be pain
@@ -16,12 +16,10 @@ import org.valkyrienskies.core.game.ships.networking.ShipObjectNetworkManagerSer
 import org.valkyrienskies.core.hooks.VSEvents
 import org.valkyrienskies.core.hooks.VSEvents.ShipLoadEvent
 import org.valkyrienskies.core.networking.VSNetworking
+import org.valkyrienskies.core.pipelines.VoxelChunkUpdate
 import org.valkyrienskies.core.util.names.NounListNameGenerator
-import org.valkyrienskies.physics_api.voxel_updates.DenseVoxelShapeUpdate
-import org.valkyrienskies.physics_api.voxel_updates.EmptyVoxelShapeUpdate
 import org.valkyrienskies.physics_api.voxel_updates.IVoxelShapeUpdate
 import org.valkyrienskies.physics_api.voxel_updates.KrunchVoxelStates
-import org.valkyrienskies.physics_api.voxel_updates.SparseVoxelShapeUpdate
 import java.util.Collections
 import java.util.Spliterator
 import java.util.concurrent.CompletableFuture
@@ -78,7 +76,7 @@ class ShipObjectServerWorld(
      * These updates will be sent to the physics engine, however they are not applied immediately. The physics engine
      * has full control of when the updates are applied.
      */
-    private val shipToVoxelUpdates: MutableMap<ShipId, MutableMap<Vector3ic, IVoxelShapeUpdate>> = HashMap()
+    private val shipToVoxelUpdates: MutableMap<ShipId, MutableMap<Vector3ic, VoxelChunkUpdate>> = HashMap()
 
     val chunkTracker = ShipObjectServerWorldChunkTracker(
         this, VSCoreConfig.SERVER.shipLoadDistance, VSCoreConfig.SERVER.shipUnloadDistance
@@ -86,6 +84,8 @@ class ShipObjectServerWorld(
 
     internal val networkManager = ShipObjectNetworkManagerServer(this)
 
+    private val simulationLodTracker = ShipSimulationLodTracker()
+
     @Deprecated(
         message = "All events moved to VSEvents",
         replaceWith = ReplaceWith("ShipLoadEvent", "org.valkyrienskies.core.hooks.VSEvents.ShipLoadEvent")
@@ -114,9 +114,7 @@ class ShipObjectServerWorld(
 
             val shipId: ShipId = shipData?.id ?: dimensionToGroundBodyId[dimensionId]!!
             val voxelUpdates = shipToVoxelUpdates.getOrPut(shipId) { HashMap() }
-
-            val voxelShapeUpdate =
-                voxelUpdates.getOrPut(chunkPos) { SparseVoxelShapeUpdate.createSparseVoxelShapeUpdate(chunkPos) }
+            val voxelChunkUpdate = voxelUpdates.getOrPut(chunkPos) { VoxelChunkUpdate(chunkPos) }
 
             val voxelType: Byte = when (newBlockType) {
                 VSBlockType.AIR -> KrunchVoxelStates.AIR_STATE
@@ -127,24 +125,7 @@ class ShipObjectServerWorld(
                 else -> throw IllegalArgumentException("Unknown blockType $newBlockType")
             }
 
-            when (voxelShapeUpdate) {
-                is SparseVoxelShapeUpdate -> {
-                    // Add the update to the sparse voxel update
-                    voxelShapeUpdate.addUpdate(posX and 15, posY and 15, posZ and 15, voxelType)
-                }
-
-                is DenseVoxelShapeUpdate -> {
-                    // Add the update to the dense voxel update
-                    voxelShapeUpdate.setVoxel(posX and 15, posY and 15, posZ and 15, voxelType)
-                }
-
-                is EmptyVoxelShapeUpdate -> {
-                    // Replace the empty voxel update with a sparse update
-                    val newVoxelShapeUpdate = SparseVoxelShapeUpdate.createSparseVoxelShapeUpdate(chunkPos)
-                    newVoxelShapeUpdate.addUpdate(posX and 15, posY and 15, posZ and 15, voxelType)
-                    voxelUpdates[chunkPos] = newVoxelShapeUpdate
-                }
-            }
+            voxelChunkUpdate.setVoxel(posX and 15, posY and 15, posZ and 15, voxelType)
         }
     }
 
@@ -168,9 +149,11 @@ class ShipObjectServerWorld(
             }
         }
 
-        // For now just update very ship object every tick
+        // Only send ships to physics when something physics knows about has changed
         shipObjects.forEach { (_, shipObjectServer) ->
-            updatedShipObjects.add(shipObjectServer)
+            if (shipObjectServer.shipData.consumePhysicsDirtyFlags() != 0) {
+                updatedShipObjects.add(shipObjectServer)
+            }
         }
 
         // For now, just make a [ShipObject] for every [ShipData]
@@ -178,6 +161,8 @@ class ShipObjectServerWorld(
             val shipID = shipData.id
             if (!shipObjectMap.containsKey(shipID)) {
                 val newShipObject = ShipObjectServer(shipData)
+                // The new ship is sent to physics with all of its state
+                shipData.consumePhysicsDirtyFlags()
                 newShipObjects.add(newShipObject)
                 shipObjectMap[shipID] = newShipObject
                 loadedShips.add(newShipObject)
@@ -196,13 +181,14 @@ class ShipObjectServerWorld(
                 val shipId: ShipId = shipData?.id ?: dimensionToGroundBodyId[dimensionId]!!
 
                 val voxelUpdates = shipToVoxelUpdates.getOrPut(shipId) { HashMap() }
-                voxelUpdates[chunkPos] = newLoadedChunk
+                voxelUpdates[chunkPos] = VoxelChunkUpdate(chunkPos, newLoadedChunk)
             }
         }
         // endregion
 
         chunkTracker.updateTracking(players, lastTickPlayers)
         networkManager.tick()
+        simulationLodTracker.update(shipObjects.values, players, chunkTracker.shipsToPlayersWatchingMap)
 
         loadedShips.forEach { VSEvents.shipLoadEvent.emit(ShipLoadEvent(it)) }
 
@@ -288,6 +274,7 @@ class ShipObjectServerWorld(
     }
 
     override fun destroyWorld() {
+        networkManager.onDestroy()
     }
 
     fun getNewGroundRigidBodyObjects(): List<Pair<DimensionId, ShipId>> {
@@ -302,6 +289,14 @@ class ShipObjectServerWorld(
         return newShipObjects
     }
 
+    /**
+     * The number of loaded ships with each [ShipSimulationLod] as of the last tick, may be called from any thread
+     */
+    fun getShipCountsBySimulationLod(): Map<ShipSimulationLod, Int> {
+        val counts = simulationLodTracker.shipCounts
+        return ShipSimulationLod.values().associateWith { counts[it.ordinal] }
+    }
+
     fun getUpdatedShipObjects(): List<ShipObjectServer> {
         return updatedShipObjects
     }
@@ -314,7 +309,7 @@ class ShipObjectServerWorld(
         return deletedGroundShips + _deletedShipObjects.map { it.id }
     }
 
-    fun getShipToVoxelUpdates(): Map<ShipId, Map<Vector3ic, IVoxelShapeUpdate>> {
+    fun getShipToVoxelUpdates(): Map<ShipId, Map<Vector3ic, VoxelChunkUpdate>> {
         return shipToVoxelUpdates
     }
 
@@ -0,0 +1,23 @@
+package org.valkyrienskies.core.game.ships
+
+/**
+ * How closely physics simulates a ship, picked by [ShipSimulationLodTracker] from how far the ship is from players
+ */
+enum class ShipSimulationLod {
+    /**
+     * Forces inducers run and the ship is in physics frames every physics tick
+     */
+    FULL,
+
+    /**
+     * Forces inducers only run every [org.valkyrienskies.core.config.VSCoreConfig.Server.lodReducedTickInterval]
+     * physics ticks, their forces are held in between. The ship is still simulated and in physics frames every
+     * physics tick.
+     */
+    REDUCED,
+
+    /**
+     * The ship is frozen in place like a sleeping ship, and nothing but the game can wake it up
+     */
+    FROZEN
+}
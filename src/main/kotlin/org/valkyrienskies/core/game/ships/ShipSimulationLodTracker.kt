@@ -0,0 +1,91 @@
+package org.valkyrienskies.core.game.ships
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap
+import org.joml.Vector3d
+import org.valkyrienskies.core.config.VSCoreConfig
+import org.valkyrienskies.core.game.IPlayer
+import org.valkyrienskies.core.util.squared
+
+/**
+ * Picks the [ShipSimulationLod] of every loaded ship:
+ * - Ships that a player is watching get [ShipSimulationLod.FULL]
+ * - Ships that nobody is watching, but that are within [VSCoreConfig.Server.lodFrozenDistance] of a player in their
+ *   dimension, get [ShipSimulationLod.REDUCED]. This ramps ships up as players approach them, before they're watched.
+ * - Every other ship gets [ShipSimulationLod.FROZEN]
+ *
+ * A ship gets a better LOD right away, but only gets a worse one after wanting it for
+ * [VSCoreConfig.Server.lodDowngradeDelayTicks] ticks in a row, so that ships on the edge of a range don't flicker
+ * between LODs.
+ */
+internal class ShipSimulationLodTracker {
+
+    // Ship id -> the number of ticks in a row the ship wanted a worse LOD
+    private val ticksWantingWorseLod = Long2IntOpenHashMap()
+
+    /**
+     * The number of ships with each [ShipSimulationLod] after the last [update], indexed by ordinal. Replaced instead
+     * of modified, so it can be read from any thread.
+     */
+    @Volatile
+    var shipCounts = IntArray(LODS.size)
+        private set
+
+    // Reused by [update]
+    private val playerPos = Vector3d()
+
+    /**
+     * @param shipsToPlayersWatching Ship id -> the players watching that ship
+     */
+    fun update(
+        ships: Collection<ShipObjectServer>,
+        players: Collection<IPlayer>,
+        shipsToPlayersWatching: Long2ObjectMap<out Collection<IPlayer>>
+    ) {
+        val config = VSCoreConfig.SERVER
+        val newShipCounts = IntArray(LODS.size)
+        val frozenDistanceSq = config.lodFrozenDistance.squared()
+
+        ships.forEach { ship ->
+            val shipData = ship.shipData
+            val wantedLod = when {
+                !config.simulationLod -> ShipSimulationLod.FULL
+                shipsToPlayersWatching.get(shipData.id)?.isNotEmpty() == true -> ShipSimulationLod.FULL
+                isPlayerWithin(shipData, players, frozenDistanceSq) -> ShipSimulationLod.REDUCED
+                else -> ShipSimulationLod.FROZEN
+            }
+
+            if (wantedLod.ordinal <= shipData.simulationLod.ordinal) {
+                shipData.simulationLod = wantedLod
+                ticksWantingWorseLod.remove(shipData.id)
+            } else {
+                val ticks = ticksWantingWorseLod.addTo(shipData.id, 1) + 1
+                if (ticks >= config.lodDowngradeDelayTicks) {
+                    shipData.simulationLod = wantedLod
+                    ticksWantingWorseLod.remove(shipData.id)
+                }
+            }
+            newShipCounts[shipData.simulationLod.ordinal]++
+        }
+
+        // Forget ships that were unloaded while wanting a worse LOD
+        if (ticksWantingWorseLod.size > ships.size) {
+            val loadedIds = ships.mapTo(HashSet()) { it.shipData.id }
+            ticksWantingWorseLod.keys.removeIf { it !in loadedIds }
+        }
+
+        shipCounts = newShipCounts
+    }
+
+    private fun isPlayerWithin(shipData: ShipData, players: Collection<IPlayer>, distanceSq: Double): Boolean {
+        val shipPos = shipData.shipTransform.shipPositionInWorldCoordinates
+        return players.any { player ->
+            player.dimension == shipData.chunkClaimDimension &&
+                player.getPosition(playerPos).distanceSquared(shipPos) < distanceSq
+        }
+    }
+
+    companion object {
+        private val LODS = ShipSimulationLod.values()
+    }
+}
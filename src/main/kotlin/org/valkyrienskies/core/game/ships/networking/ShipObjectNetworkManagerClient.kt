@@ -1,9 +1,14 @@
 package org.valkyrienskies.core.game.ships.networking
 
 import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap
 import kotlinx.coroutines.launch
-import org.valkyrienskies.core.game.ships.ShipDataCommon
-import org.valkyrienskies.core.game.ships.ShipId
+import org.joml.Vector3d
+import org.joml.Vector3i
+import org.valkyrienskies.core.game.ships.ShipObject
 import org.valkyrienskies.core.game.ships.ShipObjectClient
 import org.valkyrienskies.core.game.ships.ShipObjectClientWorld
 import org.valkyrienskies.core.game.ships.ShipTransform
@@ -13,16 +18,29 @@ import org.valkyrienskies.core.networking.RegisteredHandler
 import org.valkyrienskies.core.networking.VSCryptUtils
 import org.valkyrienskies.core.networking.VSNetworking
 import org.valkyrienskies.core.networking.VSNetworking.tryUdpClient
+import org.valkyrienskies.core.networking.delta.DeltaEncodedChannelClientUDP
 import org.valkyrienskies.core.networking.impl.PacketShipDataCreate
 import org.valkyrienskies.core.networking.impl.PacketShipRemove
 import org.valkyrienskies.core.networking.simple.registerClientHandler
 import org.valkyrienskies.core.networking.unregisterAll
 import org.valkyrienskies.core.pipelines.VSNetworkPipelineStage
+import org.valkyrienskies.core.pipelines.VSNetworkPipelineStage.Companion.COM_X
+import org.valkyrienskies.core.pipelines.VSNetworkPipelineStage.Companion.COM_Y
+import org.valkyrienskies.core.pipelines.VSNetworkPipelineStage.Companion.COM_Z
+import org.valkyrienskies.core.pipelines.VSNetworkPipelineStage.Companion.POS_X
+import org.valkyrienskies.core.pipelines.VSNetworkPipelineStage.Companion.POS_Y
+import org.valkyrienskies.core.pipelines.VSNetworkPipelineStage.Companion.POS_Z
+import org.valkyrienskies.core.pipelines.VSNetworkPipelineStage.Companion.ROT
 import org.valkyrienskies.core.util.logger
-import org.valkyrienskies.core.util.read3FAsNormQuatd
+import org.valkyrienskies.core.util.readPackedSmallestThreeQuatd
+import org.valkyrienskies.core.util.readVarInt
 import org.valkyrienskies.core.util.readVec3d
 import org.valkyrienskies.core.util.readVec3fAsDouble
-import org.valkyrienskies.core.util.serialization.VSJacksonUtil
+import org.valkyrienskies.core.util.readZigZagVarInt
+import org.valkyrienskies.core.util.smallestThreeComponent
+import org.valkyrienskies.core.util.smallestThreeLargestIndex
+import org.valkyrienskies.core.util.smallestThreeOf
+import org.valkyrienskies.core.util.unpackSmallestThreeQuatd
 import java.net.SocketAddress
 import javax.crypto.SecretKey
 
@@ -36,6 +54,16 @@ class ShipObjectNetworkManagerClient(
 
     private var secretKey: SecretKey? = null
 
+    // The index the server gave each ship in transform packets -> that ship
+    private val shipsByTransformIndex = Int2ObjectOpenHashMap<ShipObjectClient>()
+    private val shipIdToTransformIndex = Long2IntOpenHashMap().apply { defaultReturnValue(NO_TRANSFORM_INDEX) }
+
+    // The transform snapshots received, which later transform packets are delta encoded against. Transform packets
+    // are read on the UDP thread, acknowledgements are sent on the game thread.
+    private val transformChannel = DeltaEncodedChannelClientUDP(
+        VSNetworkPipelineStage.TRANSFORM_SNAPSHOT_HISTORY, ::ShipTransformSnapshot
+    ) { it.clear() }
+
     fun registerPacketListeners() {
         handlers = listOf(
             Packets.UDP_SHIP_TRANSFORM.registerClientHandler(this::onShipTransform),
@@ -56,13 +84,20 @@ class ShipObjectNetworkManagerClient(
     }
 
     private fun onShipDataRemove(packet: PacketShipRemove) = worldScope.launch {
-        packet.toRemove.forEach(parent::removeShip)
+        packet.toRemove.forEach { shipId ->
+            val transformIndex = shipIdToTransformIndex.remove(shipId)
+            if (transformIndex != NO_TRANSFORM_INDEX) shipsByTransformIndex.remove(transformIndex)
+            parent.removeShip(shipId)
+        }
     }
 
     private fun onShipDataCreate(packet: PacketShipDataCreate) = worldScope.launch {
-        for (ship in packet.toCreate) {
+        packet.toCreate.forEachIndexed { i, ship ->
             if (parent.queryableShipData.getById(ship.id) == null) {
                 parent.addShip(ship)
+                val transformIndex = packet.transformIndices[i]
+                shipsByTransformIndex[transformIndex] = parent.shipObjects.getValue(ship.id)
+                shipIdToTransformIndex[ship.id] = transformIndex
             } else {
                 // Update the next ship transform
                 parent.shipObjects[ship.id]?.nextShipTransform = ship.shipTransform
@@ -83,21 +118,32 @@ class ShipObjectNetworkManagerClient(
             val ship = parent.shipObjects[shipId]
             if (ship == null) {
                 logger.warn("Received ship data delta for ship with unknown ID!")
-                buf.release()
-                return@launch
+                ShipObject.shipDataDeltaAlgorithm.skip(buf)
+            } else {
+                ShipObject.shipDataDeltaAlgorithm.applyInPlace(ship.shipData, buf)
             }
-            val shipDataJson = ship.shipDataChannel.decode(buf)
-
-            VSJacksonUtil.deltaMapper
-                .readerForUpdating(ship.shipData)
-                .readValue<ShipDataCommon>(shipDataJson)
         }
         buf.release()
     }.also { packet.data.retain() }
 
     private fun onShipTransform(packet: Packet) {
         val buf = packet.data
-        readShipTransform(buf, parent.shipObjects)
+        synchronized(transformChannel) {
+            readShipTransform(buf, shipsByTransformIndex, transformChannel)
+        }
+    }
+
+    /**
+     * Tell the server which transform packets were received since the last call, so it can delta encode against them.
+     * Without UDP nothing is acknowledged, and the server keeps sending whole transforms.
+     */
+    fun sendTransformAcks() {
+        val buf = Unpooled.buffer()
+        if (synchronized(transformChannel) { transformChannel.writeAcks(buf) } && VSNetworking.clientUsesUDP) {
+            Packets.UDP_SHIP_TRANSFORM_ACK.sendToServer(buf)
+        } else {
+            buf.release()
+        }
     }
 
     private var serverNoUdp = false
@@ -118,33 +164,120 @@ class ShipObjectNetworkManagerClient(
     }
 
     companion object {
+        private const val NO_TRANSFORM_INDEX = -1
+
         private val logger by logger()
 
-        // Reads all ship transforms in a buffer and places them in the latestReceived map.
-        internal fun readShipTransform(buf: ByteBuf, shipObjects: Map<ShipId, ShipObjectClient>) {
+        /**
+         * Reads all ship transforms in a packet written by [VSNetworkPipelineStage.writePacket], and places them in
+         * [ShipObjectClient.latestNetworkTransform]
+         *
+         * @param ships The index the server gave each ship in transform packets -> that ship
+         * @param channel The snapshots received from the server, or null if delta encoded transforms can't be read
+         */
+        internal fun readShipTransform(
+            buf: ByteBuf,
+            ships: Int2ObjectMap<ShipObjectClient>,
+            channel: DeltaEncodedChannelClientUDP<ShipTransformSnapshot>? = null
+        ) {
             val tickNum = buf.readInt()
+            val snapshotId = buf.readInt()
+            val part = buf.readVarInt()
+            val positionBits = buf.readUnsignedByte().toInt()
+            val rotationBits = buf.readUnsignedByte().toInt()
+            val precision = 1.0 / (1 shl positionBits)
+            val originX = buf.readZigZagVarInt().toLong() shl positionBits
+            val originY = buf.readZigZagVarInt().toLong() shl positionBits
+            val originZ = buf.readZigZagVarInt().toLong() shl positionBits
+
+            var snapshot = channel?.receiveSnapshot(snapshotId)
+            if (snapshot != null && snapshot.positionBits == ShipTransformSnapshot.NO_BITS) {
+                snapshot.clear(positionBits, rotationBits)
+            } else if (snapshot != null && (snapshot.positionBits != positionBits ||
+                    snapshot.rotationBits != rotationBits)
+            ) {
+                snapshot = null
+            }
+            // The part is only acknowledged if every transform in it could be read
+            var readAll = true
+
+            val values = LongArray(ShipTransformSnapshot.VALUES)
+            val previous = LongArray(ShipTransformSnapshot.VALUES)
+            val claimCenter = Vector3i()
             while (buf.isReadable) {
-                val shipId = buf.readLong()
-                val ship = shipObjects[shipId]
-                if (ship == null) {
-                    logger.warn("Received ship transform for ship with unknown ID!")
-                    buf.skipBytes(VSNetworkPipelineStage.TRANSFORM_SIZE - 8)
-                } else if (ship.latestNetworkTTick >= tickNum) {
-                    // Skip the transform if we already have it
-                    buf.skipBytes(VSNetworkPipelineStage.TRANSFORM_SIZE - 8)
+                val index = buf.readUnsignedShort()
+                val ship = ships.get(index)
+                val flags = buf.readUnsignedByte().toInt()
+                val unquantized = flags and VSNetworkPipelineStage.FLAG_UNQUANTIZED != 0
+
+                // Transforms take a varying number of bytes, so they're always read even if they're skipped
+                var centerOfMass: Vector3d? = null
+                var position: Vector3d? = null
+                var decoded = true
+                if (unquantized) {
+                    centerOfMass = buf.readVec3d()
+                    position = buf.readVec3d()
+                    values[ROT] = buf.readPackedSmallestThreeQuatd(rotationBits)
+                } else if (flags and VSNetworkPipelineStage.FLAG_DELTA != 0) {
+                    // Each transform has its own baseline
+                    val baseline = channel?.getSnapshot(snapshotId - buf.readVarInt())
+                    decoded = baseline != null && baseline.get(index, previous) != -1
+                    for (i in COM_X..POS_Z) values[i] = previous[i] + buf.readZigZagVarInt()
+                    val maxComponent = (1 shl rotationBits) - 1
+                    val a = smallestThreeComponent(previous[ROT], rotationBits, 0) + buf.readZigZagVarInt()
+                    val b = smallestThreeComponent(previous[ROT], rotationBits, 1) + buf.readZigZagVarInt()
+                    val c = smallestThreeComponent(previous[ROT], rotationBits, 2) + buf.readZigZagVarInt()
+                    values[ROT] = smallestThreeOf(
+                        smallestThreeLargestIndex(previous[ROT], rotationBits),
+                        a.coerceIn(0, maxComponent), b.coerceIn(0, maxComponent), c.coerceIn(0, maxComponent),
+                        rotationBits
+                    )
                 } else {
+                    for (i in COM_X..COM_Z) values[i] = buf.readZigZagVarInt().toLong()
+                    values[POS_X] = originX + buf.readZigZagVarInt()
+                    values[POS_Y] = originY + buf.readZigZagVarInt()
+                    values[POS_Z] = originZ + buf.readZigZagVarInt()
+                    values[ROT] = buf.readPackedSmallestThreeQuatd(rotationBits)
+                }
+                val scaling = if (flags and VSNetworkPipelineStage.FLAG_SCALED != 0) {
+                    buf.readVec3fAsDouble()
+                } else {
+                    Vector3d(1.0, 1.0, 1.0)
+                }
+
+                if (!decoded) {
+                    // The baseline was lost, or replaced by newer snapshots
+                    readAll = false
+                    continue
+                }
+                if (!unquantized) snapshot?.put(index, part, values)
+
+                if (ship == null) {
+                    logger.warn("Received ship transform for ship with unknown index!")
+                } else if (ship.latestNetworkTTick < tickNum) {
+                    // Transforms from older ticks are ignored
                     ship.latestNetworkTTick = tickNum
 
-                    val centerOfMass = buf.readVec3d()
-                    val scaling = buf.readVec3fAsDouble()
-                    val rotation = buf.read3FAsNormQuatd()
-                    val position = buf.readVec3d()
+                    if (!unquantized) {
+                        // The center of mass was sent relative to the center of the ship's chunk claim
+                        ship.shipData.chunkClaim.getCenterBlockCoordinates(claimCenter)
+                        centerOfMass = Vector3d(
+                            values[COM_X] * precision + claimCenter.x,
+                            values[COM_Y] * precision + claimCenter.y,
+                            values[COM_Z] * precision + claimCenter.z
+                        )
+                        position = Vector3d(
+                            values[POS_X] * precision, values[POS_Y] * precision, values[POS_Z] * precision
+                        )
+                    }
 
                     ship.latestNetworkTransform = ShipTransform.createFromCoordinatesAndRotationAndScaling(
-                        position, centerOfMass, rotation, scaling
+                        position!!, centerOfMass!!, unpackSmallestThreeQuatd(values[ROT], rotationBits), scaling
                     )
                 }
             }
+
+            if (readAll && snapshot != null) channel!!.ackPart(snapshotId, part)
         }
     }
 }
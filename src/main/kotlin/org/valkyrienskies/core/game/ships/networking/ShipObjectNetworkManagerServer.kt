@@ -1,20 +1,29 @@
 package org.valkyrienskies.core.game.ships.networking
 
-import com.fasterxml.jackson.databind.JsonNode
 import com.google.common.collect.ImmutableMap
 import com.google.common.collect.ImmutableSet
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.CompositeByteBuf
 import io.netty.buffer.Unpooled
+import it.unimi.dsi.fastutil.longs.Long2IntMap
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap
+import org.joml.Vector3d
+import org.joml.Vector3dc
 import org.valkyrienskies.core.game.IPlayer
 import org.valkyrienskies.core.game.ships.ShipData
+import org.valkyrienskies.core.game.ships.ShipObject
 import org.valkyrienskies.core.game.ships.ShipObjectServerWorld
 import org.valkyrienskies.core.networking.Packets
 import org.valkyrienskies.core.networking.VSNetworking
+import org.valkyrienskies.core.networking.delta.DeltaEncodedChannelServer
 import org.valkyrienskies.core.networking.impl.PacketShipDataCreate
 import org.valkyrienskies.core.networking.impl.PacketShipRemove
 import org.valkyrienskies.core.networking.simple.sendToClient
+import org.valkyrienskies.core.networking.unregisterAll
+import org.valkyrienskies.core.pipelines.VSNetworkPipelineStage
 import org.valkyrienskies.core.util.logger
-import org.valkyrienskies.core.util.serialization.VSJacksonUtil
 import org.valkyrienskies.core.util.toImmutableSet
+import java.util.concurrent.ConcurrentHashMap
 
 class ShipObjectNetworkManagerServer(
     private val parent: ShipObjectServerWorld
@@ -24,6 +33,24 @@ class ShipObjectNetworkManagerServer(
 
     private lateinit var players: Iterable<IPlayer>
 
+    private val playersToTransformIndices = HashMap<IPlayer, ShipTransformIndices>()
+
+    // Used by the network stage, and by the UDP thread to receive acks
+    private val playersToTransformChannels =
+        ConcurrentHashMap<IPlayer, DeltaEncodedChannelServer<ShipTransformSnapshot>>()
+    private val playersToTransformPriorities = ConcurrentHashMap<IPlayer, ShipTransformPriorities>()
+    private val playersToTransformBaselines = ConcurrentHashMap<IPlayer, ShipTransformBaselines>()
+
+    private val handlers = listOf(
+        Packets.UDP_SHIP_TRANSFORM_ACK.registerServerHandler { packet, player ->
+            val channel = playersToTransformChannels[player] ?: return@registerServerHandler
+            synchronized(channel) { channel.receiveAcks(packet.data) }
+        }
+    )
+
+    // Reused by [updateShipData]. Ship id -> the id and delta of that ship sent this tick
+    private val shipDeltas = Long2ObjectOpenHashMap<ByteBuf>()
+
     fun tick() {
         this.players = parent.players
         updateShipData()
@@ -43,6 +70,20 @@ class ShipObjectNetworkManagerServer(
             builder.put(player, ships.keys.toImmutableSet())
         }
         playersToTrackedShips = builder.build()
+
+        // Forget the indices and transform snapshots of players that left
+        val playerSet = players.toSet()
+        playersToTransformIndices.keys.retainAll(playerSet)
+        playersToTransformChannels.keys.retainAll(playerSet)
+        playersToTransformPriorities.keys.retainAll(playerSet)
+        playersToTransformBaselines.keys.retainAll(playerSet)
+        val indicesBuilder = ImmutableMap.builder<IPlayer, Long2IntMap>()
+        playersToTransformIndices.forEach { (player, indices) -> indicesBuilder.put(player, indices.snapshot()) }
+        playersToShipTransformIndices = indicesBuilder.build()
+
+        val positionsBuilder = ImmutableMap.builder<IPlayer, Vector3dc>()
+        players.forEach { player -> positionsBuilder.put(player, player.getPosition(Vector3d())) }
+        playersToPositions = positionsBuilder.build()
     }
 
     /**
@@ -50,6 +91,48 @@ class ShipObjectNetworkManagerServer(
      */
     var playersToTrackedShips: ImmutableMap<IPlayer, ImmutableSet<ShipData>> = ImmutableMap.of()
 
+    /**
+     * Used by VSNetworkPipeline as a threadsafe way to access the index each player knows each ship by in transform
+     * packets, see [ShipTransformIndices]
+     */
+    var playersToShipTransformIndices: ImmutableMap<IPlayer, Long2IntMap> = ImmutableMap.of()
+
+    /**
+     * Used by VSNetworkPipeline as a threadsafe way to access where players were last game tick
+     */
+    var playersToPositions: ImmutableMap<IPlayer, Vector3dc> = ImmutableMap.of()
+
+    /**
+     * Used by VSNetworkPipeline to delta encode the transforms sent to [player] against ones it received
+     */
+    internal fun getTransformChannel(player: IPlayer): DeltaEncodedChannelServer<ShipTransformSnapshot> =
+        playersToTransformChannels.computeIfAbsent(player) {
+            // A new channel starts with no acknowledged snapshots, so its baselines start empty too
+            val baselines = ShipTransformBaselines()
+            playersToTransformBaselines[player] = baselines
+            DeltaEncodedChannelServer(
+                VSNetworkPipelineStage.TRANSFORM_SNAPSHOT_HISTORY, ::ShipTransformSnapshot, { it.clear() },
+                baselines::onAcked
+            )
+        }
+
+    /**
+     * Used by VSNetworkPipeline to find the snapshot to delta encode each transform sent to [player] against. Only use
+     * it while holding the lock of the player's [getTransformChannel]
+     */
+    internal fun getTransformBaselines(player: IPlayer): ShipTransformBaselines {
+        getTransformChannel(player)
+        // Only missing if the player left in between
+        return playersToTransformBaselines[player] ?: ShipTransformBaselines()
+    }
+
+    /**
+     * Used by VSNetworkPipeline to choose which transforms to send to [player]. Only use it while holding the lock of
+     * the player's [getTransformChannel]
+     */
+    internal fun getTransformPriorities(player: IPlayer): ShipTransformPriorities =
+        playersToTransformPriorities.computeIfAbsent(player) { ShipTransformPriorities() }
+
     /**
      * Send create and destroy packets for ships that players have started/stopped watching
      */
@@ -69,6 +152,7 @@ class ShipObjectNetworkManagerServer(
     private fun endTracking(player: IPlayer, shipsToNotTrack: Iterable<ShipData>) {
         val shipIds = shipsToNotTrack.map { it.id }
         if (shipIds.isEmpty()) return
+        playersToTransformIndices[player]?.let { indices -> shipIds.forEach(indices::release) }
         logger.debug("${player.uuid} unwatched ships $shipIds")
         PacketShipRemove(shipIds).sendToClient(player)
     }
@@ -77,32 +161,50 @@ class ShipObjectNetworkManagerServer(
         val ships = shipsToTrack.toList()
         if (ships.isEmpty()) return
         logger.debug("${player.uuid} watched ships: ${ships.map { it.id }}")
-        PacketShipDataCreate(ships).sendToClient(player)
+        val indices = playersToTransformIndices.getOrPut(player) { ShipTransformIndices() }
+        PacketShipDataCreate(ships, ships.map { indices.assign(it.id) }).sendToClient(player)
     }
 
     /**
      * Send ShipData deltas to players
      */
     private fun updateShipData() {
-        for (player in players) {
-            val buf = Unpooled.buffer()
-            val newlyWatching = tracker.playersToShipsNewlyWatchingMap[player] ?: emptySet()
-            val trackedShips = player.getTrackedShips()
-                // bad time complexity; sue me
-                .filter { tracked -> newlyWatching.none { tracked.id == it.id } }
-                .map { parent.shipObjects[it.id]!! }
-
-            if (trackedShips.isEmpty())
-                continue
-
-            trackedShips.forEach { ship ->
-                buf.writeLong(ship.shipData.id)
-                val json = VSJacksonUtil.deltaMapper.valueToTree<JsonNode>(ship.shipData)
-                ship.shipDataChannel.encode(json, buf)
-            }
+        // Encode each ship that changed once, into one buffer for this tick. Every player watching a ship is sent a
+        // read-only slice of the same bytes, so the work scales with the ships that changed rather than with the
+        // players watching them. Ships that didn't change aren't encoded or sent at all.
+        val deltas = Unpooled.buffer()
+        parent.shipObjects.values.forEach { ship ->
+            if (ship.shipData.consumeNetworkDirtyFlags() == 0) return@forEach
+            val start = deltas.writerIndex()
+            deltas.writeLong(ship.shipData.id)
+            ship.shipDataChannel.encode(ShipObject.shipDataDeltaAlgorithm.snapshot(ship.shipData), deltas)
+            shipDeltas[ship.shipData.id] = deltas.slice(start, deltas.writerIndex() - start)
+        }
 
-            Packets.TCP_SHIP_DATA_DELTA.sendToClient(buf, player)
+        if (!shipDeltas.isEmpty()) {
+            for (player in players) {
+                val newlyWatching = tracker.playersToShipsNewlyWatchingMap[player] ?: emptySet<ShipData>()
+                var buf: CompositeByteBuf? = null
+                player.getTrackedShips().forEach { tracked ->
+                    val delta = shipDeltas.get(tracked.id)
+                    // Newly watching players are sent the whole ship by [updateTracking] instead
+                    if (delta == null || tracked in newlyWatching) return@forEach
+                    // No component limit, a composite buffer copies its components into one once it has too many
+                    val out = buf ?: Unpooled.compositeBuffer(Int.MAX_VALUE).also { buf = it }
+                    out.addComponent(true, delta.retainedSlice().asReadOnly())
+                }
+
+                buf?.let { Packets.TCP_SHIP_DATA_DELTA.sendToClient(it, player) }
+            }
         }
+
+        // The slices sent to players keep the bytes alive until they're written
+        shipDeltas.clear()
+        deltas.release()
+    }
+
+    fun onDestroy() {
+        handlers.unregisterAll()
     }
 
     init {
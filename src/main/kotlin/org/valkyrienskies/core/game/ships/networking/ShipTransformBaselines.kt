@@ -0,0 +1,77 @@
+package org.valkyrienskies.core.game.ships.networking
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap
+import org.valkyrienskies.core.game.ships.ShipId
+import org.valkyrienskies.core.networking.delta.DeltaEncodedChannelServer
+
+/**
+ * The newest snapshot sent to one player that the player acknowledged each ship's transform in, by the index of the
+ * ship in transform packets. Transforms are delta encoded against these, because when the player's byte budget
+ * doesn't fit every ship, the newest acknowledged snapshot often doesn't have the ship at all.
+ *
+ * It also keeps which sleeping ships the player has the sleeping pose of. Sleeping ships aren't in physics frames,
+ * so their pose is sent until the player acknowledges a snapshot it was in.
+ *
+ * The snapshot may have been replaced since, check that the channel still has it. This class isn't thread safe, it's
+ * used under the lock of the player's transform channel.
+ */
+internal class ShipTransformBaselines {
+
+    private val newestAcked = Int2IntOpenHashMap()
+
+    // Sleeping ship id -> the physics tick it fell asleep, and the first snapshot its sleeping pose was sent in
+    private val sleepTicks = Long2IntOpenHashMap()
+    private val sleepPosesSentIn = Long2IntOpenHashMap()
+
+    /**
+     * Given to [DeltaEncodedChannelServer] as its `onAcked`
+     */
+    fun onAcked(id: Int, snapshot: ShipTransformSnapshot, parts: Long) {
+        snapshot.forEachShip { index, part ->
+            if (part >= DeltaEncodedChannelServer.MAX_PARTS || parts and (1L shl part) == 0L) return@forEachShip
+            // Acks can arrive out of order
+            if (!newestAcked.containsKey(index) || id - newestAcked.get(index) > 0) newestAcked.put(index, id)
+        }
+    }
+
+    /**
+     * @return the id of the newest snapshot ship [index] was acknowledged in, or null if it never was
+     */
+    fun getBaselineId(index: Int): Int? = if (newestAcked.containsKey(index)) newestAcked.get(index) else null
+
+    /**
+     * Record that the pose ship [shipId] fell asleep in on physics tick [sleepTick] was sent in snapshot [snapshotId]
+     */
+    fun onSleepPoseSent(shipId: ShipId, sleepTick: Int, snapshotId: Int) {
+        // Only the first snapshot matters, every later one has the same pose
+        if (sleepTicks.containsKey(shipId) && sleepTicks.get(shipId) == sleepTick) return
+        sleepTicks.put(shipId, sleepTick)
+        sleepPosesSentIn.put(shipId, snapshotId)
+    }
+
+    /**
+     * @return whether the player acknowledged a snapshot with the pose ship [shipId], which has [index], fell asleep
+     * in on physics tick [sleepTick]
+     */
+    fun isSleepPoseAcked(shipId: ShipId, index: Int, sleepTick: Int): Boolean {
+        if (!sleepTicks.containsKey(shipId) || sleepTicks.get(shipId) != sleepTick) return false
+        // The ship is asleep since, so any newer snapshot it was acknowledged in also has the sleeping pose
+        val acked = getBaselineId(index) ?: return false
+        return acked - sleepPosesSentIn.get(shipId) >= 0
+    }
+
+    /**
+     * Forget the sleeping poses of ships that aren't [isSleeping] anymore
+     */
+    fun pruneSleepPoses(isSleeping: (ShipId) -> Boolean) {
+        val iterator = sleepTicks.keys.iterator()
+        while (iterator.hasNext()) {
+            val shipId = iterator.nextLong()
+            if (!isSleeping(shipId)) {
+                iterator.remove()
+                sleepPosesSentIn.remove(shipId)
+            }
+        }
+    }
+}
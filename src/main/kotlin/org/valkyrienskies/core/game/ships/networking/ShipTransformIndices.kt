@@ -0,0 +1,62 @@
+package org.valkyrienskies.core.game.ships.networking
+
+import it.unimi.dsi.fastutil.longs.Long2IntMap
+import it.unimi.dsi.fastutil.longs.Long2IntMaps
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap
+import org.valkyrienskies.core.game.ships.ShipId
+import java.util.BitSet
+
+/**
+ * Gives each ship a player is watching an index that fits in a short, which transform packets use instead of the ship
+ * id. The index is sent to the player with the ship's create packet.
+ *
+ * Indices are handed out in a cycle rather than lowest-free-first, so that a transform packet for an unwatched ship
+ * that arrives late is very unlikely to be applied to a ship that was given its index since.
+ */
+internal class ShipTransformIndices {
+
+    private val shipIdToIndex = Long2IntOpenHashMap().apply { defaultReturnValue(NO_INDEX) }
+    private val usedIndices = BitSet(MAX_INDICES)
+    private var nextIndex = 0
+
+    // The last [snapshot], until an index changes
+    private var snapshot: Long2IntMap? = null
+
+    /**
+     * @return the index of [shipId], which is given a free index if it doesn't have one yet
+     */
+    fun assign(shipId: ShipId): Int {
+        val existing = shipIdToIndex.get(shipId)
+        if (existing != NO_INDEX) return existing
+        check(shipIdToIndex.size < MAX_INDICES) { "A player can't watch more than $MAX_INDICES ships" }
+
+        var index = usedIndices.nextClearBit(nextIndex)
+        if (index >= MAX_INDICES) index = usedIndices.nextClearBit(0)
+        usedIndices.set(index)
+        shipIdToIndex.put(shipId, index)
+        nextIndex = (index + 1) % MAX_INDICES
+        snapshot = null
+        return index
+    }
+
+    fun release(shipId: ShipId) {
+        val index = shipIdToIndex.remove(shipId)
+        if (index != NO_INDEX) {
+            usedIndices.clear(index)
+            snapshot = null
+        }
+    }
+
+    /**
+     * @return a copy of ship id -> index that can be read from other threads, missing ids map to [NO_INDEX]
+     */
+    fun snapshot(): Long2IntMap = snapshot ?: Long2IntMaps.unmodifiable(
+        Long2IntOpenHashMap(shipIdToIndex).apply { defaultReturnValue(NO_INDEX) }
+    ).also { snapshot = it }
+
+    companion object {
+        const val NO_INDEX = -1
+
+        const val MAX_INDICES = 1 shl 16
+    }
+}
@@ -0,0 +1,78 @@
+package org.valkyrienskies.core.game.ships.networking
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet
+import org.joml.Vector3d
+import org.joml.Vector3dc
+import org.valkyrienskies.core.game.ships.ShipData
+import org.valkyrienskies.core.game.ships.ShipId
+import org.valkyrienskies.core.pipelines.VSPhysicsFrame
+import org.valkyrienskies.core.util.squared
+import kotlin.math.min
+
+/**
+ * Decides which ship transforms are sent to one player when there isn't room for all of them. Every time transforms
+ * are sent, each ship's priority grows, faster for ships that are close to the player and moving, and it's reset once
+ * the ship's transform is sent. Ships are sent from the highest priority down, so ships that are far away or resting
+ * are sent less often, but are never left out for good.
+ *
+ * This class isn't thread safe.
+ */
+internal class ShipTransformPriorities {
+
+    private val priorities = Long2DoubleOpenHashMap()
+
+    // Reused by [prioritize]
+    private val velocity = Vector3d()
+    private val omega = Vector3d()
+
+    /**
+     * Raise the priority of [ships], which must all be in [frame], then sort them from the highest priority down
+     */
+    fun prioritize(ships: MutableList<ShipData>, frame: VSPhysicsFrame, playerPosition: Vector3dc) {
+        ships.forEach { ship ->
+            if (!priorities.containsKey(ship.id)) {
+                // The player has never been sent this ship's transform
+                priorities.put(ship.id, Double.POSITIVE_INFINITY)
+                return@forEach
+            }
+            val slot = frame.getSlot(ship.id)
+            val distance = frame.getTransform(slot).shipPositionInWorldCoordinates.distance(playerPosition)
+            val motion = min(
+                1.0,
+                frame.getVel(slot, velocity).length() / FAST_VELOCITY +
+                    frame.getOmega(slot, omega).length() / FAST_ANGULAR_VELOCITY
+            )
+            val priority = (RESTING_PRIORITY + (1 - RESTING_PRIORITY) * motion) /
+                (1 + (distance / PRIORITY_DISTANCE).squared())
+            priorities.addTo(ship.id, priority)
+        }
+        ships.sortByDescending { priorities.get(it.id) }
+    }
+
+    fun onSent(shipId: ShipId) {
+        priorities.put(shipId, 0.0)
+    }
+
+    /**
+     * Forget ships the player no longer watches, once there are enough of them to be worth it
+     */
+    fun prune(trackedShips: Collection<ShipData>) {
+        if (priorities.size <= trackedShips.size * 2) return
+        val tracked = LongOpenHashSet(trackedShips.size)
+        trackedShips.forEach { tracked.add(it.id) }
+        priorities.keys.retainAll(tracked)
+    }
+
+    companion object {
+        // Ships this far from the player, in blocks, gain priority half as fast as ships next to it
+        private const val PRIORITY_DISTANCE = 64.0
+
+        // Ships this fast, in blocks or radians per second, gain priority the fastest
+        private const val FAST_VELOCITY = 10.0
+        private const val FAST_ANGULAR_VELOCITY = 1.0
+
+        // How fast resting ships gain priority, compared to fast ones
+        private const val RESTING_PRIORITY = 0.1
+    }
+}
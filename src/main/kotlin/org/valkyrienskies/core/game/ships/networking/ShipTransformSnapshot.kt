@@ -0,0 +1,85 @@
+package org.valkyrienskies.core.game.ships.networking
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap
+
+/**
+ * The quantized transforms sent to one player in one snapshot, by the index each ship has in transform packets (see
+ * [ShipTransformIndices]). The server and the client each keep the last few of these, so that transform packets can
+ * be delta encoded against the newest one the client acknowledged. Both sides store the exact same integers, so
+ * decoding a delta can't drift.
+ *
+ * Each transform is [VALUES] longs: the center of mass relative to the center of the ship's chunk claim and the
+ * position, both times 2^[positionBits], then the rotation packed by
+ * [org.valkyrienskies.core.util.packSmallestThreeQuatd].
+ */
+class ShipTransformSnapshot {
+
+    // The precision of the transforms, or [NO_BITS] until it's set by [clear]
+    var positionBits = NO_BITS
+        private set
+    var rotationBits = NO_BITS
+        private set
+
+    // Ship index -> slot in [values] and [parts]
+    private val slots = Int2IntOpenHashMap().apply { defaultReturnValue(NO_SLOT) }
+    private var values = LongArray(INITIAL_CAPACITY * VALUES)
+    private var parts = IntArray(INITIAL_CAPACITY)
+
+    fun clear(positionBits: Int = NO_BITS, rotationBits: Int = NO_BITS) {
+        this.positionBits = positionBits
+        this.rotationBits = rotationBits
+        slots.clear()
+    }
+
+    /**
+     * Store the transform of ship [index], sent in [part] of this snapshot, from [transform]
+     */
+    fun put(index: Int, part: Int, transform: LongArray) {
+        var slot = slots.get(index)
+        if (slot == NO_SLOT) {
+            slot = slots.size
+            if (slot == parts.size) {
+                values = values.copyOf(values.size * 2)
+                parts = parts.copyOf(parts.size * 2)
+            }
+            slots.put(index, slot)
+        }
+        transform.copyInto(values, slot * VALUES, 0, VALUES)
+        parts[slot] = part
+    }
+
+    /**
+     * Copy the transform of ship [index] into [dest]
+     *
+     * @return the part of this snapshot the transform was sent in, or -1 if it isn't in this snapshot
+     */
+    fun get(index: Int, dest: LongArray): Int {
+        val slot = slots.get(index)
+        if (slot == NO_SLOT) return NO_SLOT
+        values.copyInto(dest, 0, slot * VALUES, slot * VALUES + VALUES)
+        return parts[slot]
+    }
+
+    /**
+     * Call [action] with the index of every ship in this snapshot and the part it was sent in
+     */
+    fun forEachShip(action: (index: Int, part: Int) -> Unit) {
+        val iterator = slots.int2IntEntrySet().fastIterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            action(entry.intKey, parts[entry.intValue])
+        }
+    }
+
+    companion object {
+        const val VALUES = 7
+        const val NO_BITS = -1
+
+        const val CENTER_OF_MASS = 0
+        const val POSITION = 3
+        const val ROTATION = 6
+
+        private const val NO_SLOT = -1
+        private const val INITIAL_CAPACITY = 16
+    }
+}
@@ -8,7 +8,26 @@ object VSEvents {
 
     internal val shipLoadEvent = EventEmitterImpl<ShipLoadEvent>()
 
+    internal val shipSleepEvent = EventEmitterImpl<ShipSleepEvent>()
+
+    internal val shipWakeEvent = EventEmitterImpl<ShipWakeEvent>()
+
     data class ShipLoadEvent(val ship: ShipObjectServer) {
         companion object : EventEmitter<ShipLoadEvent> by shipLoadEvent
     }
+
+    /**
+     * A ship stopped moving and physics stopped simulating it. Emitted on the game thread.
+     */
+    data class ShipSleepEvent(val ship: ShipObjectServer) {
+        companion object : EventEmitter<ShipSleepEvent> by shipSleepEvent
+    }
+
+    /**
+     * A sleeping ship was woken up by a voxel change, a forces inducer, a change made by the game or another ship
+     * touching it. Emitted on the game thread.
+     */
+    data class ShipWakeEvent(val ship: ShipObjectServer) {
+        companion object : EventEmitter<ShipWakeEvent> by shipWakeEvent
+    }
 }
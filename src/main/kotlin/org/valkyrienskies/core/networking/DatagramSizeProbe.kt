@@ -0,0 +1,154 @@
+package org.valkyrienskies.core.networking
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Finds the biggest datagram that gets through to one player, like packetization layer path MTU discovery (RFC 8899).
+ *
+ * Datagrams start at the smallest of [sizes], which must get through any path. Probes of the next size up are sent,
+ * and once one is acked that size is used. A size whose probes are all lost is given up on. Every
+ * [REPROBE_INTERVAL_NS] the size in use is probed again, so if the path shrinks it falls back to the size below, and
+ * otherwise the sizes given up on are tried again.
+ *
+ * A shrunken path is also noticed from the datagrams the player is sent anyway, see [onDelivery]. When
+ * [BLACK_HOLE_LOSSES] datagrams in a row that are bigger than the size below are lost while smaller ones arrive, the
+ * size steps down right away instead of at the next probe.
+ *
+ * Only [onAck], [onDelivery] and [datagramSize] are thread safe.
+ */
+internal class DatagramSizeProbe(private val sizes: IntArray) {
+
+    /**
+     * The biggest datagram to send to the player
+     */
+    @Volatile
+    var datagramSize = sizes[0]
+        private set
+
+    // The index of [datagramSize] in [sizes], and of the biggest size to probe
+    private var index = 0
+    private var maxIndex = sizes.lastIndex
+
+    // The size below [datagramSize], or 0 at the smallest size
+    @Volatile
+    private var smallerSize = 0
+
+    private var probing = NOT_PROBING
+    private var attempts = 0
+    private var lastProbeNs = 0L
+
+    // Written by [onAck], taken by [poll]
+    private val ackedSize = AtomicInteger()
+
+    // Written by [onDelivery], read by [poll]. Big datagrams are the ones bigger than [smallerSize]
+    private val bigLostInRow = AtomicInteger()
+    @Volatile
+    private var smallDelivered = false
+
+    init {
+        require(sizes.size >= 2 && sizes.asList().zipWithNext().all { (a, b) -> a < b }) {
+            "Probe sizes must be at least two increasing sizes"
+        }
+    }
+
+    /**
+     * Called when the player acks a probe of [size] bytes
+     */
+    fun onAck(size: Int) {
+        ackedSize.set(size)
+    }
+
+    /**
+     * Called when the sender finds out whether a datagram of [size] bytes reached the player, in the order they were
+     * sent
+     */
+    fun onDelivery(size: Int, delivered: Boolean) {
+        // Datagrams bigger than the size in use were sent before it stepped down
+        if (size > datagramSize) return
+        if (size > smallerSize) {
+            if (delivered) bigLostInRow.set(0) else bigLostInRow.incrementAndGet()
+        } else if (delivered) {
+            smallDelivered = true
+        }
+    }
+
+    /**
+     * Called regularly to update [datagramSize]
+     *
+     * @return the size of the probe to send to the player now, or 0 if none
+     */
+    fun poll(nowNs: Long): Int {
+        if (index > 0 && bigLostInRow.get() >= BLACK_HOLE_LOSSES && smallDelivered) {
+            // The path got smaller, and the probes would only notice at the next [REPROBE_INTERVAL_NS]
+            stepDown(nowNs)
+            ackedSize.set(0)
+            return 0
+        }
+
+        val acked = ackedSize.getAndSet(0)
+        if (probing != NOT_PROBING && acked == sizes[probing]) {
+            // The size in use still gets through, so try the bigger ones again
+            if (probing == index) maxIndex = sizes.lastIndex
+            use(probing)
+            probing = NOT_PROBING
+            lastProbeNs = nowNs
+        }
+
+        if (probing == NOT_PROBING) {
+            if (index == maxIndex) {
+                if (nowNs - lastProbeNs < REPROBE_INTERVAL_NS) return 0
+                // There's nothing to check below the smallest size
+                if (index == 0) maxIndex = sizes.lastIndex
+            }
+            probing = if (index < maxIndex) index + 1 else index
+            attempts = 0
+        } else if (nowNs - lastProbeNs < PROBE_TIMEOUT_NS) {
+            return 0
+        } else if (attempts == PROBE_ATTEMPTS) {
+            if (probing > index) {
+                // Too big for the path
+                maxIndex = index
+                probing = NOT_PROBING
+                lastProbeNs = nowNs
+            } else {
+                stepDown(nowNs)
+            }
+            return 0
+        }
+
+        attempts++
+        lastProbeNs = nowNs
+        return sizes[probing]
+    }
+
+    /**
+     * Fall back to the size below, and don't probe bigger sizes until [REPROBE_INTERVAL_NS] passed
+     */
+    private fun stepDown(nowNs: Long) {
+        use(index - 1)
+        maxIndex = index
+        probing = NOT_PROBING
+        lastProbeNs = nowNs
+    }
+
+    private fun use(index: Int) {
+        this.index = index
+        datagramSize = sizes[index]
+        smallerSize = if (index > 0) sizes[index - 1] else 0
+        bigLostInRow.set(0)
+        smallDelivered = false
+    }
+
+    companion object {
+        private const val NOT_PROBING = -1
+
+        // How long to wait for a probe's ack, and how many probes of a size are sent before giving up on it
+        internal const val PROBE_TIMEOUT_NS = 1_000_000_000L
+        internal const val PROBE_ATTEMPTS = 3
+
+        internal const val REPROBE_INTERVAL_NS = 30_000_000_000L
+
+        // Random loss rarely takes this many big datagrams in a row
+        internal const val BLACK_HOLE_LOSSES = 8
+    }
+}
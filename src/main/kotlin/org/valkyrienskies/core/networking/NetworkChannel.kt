@@ -103,7 +103,7 @@ class NetworkChannel {
 
     private fun packetToBytes(packet: Packet): ByteBuf {
         val composite = Unpooled.compositeBuffer(2)
-        val index = Unpooled.buffer(4).apply { writeInt(packet.type.id) }
+        val index = Unpooled.buffer(PACKET_TYPE_SIZE).apply { writeInt(packet.type.id) }
         return composite.addComponents(true, index, packet.data)
     }
 
@@ -113,6 +113,30 @@ class NetworkChannel {
     fun sendToClient(packet: Packet, player: IPlayer) =
         rawSendToClient(packetToBytes(packet), player)
 
+    /**
+     * Let the transport hold back the packets sent to clients until [flushToClients], so it can send them in one
+     * batch. Packets sent outside of a batch are sent right away.
+     */
+    fun beginBatchToClients() = rawBeginBatchToClients()
+
+    /**
+     * End the batch begun with [beginBatchToClients], and send the packets the transport held back
+     */
+    fun flushToClients() = rawFlushToClients()
+
+    /**
+     * The most bytes of data a packet sent to [player] can hold and still be sent as one datagram, or null if the
+     * transport isn't limited to datagrams for that player
+     */
+    fun maxPacketSize(player: IPlayer): Int? = rawMaxDatagramSize(player)?.let { it - PACKET_TYPE_SIZE }
+
+    /**
+     * Tell the transport whether a packet with [size] bytes of data sent to [player] arrived, as far as the sender can
+     * tell from its own acks. Lets datagram transports notice when the path stops passing big datagrams.
+     */
+    fun reportDelivery(player: IPlayer, size: Int, delivered: Boolean) =
+        rawReportDelivery(player, size + PACKET_TYPE_SIZE, delivered)
+
     fun sendToClients(packet: Packet, vararg players: IPlayer) {
         players.forEach { player -> sendToClient(packet, player) }
     }
@@ -135,6 +159,29 @@ class NetworkChannel {
      */
     lateinit var rawSendToClient: (data: ByteBuf, player: IPlayer) -> Unit
 
+    /**
+     * To be implemented by transports that hold back packets sent with [rawSendToClient] to send them in batches.
+     * Should not be called.
+     */
+    var rawBeginBatchToClients: () -> Unit = {}
+
+    /**
+     * To be implemented by transports that hold back packets sent with [rawSendToClient] to send them in batches.
+     * Should not be called.
+     */
+    var rawFlushToClients: () -> Unit = {}
+
+    /**
+     * To be implemented by datagram transports, the biggest datagram they can send to the player. Should not be
+     * called.
+     */
+    var rawMaxDatagramSize: (player: IPlayer) -> Int? = { null }
+
+    /**
+     * To be implemented by datagram transports that adapt to which datagrams arrive. Should not be called.
+     */
+    var rawReportDelivery: (player: IPlayer, datagramSize: Int, delivered: Boolean) -> Unit = { _, _, _ -> }
+
     fun serverIsReady() {
         serverReady = true
     }
@@ -151,6 +198,9 @@ class NetworkChannel {
     }
 
     companion object {
+        // The bytes of the packet type id written in front of each packet's data
+        private const val PACKET_TYPE_SIZE = 4
+
         val logger by logger()
     }
 }
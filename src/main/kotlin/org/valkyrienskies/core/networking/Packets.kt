@@ -21,6 +21,11 @@ object Packets {
 
     val UDP_SHIP_TRANSFORM = VSNetworking.UDP.registerPacket("Ship transform update")
 
+    /**
+     * Sent by clients to acknowledge the ship transform snapshots they received
+     */
+    val UDP_SHIP_TRANSFORM_ACK = VSNetworking.UDP.registerPacket("Ship transform ack")
+
     init {
         PacketRequestUdp::class.register()
         PacketUdpState::class.register()
@@ -1,80 +1,131 @@
 package org.valkyrienskies.core.networking
 
 import io.netty.buffer.ByteBuf
+import io.netty.buffer.PooledByteBufAllocator
 import io.netty.buffer.Unpooled
 import org.apache.logging.log4j.message.StringFormattedMessage
-import org.valkyrienskies.core.networking.UdpServerImpl.Companion.PACKET_SIZE
+import org.valkyrienskies.core.networking.UdpServerImpl.Companion.MAX_PACKET_SIZE
+import org.valkyrienskies.core.networking.UdpServerImpl.Companion.SIZE_PROBE
+import org.valkyrienskies.core.networking.UdpServerImpl.Companion.SOCKET_BUFFER_SIZE
 import org.valkyrienskies.core.util.logger
-import java.net.DatagramPacket
-import java.net.DatagramSocket
 import java.net.SocketAddress
+import java.net.StandardSocketOptions
+import java.nio.ByteBuffer
+import java.nio.channels.ClosedSelectorException
+import java.nio.channels.DatagramChannel
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
 
-class UdpClientImpl(val socket: DatagramSocket, val channel: NetworkChannel, val server: SocketAddress, id: Long) {
-    private val thread = Thread(::run)
-
-    private val recvBuffer = ByteArray(PACKET_SIZE)
-    private val recvPacket = DatagramPacket(recvBuffer, PACKET_SIZE)
-    private val sendPacket = DatagramPacket(ByteArray(PACKET_SIZE), PACKET_SIZE)
+/**
+ * The client side of the UDP transport. The socket is connected to the server, so datagrams from anywhere else are
+ * dropped by the OS, and packets are written straight from all of their buffers at once.
+ *
+ * Datagrams of up to [MAX_PACKET_SIZE] are received. The server finds out how big they can get by sending probes,
+ * which are acked here, see [DatagramSizeProbe].
+ */
+class UdpClientImpl(val socket: DatagramChannel, val channel: NetworkChannel, val server: SocketAddress, id: Long) {
+    private val thread = Thread(::run, "VS UDP client thread")
+    private val selector = Selector.open()
 
     init {
+        socket.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE)
+        socket.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE)
+        socket.connect(server)
+        socket.configureBlocking(false)
+        socket.register(selector, SelectionKey.OP_READ)
         channel.rawSendToServer = ::sendToServer
-        sendPacket.socketAddress = server
 
         // Sending connection id
         sendToServer(Unpooled.buffer(8).writeLong(id))
 
-        socket.sendBufferSize = 508 * 60
-        socket.receiveBufferSize = 508 * 60
-
         thread.start()
     }
 
     private fun sendToServer(buf: ByteBuf) {
-        sendPacket.data = buf.array()
-        sendPacket.length = buf.writerIndex()
-        socket.send(sendPacket)
+        // Packets are composite buffers, the socket gathers their parts into one datagram
+        socket.write(buf.nioBuffers(buf.readerIndex(), buf.readableBytes()))
     }
 
     private fun run() {
         // Initial confirmation packet
-        socket.soTimeout = 1000
-        socket.receive(recvPacket)
-        if (recvPacket.length != 16) {
-            throw IllegalStateException("Invalid confirmation packet")
+        val confirmation = receive(CONFIRMATION_TIMEOUT_MS)
+        try {
+            if (confirmation?.readableBytes() != 16) {
+                throw IllegalStateException("Invalid confirmation packet")
+            }
+            // TODO check player uuid is the same
+        } finally {
+            confirmation?.release()
         }
-        // TODO check player uuid is the same
 
-        socket.soTimeout = 0
         VSNetworking.clientUsesUDP = true
         var packetCount = 0
         var lastPacketPrint = System.currentTimeMillis()
 
-        while (!socket.isClosed) {
+        while (socket.isOpen) {
             try {
-                socket.receive(recvPacket)
-                packetCount++
-                if (!recvPacket.socketAddress.equals(server)) {
-                    logger.warn("Received packet from non server address: ${recvPacket.socketAddress}")
-                    logger.warn("This is VERY SUSPICIOUS!")
-                    continue
-                }
+                val buffer = receive(0) ?: continue
+                try {
+                    packetCount++
+                    if (lastPacketPrint + 1000 < System.currentTimeMillis()) {
+                        logger.info("Received $packetCount UDP packets")
+                        packetCount = 0
+                        lastPacketPrint = System.currentTimeMillis()
+                    }
 
-                if (lastPacketPrint + 1000 < System.currentTimeMillis()) {
-                    logger.info("Received $packetCount UDP packets")
-                    packetCount = 0
-                    lastPacketPrint = System.currentTimeMillis()
+                    logger.trace { StringFormattedMessage("Client received packet of size ${buffer.readableBytes()}") }
+                    if (buffer.readableBytes() >= 8 && buffer.getInt(buffer.readerIndex()) == SIZE_PROBE) {
+                        ackSizeProbe(buffer)
+                    } else {
+                        channel.onReceiveClient(buffer)
+                    }
+                } finally {
+                    // Handlers that keep the packet retain it
+                    buffer.release()
                 }
-
-                logger.trace { StringFormattedMessage("Client received packet of size ${recvPacket.length}") }
-                val buffer = Unpooled.wrappedBuffer(recvBuffer, 0, recvPacket.length)
-                channel.onReceiveClient(buffer)
+            } catch (e: ClosedSelectorException) {
+                break
             } catch (e: Exception) {
                 logger.error("Error in client network thread", e)
             }
         }
     }
 
+    private fun ackSizeProbe(probe: ByteBuf) {
+        val size = probe.getInt(probe.readerIndex() + 4)
+        // Only probes that arrived whole are acked
+        if (size != probe.readableBytes()) return
+        socket.write(ByteBuffer.allocate(8).putInt(0, SIZE_PROBE).putInt(4, size))
+    }
+
+    /**
+     * Wait up to [timeoutMs] milliseconds, or forever if it's 0, for a datagram
+     *
+     * @return the datagram in a pooled direct buffer the caller must release, or null if none arrived
+     */
+    private fun receive(timeoutMs: Long): ByteBuf? {
+        val buffer = PooledByteBufAllocator.DEFAULT.directBuffer(MAX_PACKET_SIZE, MAX_PACKET_SIZE)
+        val nioBuffer = buffer.internalNioBuffer(0, MAX_PACKET_SIZE)
+        val start = nioBuffer.position()
+        if (socket.receive(nioBuffer) == null) {
+            selector.select(timeoutMs)
+            selector.selectedKeys().clear()
+            if (socket.receive(nioBuffer) == null) {
+                buffer.release()
+                return null
+            }
+        }
+        return buffer.writerIndex(nioBuffer.position() - start)
+    }
+
+    fun close() {
+        selector.close()
+        socket.close()
+    }
+
     companion object {
+        private const val CONFIRMATION_TIMEOUT_MS = 1000L
+
         private val logger by logger()
     }
 }
@@ -1,92 +1,201 @@
 package org.valkyrienskies.core.networking
 
-import com.google.common.collect.HashBiMap
 import io.netty.buffer.ByteBuf
+import io.netty.buffer.PooledByteBufAllocator
 import io.netty.buffer.Unpooled
 import it.unimi.dsi.fastutil.longs.Long2ObjectArrayMap
 import org.valkyrienskies.core.game.IPlayer
 import org.valkyrienskies.core.networking.impl.PacketRequestUdp
 import org.valkyrienskies.core.util.logger
-import java.net.DatagramPacket
-import java.net.DatagramSocket
+import java.net.InetSocketAddress
 import java.net.SocketAddress
+import java.net.SocketOption
+import java.net.StandardSocketOptions
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.channels.ClosedSelectorException
+import java.nio.channels.DatagramChannel
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
 import javax.crypto.SecretKey
 import javax.crypto.spec.SecretKeySpec
 import kotlin.random.Random
 
-class UdpServerImpl(val socket: DatagramSocket, val channel: NetworkChannel) {
-    private val thread = Thread(::run)
+/**
+ * The server side of the UDP transport. Datagrams are received on threads that wait on a [Selector], into pooled
+ * direct buffers.
+ *
+ * There's one receive thread for each of [sockets], which must all be bound to the same port with SO_REUSEPORT, see
+ * [bind]. The OS then spreads players over the sockets by their address, so each thread owns the connections of the
+ * players whose datagrams it receives. With more than one socket, the received packets are handed to a single
+ * dispatch thread through a lock-free queue, so packet handlers still never run at the same time.
+ *
+ * Packets given to [NetworkChannel.rawSendToClient] are sent right away, unless a batch was begun with
+ * [NetworkChannel.beginBatchToClients]. Then they're held until [NetworkChannel.flushToClients], and each player's
+ * packets are sent back to back. They're written to the socket straight from the packet's own buffers where possible,
+ * without copying them into an array first.
+ *
+ * The biggest datagram each player can be sent starts at [PACKET_SIZE], and grows up to [MAX_PACKET_SIZE] as probes
+ * of bigger sizes are acked, see [DatagramSizeProbe]. Probes are sent on flush, and the size is given to senders by
+ * [NetworkChannel.maxPacketSize]. Senders that ack their own packets also report which arrived with
+ * [NetworkChannel.reportDelivery], so a path that shrinks is noticed without waiting for the next probe.
+ */
+class UdpServerImpl(sockets: List<DatagramChannel>, val channel: NetworkChannel) {
+    constructor(socket: DatagramChannel, channel: NetworkChannel) : this(listOf(socket), channel)
 
-    private val recvBuffer = ByteArray(PACKET_SIZE)
-    private val recvPacket = DatagramPacket(recvBuffer, PACKET_SIZE)
-    private val sendPacket = DatagramPacket(ByteArray(PACKET_SIZE), PACKET_SIZE)
+    private val workers = sockets.mapIndexed { i, socket ->
+        ReceiveWorker(socket, if (sockets.size == 1) "VS UDP server thread" else "VS UDP server thread $i")
+    }
+
+    // Only used with more than one receive thread
+    private val dispatchThread = if (workers.size > 1) Thread(::dispatch, "VS UDP dispatch thread") else null
+    private val receivedPackets = ConcurrentLinkedQueue<ReceivedPacket>()
 
-    private val connections = HashBiMap.create<SocketAddress, IPlayer>()
+    // The connection of each player, so sending needs no inverse lookup. Written by the receive threads
+    private val connections = ConcurrentHashMap<IPlayer, Connection>()
     private var failedConnectionsInRow = 0
 
+    // Packets waiting for [flush], by player. Guarded by itself, like [openBatches]
+    private val pendingPackets = LinkedHashMap<IPlayer, MutableList<ByteBuf>>()
+    private var openBatches = 0
+
+    // Packets spread over several buffers are copied into this first, only used while holding the lock on this
+    private val sendBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE)
+
     // TODO remove them after a while
     private val identification = Long2ObjectArrayMap<IPlayer>()
     private val playerSecrets = HashMap<IPlayer, SecretKey>()
 
-    private var packetCount = 0
-    private var lastPacketPrint = System.currentTimeMillis()
+    @Volatile
+    private var closed = false
+
+    /**
+     * The number of datagrams that couldn't be sent because the socket's send buffer was full
+     */
+    val droppedDatagrams = AtomicLong()
+
+    val localAddress: SocketAddress get() = workers[0].socket.localAddress
+
+    val receiveThreads: Int get() = workers.size
 
     init {
+        require(workers.isNotEmpty()) { "A UDP server needs at least one socket" }
+
         channel.rawSendToClient = ::sendToClient
-        thread.start()
-        socket.sendBufferSize = 508 * 60
-        socket.receiveBufferSize = 508 * 60
+        channel.rawBeginBatchToClients = ::beginBatch
+        channel.rawFlushToClients = ::flush
+        channel.rawMaxDatagramSize = { player -> connections[player]?.sizeProbe?.datagramSize }
+        channel.rawReportDelivery = { player, size, delivered ->
+            connections[player]?.sizeProbe?.onDelivery(size, delivered)
+        }
+        dispatchThread?.start()
+        workers.forEach { it.thread.start() }
     }
 
     private fun sendToClient(buf: ByteBuf, player: IPlayer) {
-        if (connections.inverse()[player] == null) {
+        val connection = connections[player]
+        if (connection == null) {
             Packets.TCP_UDP_FALLBACK.sendToClient(buf, player)
-        } else {
-            packetCount++
-            if (lastPacketPrint + 1000 < System.currentTimeMillis()) {
-                logger.info("Sended $packetCount UDP packets")
-                packetCount = 0
-                lastPacketPrint = System.currentTimeMillis()
+            return
+        }
+        synchronized(pendingPackets) {
+            if (openBatches > 0) {
+                pendingPackets.getOrPut(player) { ArrayList() }.add(buf)
+                return
             }
+        }
+        try {
+            synchronized(this) { send(buf, connection.worker.socket, connection.address) }
+        } finally {
+            buf.release()
+        }
+    }
 
-            sendPacket.socketAddress = connections.inverse()[player]
-            buf.readBytes(sendPacket.data, 0, buf.writerIndex())
-            sendPacket.length = buf.writerIndex()
-            socket.send(sendPacket)
+    /**
+     * Hold back the packets given to [sendToClient] until [flush]. Batches may be begun from several threads, the
+     * packets are held until each of them is flushed.
+     */
+    fun beginBatch() {
+        synchronized(pendingPackets) { openBatches++ }
+    }
+
+    /**
+     * End a batch begun with [beginBatch], and send every packet held back since the last flush. Flushes from
+     * different threads are sent one after the other, as they share [sendBuffer] and the size probes.
+     */
+    @Synchronized
+    fun flush() {
+        sendProbes()
+
+        val toSend = synchronized(pendingPackets) {
+            if (openBatches > 0) openBatches--
+            if (pendingPackets.isEmpty()) return
+            ArrayList(pendingPackets.entries).also { pendingPackets.clear() }
+        }
+
+        toSend.forEach { (player, packets) ->
+            val connection = connections[player]
+            packets.forEach { buf ->
+                try {
+                    // The player may have disconnected since
+                    if (connection != null) send(buf, connection.worker.socket, connection.address)
+                } finally {
+                    buf.release()
+                }
+            }
         }
     }
 
-    private fun run() {
-        VSNetworking.serverUsesUDP = true
-        while (!socket.isClosed) {
+    private fun sendProbes() {
+        val now = System.nanoTime()
+        connections.values.forEach { connection ->
+            val size = connection.sizeProbe.poll(now)
+            if (size == 0) return@forEach
+            // The client sends the size back if it gets the whole probe
+            val probe = Unpooled.buffer(size).writeInt(SIZE_PROBE).writeInt(size).writeZero(size - 8)
             try {
-                socket.receive(recvPacket)
-                // Skip if no player was found
-                val sender = connections[recvPacket.socketAddress]
-                val buffer = Unpooled.wrappedBuffer(recvBuffer, 0, recvPacket.length)
-                // TODO logger here
-                // println("Received UDP Packet from $sender, size: ${recvPacket.length}")
-
-                if (sender == null) {
-                    // If no player was found, try to identify the player
-                    if (buffer.capacity() != 8) continue
-                    // TODO make this spamfree, ppl can spam this packet to guess a player's id ??
-                    val newConnection = identification.remove(buffer.readLong()) ?: continue
-
-                    connections[recvPacket.socketAddress] = newConnection
-                    failedConnectionsInRow = 0
-
-                    sendToClient(
-                        Unpooled.buffer(16)
-                            .writeLong(newConnection.uuid.leastSignificantBits)
-                            .writeLong(newConnection.uuid.mostSignificantBits),
-                        newConnection
-                    )
-                } else channel.onReceiveServer(buffer, sender)
+                send(probe, connection.worker.socket, connection.address)
+            } finally {
+                probe.release()
+            }
+        }
+    }
+
+    private fun send(buf: ByteBuf, socket: DatagramChannel, address: SocketAddress) {
+        val data = if (buf.nioBufferCount() == 1) {
+            buf.nioBuffer()
+        } else {
+            // Datagrams to unconnected sockets can't be gathered from several buffers. Cleared and flipped as a
+            // Buffer, ByteBuffer only overrides those methods from Java 9 on
+            val buffer: Buffer = sendBuffer
+            buffer.clear().limit(buf.readableBytes())
+            buf.getBytes(buf.readerIndex(), sendBuffer)
+            buffer.flip()
+            sendBuffer
+        }
+        if (socket.send(data, address) == 0) droppedDatagrams.incrementAndGet()
+    }
+
+    private fun dispatch() {
+        while (!closed) {
+            val packet = receivedPackets.poll()
+            if (packet == null) {
+                LockSupport.park(this)
+                continue
+            }
+            try {
+                channel.onReceiveServer(packet.data, packet.sender)
             } catch (e: Exception) {
-                logger.error("Error in server network thread", e)
+                logger.error("Error in server dispatch thread", e)
+            } finally {
+                packet.data.release()
             }
         }
+        generateSequence { receivedPackets.poll() }.forEach { it.data.release() }
     }
 
     fun prepareIdentifier(player: IPlayer, packet: PacketRequestUdp): Long? =
@@ -98,7 +207,7 @@ class UdpServerImpl(val socket: DatagramSocket, val channel: NetworkChannel) {
                 logger.warn("Failed to parse secret from player ${player.uuid}", e)
                 return null
             }
-            identification.put(this, player)
+            synchronized(identification) { identification.put(this, player) }
             if (failedConnectionsInRow == 5) {
                 logger.warn("There were 5 cases of failed connections in a row, is the UDP port accessible?")
                 logger.info("By disabling UDP this warning shall not be printed anymore.")
@@ -107,13 +216,173 @@ class UdpServerImpl(val socket: DatagramSocket, val channel: NetworkChannel) {
         }
 
     fun disconnect(player: IPlayer) {
-        connections.inverse().remove(player)
-        identification.values.remove(player)
+        connections.remove(player)?.let { it.worker.forget(it) }
+        synchronized(identification) { identification.values.remove(player) }
         playerSecrets.remove(player)
+        synchronized(pendingPackets) { pendingPackets.remove(player) }?.forEach { it.release() }
+    }
+
+    fun close() {
+        closed = true
+        workers.forEach { it.close() }
+        dispatchThread?.let { LockSupport.unpark(it) }
+    }
+
+    private class Connection(val player: IPlayer, val address: SocketAddress, val worker: ReceiveWorker) {
+        val sizeProbe = DatagramSizeProbe(PROBE_SIZES)
+    }
+
+    private class ReceivedPacket(val data: ByteBuf, val sender: IPlayer)
+
+    /**
+     * Receives the datagrams of one socket, and identifies the players that send them
+     */
+    private inner class ReceiveWorker(val socket: DatagramChannel, name: String) {
+        val thread = Thread(::run, name)
+        private val selector = Selector.open()
+
+        // The connections of the players whose datagrams arrive at this socket, only used by [thread]
+        private val addressConnections = HashMap<SocketAddress, Connection>()
+
+        // Connections to remove from [addressConnections], queued by other threads
+        private val forgotten = ConcurrentLinkedQueue<Connection>()
+
+        init {
+            socket.configureBlocking(false)
+            socket.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE)
+            socket.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE)
+            socket.register(selector, SelectionKey.OP_READ)
+        }
+
+        fun forget(connection: Connection) {
+            forgotten.add(connection)
+        }
+
+        private fun run() {
+            VSNetworking.serverUsesUDP = true
+            while (socket.isOpen) {
+                try {
+                    selector.select()
+                    selector.selectedKeys().clear()
+                    // Only removes that exact connection, so a player reconnecting from the same address is kept
+                    generateSequence { forgotten.poll() }.forEach { addressConnections.remove(it.address, it) }
+                    receiveAll()
+                } catch (e: ClosedSelectorException) {
+                    break
+                } catch (e: Exception) {
+                    logger.error("Error in server network thread", e)
+                }
+            }
+        }
+
+        private fun receiveAll() {
+            while (true) {
+                val buffer = PooledByteBufAllocator.DEFAULT.directBuffer(MAX_PACKET_SIZE, MAX_PACKET_SIZE)
+                try {
+                    val nioBuffer = buffer.internalNioBuffer(0, MAX_PACKET_SIZE)
+                    val start = nioBuffer.position()
+                    val senderAddress = socket.receive(nioBuffer) ?: return
+                    buffer.writerIndex(nioBuffer.position() - start)
+
+                    val connection = addressConnections[senderAddress]
+                    if (connection == null) {
+                        identify(buffer, senderAddress)
+                    } else if (buffer.readableBytes() == 8 && buffer.getInt(buffer.readerIndex()) == SIZE_PROBE) {
+                        connection.sizeProbe.onAck(buffer.getInt(buffer.readerIndex() + 4))
+                    } else if (dispatchThread == null) {
+                        channel.onReceiveServer(buffer, connection.player)
+                    } else {
+                        receivedPackets.add(ReceivedPacket(buffer.retain(), connection.player))
+                        LockSupport.unpark(dispatchThread)
+                    }
+                } finally {
+                    // Handlers that keep the packet retain it
+                    buffer.release()
+                }
+            }
+        }
+
+        /**
+         * Try to identify the player that sent [buffer] from [senderAddress], see [prepareIdentifier]
+         */
+        private fun identify(buffer: ByteBuf, senderAddress: SocketAddress) {
+            if (buffer.readableBytes() != 8) return
+            // TODO make this spamfree, ppl can spam this packet to guess a player's id ??
+            val player = synchronized(identification) { identification.remove(buffer.readLong()) } ?: return
+
+            val connection = Connection(player, senderAddress, this)
+            addressConnections[senderAddress] = connection
+            connections.put(player, connection)?.let { it.worker.forget(it) }
+            failedConnectionsInRow = 0
+
+            val confirmation = Unpooled.buffer(16)
+                .writeLong(player.uuid.leastSignificantBits)
+                .writeLong(player.uuid.mostSignificantBits)
+            send(confirmation, socket, senderAddress)
+        }
+
+        fun close() {
+            selector.close()
+            socket.close()
+        }
     }
 
     companion object {
+        // The biggest datagram that gets through any path
         const val PACKET_SIZE = 508
+
+        // The biggest datagram sent to players whose path allows it. Leaves room for the headers of tunnels and VPNs
+        // within the usual 1500 byte MTU
+        const val MAX_PACKET_SIZE = 1400
+
+        private val PROBE_SIZES = intArrayOf(PACKET_SIZE, 1200, MAX_PACKET_SIZE)
+
+        // Packet type ids are never negative, so this starts datagrams that probe the size and the client's acks
+        internal const val SIZE_PROBE = -1
+
+        // Room for a few hundred datagrams, so a burst of transform packets isn't dropped by the OS
+        internal const val SOCKET_BUFFER_SIZE = PACKET_SIZE * 256
+
+        // Only in Java 9 and up
+        private val SO_REUSEPORT: SocketOption<Boolean>? = try {
+            @Suppress("UNCHECKED_CAST")
+            StandardSocketOptions::class.java.getField("SO_REUSEPORT").get(null) as SocketOption<Boolean>
+        } catch (e: ReflectiveOperationException) {
+            null
+        }
+
         private val logger by logger()
+
+        /**
+         * Bind a server to [address] that receives on [receiveThreads] sockets. That needs SO_REUSEPORT, so where it
+         * isn't supported only one socket is bound.
+         */
+        fun bind(address: InetSocketAddress, receiveThreads: Int, channel: NetworkChannel): UdpServerImpl {
+            val sockets = ArrayList<DatagramChannel>(receiveThreads)
+            try {
+                val first = DatagramChannel.open()
+                sockets.add(first)
+                val reusePort = SO_REUSEPORT?.takeIf { receiveThreads > 1 && it in first.supportedOptions() }
+                if (receiveThreads > 1 && reusePort == null) {
+                    logger.warn("SO_REUSEPORT isn't supported, receiving UDP packets on a single thread")
+                }
+                reusePort?.let { first.setOption(it, true) }
+                first.bind(address)
+
+                // The others are bound to the port the first one got, in case any port was asked for
+                val port = (first.localAddress as InetSocketAddress).port
+                if (reusePort != null) {
+                    repeat(receiveThreads - 1) {
+                        val socket = DatagramChannel.open()
+                        sockets.add(socket)
+                        socket.setOption(reusePort, true).bind(InetSocketAddress(address.address, port))
+                    }
+                }
+                return UdpServerImpl(sockets, channel)
+            } catch (e: Exception) {
+                sockets.forEach { it.close() }
+                throw e
+            }
+        }
     }
 }
@@ -10,10 +10,10 @@ import org.valkyrienskies.core.networking.simple.registerServerHandler
 import org.valkyrienskies.core.networking.simple.sendToClient
 import org.valkyrienskies.core.networking.simple.sendToServer
 import org.valkyrienskies.core.util.logger
-import java.net.DatagramSocket
+import java.io.IOException
 import java.net.InetSocketAddress
 import java.net.SocketAddress
-import java.net.SocketException
+import java.nio.channels.DatagramChannel
 import javax.crypto.SecretKey
 
 object VSNetworking {
@@ -46,18 +46,20 @@ object VSNetworking {
     fun tryUdpServer(): UdpServerImpl? {
 
         try {
-            val udpSocket = DatagramSocket(VSCoreConfig.SERVER.udpPort)
+            val udpServer = UdpServerImpl.bind(
+                InetSocketAddress(VSCoreConfig.SERVER.udpPort), VSCoreConfig.SERVER.udpReceiveThreads, UDP
+            )
+            val localPort = (udpServer.localAddress as InetSocketAddress).port
 
-            val udpServer = UdpServerImpl(udpSocket, UDP)
             PacketRequestUdp::class.registerServerHandler { packet, player ->
                 udpServer.prepareIdentifier(player, packet)?.let {
-                    PacketUdpState(udpSocket.localPort, serverUsesUDP, it)
+                    PacketUdpState(localPort, serverUsesUDP, it)
                         .sendToClient(player)
                 }
             }
 
             return udpServer
-        } catch (e: SocketException) {
+        } catch (e: IOException) {
             logger.error("Tried to bind to ${VSCoreConfig.SERVER.udpPort} but failed!", e)
         } catch (e: Exception) {
             logger.error("Tried to setup udp with port: ${VSCoreConfig.SERVER.udpPort} but failed!", e)
@@ -99,7 +101,7 @@ object VSNetworking {
 
     private fun setupUdpClient(socketAddress: SocketAddress, id: Long): Boolean {
         try {
-            val udpSocket = DatagramSocket()
+            val udpSocket = DatagramChannel.open()
             UdpClientImpl(udpSocket, UDP, socketAddress, id)
             return true
         } catch (e: Exception) {
@@ -1,51 +1,91 @@
 package org.valkyrienskies.core.networking.delta
 
 import io.netty.buffer.ByteBuf
-import it.unimi.dsi.fastutil.ints.Int2ObjectRBTreeMap
+import it.unimi.dsi.fastutil.ints.Int2LongLinkedOpenHashMap
+import org.valkyrienskies.core.util.writeVarInt
 
 /**
- * Manages delta encoded communications to keep a collection of objects with IDs in sync.
+ * The client side of [DeltaEncodedChannelServer]. Keeps the last [capacity] snapshots received, to decode later
+ * snapshots against, and collects the acknowledgements to send back.
  *
- * [T] is the type of object being delta-encoded
+ * Parts of snapshots may be lost, arrive twice, or arrive out of order. A part should only be acknowledged with
+ * [ackPart] once it was fully decoded and stored, because the server will use it as a baseline.
+ *
+ * Snapshot objects are reused: [newSnapshot] creates [capacity] of them up front, and [clearSnapshot] empties one
+ * before it's reused. This class isn't thread safe.
+ *
+ * [T] is the type of the snapshots
  */
 class DeltaEncodedChannelClientUDP<T>(
-    private val algorithm: DeltaAlgorithm<T>,
-    initialSnapshot: T
+    private val capacity: Int,
+    newSnapshot: () -> T,
+    private val clearSnapshot: (T) -> Unit
 ) {
 
-    /**
-     * Contains the snapshot index -> delta
-     */
-    private val history = Int2ObjectRBTreeMap<T>()
-    var latestSnapshot = initialSnapshot
-        private set
+    // The ring buffer of snapshots, snapshot id -> slot is id mod capacity
+    private val ids = IntArray(capacity)
+    private val snapshots = MutableList(capacity) { newSnapshot() }
+    private val inUse = BooleanArray(capacity)
+
+    // Snapshot id -> the parts received since acknowledgements were last written, in the order they arrived
+    private val pendingAcks = Int2LongLinkedOpenHashMap()
 
     init {
-        history.put(Int.MIN_VALUE, initialSnapshot)
+        require(capacity > 0) { "Capacity must be positive" }
+    }
+
+    /**
+     * @return the received snapshot [id] to decode against, or null if it was never received or was replaced
+     */
+    fun getSnapshot(id: Int): T? {
+        val slot = slotOf(id)
+        return if (inUse[slot] && ids[slot] == id) snapshots[slot] else null
     }
 
     /**
-     * Takes [newIndex], [oldIndex], and [delta] and produces a snapshot.
+     * Get the snapshot to decode a part of snapshot [id] into. The first time [id] is received, it replaces the
+     * snapshot in its slot.
      *
-     * [newIndex] is the index of this snapshot
-     * [oldIndex] is the index of the snapshot this delta is encoded relative to
+     * @return the snapshot, or null if [id] is older than the snapshot in its slot and can't be kept
      */
-    fun decode(delta: ByteBuf, newIndex: Int, oldIndex: Int): T {
-        val oldSnapshot = history.get(oldIndex)
-        val newSnapshot = algorithm.apply(oldSnapshot, delta)
+    fun receiveSnapshot(id: Int): T? {
+        val slot = slotOf(id)
+        if (inUse[slot] && ids[slot] == id) return snapshots[slot]
+        if (inUse[slot] && id - ids[slot] < 0) return null
 
-        history.put(newIndex, newSnapshot)
-        latestSnapshot = newSnapshot
-        pruneOldSnapshots(oldIndex)
+        ids[slot] = id
+        inUse[slot] = true
+        clearSnapshot(snapshots[slot])
+        return snapshots[slot]
+    }
 
-        return newSnapshot
+    /**
+     * Acknowledge that [part] of snapshot [id] was decoded into [receiveSnapshot], the next time [writeAcks] is called
+     */
+    fun ackPart(id: Int, part: Int) {
+        if (part >= DeltaEncodedChannelServer.MAX_PARTS) return
+        pendingAcks.put(id, pendingAcks.get(id) or (1L shl part))
+        // Acks of snapshots the server no longer keeps are useless
+        if (pendingAcks.size > capacity) pendingAcks.removeFirstLong()
     }
 
     /**
-     * [current] is the most recent snapshot index the server has delta encoded against
-     * (i.e. the latest index the server is known to have received an ack for)
+     * Write the acknowledgements since the last call to [dest], to be read by [DeltaEncodedChannelServer.receiveAcks]
+     *
+     * @return false if there was nothing to acknowledge, nothing is written then
      */
-    private fun pruneOldSnapshots(current: Int) {
-        history.subMap(Int.MIN_VALUE, current).clear()
+    fun writeAcks(dest: ByteBuf): Boolean {
+        if (pendingAcks.isEmpty()) return false
+        dest.writeVarInt(pendingAcks.size)
+        val iterator = pendingAcks.int2LongEntrySet().fastIterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            dest.writeInt(entry.intKey)
+            dest.writeLong(entry.longValue)
+        }
+        pendingAcks.clear()
+        return true
     }
+
+    private fun slotOf(id: Int): Int = Math.floorMod(id, capacity)
 }
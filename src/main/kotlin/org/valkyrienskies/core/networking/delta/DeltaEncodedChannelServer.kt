@@ -1,43 +1,142 @@
 package org.valkyrienskies.core.networking.delta
 
 import io.netty.buffer.ByteBuf
-import it.unimi.dsi.fastutil.ints.Int2ObjectRBTreeMap
-import org.valkyrienskies.core.networking.NetworkChannel
+import org.valkyrienskies.core.util.readVarInt
 
 /**
- * Manages delta encoded communications to keep a collection of objects with IDs in sync.
+ * Keeps the last [capacity] snapshots sent to one client over an unreliable connection, and which of them the client
+ * acknowledged, so that new snapshots can be delta encoded against the newest one the client is known to have.
  *
- * [T] is the type of object being delta-encoded
+ * Snapshots are numbered in the order they're sent. Each may be sent in up to [MAX_PARTS] parts, for example one per
+ * datagram, which the client acknowledges separately. Only the parts that were acknowledged may be used as a
+ * baseline. Acknowledgements may be lost, arrive late, arrive twice, or arrive out of order.
+ *
+ * The size of each part can be recorded with [onPartSent], so that once the client had time to acknowledge a snapshot,
+ * [judgeDeliveries] tells which sizes arrived.
+ *
+ * Snapshot objects are reused: [newSnapshot] creates [capacity] of them up front, and [clearSnapshot] empties one
+ * before it's reused. This class isn't thread safe.
+ *
+ * [T] is the type of the snapshots
+ *
+ * @param onAcked Called with the snapshot, its id and the parts of it that were just acknowledged for the first time
  */
 class DeltaEncodedChannelServer<T>(
-    private val algorithm: DeltaAlgorithm<T>,
-    clients: Iterable<NetworkChannel>
+    private val capacity: Int,
+    newSnapshot: () -> T,
+    private val clearSnapshot: (T) -> Unit,
+    private val onAcked: (id: Int, snapshot: T, parts: Long) -> Unit = { _, _, _ -> }
 ) {
 
-    data class Snapshot<T>(val index: Int, val data: T)
+    // The ring buffer of snapshots, snapshot id -> slot is id mod capacity
+    private val ids = IntArray(capacity)
+    private val snapshots = MutableList(capacity) { newSnapshot() }
+    private val ackedParts = LongArray(capacity)
+    private val inUse = BooleanArray(capacity)
+
+    // The size of each part of each snapshot by slot * MAX_PARTS + part, and how many parts of each weren't judged yet
+    private val partSizes = IntArray(capacity * MAX_PARTS)
+    private val partCounts = IntArray(capacity)
+
+    private var nextId = 0
+
+    // The newest snapshot the client acknowledged a part of, if [hasAck]
+    private var latestAckedId = 0
+    private var hasAck = false
+
+    init {
+        require(capacity > 0) { "Capacity must be positive" }
+    }
 
     /**
-     * Contains the snapshot index -> snapshot
+     * Start a new snapshot, replacing the oldest one
+     *
+     * @return the id of the new snapshot, to get it with [getSnapshot]
      */
-    private val history = Int2ObjectRBTreeMap<T>()
+    fun nextSnapshot(): Int {
+        val id = nextId++
+        val slot = slotOf(id)
+        ids[slot] = id
+        ackedParts[slot] = 0
+        partCounts[slot] = 0
+        inUse[slot] = true
+        clearSnapshot(snapshots[slot])
+        return id
+    }
 
     /**
-     * Contains the client -> last acknowledged snapshots
+     * @return the snapshot [id], or null if it was replaced or never made
      */
-    private val clientHistory = HashMap<NetworkChannel, Snapshot<T>>()
+    fun getSnapshot(id: Int): T? = if (isInHistory(id)) snapshots[slotOf(id)] else null
 
-    init {
-        // clients.forEach { clientHistory[it] = Snapshot(0) }
+    /**
+     * @return the parts of snapshot [id] the client acknowledged, bit n is part n
+     */
+    fun getAckedParts(id: Int): Long = if (isInHistory(id)) ackedParts[slotOf(id)] else 0L
+
+    /**
+     * @return the id of the newest snapshot the client acknowledged a part of that's still kept, or null if there
+     * isn't one
+     */
+    fun getBaselineId(): Int? = if (hasAck && isInHistory(latestAckedId)) latestAckedId else null
+
+    /**
+     * Record that the client received [parts] of snapshot [id], bit n is part n
+     */
+    fun receiveAck(id: Int, parts: Long) {
+        // Acks of snapshots that were replaced, or of snapshots that were never sent, are ignored
+        if (!isInHistory(id) || parts == 0L) return
+        val slot = slotOf(id)
+        val newParts = parts and ackedParts[slot].inv()
+        ackedParts[slot] = ackedParts[slot] or parts
+        if (!hasAck || id - latestAckedId > 0) {
+            latestAckedId = id
+            hasAck = true
+        }
+        if (newParts != 0L) onAcked(id, snapshots[slot], newParts)
     }
 
-    fun receiveAck(client: NetworkChannel, idx: Int, dest: ByteBuf): ByteBuf {
-        return dest
+    /**
+     * Record that part [part] of snapshot [id] was sent in [size] bytes. Parts must be sent in order.
+     */
+    fun onPartSent(id: Int, part: Int, size: Int) {
+        if (!isInHistory(id) || part >= MAX_PARTS) return
+        val slot = slotOf(id)
+        partSizes[slot * MAX_PARTS + part] = size
+        partCounts[slot] = part + 1
     }
 
-    fun initialize(obj: T) {
-        history.put(0, obj)
+    /**
+     * Call [onJudged] with the size of each part of snapshot [id] given to [onPartSent], and whether the client
+     * acknowledged it. Call it once the acks had time to arrive, each snapshot is only judged once.
+     */
+    fun judgeDeliveries(id: Int, onJudged: (size: Int, delivered: Boolean) -> Unit) {
+        if (!isInHistory(id)) return
+        val slot = slotOf(id)
+        for (part in 0 until partCounts[slot]) {
+            onJudged(partSizes[slot * MAX_PARTS + part], ackedParts[slot] and (1L shl part) != 0L)
+        }
+        partCounts[slot] = 0
     }
 
-    fun send(newSnapshot: T) {
+    /**
+     * Read the acknowledgements written by [DeltaEncodedChannelClientUDP.writeAcks]: a varint count followed by
+     * snapshot id, parts pairs
+     */
+    fun receiveAcks(buf: ByteBuf) {
+        repeat(buf.readVarInt()) {
+            receiveAck(buf.readInt(), buf.readLong())
+        }
+    }
+
+    private fun isInHistory(id: Int): Boolean {
+        val slot = slotOf(id)
+        return inUse[slot] && ids[slot] == id
+    }
+
+    private fun slotOf(id: Int): Int = Math.floorMod(id, capacity)
+
+    companion object {
+        const val MAX_PARTS = Long.SIZE_BITS
     }
 }
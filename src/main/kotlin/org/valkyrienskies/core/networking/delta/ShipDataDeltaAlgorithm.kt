@@ -0,0 +1,152 @@
+package org.valkyrienskies.core.networking.delta
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import it.unimi.dsi.fastutil.ints.IntArrayList
+import org.joml.primitives.AABBi
+import org.joml.primitives.AABBic
+import org.valkyrienskies.core.chunk_tracking.IShipActiveChunksSet
+import org.valkyrienskies.core.chunk_tracking.ShipActiveChunksSet
+import org.valkyrienskies.core.game.ships.ShipDataCommon
+import org.valkyrienskies.core.game.ships.ShipDataCommon.NetworkDirtyFlags
+import org.valkyrienskies.core.util.readVarInt
+import org.valkyrienskies.core.util.readZigZagVarInt
+import org.valkyrienskies.core.util.writeVarInt
+import org.valkyrienskies.core.util.writeZigZagVarInt
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Delta encodes the parts of a [ShipDataCommon] that change while clients watch a ship: the name, the voxel AABB and
+ * the active chunks. The rest is sent once when a client starts watching, or by the transform packets.
+ *
+ * A delta is its size in bytes as a varint, then a byte of [NetworkDirtyFlags] saying which fields follow, then each
+ * of those fields:
+ * - Name: its UTF-8 length as a varint, then the UTF-8 bytes
+ * - Voxel AABB: a byte that is 0 if the AABB is null. Otherwise it's 1, followed by the min corner as zigzag varints
+ *   and the size as varints.
+ * - Active chunks: the removed chunks then the added chunks, each as a varint count followed by zigzag varint x, z
+ *   pairs
+ *
+ * Decoders skip to the end of a delta using its size, so fields can be added later without breaking older readers.
+ *
+ * [apply] copies the old ship data as [DeltaAlgorithm] requires. Clients that keep one [ShipDataCommon] up to date
+ * should use [applyInPlace] instead.
+ */
+class ShipDataDeltaAlgorithm : DeltaAlgorithm<ShipDataCommon> {
+
+    // The delta is written here first so that its size can be written before it. Only used by [encode].
+    private val scratch = Unpooled.buffer()
+
+    // Reused by [encode], holds x, z pairs
+    private val chunks = IntArrayList()
+
+    override fun encode(old: ShipDataCommon, new: ShipDataCommon, dest: ByteBuf): ByteBuf {
+        var fields = 0
+        if (old.name != new.name) fields = fields or NetworkDirtyFlags.NAME
+        if (old.shipVoxelAABB != new.shipVoxelAABB) fields = fields or NetworkDirtyFlags.VOXEL_AABB
+        if (old.shipActiveChunksSet != new.shipActiveChunksSet) fields = fields or NetworkDirtyFlags.ACTIVE_CHUNKS
+
+        scratch.clear()
+        scratch.writeByte(fields)
+        if (fields and NetworkDirtyFlags.NAME != 0) writeName(new.name)
+        if (fields and NetworkDirtyFlags.VOXEL_AABB != 0) writeVoxelAABB(new.shipVoxelAABB)
+        if (fields and NetworkDirtyFlags.ACTIVE_CHUNKS != 0) {
+            // Removed chunks, then added chunks
+            writeChunksNotIn(old.shipActiveChunksSet, new.shipActiveChunksSet)
+            writeChunksNotIn(new.shipActiveChunksSet, old.shipActiveChunksSet)
+        }
+
+        dest.writeVarInt(scratch.readableBytes())
+        dest.writeBytes(scratch)
+        return dest
+    }
+
+    override fun apply(old: ShipDataCommon, delta: ByteBuf): ShipDataCommon =
+        snapshot(old).also { applyInPlace(it, delta) }
+
+    /**
+     * Read a delta made by [encode] into [target]
+     */
+    fun applyInPlace(target: ShipDataCommon, delta: ByteBuf) {
+        val end = delta.readVarInt() + delta.readerIndex()
+        val fields = delta.readByte().toInt()
+
+        if (fields and NetworkDirtyFlags.NAME != 0) {
+            target.name = delta.readCharSequence(delta.readVarInt(), UTF_8).toString()
+        }
+        if (fields and NetworkDirtyFlags.VOXEL_AABB != 0) {
+            target.shipVoxelAABB = if (delta.readBoolean()) {
+                val minX = delta.readZigZagVarInt()
+                val minY = delta.readZigZagVarInt()
+                val minZ = delta.readZigZagVarInt()
+                AABBi(minX, minY, minZ, minX + delta.readVarInt(), minY + delta.readVarInt(), minZ + delta.readVarInt())
+            } else {
+                null
+            }
+        }
+        if (fields and NetworkDirtyFlags.ACTIVE_CHUNKS != 0) {
+            val activeChunks = target.shipActiveChunksSet
+            repeat(delta.readVarInt()) {
+                activeChunks.removeChunkPos(delta.readZigZagVarInt(), delta.readZigZagVarInt())
+            }
+            repeat(delta.readVarInt()) {
+                activeChunks.addChunkPos(delta.readZigZagVarInt(), delta.readZigZagVarInt())
+            }
+        }
+
+        delta.readerIndex(end)
+    }
+
+    /**
+     * Skip a delta made by [encode] without reading it
+     */
+    fun skip(delta: ByteBuf) {
+        delta.skipBytes(delta.readVarInt())
+    }
+
+    /**
+     * Copy [shipData], deep enough that changing [shipData] afterwards doesn't change the copy as far as [encode] is
+     * concerned
+     */
+    fun snapshot(shipData: ShipDataCommon): ShipDataCommon {
+        val activeChunks = ShipActiveChunksSet.create()
+        shipData.shipActiveChunksSet.iterateChunkPos { x, z -> activeChunks.addChunkPos(x, z) }
+        return ShipDataCommon(
+            shipData.id, shipData.name, shipData.chunkClaim, shipData.chunkClaimDimension, shipData.physicsData,
+            shipData.shipTransform, shipData.prevTickShipTransform, shipData.shipAABB,
+            shipData.shipVoxelAABB?.let { AABBi(it) }, activeChunks
+        )
+    }
+
+    private fun writeName(name: String) {
+        val bytes = name.toByteArray(UTF_8)
+        scratch.writeVarInt(bytes.size)
+        scratch.writeBytes(bytes)
+    }
+
+    private fun writeVoxelAABB(aabb: AABBic?) {
+        scratch.writeBoolean(aabb != null)
+        if (aabb == null) return
+        scratch.writeZigZagVarInt(aabb.minX())
+        scratch.writeZigZagVarInt(aabb.minY())
+        scratch.writeZigZagVarInt(aabb.minZ())
+        scratch.writeVarInt(aabb.maxX() - aabb.minX())
+        scratch.writeVarInt(aabb.maxY() - aabb.minY())
+        scratch.writeVarInt(aabb.maxZ() - aabb.minZ())
+    }
+
+    /**
+     * Write the chunks of [from] that aren't in [to]
+     */
+    private fun writeChunksNotIn(from: IShipActiveChunksSet, to: IShipActiveChunksSet) {
+        chunks.clear()
+        from.iterateChunkPos { x, z ->
+            if (!to.containsChunkPos(x, z)) {
+                chunks.add(x)
+                chunks.add(z)
+            }
+        }
+        scratch.writeVarInt(chunks.size / 2)
+        for (i in 0 until chunks.size) scratch.writeZigZagVarInt(chunks.getInt(i))
+    }
+}
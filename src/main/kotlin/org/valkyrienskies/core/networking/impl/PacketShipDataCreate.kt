@@ -4,5 +4,7 @@ import org.valkyrienskies.core.game.ships.ShipDataCommon
 import org.valkyrienskies.core.networking.simple.SimplePacket
 
 data class PacketShipDataCreate(
-    val toCreate: List<ShipDataCommon>
+    val toCreate: List<ShipDataCommon>,
+    // The index each ship in [toCreate] has in transform packets
+    val transformIndices: List<Int>
 ) : SimplePacket
@@ -0,0 +1,168 @@
+package org.valkyrienskies.core.physics
+
+import org.joml.Matrix3d
+import org.joml.Vector3dc
+import org.joml.Vector3ic
+import org.joml.primitives.AABBd
+import org.joml.primitives.AABBic
+import org.valkyrienskies.core.game.ships.PhysInertia
+import org.valkyrienskies.core.pipelines.VoxelChunkUpdate
+import org.valkyrienskies.physics_api.PhysicsWorldReference
+import org.valkyrienskies.physics_api.PoseVel
+import org.valkyrienskies.physics_api.RigidBodyInertiaData
+import org.valkyrienskies.physics_api.RigidBodyReference
+import org.valkyrienskies.physics_api.SegmentDisplacement
+import org.valkyrienskies.physics_api.voxel_updates.IVoxelShapeUpdate
+import org.valkyrienskies.physics_api.voxel_updates.VoxelRigidBodyShapeUpdates
+import org.valkyrienskies.physics_api_krunch.KrunchBootstrap
+import org.valkyrienskies.physics_api_krunch.KrunchPhysicsWorldSettings
+
+/**
+ * A [PhysicsEngineBackend] backed by the native Krunch engine
+ */
+class KrunchPhysicsEngineBackend : PhysicsEngineBackend {
+    private val physicsWorld: PhysicsWorldReference = KrunchBootstrap.createKrunchPhysicsWorld()
+
+    // Reused by [queueVoxelUpdates]
+    private val voxelUpdatesList = ArrayList<IVoxelShapeUpdate>()
+
+    // The voxel updates of every body since the last tick, passed to Krunch in a single call
+    private val queuedVoxelUpdates = ArrayList<VoxelRigidBodyShapeUpdates>()
+
+    // Kept so that changing one setting doesn't reset the others
+    private val settings = KrunchPhysicsWorldSettings()
+
+    override var subSteps: Int = DEFAULT_SUB_STEPS
+        set(value) {
+            require(value > 0) { "Sub-steps must be positive, but was $value" }
+            if (field == value) return
+            field = value
+            settings.subSteps = value
+            KrunchBootstrap.setKrunchSettings(physicsWorld, settings)
+        }
+
+    init {
+        // Apply physics engine settings
+        settings.subSteps = DEFAULT_SUB_STEPS
+        // Decrease max de-penetration speed so that rigid bodies don't go
+        // flying apart when they overlap
+        settings.maxDePenetrationSpeed = 10.0
+        KrunchBootstrap.setKrunchSettings(physicsWorld, settings)
+    }
+
+    override fun createVoxelRigidBody(
+        dimension: Int,
+        minDefined: Vector3ic,
+        maxDefined: Vector3ic,
+        totalVoxelRegion: AABBic
+    ): PhysicsRigidBody =
+        KrunchRigidBody(physicsWorld.createVoxelRigidBody(dimension, minDefined, maxDefined, totalVoxelRegion))
+
+    override fun deleteRigidBody(rigidBody: PhysicsRigidBody) {
+        // Updates queued for the body must reach Krunch before the body is gone
+        flushVoxelUpdates()
+        physicsWorld.deleteRigidBody((rigidBody as KrunchRigidBody).reference.rigidBodyId)
+    }
+
+    override fun queueVoxelUpdates(rigidBody: PhysicsRigidBody, chunkUpdates: Collection<VoxelChunkUpdate>) {
+        voxelUpdatesList.clear()
+        chunkUpdates.forEach { it.toVoxelShapeUpdates(voxelUpdatesList) }
+        queuedVoxelUpdates.add(
+            VoxelRigidBodyShapeUpdates(
+                (rigidBody as KrunchRigidBody).reference.rigidBodyId, voxelUpdatesList.toTypedArray()
+            )
+        )
+    }
+
+    override fun tick(gravity: Vector3dc, timeStep: Double, simulatePhysics: Boolean) {
+        flushVoxelUpdates()
+        physicsWorld.tick(gravity, timeStep, simulatePhysics)
+    }
+
+    private fun flushVoxelUpdates() {
+        if (queuedVoxelUpdates.isEmpty()) return
+        physicsWorld.queueVoxelShapeUpdates(queuedVoxelUpdates.toTypedArray())
+        queuedVoxelUpdates.clear()
+    }
+
+    override fun hasBeenDeleted(): Boolean = physicsWorld.hasBeenDeleted()
+
+    override fun deletePhysicsWorldResources() {
+        queuedVoxelUpdates.clear()
+        physicsWorld.deletePhysicsWorldResources()
+    }
+
+    private class KrunchRigidBody(val reference: RigidBodyReference) : PhysicsRigidBody {
+        override var poseVel: PoseVel
+            get() = reference.poseVel
+            set(value) {
+                reference.poseVel = value
+            }
+
+        override var collisionShapeOffset: Vector3dc
+            get() = reference.collisionShapeOffset
+            set(value) {
+                reference.collisionShapeOffset = value
+            }
+
+        override var isStatic: Boolean
+            get() = reference.isStatic
+            set(value) {
+                reference.isStatic = value
+            }
+
+        override var isVoxelTerrainFullyLoaded: Boolean
+            get() = reference.isVoxelTerrainFullyLoaded
+            set(value) {
+                reference.isVoxelTerrainFullyLoaded = value
+            }
+
+        override fun setInertia(inertia: PhysInertia) {
+            reference.inertiaData = physInertiaToRigidBodyInertiaData(inertia)
+        }
+
+        override fun setSegmentDisplacement(segmentId: Int, segmentDisplacement: SegmentDisplacement) {
+            reference.setSegmentDisplacement(segmentId, segmentDisplacement)
+        }
+
+        override fun getAABB(dest: AABBd) {
+            reference.getAABB(dest)
+        }
+
+        override fun addRotDependentForceToNextPhysTick(force: Vector3dc) {
+            reference.addRotDependentForceToNextPhysTick(force)
+        }
+
+        override fun addInvariantForceToNextPhysTick(force: Vector3dc) {
+            reference.addInvariantForceToNextPhysTick(force)
+        }
+
+        override fun addInvariantForceAtPosToNextPhysTick(pos: Vector3dc, force: Vector3dc) {
+            reference.addInvariantForceAtPosToNextPhysTick(pos, force)
+        }
+
+        override fun addRotDependentTorqueToNextPhysTick(torque: Vector3dc) {
+            reference.addRotDependentTorqueToNextPhysTick(torque)
+        }
+
+        override fun addInvariantTorqueToNextPhysTick(torque: Vector3dc) {
+            reference.addInvariantTorqueToNextPhysTick(torque)
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_SUB_STEPS = 10
+
+        private fun physInertiaToRigidBodyInertiaData(inertia: PhysInertia): RigidBodyInertiaData {
+            val invMass = 1.0 / inertia.shipMass
+            if (!invMass.isFinite())
+                throw IllegalStateException("invMass is not finite!")
+
+            val invInertiaMatrix = inertia.momentOfInertiaTensor.invert(Matrix3d())
+            if (!invInertiaMatrix.isFinite)
+                throw IllegalStateException("invInertiaMatrix is not finite!")
+
+            return RigidBodyInertiaData(invMass, invInertiaMatrix)
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.valkyrienskies.core.physics
+
+import org.joml.Vector3dc
+import org.joml.Vector3ic
+import org.joml.primitives.AABBd
+import org.joml.primitives.AABBic
+import org.valkyrienskies.core.game.ships.PhysInertia
+import org.valkyrienskies.core.pipelines.VoxelChunkUpdate
+import org.valkyrienskies.physics_api.PoseVel
+import org.valkyrienskies.physics_api.SegmentDisplacement
+
+/**
+ * A physics world that [org.valkyrienskies.core.pipelines.VSPhysicsPipelineStage] simulates ships in.
+ *
+ * Everything here is only ever used from the physics thread that owns the world.
+ */
+interface PhysicsEngineBackend {
+
+    /**
+     * Create a rigid body made of voxels. Its voxels are empty until they're set by [queueVoxelUpdates].
+     *
+     * @param dimension The Krunch dimension id of the body, bodies in different dimensions never collide
+     * @param minDefined The minimum voxel position that may be set
+     * @param maxDefined The maximum voxel position that may be set
+     * @param totalVoxelRegion Every voxel this body will ever have
+     */
+    fun createVoxelRigidBody(
+        dimension: Int,
+        minDefined: Vector3ic,
+        maxDefined: Vector3ic,
+        totalVoxelRegion: AABBic
+    ): PhysicsRigidBody
+
+    fun deleteRigidBody(rigidBody: PhysicsRigidBody)
+
+    /**
+     * Change the voxels of [rigidBody], the changes are applied before the next [tick]. Backends may hold on to the
+     * changes of every body until then, and pass them to the engine all at once.
+     */
+    fun queueVoxelUpdates(rigidBody: PhysicsRigidBody, chunkUpdates: Collection<VoxelChunkUpdate>)
+
+    /**
+     * Read the [PhysicsRigidBody.poseVel] and [PhysicsRigidBody.getAABB] of every body in [rigidBodies] in one pass.
+     * Backends that can read several bodies at once should override this.
+     *
+     * @param poseVelsDest The pose of each body is added to this, in the order of [rigidBodies]
+     * @param aabbsDest The bounding box of each body is stored in the element at the same index
+     */
+    fun readRigidBodyStates(
+        rigidBodies: List<PhysicsRigidBody>,
+        poseVelsDest: MutableList<PoseVel>,
+        aabbsDest: List<AABBd>
+    ) {
+        rigidBodies.forEachIndexed { i, rigidBody ->
+            poseVelsDest.add(rigidBody.poseVel)
+            rigidBody.getAABB(aabbsDest[i])
+        }
+    }
+
+    /**
+     * Apply the forces given to every rigid body since the last tick, then move every rigid body forward by
+     * [timeStep] seconds. If [simulatePhysics] is false the forces are thrown away and nothing moves.
+     */
+    fun tick(gravity: Vector3dc, timeStep: Double, simulatePhysics: Boolean)
+
+    /**
+     * The number of steps each [tick] is split into. More sub-steps are more stable but take longer.
+     */
+    var subSteps: Int
+
+    fun hasBeenDeleted(): Boolean
+
+    /**
+     * Free every resource of this world, it must not be used afterwards
+     */
+    fun deletePhysicsWorldResources()
+}
+
+/**
+ * A rigid body in a [PhysicsEngineBackend].
+ *
+ * Forces and torques added here are only applied by the next [PhysicsEngineBackend.tick], then they're cleared.
+ */
+interface PhysicsRigidBody {
+    /**
+     * The position and rotation of the center of mass, and the linear and angular velocity in world space
+     */
+    var poseVel: PoseVel
+
+    /**
+     * Added to the position of every voxel before it's rotated, this moves the center of mass within the voxels
+     */
+    var collisionShapeOffset: Vector3dc
+
+    var isStatic: Boolean
+
+    /**
+     * Whether every voxel of this body has been sent. Bodies that are missing voxels may fall through them.
+     */
+    var isVoxelTerrainFullyLoaded: Boolean
+
+    fun setInertia(inertia: PhysInertia)
+
+    fun setSegmentDisplacement(segmentId: Int, segmentDisplacement: SegmentDisplacement)
+
+    /**
+     * Store the world space bounding box of this body in [dest]
+     */
+    fun getAABB(dest: AABBd)
+
+    // region Forces
+    fun addRotDependentForceToNextPhysTick(force: Vector3dc)
+
+    fun addInvariantForceToNextPhysTick(force: Vector3dc)
+
+    /**
+     * @param pos Where the force is applied, relative to the center of mass in world space
+     */
+    fun addInvariantForceAtPosToNextPhysTick(pos: Vector3dc, force: Vector3dc)
+
+    fun addRotDependentTorqueToNextPhysTick(torque: Vector3dc)
+
+    fun addInvariantTorqueToNextPhysTick(torque: Vector3dc)
+    // endregion
+}
+
+/**
+ * The [PhysicsEngineBackend]s that can be picked in [org.valkyrienskies.core.config.VSCoreConfig.Server.physicsEngine]
+ */
+enum class PhysicsEngineType {
+    /**
+     * The native Krunch engine
+     */
+    KRUNCH,
+
+    /**
+     * [ReferencePhysicsEngineBackend], only meant for benchmarking the rest of the pipeline
+     */
+    REFERENCE;
+
+    fun createBackend(): PhysicsEngineBackend = when (this) {
+        KRUNCH -> KrunchPhysicsEngineBackend()
+        REFERENCE -> ReferencePhysicsEngineBackend()
+    }
+}
@@ -0,0 +1,567 @@
+package org.valkyrienskies.core.physics
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap
+import org.joml.Matrix3d
+import org.joml.Matrix4d
+import org.joml.Quaterniond
+import org.joml.Vector3d
+import org.joml.Vector3dc
+import org.joml.Vector3ic
+import org.joml.primitives.AABBd
+import org.joml.primitives.AABBic
+import org.valkyrienskies.core.game.ships.PhysInertia
+import org.valkyrienskies.core.pipelines.VoxelChunkUpdate
+import org.valkyrienskies.physics_api.PoseVel
+import org.valkyrienskies.physics_api.SegmentDisplacement
+import org.valkyrienskies.physics_api.voxel_updates.EmptyVoxelShapeUpdate
+import org.valkyrienskies.physics_api.voxel_updates.KrunchVoxelStates
+import kotlin.math.floor
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * A simple [PhysicsEngineBackend] written in plain Kotlin, so that the pipeline can be benchmarked and profiled
+ * without the native engine. It is not meant to play well:
+ *
+ * - Bodies are integrated with semi-implicit Euler, once per tick. [subSteps] is ignored.
+ * - Moving bodies collide as a single axis aligned box each. Static bodies, and bodies whose voxels aren't fully
+ *   loaded, collide with one axis aligned box per chunk. Contacts are resolved by pushing the boxes apart along the
+ *   axis of least penetration and removing the velocity into the contact, there is no friction or restitution.
+ * - Whole chunk voxel updates are opaque to us, so a chunk that got one is treated as completely solid, unless it
+ *   was an [org.valkyrienskies.physics_api.voxel_updates.EmptyVoxelShapeUpdate]. Single voxel edits are exact.
+ */
+class ReferencePhysicsEngineBackend : PhysicsEngineBackend {
+    private val bodies = ArrayList<ReferenceRigidBody>()
+
+    // Rebuilt every tick
+    private val movingBodies = ArrayList<ReferenceRigidBody>()
+    private val fixedBodies = ArrayList<ReferenceRigidBody>()
+
+    private var deleted = false
+
+    // region Temporaries for [tick]
+    private val localBox = AABBd()
+    private val worldBox = AABBd()
+    // endregion
+
+    val rigidBodyCount: Int get() = bodies.size
+
+    override fun createVoxelRigidBody(
+        dimension: Int,
+        minDefined: Vector3ic,
+        maxDefined: Vector3ic,
+        totalVoxelRegion: AABBic
+    ): PhysicsRigidBody {
+        checkNotDeleted()
+        val body = ReferenceRigidBody(dimension)
+        body.index = bodies.size
+        bodies.add(body)
+        return body
+    }
+
+    override fun deleteRigidBody(rigidBody: PhysicsRigidBody) {
+        checkNotDeleted()
+        val body = rigidBody as ReferenceRigidBody
+        check(body.index >= 0 && bodies[body.index] === body) { "Rigid body was already deleted" }
+        // Swap remove, the order of [bodies] doesn't matter
+        val last = bodies.removeAt(bodies.size - 1)
+        if (last !== body) {
+            bodies[body.index] = last
+            last.index = body.index
+        }
+        body.index = -1
+    }
+
+    override fun queueVoxelUpdates(rigidBody: PhysicsRigidBody, chunkUpdates: Collection<VoxelChunkUpdate>) {
+        checkNotDeleted()
+        val shape = (rigidBody as ReferenceRigidBody).shape
+        chunkUpdates.forEach(shape::apply)
+    }
+
+    override fun tick(gravity: Vector3dc, timeStep: Double, simulatePhysics: Boolean) {
+        checkNotDeleted()
+
+        movingBodies.clear()
+        fixedBodies.clear()
+        bodies.forEach { body ->
+            if (body.isStatic || !body.isVoxelTerrainFullyLoaded) fixedBodies.add(body) else movingBodies.add(body)
+        }
+
+        if (simulatePhysics) movingBodies.forEach { it.integrate(gravity, timeStep) }
+        bodies.forEach { body ->
+            body.clearForces()
+            body.updateWorldAABB()
+        }
+
+        if (simulatePhysics) {
+            collideMovingWithFixed()
+            collideMovingWithMoving()
+        }
+    }
+
+    override var subSteps: Int = 1
+
+    override fun hasBeenDeleted(): Boolean = deleted
+
+    override fun deletePhysicsWorldResources() {
+        checkNotDeleted()
+        deleted = true
+        bodies.clear()
+        movingBodies.clear()
+        fixedBodies.clear()
+    }
+
+    private fun checkNotDeleted() {
+        if (deleted) throw IllegalStateException("Physics world has already been deleted!")
+    }
+
+    // region Contacts
+    private fun collideMovingWithFixed() {
+        movingBodies.forEach { moving ->
+            if (moving.shape.isEmpty()) return@forEach
+            fixedBodies.forEach { fixed ->
+                if (fixed.dimension == moving.dimension && fixed.worldAABB.intersectsAABB(moving.worldAABB)) {
+                    collideWithChunks(moving, fixed)
+                }
+            }
+        }
+    }
+
+    /**
+     * Push [moving] out of every chunk of [fixed] it overlaps
+     */
+    private fun collideWithChunks(moving: ReferenceRigidBody, fixed: ReferenceRigidBody) {
+        moving.worldAABB.transform(fixed.worldToLocal, localBox)
+        fixed.shape.forEachChunkOverlapping(localBox) { chunkBox ->
+            chunkBox.transform(fixed.localToWorld, worldBox)
+            pushOutOfFixedBox(moving, worldBox)
+        }
+    }
+
+    private fun pushOutOfFixedBox(moving: ReferenceRigidBody, box: AABBd) {
+        val a = moving.worldAABB
+        val axis = leastPenetrationAxis(a, box)
+        if (axis < 0) return
+        val penetration = penetration(a, box, axis)
+        // Push away from the center of the box
+        val sign = if (center(a, axis) < center(box, axis)) -1.0 else 1.0
+        moving.translateWorld(axis, sign * penetration)
+        // Remove the velocity going into the box
+        if (moving.vel[axis] * sign < 0) moving.vel.setComponent(axis, 0.0)
+    }
+
+    private fun collideMovingWithMoving() {
+        // Sweep and prune along x. Bodies barely move between ticks, so insertion sort is close to linear
+        sortByMinX(movingBodies)
+        for (i in movingBodies.indices) {
+            val a = movingBodies[i]
+            if (a.shape.isEmpty()) continue
+            for (j in i + 1 until movingBodies.size) {
+                val b = movingBodies[j]
+                if (b.worldAABB.minX > a.worldAABB.maxX) break
+                if (a.dimension == b.dimension && !b.shape.isEmpty() && a.worldAABB.intersectsAABB(b.worldAABB)) {
+                    separate(a, b)
+                }
+            }
+        }
+    }
+
+    private fun separate(a: ReferenceRigidBody, b: ReferenceRigidBody) {
+        val totalInvMass = a.invMass + b.invMass
+        if (totalInvMass <= 0.0) return
+        val axis = leastPenetrationAxis(a.worldAABB, b.worldAABB)
+        if (axis < 0) return
+        val penetration = penetration(a.worldAABB, b.worldAABB, axis)
+        // The direction from a to b
+        val sign = if (center(a.worldAABB, axis) < center(b.worldAABB, axis)) 1.0 else -1.0
+
+        a.translateWorld(axis, -sign * penetration * a.invMass / totalInvMass)
+        b.translateWorld(axis, sign * penetration * b.invMass / totalInvMass)
+
+        // Inelastic impulse along the contact normal, in world units
+        val relativeVel = (b.vel[axis] * b.scaling - a.vel[axis] * a.scaling) * sign
+        if (relativeVel < 0) {
+            val impulse = -relativeVel / totalInvMass
+            a.vel.setComponent(axis, a.vel[axis] - sign * impulse * a.invMass / a.scaling)
+            b.vel.setComponent(axis, b.vel[axis] + sign * impulse * b.invMass / b.scaling)
+        }
+    }
+    // endregion
+
+    companion object {
+        /**
+         * @return 0, 1 or 2 for x, y or z, or -1 if [a] and [b] don't overlap
+         */
+        private fun leastPenetrationAxis(a: AABBd, b: AABBd): Int {
+            var bestAxis = -1
+            var best = Double.POSITIVE_INFINITY
+            for (axis in 0..2) {
+                val p = penetration(a, b, axis)
+                if (p <= 0.0) return -1
+                if (p < best) {
+                    best = p
+                    bestAxis = axis
+                }
+            }
+            return bestAxis
+        }
+
+        private fun penetration(a: AABBd, b: AABBd, axis: Int): Double = when (axis) {
+            0 -> min(a.maxX, b.maxX) - max(a.minX, b.minX)
+            1 -> min(a.maxY, b.maxY) - max(a.minY, b.minY)
+            else -> min(a.maxZ, b.maxZ) - max(a.minZ, b.minZ)
+        }
+
+        private fun center(box: AABBd, axis: Int): Double = when (axis) {
+            0 -> box.minX + box.maxX
+            1 -> box.minY + box.maxY
+            else -> box.minZ + box.maxZ
+        } * 0.5
+
+        private fun sortByMinX(list: ArrayList<ReferenceRigidBody>) {
+            for (i in 1 until list.size) {
+                val body = list[i]
+                var j = i - 1
+                while (j >= 0 && list[j].worldAABB.minX > body.worldAABB.minX) {
+                    list[j + 1] = list[j]
+                    j--
+                }
+                list[j + 1] = body
+            }
+        }
+    }
+}
+
+/**
+ * A rigid body of [ReferencePhysicsEngineBackend]
+ */
+internal class ReferenceRigidBody(val dimension: Int) : PhysicsRigidBody {
+    // The position of this body in [ReferencePhysicsEngineBackend.bodies], or -1 once deleted
+    var index = -1
+
+    val shape = ReferenceVoxelShape()
+
+    // region State, all in world space except for [scaling]
+    private val pos = Vector3d()
+    private val rot = Quaterniond()
+    val vel = Vector3d()
+    private val omega = Vector3d()
+    private val offset = Vector3d()
+    var scaling = 1.0
+        private set
+    var invMass = 0.0
+        private set
+    private val invInertiaLocal = Matrix3d().zero()
+    // endregion
+
+    // region Forces, cleared every tick
+    private val invariantForce = Vector3d()
+    private val rotDependentForce = Vector3d()
+    private val invariantTorque = Vector3d()
+    private val rotDependentTorque = Vector3d()
+    // endregion
+
+    val localToWorld = Matrix4d()
+    val worldToLocal = Matrix4d()
+    val worldAABB = AABBd()
+    private var transformDirty = true
+
+    // region Temporaries
+    private val tempVector = Vector3d()
+    private val tempRotation = Quaterniond()
+    private val invInertiaWorld = Matrix3d()
+    private val rotationMatrix = Matrix3d()
+    private val rotationMatrixTransposed = Matrix3d()
+    private val localAABB = AABBd()
+    // endregion
+
+    override var poseVel: PoseVel
+        get() = PoseVel(Vector3d(pos), Quaterniond(rot), Vector3d(vel), Vector3d(omega))
+        set(value) {
+            pos.set(value.pos)
+            rot.set(value.rot)
+            vel.set(value.vel)
+            omega.set(value.omega)
+            transformDirty = true
+        }
+
+    override var collisionShapeOffset: Vector3dc
+        get() = offset
+        set(value) {
+            offset.set(value)
+            transformDirty = true
+        }
+
+    override var isStatic = false
+
+    override var isVoxelTerrainFullyLoaded = false
+
+    override fun setInertia(inertia: PhysInertia) {
+        val invMass = 1.0 / inertia.shipMass
+        if (!invMass.isFinite())
+            throw IllegalStateException("invMass is not finite!")
+
+        inertia.momentOfInertiaTensor.invert(invInertiaLocal)
+        if (!invInertiaLocal.isFinite)
+            throw IllegalStateException("invInertiaMatrix is not finite!")
+
+        this.invMass = invMass
+    }
+
+    override fun setSegmentDisplacement(segmentId: Int, segmentDisplacement: SegmentDisplacement) {
+        // Only the scaling of the first segment is supported, just like the rest of vs-core
+        if (segmentId == 0) {
+            scaling = segmentDisplacement.scaling
+            transformDirty = true
+        }
+    }
+
+    override fun getAABB(dest: AABBd) {
+        dest.set(worldAABB)
+    }
+
+    // region Forces
+    override fun addRotDependentForceToNextPhysTick(force: Vector3dc) {
+        rotDependentForce.add(force)
+    }
+
+    override fun addInvariantForceToNextPhysTick(force: Vector3dc) {
+        invariantForce.add(force)
+    }
+
+    override fun addInvariantForceAtPosToNextPhysTick(pos: Vector3dc, force: Vector3dc) {
+        invariantForce.add(force)
+        invariantTorque.add(pos.cross(force, tempVector))
+    }
+
+    override fun addRotDependentTorqueToNextPhysTick(torque: Vector3dc) {
+        rotDependentTorque.add(torque)
+    }
+
+    override fun addInvariantTorqueToNextPhysTick(torque: Vector3dc) {
+        invariantTorque.add(torque)
+    }
+    // endregion
+
+    fun integrate(gravity: Vector3dc, timeStep: Double) {
+        invariantForce.add(rot.transform(rotDependentForce, tempVector))
+        invariantTorque.add(rot.transform(rotDependentTorque, tempVector))
+
+        vel.fma(timeStep, gravity).fma(timeStep * invMass, invariantForce)
+
+        // The inverse inertia in world space is R * I^-1 * R^T
+        rotationMatrix.set(rot)
+        rotationMatrix.transpose(rotationMatrixTransposed)
+        invInertiaWorld.set(rotationMatrix).mul(invInertiaLocal).mul(rotationMatrixTransposed)
+        omega.fma(timeStep, invariantTorque.mul(invInertiaWorld))
+
+        pos.fma(timeStep, vel)
+        // [omega] is in world space, so the rotation it causes is applied before [rot]
+        rot.premul(tempRotation.identity().integrate(timeStep, omega.x, omega.y, omega.z)).normalize()
+        transformDirty = true
+    }
+
+    fun clearForces() {
+        invariantForce.zero()
+        rotDependentForce.zero()
+        invariantTorque.zero()
+        rotDependentTorque.zero()
+    }
+
+    fun updateWorldAABB() {
+        if (!transformDirty && !shape.boundsChanged) return
+        localToWorld.scaling(scaling).translate(pos).rotate(rot).translate(offset)
+        localToWorld.invert(worldToLocal)
+        if (shape.getLocalAABB(localAABB)) {
+            localAABB.transform(localToWorld, worldAABB)
+        } else {
+            val x = pos.x * scaling
+            val y = pos.y * scaling
+            val z = pos.z * scaling
+            worldAABB.setMin(x, y, z).setMax(x, y, z)
+        }
+        transformDirty = false
+    }
+
+    /**
+     * Move this body by [distance] world units along [axis]
+     */
+    fun translateWorld(axis: Int, distance: Double) {
+        pos.setComponent(axis, pos[axis] + distance / scaling)
+        when (axis) {
+            0 -> worldAABB.translate(distance, 0.0, 0.0)
+            1 -> worldAABB.translate(0.0, distance, 0.0)
+            else -> worldAABB.translate(0.0, 0.0, distance)
+        }
+        // The world bounding box is already up to date, only the matrices are not
+        localToWorld.scaling(scaling).translate(pos).rotate(rot).translate(offset)
+        localToWorld.invert(worldToLocal)
+    }
+}
+
+/**
+ * The solid voxels of a [ReferenceRigidBody], one bit per voxel, grouped by 16x16x16 chunk
+ */
+internal class ReferenceVoxelShape {
+    // Only holds chunks with solid voxels
+    internal val chunks = Long2ObjectOpenHashMap<Chunk>()
+
+    private var solidChunkCount = 0
+
+    /**
+     * True if the bounds changed since the last [getLocalAABB]
+     */
+    var boundsChanged = false
+        private set
+
+    private val chunkBox = AABBd()
+
+    // Passed to the action of [forEachChunkOverlapping]
+    internal val chunkBoxForAction = AABBd()
+
+    fun isEmpty(): Boolean = solidChunkCount == 0
+
+    fun apply(update: VoxelChunkUpdate) {
+        val pos = update.chunkPos
+        val key = chunkKey(pos.x(), pos.y(), pos.z())
+        val chunk = chunks.get(key) ?: Chunk(pos.x(), pos.y(), pos.z()).also { chunks.put(key, it) }
+        val wasSolid = chunk.solidCount > 0
+
+        when (update.baseUpdate) {
+            null -> {}
+            is EmptyVoxelShapeUpdate -> chunk.fill(false)
+            else -> chunk.fill(true)
+        }
+        update.forEachEdit { x, y, z, voxelState -> chunk.set(x, y, z, voxelState != KrunchVoxelStates.AIR_STATE) }
+
+        val isSolid = chunk.solidCount > 0
+        if (wasSolid != isSolid) solidChunkCount += if (isSolid) 1 else -1
+        if (!isSolid) chunks.remove(key)
+        boundsChanged = true
+    }
+
+    /**
+     * @return false if there are no solid voxels, then [dest] is unchanged
+     */
+    fun getLocalAABB(dest: AABBd): Boolean {
+        boundsChanged = false
+        if (isEmpty()) return false
+        dest.setMin(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY)
+            .setMax(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY)
+        chunks.values.forEach { chunk ->
+            chunk.getAABB(chunkBox)
+            dest.union(chunkBox)
+        }
+        return true
+    }
+
+    /**
+     * Call [action] with the bounds of the solid voxels of every chunk that might overlap [localBox]. The box passed
+     * to [action] is reused.
+     */
+    inline fun forEachChunkOverlapping(localBox: AABBd, action: (AABBd) -> Unit) {
+        val minX = chunkCoord(localBox.minX)
+        val minY = chunkCoord(localBox.minY)
+        val minZ = chunkCoord(localBox.minZ)
+        val maxX = chunkCoord(localBox.maxX)
+        val maxY = chunkCoord(localBox.maxY)
+        val maxZ = chunkCoord(localBox.maxZ)
+        val rangeSize = (maxX - minX + 1).toLong() * (maxY - minY + 1) * (maxZ - minZ + 1)
+
+        if (rangeSize > chunks.size) {
+            // Fewer chunks than positions in the range, check every chunk instead
+            val iterator = chunks.values.iterator()
+            while (iterator.hasNext()) {
+                val chunk = iterator.next()
+                if (chunk.x in minX..maxX && chunk.y in minY..maxY && chunk.z in minZ..maxZ) {
+                    action(chunk.getAABB(chunkBoxForAction))
+                }
+            }
+            return
+        }
+        for (x in minX..maxX) for (y in minY..maxY) for (z in minZ..maxZ) {
+            val chunk = chunks.get(chunkKey(x, y, z)) ?: continue
+            action(chunk.getAABB(chunkBoxForAction))
+        }
+    }
+
+    internal class Chunk(val x: Int, val y: Int, val z: Int) {
+        // Bit (x or (y shl 4) or (z shl 8)) is set if that voxel is solid
+        private val bits = LongArray(64)
+
+        var solidCount = 0
+            private set
+
+        // Bounds of the solid voxels in chunk local voxel coordinates, only valid when [boundsDirty] is false
+        private var minX = 0
+        private var minY = 0
+        private var minZ = 0
+        private var maxX = 0
+        private var maxY = 0
+        private var maxZ = 0
+        private var boundsDirty = true
+
+        fun fill(solid: Boolean) {
+            bits.fill(if (solid) -1L else 0L)
+            solidCount = if (solid) 4096 else 0
+            boundsDirty = true
+        }
+
+        fun set(x: Int, y: Int, z: Int, solid: Boolean) {
+            val index = x or (y shl 4) or (z shl 8)
+            val word = index ushr 6
+            val mask = 1L shl (index and 63)
+            val wasSolid = bits[word] and mask != 0L
+            if (wasSolid == solid) return
+            bits[word] = bits[word] xor mask
+            solidCount += if (solid) 1 else -1
+            boundsDirty = true
+        }
+
+        /**
+         * The bounds of the solid voxels in body local coordinates, where voxel v covers [v - 0.5, v + 0.5]
+         */
+        fun getAABB(dest: AABBd): AABBd {
+            if (boundsDirty) computeBounds()
+            return dest.setMin(x * 16.0 + minX - 0.5, y * 16.0 + minY - 0.5, z * 16.0 + minZ - 0.5)
+                .setMax(x * 16.0 + maxX + 0.5, y * 16.0 + maxY + 0.5, z * 16.0 + maxZ + 0.5)
+        }
+
+        private fun computeBounds() {
+            minX = 15
+            minY = 15
+            minZ = 15
+            maxX = 0
+            maxY = 0
+            maxZ = 0
+            for (word in bits.indices) {
+                var remaining = bits[word]
+                while (remaining != 0L) {
+                    val bit = remaining.countTrailingZeroBits()
+                    remaining = remaining and (remaining - 1)
+                    val index = (word shl 6) or bit
+                    val vx = index and 15
+                    val vy = (index shr 4) and 15
+                    val vz = index shr 8
+                    minX = min(minX, vx)
+                    minY = min(minY, vy)
+                    minZ = min(minZ, vz)
+                    maxX = max(maxX, vx)
+                    maxY = max(maxY, vy)
+                    maxZ = max(maxZ, vz)
+                }
+            }
+            boundsDirty = false
+        }
+    }
+
+    companion object {
+        internal fun chunkKey(x: Int, y: Int, z: Int): Long =
+            ((x.toLong() and 0x1FFFFF) shl 42) or ((y.toLong() and 0x1FFFFF) shl 21) or (z.toLong() and 0x1FFFFF)
+
+        /**
+         * The chunk containing local coordinate [coord], voxel v covers [v - 0.5, v + 0.5]
+         */
+        internal fun chunkCoord(coord: Double): Int = floor((coord + 0.5) / 16.0).toInt()
+    }
+}
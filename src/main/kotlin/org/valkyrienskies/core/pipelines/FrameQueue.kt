@@ -0,0 +1,137 @@
+package org.valkyrienskies.core.pipelines
+
+import org.valkyrienskies.core.datastructures.SpscRingBuffer
+import org.valkyrienskies.core.util.logger
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+import kotlin.math.min
+
+/**
+ * What a [FrameQueue] does when a frame is pushed while the queue is full.
+ */
+enum class FrameQueuePolicy {
+    /**
+     * Wait for the consumer to make room, until the queue is closed. A warning is logged every time the wait runs out
+     * of time.
+     */
+    BLOCK,
+
+    /**
+     * Throw away the oldest queued frame.
+     */
+    DROP_OLDEST
+}
+
+/**
+ * How often each [FrameQueuePolicy] of a [FrameQueue] has fired.
+ */
+data class FrameQueueCounters(
+    val blocked: Long, // Number of pushes that had to wait for room
+    val blockTimeouts: Long, // Number of times a wait ran out of time
+    val dropped: Long // Number of frames thrown away
+) {
+    operator fun plus(other: FrameQueueCounters): FrameQueueCounters = FrameQueueCounters(
+        blocked + other.blocked,
+        blockTimeouts + other.blockTimeouts,
+        dropped + other.dropped
+    )
+
+    companion object {
+        val ZERO = FrameQueueCounters(0, 0, 0)
+    }
+}
+
+/**
+ * A bounded queue of frames between two pipeline stages, backed by a preallocated [SpscRingBuffer].
+ *
+ * Exactly one thread may call [push] and exactly one thread may call [poll]/[drain]. Frames that aren't thrown away
+ * are polled in the order they were pushed, consumers that need fewer frames can merge them after polling.
+ */
+class FrameQueue<T : Any>(
+    private val name: String,
+    capacity: Int,
+    val policy: FrameQueuePolicy,
+    blockTimeoutMs: Long
+) {
+    private val ring = SpscRingBuffer<T>(capacity)
+    private val blockTimeoutNs = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs)
+
+    private val blocked = AtomicLong()
+    private val blockTimeouts = AtomicLong()
+    private val dropped = AtomicLong()
+
+    // When this is set to true, blocked pushes give up so the producer doesn't hang forever
+    @Volatile
+    private var closed = false
+
+    val size: Int get() = ring.size
+
+    fun isEmpty(): Boolean = ring.isEmpty()
+
+    /**
+     * Push a frame, applying [policy] if the queue is full. Must only be called from the producer thread.
+     */
+    fun push(frame: T) {
+        if (ring.offer(frame)) return
+
+        when (policy) {
+            FrameQueuePolicy.BLOCK -> pushBlocking(frame)
+            FrameQueuePolicy.DROP_OLDEST -> pushDroppingOldest(frame)
+        }
+    }
+
+    fun poll(): T? = ring.poll()
+
+    inline fun drain(action: (T) -> Unit): Int {
+        var count = 0
+        while (true) {
+            val frame = poll() ?: return count
+            action(frame)
+            count++
+        }
+    }
+
+    /**
+     * Stop waiting in [push]. Frames pushed after this are dropped if the queue is full.
+     */
+    fun close() {
+        closed = true
+    }
+
+    fun counters(): FrameQueueCounters =
+        FrameQueueCounters(blocked.get(), blockTimeouts.get(), dropped.get())
+
+    private fun pushBlocking(frame: T) {
+        blocked.incrementAndGet()
+        var deadline = System.nanoTime() + blockTimeoutNs
+        while (!ring.offer(frame)) {
+            if (closed) {
+                dropped.incrementAndGet()
+                return
+            }
+
+            val remaining = deadline - System.nanoTime()
+            if (remaining <= 0) {
+                blockTimeouts.incrementAndGet()
+                logger.warn("Waited more than ${blockTimeoutNs / 1_000_000} ms to push to the $name queue")
+                deadline = System.nanoTime() + blockTimeoutNs
+                continue
+            }
+            LockSupport.parkNanos(min(remaining, MAX_PARK_NS))
+        }
+    }
+
+    private fun pushDroppingOldest(frame: T) {
+        // The consumer may be polling at the same time, but the frames it gets are still in order, some are just gone
+        while (!ring.offer(frame)) {
+            if (ring.poll() != null) dropped.incrementAndGet()
+        }
+    }
+
+    companion object {
+        // Upper bound on how long we park between checks for room
+        private val MAX_PARK_NS = TimeUnit.MICROSECONDS.toNanos(100)
+        private val logger by logger()
+    }
+}
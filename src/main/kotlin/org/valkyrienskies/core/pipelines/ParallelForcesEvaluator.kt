@@ -0,0 +1,57 @@
+package org.valkyrienskies.core.pipelines
+
+import org.valkyrienskies.core.game.ships.PhysShip
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+
+/**
+ * Runs the [org.valkyrienskies.core.api.ShipForcesInducer]s of many ships on a fork-join pool.
+ *
+ * Inducers write into each ship's [PhysShip.forcesBuffer] instead of the rigid body. The caller then passes every
+ * buffer to its rigid body on the physics thread, so the physics engine is still only used by the physics thread.
+ *
+ * The inducers of one ship always run on one thread, in order, but inducers of different ships run at the same time.
+ */
+class ParallelForcesEvaluator(parallelism: Int) {
+
+    private val pool = ForkJoinPool(parallelism, { pool ->
+        ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool).apply {
+            name = "VS forces inducer thread $poolIndex"
+            isDaemon = true
+        }
+    }, null, false)
+
+    /**
+     * Compute the forces of every ship in [ships] into its [PhysShip.forcesBuffer] in parallel. Exceptions thrown by
+     * inducers are rethrown here.
+     */
+    fun computeForces(ships: List<PhysShip>) {
+        if (ships.isEmpty()) return
+        pool.invoke(ComputeForcesTask(ships, 0, ships.size))
+    }
+
+    fun shutdown() {
+        pool.shutdown()
+    }
+
+    private class ComputeForcesTask(
+        private val ships: List<PhysShip>, private val from: Int, private val to: Int
+    ) : RecursiveAction() {
+        override fun compute() {
+            if (to - from <= SHIPS_PER_TASK) {
+                for (i in from until to) {
+                    val ship = ships[i]
+                    ship.forceInducers.forEach { it.applyForces(ship.forcesBuffer, ship) }
+                }
+            } else {
+                val mid = (from + to) ushr 1
+                invokeAll(ComputeForcesTask(ships, from, mid), ComputeForcesTask(ships, mid, to))
+            }
+        }
+    }
+
+    companion object {
+        // Each task handles at most this many ships, so ships with cheap inducers aren't outweighed by task overhead
+        private const val SHIPS_PER_TASK = 8
+    }
+}
@@ -0,0 +1,107 @@
+package org.valkyrienskies.core.pipelines
+
+import org.valkyrienskies.core.config.VSCoreConfig
+
+/**
+ * Keeps physics ticks within their time budget by trading away accuracy, so that a server that can't keep up
+ * degrades instead of falling further and further behind.
+ *
+ * The load is how long a tick took divided by how long it may take, smoothed over a few ticks. While it stays above
+ * [VSCoreConfig.Server.physicsQualityDegradeLoad] the quality is lowered one level at a time, and while it stays below
+ * [VSCoreConfig.Server.physicsQualityUpgradeLoad] it is raised one level at a time. Loads in between change nothing,
+ * which keeps the quality from flipping back and forth.
+ *
+ * Level 0 is full quality. Each level above it takes one sub-step away, down to
+ * [VSCoreConfig.Server.minPhysicsSubSteps]. If [VSCoreConfig.Server.adaptivePhysicsTps] is on, the levels after that
+ * lower the ticks per second by [VSCoreConfig.Server.physicsTpsStep], down to
+ * [VSCoreConfig.Server.minPhysicsTicksPerSecond].
+ *
+ * Only [tickFinished] changes the quality, it must always be called from the same thread.
+ */
+internal class PhysicsQualityController(private val config: VSCoreConfig.Server = VSCoreConfig.SERVER) {
+
+    var qualityLevel = 0
+        private set
+
+    @Volatile
+    var subSteps = config.maxPhysicsSubSteps.coerceAtLeast(1)
+        private set
+
+    @Volatile
+    var ticksPerSecond = config.physicsTicksPerSecond
+        private set
+
+    // The fraction of the time budget recent ticks took, smoothed
+    var load = 0.0
+        private set
+
+    private var ticksOverloaded = 0
+    private var ticksUnderloaded = 0
+
+    /**
+     * Record how long a physics tick took, and change the quality if needed. Config changes are picked up here too.
+     *
+     * @return true if [subSteps] or [ticksPerSecond] changed
+     */
+    fun tickFinished(tickDurationNs: Long): Boolean {
+        val budgetNs = NANOS_PER_SECOND / ticksPerSecond
+        load += (tickDurationNs.toDouble() / budgetNs - load) * LOAD_SMOOTHING
+
+        if (!config.adaptivePhysicsQuality) {
+            qualityLevel = 0
+            ticksOverloaded = 0
+            ticksUnderloaded = 0
+        } else if (load > config.physicsQualityDegradeLoad) {
+            ticksUnderloaded = 0
+            if (++ticksOverloaded >= config.physicsQualityDegradeTicks && qualityLevel < maxQualityLevel()) {
+                qualityLevel++
+                ticksOverloaded = 0
+            }
+        } else if (load < config.physicsQualityUpgradeLoad) {
+            ticksOverloaded = 0
+            if (++ticksUnderloaded >= config.physicsQualityUpgradeTicks && qualityLevel > 0) {
+                qualityLevel--
+                ticksUnderloaded = 0
+            }
+        } else {
+            ticksOverloaded = 0
+            ticksUnderloaded = 0
+        }
+        qualityLevel = qualityLevel.coerceAtMost(maxQualityLevel())
+
+        val newSubSteps = maxSubSteps() - qualityLevel.coerceAtMost(subStepLevels())
+        val newTicksPerSecond = (config.physicsTicksPerSecond - tpsLevel() * tpsStep())
+            .coerceAtLeast(minTicksPerSecond())
+        if (newSubSteps == subSteps && newTicksPerSecond == ticksPerSecond) return false
+        subSteps = newSubSteps
+        ticksPerSecond = newTicksPerSecond
+        return true
+    }
+
+    private fun maxSubSteps(): Int = config.maxPhysicsSubSteps.coerceAtLeast(1)
+
+    private fun subStepLevels(): Int = maxSubSteps() - config.minPhysicsSubSteps.coerceIn(1, maxSubSteps())
+
+    private fun minTicksPerSecond(): Int =
+        if (config.adaptivePhysicsTps) {
+            config.minPhysicsTicksPerSecond.coerceIn(1, config.physicsTicksPerSecond)
+        } else {
+            config.physicsTicksPerSecond
+        }
+
+    private fun tpsStep(): Int = config.physicsTpsStep.coerceAtLeast(1)
+
+    private fun tpsLevel(): Int = (qualityLevel - subStepLevels()).coerceAtLeast(0)
+
+    private fun maxQualityLevel(): Int {
+        val tpsRange = config.physicsTicksPerSecond - minTicksPerSecond()
+        return subStepLevels() + (tpsRange + tpsStep() - 1) / tpsStep()
+    }
+
+    companion object {
+        private const val NANOS_PER_SECOND = 1_000_000_000L
+
+        // How much of the load each tick replaces, higher reacts faster but is thrown off more by single slow ticks
+        private const val LOAD_SMOOTHING = 0.1
+    }
+}
@@ -0,0 +1,128 @@
+package org.valkyrienskies.core.pipelines
+
+import org.valkyrienskies.core.datastructures.LongRingBuffer
+import org.valkyrienskies.core.util.logger
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Paces the physics thread at a fixed timestep.
+ *
+ * Every tick has a deadline on the [System.nanoTime] clock, and each deadline is one period after the previous one
+ * rather than one period after the previous tick finished, so time spent running ticks doesn't make the rate drift.
+ * Most of the wait is spent parked, the last [spinThresholdNs] are spent spinning because parking can overshoot by
+ * up to a millisecond on some platforms.
+ *
+ * When ticks take longer than a period, the following ticks run back to back to catch up, but never more than
+ * [maxCatchUpTicks] of them. Ticks beyond that are skipped and counted in [skippedTicks].
+ *
+ * Not thread safe, except for reading the statistics.
+ *
+ * @param ticksPerSecond Read every tick, so the rate can be changed while running
+ * @param maxCatchUpTicks Read every tick, so the limit can be changed while running
+ */
+class PhysicsTickScheduler(
+    private val ticksPerSecond: () -> Int,
+    private val maxCatchUpTicks: () -> Int,
+    private val spinThresholdNs: Long = DEFAULT_SPIN_THRESHOLD_NS,
+    private val nanoTime: () -> Long = System::nanoTime
+) {
+    private var started = false
+
+    // The time the next tick should start at
+    private var nextDeadline = 0L
+
+    private var currentPeriodNs = 0L
+
+    private val tickStartTimes = LongRingBuffer(STATS_WINDOW)
+    private val tickDurations = LongRingBuffer(STATS_WINDOW)
+
+    @Volatile
+    var ticksPerSecondMeasured = 0.0
+        private set
+
+    @Volatile
+    var averageTickTimeNs = 0L
+        private set
+
+    @Volatile
+    var skippedTicks = 0L
+        private set
+
+    /**
+     * The length of a tick in seconds, as of the last call to [awaitNextTick]
+     */
+    val timeStep: Double get() = currentPeriodNs / 1e9
+
+    /**
+     * Waits until the next tick should start. Call [tickFinished] once the tick is done.
+     */
+    fun awaitNextTick() {
+        val tps = ticksPerSecond()
+        require(tps > 0) { "Physics ticks per second must be positive, but was $tps" }
+        val periodNs = NANOS_PER_SECOND / tps
+
+        val now = nanoTime()
+        if (!started || periodNs != currentPeriodNs) {
+            // First tick, or the rate changed; start counting from now with the new rate
+            started = true
+            currentPeriodNs = periodNs
+            nextDeadline = now
+        }
+
+        waitUntil(nextDeadline)
+        tickStartTimes.add(nanoTime())
+    }
+
+    /**
+     * Records how long the tick took and schedules the next one.
+     */
+    fun tickFinished() {
+        val now = nanoTime()
+        tickDurations.add(now - tickStartTimes.newest())
+
+        nextDeadline += currentPeriodNs
+
+        val behindNs = now - nextDeadline
+        val maxBehindNs = maxCatchUpTicks().coerceAtLeast(0) * currentPeriodNs
+        if (behindNs > maxBehindNs) {
+            // Too far behind to catch up, skip ticks until we're only maxCatchUpTicks behind
+            val ticksToSkip = (behindNs - maxBehindNs + currentPeriodNs - 1) / currentPeriodNs
+            nextDeadline += ticksToSkip * currentPeriodNs
+            skippedTicks += ticksToSkip
+            logger.debug("Physics is running behind, skipped $ticksToSkip ticks")
+        }
+
+        updateStats()
+    }
+
+    private fun waitUntil(deadline: Long) {
+        while (true) {
+            val remaining = deadline - nanoTime()
+            if (remaining <= 0) return
+            if (remaining > spinThresholdNs) {
+                LockSupport.parkNanos(remaining - spinThresholdNs)
+            } else {
+                Thread.yield()
+            }
+        }
+    }
+
+    private fun updateStats() {
+        if (tickStartTimes.size > 1) {
+            val elapsed = tickStartTimes.newest() - tickStartTimes.oldest()
+            if (elapsed > 0) ticksPerSecondMeasured = (tickStartTimes.size - 1) * 1e9 / elapsed
+        }
+        averageTickTimeNs = tickDurations.sum() / tickDurations.size
+    }
+
+    companion object {
+        private const val NANOS_PER_SECOND = 1_000_000_000L
+
+        // The number of ticks the statistics are averaged over
+        private const val STATS_WINDOW = 128
+
+        private const val DEFAULT_SPIN_THRESHOLD_NS = 500_000L
+
+        private val logger by logger()
+    }
+}
@@ -0,0 +1,14 @@
+package org.valkyrienskies.core.pipelines
+
+import org.valkyrienskies.core.game.ships.ShipId
+
+/**
+ * A ship falling asleep or waking up in the physics stage, during the tick that made [VSPhysicsFrame] number
+ * [physTickNumber].
+ *
+ * @param sleepingState For a ship falling asleep, a frame with only that ship, in the pose it sleeps in. Null for a
+ * ship waking up.
+ */
+class ShipSleepStateChange(val shipId: ShipId, val physTickNumber: Int, val sleepingState: VSPhysicsFrame?) {
+    val isSleeping: Boolean get() = sleepingState != null
+}
@@ -7,9 +7,9 @@ import org.valkyrienskies.core.api.ShipForcesInducer
 import org.valkyrienskies.core.game.ships.PhysInertia
 import org.valkyrienskies.core.game.ships.ShipId
 import org.valkyrienskies.core.game.ships.ShipPhysicsData
+import org.valkyrienskies.core.game.ships.ShipSimulationLod
 import org.valkyrienskies.physics_api.PoseVel
 import org.valkyrienskies.physics_api.SegmentTracker
-import org.valkyrienskies.physics_api.voxel_updates.IVoxelShapeUpdate
 
 /**
  * A [VSGameFrame] represents the change of state of the game that occurred over 1 tick
@@ -18,7 +18,8 @@ data class VSGameFrame(
     val newShips: List<NewShipInGameFrameData>, // Ships to be added to the Physics simulation
     val deletedShips: List<ShipId>, // Ships to be deleted from the Physics simulation
     val updatedShips: Map<ShipId, UpdateShipInGameFrameData>, // Map of ship updates
-    val voxelUpdatesMap: Map<ShipId, List<IVoxelShapeUpdate>> // Voxel updates applied by this frame
+    val voxelUpdatesMap: Map<ShipId, Map<Vector3ic, VoxelChunkUpdate>>, // Voxel updates applied by this frame
+    val createdAtNs: Long = System.nanoTime() // When this frame was created, a value of [System.nanoTime]
 )
 
 /**
@@ -46,5 +47,6 @@ data class UpdateShipInGameFrameData(
     val inertiaData: PhysInertia,
     val physicsData: ShipPhysicsData,
     val isStatic: Boolean,
-    val shipVoxelsFullyLoaded: Boolean
+    val shipVoxelsFullyLoaded: Boolean,
+    val simulationLod: ShipSimulationLod = ShipSimulationLod.FULL
 )
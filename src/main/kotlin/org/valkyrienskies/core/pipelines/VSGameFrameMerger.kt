@@ -0,0 +1,93 @@
+package org.valkyrienskies.core.pipelines
+
+import org.joml.Vector3ic
+import org.valkyrienskies.core.game.ships.ShipId
+
+/**
+ * Folds several [VSGameFrame]s into one frame that has the same effect on the physics stage as applying all of them in
+ * order. This lets the physics stage catch up after a lag spike with one apply instead of one apply per frame.
+ *
+ * - A ship that is both created and deleted by the merged frames is never sent to physics at all
+ * - Only the latest [UpdateShipInGameFrameData] of each ship is kept
+ * - Voxel updates to the same chunk are merged with [VoxelChunkUpdate.merge]
+ *
+ * Frames passed to [add] are consumed, their voxel updates may be modified.
+ */
+class VSGameFrameMerger {
+    private val newShips = LinkedHashMap<ShipId, NewShipInGameFrameData>()
+    private val deletedShips = LinkedHashSet<ShipId>()
+    private val updatedShips = HashMap<ShipId, UpdateShipInGameFrameData>()
+    private val voxelUpdatesMap = HashMap<ShipId, MutableMap<Vector3ic, VoxelChunkUpdate>>()
+
+    private var oldestCreatedAtNs = Long.MAX_VALUE
+
+    private var firstFrame: VSGameFrame? = null
+    private var frameCount = 0
+
+    fun add(gameFrame: VSGameFrame) {
+        frameCount++
+        if (frameCount == 1) {
+            // Don't copy anything if there is only one frame
+            firstFrame = gameFrame
+            return
+        }
+        if (frameCount == 2) {
+            fold(firstFrame!!)
+            firstFrame = null
+        }
+        fold(gameFrame)
+    }
+
+    /**
+     * @return the merged frame, or null if no frames were added
+     */
+    fun build(): VSGameFrame? {
+        if (frameCount <= 1) return firstFrame
+
+        return VSGameFrame(
+            ArrayList(newShips.values), ArrayList(deletedShips), HashMap(updatedShips), HashMap(voxelUpdatesMap),
+            oldestCreatedAtNs
+        )
+    }
+
+    // Follows the order [VSPhysicsPipelineStage] applies frames in: deletions, creations, updates, then voxels
+    private fun fold(gameFrame: VSGameFrame) {
+        // Keep the creation time of the oldest frame, so the age of the merged frame includes the time spent waiting
+        oldestCreatedAtNs = minOf(oldestCreatedAtNs, gameFrame.createdAtNs)
+
+        gameFrame.deletedShips.forEach { deletedShipId ->
+            // If the ship was created by an earlier frame then physics never has to know about it
+            if (newShips.remove(deletedShipId) == null) {
+                deletedShips.add(deletedShipId)
+            }
+            updatedShips.remove(deletedShipId)
+            voxelUpdatesMap.remove(deletedShipId)
+        }
+
+        gameFrame.newShips.forEach { newShip ->
+            newShips[newShip.uuid] = newShip
+        }
+
+        updatedShips.putAll(gameFrame.updatedShips)
+
+        gameFrame.voxelUpdatesMap.forEach { (shipId, chunkUpdates) ->
+            val mergedChunkUpdates = voxelUpdatesMap.getOrPut(shipId) { HashMap() }
+            chunkUpdates.forEach { (chunkPos, chunkUpdate) ->
+                val existing = mergedChunkUpdates[chunkPos]
+                if (existing == null) {
+                    mergedChunkUpdates[chunkPos] = chunkUpdate
+                } else {
+                    existing.merge(chunkUpdate)
+                }
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * Merge two frames
+         */
+        fun merge(older: VSGameFrame, newer: VSGameFrame): VSGameFrame =
+            VSGameFrameMerger().apply { add(older); add(newer) }.build()!!
+    }
+}
@@ -0,0 +1,69 @@
+package org.valkyrienskies.core.pipelines
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap
+import org.joml.Vector3ic
+import org.valkyrienskies.core.game.DimensionId
+import org.valkyrienskies.core.game.ships.ShipId
+import java.util.Collections
+
+/**
+ * Splits [VSGameFrame]s into one frame for each dimension they touch, since each dimension has its own physics world.
+ *
+ * Only [NewShipInGameFrameData] says which dimension a ship is in, so the splitter remembers the dimension of every
+ * ship it has seen created until it sees it deleted. Every game frame must be passed to [split], in order.
+ *
+ * @param dimensionOfKrunchId Turns [NewShipInGameFrameData.dimension] back into a [DimensionId]
+ */
+class VSGameFrameSplitter(private val dimensionOfKrunchId: (Int) -> DimensionId?) {
+    private val shipIdToDimension = Long2ObjectOpenHashMap<DimensionId>()
+    private val dimensionShipCounts = Object2IntOpenHashMap<DimensionId>()
+
+    /**
+     * A frame that only touches one dimension is returned as is. Frames that touch no dimension are dropped.
+     */
+    fun split(gameFrame: VSGameFrame): Map<DimensionId, VSGameFrame> {
+        gameFrame.newShips.forEach { newShip ->
+            val dimension = dimensionOfKrunchId(newShip.dimension)
+                ?: throw IllegalStateException("Unknown dimension ${newShip.dimension} of ship ${newShip.uuid}")
+            if (shipIdToDimension.put(newShip.uuid, dimension) == null) dimensionShipCounts.addTo(dimension, 1)
+        }
+
+        val parts = HashMap<DimensionId, GameFrameParts>()
+        fun partsOf(shipId: ShipId): GameFrameParts {
+            val dimension = shipIdToDimension.get(shipId)
+                ?: throw IllegalStateException("Ship with ShipId $shipId was never sent to physics!")
+            return parts.getOrPut(dimension) { GameFrameParts() }
+        }
+
+        gameFrame.newShips.forEach { partsOf(it.uuid).newShips.add(it) }
+        gameFrame.deletedShips.forEach { partsOf(it).deletedShips.add(it) }
+        gameFrame.updatedShips.forEach { (shipId, update) -> partsOf(shipId).updatedShips[shipId] = update }
+        gameFrame.voxelUpdatesMap.forEach { (shipId, updates) -> partsOf(shipId).voxelUpdatesMap[shipId] = updates }
+
+        gameFrame.deletedShips.forEach { shipId ->
+            val dimension = shipIdToDimension.remove(shipId) ?: return@forEach
+            if (dimensionShipCounts.addTo(dimension, -1) == 1) dimensionShipCounts.removeInt(dimension)
+        }
+
+        if (parts.size == 1) return Collections.singletonMap(parts.keys.first(), gameFrame)
+        return parts.mapValues { (_, part) ->
+            VSGameFrame(
+                part.newShips, part.deletedShips, part.updatedShips, part.voxelUpdatesMap, gameFrame.createdAtNs
+            )
+        }
+    }
+
+    /**
+     * True if ships created in [dimension] by the frames split so far haven't all been deleted again. Each dimension
+     * has a ground ship, so a dimension that unloaded has none left.
+     */
+    fun hasShips(dimension: DimensionId): Boolean = dimensionShipCounts.containsKey(dimension)
+
+    private class GameFrameParts {
+        val newShips = ArrayList<NewShipInGameFrameData>()
+        val deletedShips = ArrayList<ShipId>()
+        val updatedShips = HashMap<ShipId, UpdateShipInGameFrameData>()
+        val voxelUpdatesMap = HashMap<ShipId, Map<Vector3ic, VoxelChunkUpdate>>()
+    }
+}
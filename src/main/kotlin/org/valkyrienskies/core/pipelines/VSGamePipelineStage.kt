@@ -6,8 +6,12 @@ import org.joml.Quaterniond
 import org.joml.Vector3d
 import org.joml.Vector3dc
 import org.joml.Vector3i
+import org.joml.Vector3ic
+import org.joml.primitives.AABBd
 import org.joml.primitives.AABBi
 import org.valkyrienskies.core.api.Ticked
+import org.valkyrienskies.core.config.VSCoreConfig
+import org.valkyrienskies.core.datastructures.TripleBuffer
 import org.valkyrienskies.core.game.DimensionId
 import org.valkyrienskies.core.game.ships.PhysInertia
 import org.valkyrienskies.core.game.ships.ShipData
@@ -17,30 +21,84 @@ import org.valkyrienskies.core.game.ships.ShipObjectServer
 import org.valkyrienskies.core.game.ships.ShipObjectServerWorld
 import org.valkyrienskies.core.game.ships.ShipPhysicsData
 import org.valkyrienskies.core.game.ships.ShipTransform
+import org.valkyrienskies.core.hooks.VSEvents
+import org.valkyrienskies.core.hooks.VSEvents.ShipSleepEvent
+import org.valkyrienskies.core.hooks.VSEvents.ShipWakeEvent
+import org.valkyrienskies.core.networking.RegisteredHandler
+import org.valkyrienskies.core.util.events.EventConsumer
+import org.valkyrienskies.core.util.events.EventEmitterImpl
 import org.valkyrienskies.core.util.logger
 import org.valkyrienskies.physics_api.PhysicsWorldReference
 import org.valkyrienskies.physics_api.PoseVel
-import org.valkyrienskies.physics_api.voxel_updates.IVoxelShapeUpdate
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicLong
 
-class VSGamePipelineStage(val shipWorld: ShipObjectServerWorld) {
-    private val physicsFramesQueue: ConcurrentLinkedQueue<VSPhysicsFrame> = ConcurrentLinkedQueue()
+class VSGamePipelineStage(
+    val shipWorld: ShipObjectServerWorld,
+    private val metrics: VSPipelineMetrics = VSPipelineMetrics()
+) {
+    // Each dimension has its own physics world and thread, so physics frames arrive separately for each dimension
+    private val physicsFrameInboxes = ConcurrentHashMap<DimensionId, PhysicsFrameInbox>()
+    private val skippedPhysicsFrames = AtomicLong()
+    private val physicsFrameHistoryListeners = EventEmitterImpl<VSPhysicsFrame>()
+
+    // Reused for every ship of every physics frame
+    private val shipInPhysicsFrame = ShipInPhysicsFrameView()
     private val dimensionIntIdToString = Int2ObjectOpenHashMap<String>()
 
+    private val gameFrameSplitter = VSGameFrameSplitter { dimensionIntIdToString.get(it) }
+
     /**
-     * Push a physics frame to the game stage
+     * Push a physics frame of [dimension] to the game stage. Only the newest frame of each dimension pushed before the
+     * next [preTickGame] is applied.
+     *
+     * The game stage may read [physicsFrame] until it is returned by [getRecycledPhysicsFrame]. Each dimension must
+     * only be pushed from one thread.
      */
-    fun pushPhysicsFrame(physicsFrame: VSPhysicsFrame) {
-        if (physicsFramesQueue.size >= 100) {
-            // throw IllegalStateException("Too many physics frames in the physics frame queue. Is the game stage broken?")
-            logger.warn("Too many physics frames in the physics frame queue. Is the game stage broken?")
-            Thread.sleep(1000L)
-        }
-        physicsFramesQueue.add(physicsFrame)
+    fun pushPhysicsFrame(dimension: DimensionId, physicsFrame: VSPhysicsFrame) {
+        val inbox = getPhysicsFrameInbox(dimension)
+        // Unlike the frames themselves, none of these may be skipped
+        inbox.sleepStateChanges.addAll(physicsFrame.sleepStateChanges)
+        // History listeners may keep frames for several game ticks, so they get their own copy
+        if (physicsFrameHistoryListeners.hasListeners()) inbox.history.push(physicsFrame.copy())
+        if (inbox.latest.publish(physicsFrame)) skippedPhysicsFrames.incrementAndGet()
     }
 
     /**
-     * Apply queued physics frames to the game
+     * A frame of [dimension] pushed with [pushPhysicsFrame] that the game stage is done with, or null if there isn't
+     * one yet. Must only be called by the thread that pushes the physics frames of [dimension].
+     */
+    fun getRecycledPhysicsFrame(dimension: DimensionId): VSPhysicsFrame? =
+        getPhysicsFrameInbox(dimension).latest.writeSlot()
+
+    /**
+     * Listen to every physics frame, including the ones the game skips. Listeners are invoked on the game thread in
+     * [preTickGame], oldest frame first within each dimension, and only receive frames pushed while they are
+     * registered. Listeners receive copies of the frames, so they may keep them. If the game falls more than
+     * [VSCoreConfig.Server.physicsFrameHistoryCapacity] frames behind a dimension, its oldest frames are dropped.
+     */
+    fun onPhysicsFrame(cb: EventConsumer<VSPhysicsFrame>): RegisteredHandler = physicsFrameHistoryListeners.on(cb)
+
+    /**
+     * The number of physics frames that were replaced by a newer frame before the game applied them
+     */
+    fun getSkippedPhysicsFrameCount(): Long = skippedPhysicsFrames.get()
+
+    fun getPhysicsFrameHistoryCounters(): FrameQueueCounters =
+        physicsFrameInboxes.values.fold(FrameQueueCounters.ZERO) { sum, inbox -> sum + inbox.history.counters() }
+
+    /**
+     * The number of physics frames waiting for history listeners, may be stale by the time it returns
+     */
+    fun getPhysicsFrameHistoryDepth(): Int = physicsFrameInboxes.values.sumOf { it.history.size }
+
+    private fun getPhysicsFrameInbox(dimension: DimensionId): PhysicsFrameInbox =
+        // Only fall back to computeIfAbsent when missing, as it locks even when the key is present on Java 8
+        physicsFrameInboxes[dimension] ?: physicsFrameInboxes.computeIfAbsent(dimension) { PhysicsFrameInbox() }
+
+    /**
+     * Apply the latest physics frame to the game
      */
     fun preTickGame() {
         // Set the values of prevTickShipTransform
@@ -48,10 +106,22 @@ class VSGamePipelineStage(val shipWorld: ShipObjectServerWorld) {
             shipObject.shipData.updatePrevTickShipTransform()
         }
 
-        // Apply the physics frames
-        while (physicsFramesQueue.isNotEmpty()) {
-            val physicsFrame = physicsFramesQueue.remove()
-            applyPhysicsFrame(physicsFrame)
+        physicsFrameInboxes.values.forEach { inbox ->
+            // Emptied even without listeners, so frames from a listener that unregistered don't pile up
+            inbox.history.drain(physicsFrameHistoryListeners::emit)
+
+            // Apply the newest physics frame, older ones are superseded by it
+            val physicsFrame = inbox.latest.poll()
+            if (physicsFrame != null) {
+                metrics.physicsFrameAgeOnGame.recordSince(physicsFrame.createdAtNs)
+                applyPhysicsFrame(physicsFrame)
+            }
+
+            // Ships that fell asleep are left out of newer frames, so their sleeping pose is applied from here
+            while (true) {
+                val change = inbox.sleepStateChanges.poll() ?: break
+                applySleepStateChange(change, physicsFrame)
+            }
         }
 
         // Tick every attachment that wants to get ticked
@@ -65,33 +135,73 @@ class VSGamePipelineStage(val shipWorld: ShipObjectServerWorld) {
      */
     fun postTickGame(): VSGameFrame {
         // Finally, return the game frame
-        return createGameFrame()
+        val frameStart = System.nanoTime()
+        val gameFrame = createGameFrame()
+        metrics.gameFrameCreation.recordSince(frameStart)
+        return gameFrame
     }
 
+    /**
+     * Split [gameFrame] into one frame for each dimension it touches, see [VSGameFrameSplitter]. Must be called on
+     * every frame returned by [postTickGame], in order.
+     */
+    fun splitGameFrameByDimension(gameFrame: VSGameFrame): Map<DimensionId, VSGameFrame> =
+        gameFrameSplitter.split(gameFrame)
+
+    /**
+     * True if [dimension] still has ships as of the last frame split by [splitGameFrameByDimension]
+     */
+    fun dimensionHasShips(dimension: DimensionId): Boolean = gameFrameSplitter.hasShips(dimension)
+
     private fun applyPhysicsFrame(physicsFrame: VSPhysicsFrame) {
-        physicsFrame.shipDataMap.forEach { (shipId, shipInPhysicsFrameData) ->
-            // Only apply physics updates to ShipObjects. Do not apply them to ShipData without a ShipObject
-            val shipObject: ShipObjectServer? = shipWorld.shipObjects[shipId]
-            val shipData: ShipData? = shipObject?.shipData
-            if (shipData != null) {
-                // TODO: Don't apply the transform if we are forcing the ship to move somewhere else
-                val applyTransform = true // For now just set [applyTransform] to always be true
-                if (applyTransform) {
-                    val newShipTransform = generateTransformFromPhysicsFrameData(shipInPhysicsFrameData, shipData)
-
-                    shipData.physicsData.linearVelocity = shipInPhysicsFrameData.poseVel.vel
-                    shipData.physicsData.angularVelocity = shipInPhysicsFrameData.poseVel.omega
-                    shipData.shipTransform = newShipTransform
-                    shipObject.debugShipPhysicsAABB = shipInPhysicsFrameData.aabb
-                }
-            } else {
-                // Check ground rigid body objects
-                if (!shipWorld.dimensionToGroundBodyIdImmutable.containsValue(shipId))
-                    logger.warn(
-                        "Received physics frame update for ship with ShipId: $shipId, " +
-                            "but a ship with this ShipId does not exist!"
-                    )
+        for (slot in 0 until physicsFrame.shipCount) {
+            applyShipInPhysicsFrame(physicsFrame, slot)
+        }
+    }
+
+    /**
+     * @param appliedFrame The physics frame that was just applied for the dimension of the ship, if there was one
+     */
+    private fun applySleepStateChange(change: ShipSleepStateChange, appliedFrame: VSPhysicsFrame?) {
+        // The ship may have been unloaded since
+        val shipObject = shipWorld.shipObjects[change.shipId] ?: return
+        val sleepingState = change.sleepingState
+        if (sleepingState == null) {
+            VSEvents.shipWakeEvent.emit(ShipWakeEvent(shipObject))
+            return
+        }
+
+        // If the applied frame is newer and has the ship, then the ship woke up again and the frame is more recent
+        val wokeUpSince = appliedFrame != null && appliedFrame.physTickNumber > change.physTickNumber &&
+            appliedFrame.getSlot(change.shipId) != -1
+        if (!wokeUpSince) applyShipInPhysicsFrame(sleepingState, 0)
+        VSEvents.shipSleepEvent.emit(ShipSleepEvent(shipObject))
+    }
+
+    private fun applyShipInPhysicsFrame(physicsFrame: VSPhysicsFrame, slot: Int) {
+        shipInPhysicsFrame.moveToSlot(physicsFrame, slot)
+        val shipId = shipInPhysicsFrame.shipId
+        // Only apply physics updates to ShipObjects. Do not apply them to ShipData without a ShipObject
+        val shipObject: ShipObjectServer? = shipWorld.shipObjects[shipId]
+        val shipData: ShipData? = shipObject?.shipData
+        if (shipData != null) {
+            // TODO: Don't apply the transform if we are forcing the ship to move somewhere else
+            val applyTransform = true // For now just set [applyTransform] to always be true
+            if (applyTransform) {
+                val newShipTransform = generateTransformFromPhysicsFrameData(shipInPhysicsFrame, shipData)
+
+                shipData.physicsData.linearVelocity = shipInPhysicsFrame.getVel(Vector3d())
+                shipData.physicsData.angularVelocity = shipInPhysicsFrame.getOmega(Vector3d())
+                shipData.shipTransform = newShipTransform
+                shipObject.debugShipPhysicsAABB = shipInPhysicsFrame.getAABB(AABBd())
             }
+        } else {
+            // Check ground rigid body objects
+            if (!shipWorld.dimensionToGroundBodyIdImmutable.containsValue(shipId))
+                logger.warn(
+                    "Received physics frame update for ship with ShipId: $shipId, " +
+                        "but a ship with this ShipId does not exist!"
+                )
         }
     }
 
@@ -99,7 +209,8 @@ class VSGamePipelineStage(val shipWorld: ShipObjectServerWorld) {
         val newShips = ArrayList<NewShipInGameFrameData>() // Ships to be added to the Physics simulation
         val deletedShips = ArrayList<ShipId>() // Ships to be deleted from the Physics simulation
         val updatedShips = HashMap<ShipId, UpdateShipInGameFrameData>() // Map of ship updates
-        val gameFrameVoxelUpdatesMap = HashMap<ShipId, List<IVoxelShapeUpdate>>() // Voxel updates applied by this frame
+        // Voxel updates applied by this frame
+        val gameFrameVoxelUpdatesMap = HashMap<ShipId, Map<Vector3ic, VoxelChunkUpdate>>()
 
         val newGroundRigidBodyObjects = shipWorld.getNewGroundRigidBodyObjects()
         val newShipObjects = shipWorld.getNewShipObjects()
@@ -199,16 +310,16 @@ class VSGamePipelineStage(val shipWorld: ShipObjectServerWorld) {
                 it.shipData.inertiaData.copyToPhyInertia(),
                 it.shipData.physicsData,
                 isStatic,
-                isVoxelsFullyLoaded
+                isVoxelsFullyLoaded,
+                it.shipData.simulationLod
             )
             updatedShips[uuid] = updateShipInGameFrameData
         }
 
         deletedShips.addAll(deletedShipObjects)
 
-        shipVoxelUpdates.forEach forEachVoxelUpdate@{ (shipId, voxelUpdatesMap) ->
-            gameFrameVoxelUpdatesMap[shipId] = voxelUpdatesMap.values.toList()
-        }
+        // The per-ship maps are handed over to the frame, [shipWorld] starts new ones after they're cleared
+        gameFrameVoxelUpdatesMap.putAll(shipVoxelUpdates)
 
         shipWorld.clearNewUpdatedDeletedShipObjectsAndVoxelUpdates()
         return VSGameFrame(newShips, deletedShips, updatedShips, gameFrameVoxelUpdatesMap)
@@ -220,27 +331,33 @@ class VSGamePipelineStage(val shipWorld: ShipObjectServerWorld) {
             return Vector3d(-cm.x(), -cm.y(), -cm.z())
         }
 
+        /**
+         * The transform of [shipData] in a physics frame. This is the transform the physics stage already computed,
+         * unless the game changed the center of mass of the ship since the physics frame was made.
+         */
         fun generateTransformFromPhysicsFrameData(
-            physicsFrameData: ShipInPhysicsFrameData, shipData: ShipData
+            physicsFrameData: ShipInPhysicsFrameView, shipData: ShipData
         ): ShipTransform {
-            val poseVelFromPhysics = physicsFrameData.poseVel
-            val voxelOffsetFromPhysics = physicsFrameData.shipVoxelOffset
+            val voxelOffsetFromPhysics = physicsFrameData.getVoxelOffset(Vector3d())
             val voxelOffsetFromGame = getShipVoxelOffset(shipData.inertiaData)
+            if (voxelOffsetFromPhysics == voxelOffsetFromGame) return physicsFrameData.getTransform()
+
+            val posFromPhysics = physicsFrameData.getPos(Vector3d())
+            val rotFromPhysics = physicsFrameData.getRot(Quaterniond())
 
-            val deltaVoxelOffset = poseVelFromPhysics.rot.transform(
+            val deltaVoxelOffset = rotFromPhysics.transform(
                 voxelOffsetFromGame.sub(voxelOffsetFromPhysics, Vector3d())
             )
 
-            val shipPosAccountingForVoxelOffsetDifference =
-                poseVelFromPhysics.pos.sub(deltaVoxelOffset, Vector3d())
+            val shipPosAccountingForVoxelOffsetDifference = posFromPhysics.sub(deltaVoxelOffset)
 
-            val scaling = physicsFrameData.segments.segments.values.first().segmentDisplacement.scaling
-            val shipPosAccountingForSegment = shipPosAccountingForVoxelOffsetDifference.mul(scaling, Vector3d())
+            val scaling = physicsFrameData.scaling
+            val shipPosAccountingForSegment = shipPosAccountingForVoxelOffsetDifference.mul(scaling)
 
             return ShipTransform.createFromCoordinatesAndRotationAndScaling(
                 shipPosAccountingForSegment,
                 shipData.inertiaData.getCenterOfMassInShipSpace().add(.5, .5, .5, Vector3d()),
-                poseVelFromPhysics.rot,
+                rotFromPhysics,
                 Vector3d(scaling)
             )
         }
@@ -254,4 +371,23 @@ class VSGamePipelineStage(val shipWorld: ShipObjectServerWorld) {
         dimensionIntIdToString.put(id, dimensionId)
         return id
     }
+
+    /**
+     * The physics frames of one dimension
+     */
+    private class PhysicsFrameInbox {
+        // Physics frames hold the state of every awake ship, so the game only needs the newest one
+        val latest = TripleBuffer<VSPhysicsFrame>()
+
+        // Every ship that fell asleep or woke up, sleeping ships aren't in [latest]
+        val sleepStateChanges = ConcurrentLinkedQueue<ShipSleepStateChange>()
+
+        // Every physics frame, only filled while there are history listeners
+        val history = FrameQueue<VSPhysicsFrame>(
+            "physics frame history",
+            VSCoreConfig.SERVER.physicsFrameHistoryCapacity,
+            FrameQueuePolicy.DROP_OLDEST,
+            VSCoreConfig.SERVER.frameQueueBlockTimeoutMs
+        )
+    }
 }
@@ -2,68 +2,517 @@ package org.valkyrienskies.core.pipelines
 
 import io.netty.buffer.ByteBuf
 import io.netty.buffer.Unpooled
+import it.unimi.dsi.fastutil.longs.Long2IntMap
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet
+import org.joml.Vector3i
+import org.joml.Vector3ic
+import org.valkyrienskies.core.config.VSCoreConfig
+import org.valkyrienskies.core.datastructures.TripleBuffer
+import org.valkyrienskies.core.game.DimensionId
+import org.valkyrienskies.core.game.IPlayer
 import org.valkyrienskies.core.game.ships.ShipData
+import org.valkyrienskies.core.game.ships.ShipId
 import org.valkyrienskies.core.game.ships.ShipObjectServerWorld
+import org.valkyrienskies.core.game.ships.ShipTransform
+import org.valkyrienskies.core.game.ships.networking.ShipTransformBaselines
+import org.valkyrienskies.core.game.ships.networking.ShipTransformIndices
+import org.valkyrienskies.core.game.ships.networking.ShipTransformSnapshot
 import org.valkyrienskies.core.networking.Packets
-import org.valkyrienskies.core.networking.VSNetworking
+import org.valkyrienskies.core.networking.delta.DeltaEncodedChannelServer
 import org.valkyrienskies.core.util.logger
-import org.valkyrienskies.core.util.writeNormQuatdAs3F
+import org.valkyrienskies.core.util.packSmallestThreeQuatd
+import org.valkyrienskies.core.util.smallestThreeComponent
+import org.valkyrienskies.core.util.smallestThreeLargestIndex
+import org.valkyrienskies.core.util.writeSmallestThreeQuatd
 import org.valkyrienskies.core.util.writeVec3AsFloat
+import org.valkyrienskies.core.util.writeVarInt
 import org.valkyrienskies.core.util.writeVec3d
+import org.valkyrienskies.core.util.writeZigZagVarInt
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+import java.util.concurrent.locks.LockSupport
+import kotlin.concurrent.thread
+import kotlin.math.floor
+import kotlin.math.min
 
-class VSNetworkPipelineStage(private val shipWorld: ShipObjectServerWorld) {
+class VSNetworkPipelineStage(
+    private val shipWorld: ShipObjectServerWorld,
+    private val metrics: VSPipelineMetrics = VSPipelineMetrics()
+) {
 
-    var noSkip = true
+    // The latest frame of each dimension that wasn't sent yet. Written by that dimension's physics thread, read by
+    // [networkThread]
+    private val mailboxes = ConcurrentHashMap<DimensionId, TripleBuffer<VSPhysicsFrame>>()
+
+    // The sleeping ships of each dimension and when they fell asleep. Sleeping ships are left out of physics frames,
+    // so their sleeping pose is added to the frames sent until each player acknowledged it. Written by that
+    // dimension's physics thread, read by the encoding threads
+    private val sleepingShips = ConcurrentHashMap<DimensionId, ConcurrentHashMap<ShipId, ShipSleepStateChange>>()
+
+    @Volatile
+    private var shutdown = false
+
+    // Started by the first [pushPhysicsFrame], so stages that only use [sendPhysicsFrame] don't get a thread
+    private val networkThreadLazy = lazy {
+        thread(start = true, isDaemon = true, name = "VS network thread") { runNetworkThread() }
+    }
+    private val networkThread: Thread by networkThreadLazy
+
+    // Encodes the transforms of different players at once, null when networkEncodeThreads is 1
+    private val encodePoolLazy = lazy {
+        val threads = VSCoreConfig.SERVER.networkEncodeThreads
+            .takeIf { it > 0 } ?: (Runtime.getRuntime().availableProcessors() / 2).coerceAtLeast(1)
+        if (threads == 1) return@lazy null
+        ForkJoinPool(threads, { pool ->
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool).apply {
+                name = "VS network encode thread $poolIndex"
+                isDaemon = true
+            }
+        }, null, false)
+    }
+    private val encodePool: ForkJoinPool? by encodePoolLazy
+
+    /**
+     * Push a physics frame of [dimension] to the network stage, to be sent on the network thread so that slow
+     * networking doesn't hold up physics. If the network thread falls behind, only the newest frame of each dimension
+     * is sent.
+     *
+     * Only every other physics tick of each dimension is sent, since the client only uses transforms once per game
+     * tick. The frame is copied, so the caller may reuse it right away. Each dimension must only be pushed from one
+     * thread.
+     */
+    fun pushPhysicsFrame(dimension: DimensionId, physicsFrame: VSPhysicsFrame) {
+        // Before the skip, so ships falling asleep on a skipped tick still get their sleeping pose sent
+        val sleeping = trackSleepingShips(dimension, physicsFrame)
+        // Physics tick numbers are counted per dimension, so this skips every other tick of each dimension
+        if (physicsFrame.physTickNumber % 2 == 0 || shutdown) return
+
+        val mailbox = mailboxes[dimension] ?: mailboxes.computeIfAbsent(dimension) { TripleBuffer() }
+        val frame = physicsFrame.copy(mailbox.writeSlot())
+        addSleepingShips(frame, sleeping)
+        if (mailbox.publish(frame)) metrics.networkSkippedFrames.incrementAndGet()
+        LockSupport.unpark(networkThread)
+    }
+
+    /**
+     * Send [physicsFrame] of [dimension] right away on the calling thread, skipping every other tick like
+     * [pushPhysicsFrame]
+     */
+    fun sendPhysicsFrame(dimension: DimensionId, physicsFrame: VSPhysicsFrame) {
+        val sleeping = trackSleepingShips(dimension, physicsFrame)
+        if (physicsFrame.physTickNumber % 2 == 0) return
+        sendFrame(if (sleeping.isEmpty()) physicsFrame else physicsFrame.copy().also { addSleepingShips(it, sleeping) })
+    }
+
+    /**
+     * Update the sleeping ships of [dimension] with the sleep state changes of [physicsFrame]
+     *
+     * @return the sleeping ships of [dimension]
+     */
+    private fun trackSleepingShips(
+        dimension: DimensionId, physicsFrame: VSPhysicsFrame
+    ): MutableMap<ShipId, ShipSleepStateChange> {
+        val sleeping = sleepingShips[dimension] ?: sleepingShips.computeIfAbsent(dimension) { ConcurrentHashMap() }
+        physicsFrame.sleepStateChanges.forEach { change ->
+            if (change.isSleeping) sleeping[change.shipId] = change else sleeping.remove(change.shipId)
+        }
+        return sleeping
+    }
+
+    /**
+     * Add the sleeping pose of every ship in [sleeping] to [frame], unless the frame already has the ship
+     */
+    private fun addSleepingShips(frame: VSPhysicsFrame, sleeping: Map<ShipId, ShipSleepStateChange>) {
+        sleeping.values.forEach { change ->
+            if (frame.getSlot(change.shipId) == -1) frame.addShipFrom(change.sleepingState!!, 0)
+        }
+    }
+
+    /**
+     * @return the physics tick [shipId] fell asleep on if it's asleep in [physicsFrame], otherwise null
+     */
+    private fun getSleepTick(shipId: ShipId, physicsFrame: VSPhysicsFrame): Int? {
+        val change = sleepingShips.values.firstNotNullOfOrNull { it[shipId] } ?: return null
+        // Frames from before the ship fell asleep have the ship moving
+        return change.physTickNumber.takeIf { it <= physicsFrame.physTickNumber }
+    }
+
+    /**
+     * Stop the network thread, frames pushed after this are dropped
+     */
+    fun shutdown() {
+        shutdown = true
+        if (networkThreadLazy.isInitialized()) LockSupport.unpark(networkThread)
+        if (encodePoolLazy.isInitialized()) encodePool?.shutdown()
+    }
+
+    private fun runNetworkThread() {
+        while (!shutdown) {
+            var sentAny = false
+            mailboxes.values.forEach { mailbox ->
+                val frame = mailbox.poll() ?: return@forEach
+                sentAny = true
+                try {
+                    sendFrame(frame)
+                } catch (e: Exception) {
+                    logger.error("Error while sending physics frame ${frame.physTickNumber}", e)
+                }
+            }
+            // Woken up by [pushPhysicsFrame], the timeout is only a safety net against missed wake ups
+            if (!sentAny) LockSupport.parkNanos(this, IDLE_PARK_NS)
+        }
+    }
+
+    private fun sendFrame(physicsFrame: VSPhysicsFrame) {
+        val encodeStart = System.nanoTime()
+        metrics.physicsFrameAgeOnNetwork.record(encodeStart - physicsFrame.createdAtNs)
+
+        val networkManager = shipWorld.networkManager
+        val players = networkManager.playersToTrackedShips.entries.toList()
+        val datagrams = arrayOfNulls<List<ByteBuf>>(players.size)
+        val pool = encodePool
+        if (pool != null && players.size > 1) {
+            pool.invoke(EncodeTask(physicsFrame, players, datagrams, 0, players.size))
+        } else {
+            players.forEachIndexed { i, (player, ships) ->
+                datagrams[i] = encodeTransforms(physicsFrame, player, ships)
+            }
+        }
+        val datagramCount = datagrams.sumOf { it?.size ?: 0 }
+        metrics.networkSendQueueDepth.addAndGet(datagramCount)
+
+        val sendStart = System.nanoTime()
+        metrics.networkEncode.record(sendStart - encodeStart)
+        // The UDP transport holds the packets back until the flush, so each player's are sent together
+        val channel = Packets.UDP_SHIP_TRANSFORM.channel
+        channel.beginBatchToClients()
+        try {
+            players.forEachIndexed { i, (player, _) ->
+                datagrams[i]?.forEach { buf -> Packets.UDP_SHIP_TRANSFORM.sendToClient(buf, player) }
+            }
+        } finally {
+            channel.flushToClients()
+        }
+        metrics.networkSendQueueDepth.addAndGet(-datagramCount)
+        metrics.networkSend.recordSince(sendStart)
+
+        // Players that start tracking a sleeping ship get its pose with the ship's data, so only the sleeping ships
+        // someone tracks are kept. This also forgets ships deleted while they were asleep
+        if (sleepingShips.values.any { it.isNotEmpty() }) {
+            val trackedShipIds = LongOpenHashSet()
+            players.forEach { (_, ships) -> ships.forEach { trackedShipIds.add(it.id) } }
+            sleepingShips.values.forEach { sleeping -> sleeping.keys.removeIf { !trackedShipIds.contains(it) } }
+        }
+    }
 
     /**
-     * Push a physics frame to the game stage
+     * Write the transforms of [physicsFrame] to send to [player], see [writePacket]
      *
-     * were only sending this every other tick, cus client only uses it every mc tick
+     * @return the datagrams to send, or null if there is nothing to send
      */
-    fun pushPhysicsFrame(physicsFrame: VSPhysicsFrame) {
-        noSkip = !noSkip
-        if (noSkip) return
+    private fun encodeTransforms(
+        physicsFrame: VSPhysicsFrame, player: IPlayer, allTrackedShips: Set<ShipData>
+    ): List<ByteBuf>? {
+        val networkManager = shipWorld.networkManager
+        val transformIndices = networkManager.playersToShipTransformIndices[player] ?: return null
+        val playerPosition = networkManager.playersToPositions[player] ?: return null
+        val bytesPerPlayer = VSCoreConfig.SERVER.transformBytesPerPlayer.let { if (it <= 0) Int.MAX_VALUE else it }
 
-        shipWorld.networkManager.playersToTrackedShips.forEach { (player, trackedShips) ->
-            val buf = Unpooled.buffer()
+        // Transforms take a varying number of bytes, so fill each packet until the next transform doesn't fit.
+        // If not using udp we just send 1 big packet with all transforms
+        val maxPacketSize = Packets.UDP_SHIP_TRANSFORM.channel.maxPacketSize(player) ?: Int.MAX_VALUE
+        val datagrams = ArrayList<ByteBuf>()
+        val channel = networkManager.getTransformChannel(player)
+        // Acks are received on the UDP thread
+        synchronized(channel) {
+            val baselines = networkManager.getTransformBaselines(player)
+            baselines.pruneSleepPoses { shipId -> sleepingShips.values.any { it.containsKey(shipId) } }
+            // Sleeping ships are only sent until the player has their sleeping pose
+            val trackedShips = allTrackedShips.filterTo(ArrayList()) {
+                val index = transformIndices.get(it.id)
+                val sleepTick = getSleepTick(it.id, physicsFrame)
+                physicsFrame.getSlot(it.id) != -1 && index != ShipTransformIndices.NO_INDEX &&
+                    (sleepTick == null || !baselines.isSleepPoseAcked(it.id, index, sleepTick))
+            }
+            if (trackedShips.isEmpty()) return null
 
-            fun send(shipDatas: List<ShipData>) {
-                // Write ship transforms into a ByteBuf
-                buf.clear()
-                writePacket(buf, shipDatas, physicsFrame)
+            val priorities = networkManager.getTransformPriorities(player)
+            priorities.prune(allTrackedShips)
+            priorities.prioritize(trackedShips, physicsFrame, playerPosition)
 
-                // Send it to the player
-                Packets.UDP_SHIP_TRANSFORM.sendToClient(buf, player)
+            // Send the highest priority ships until the player's budget runs out
+            val snapshotId = channel.nextSnapshot()
+            // Tells the transport which datagram sizes still reach the player
+            channel.judgeDeliveries(snapshotId - DELIVERY_JUDGE_DELAY) { size, delivered ->
+                Packets.UDP_SHIP_TRANSFORM.channel.reportDelivery(player, size, delivered)
+            }
+            var bytesLeft = bytesPerPlayer
+            var part = 0
+            var nextShip = 0
+            while (nextShip < trackedShips.size && bytesLeft > 0) {
+                val buf = Unpooled.buffer()
+                val firstShip = nextShip
+                nextShip = writePacket(
+                    buf, trackedShips, physicsFrame, transformIndices, nextShip, min(maxPacketSize, bytesLeft),
+                    channel, snapshotId, part, baselines
+                )
+                channel.onPartSent(snapshotId, part++, buf.readableBytes())
+                bytesLeft -= buf.readableBytes()
+                for (i in firstShip until nextShip) {
+                    val shipId = trackedShips[i].id
+                    priorities.onSent(shipId)
+                    getSleepTick(shipId, physicsFrame)?.let { baselines.onSleepPoseSent(shipId, it, snapshotId) }
+                }
+                datagrams.add(buf)
             }
+        }
+        return datagrams
+    }
 
-            // Each transform is 80 bytes big so 6 transforms per packet
-            // If not using udp we just send 1 big packet with all transforms
-            if (VSNetworking.serverUsesUDP)
-                trackedShips.chunked(504 / TRANSFORM_SIZE).forEach(::send)
-            else
-                send(trackedShips.asList())
+    /**
+     * Encodes the transforms for [players] from [from] until [to] into [datagrams], splitting the players between
+     * the threads of [encodePool]
+     */
+    private inner class EncodeTask(
+        private val physicsFrame: VSPhysicsFrame,
+        private val players: List<Map.Entry<IPlayer, Set<ShipData>>>,
+        private val datagrams: Array<List<ByteBuf>?>,
+        private val from: Int,
+        private val to: Int
+    ) : RecursiveAction() {
+        override fun compute() {
+            if (to - from <= 1) {
+                for (i in from until to) {
+                    datagrams[i] = encodeTransforms(physicsFrame, players[i].key, players[i].value)
+                }
+            } else {
+                val mid = (from + to) ushr 1
+                invokeAll(
+                    EncodeTask(physicsFrame, players, datagrams, from, mid),
+                    EncodeTask(physicsFrame, players, datagrams, mid, to)
+                )
+            }
         }
     }
 
     companion object {
-        fun writePacket(buf: ByteBuf, shipDatas: List<ShipData>, frame: VSPhysicsFrame) {
-            val ships = frame.shipDataMap
-            buf.writeInt(frame.physTickNumber)
-            shipDatas.forEach { shipData ->
-                val physicsFrameData = ships.getValue(shipData.id)
-                val transform =
-                    VSGamePipelineStage.generateTransformFromPhysicsFrameData(physicsFrameData, shipData)
-
-                buf.writeLong(shipData.id) // 8
-                buf.writeVec3d(transform.shipPositionInShipCoordinates) // 8 * 3 = 24
-                buf.writeVec3AsFloat(transform.shipCoordinatesToWorldCoordinatesScaling) // 4 * 3 = 12
-                buf.writeNormQuatdAs3F(transform.shipCoordinatesToWorldCoordinatesRotation) // 4 * 3 = 12
-                buf.writeVec3d(transform.shipPositionInWorldCoordinates) // 8 * 3 = 24
-                // 8 + 24 + 12 + 12 + 24 = 80
+        // Each encoding thread has its own
+        private val shipInPhysicsFrame = ThreadLocal.withInitial { ShipInPhysicsFrameView() }
+
+        /**
+         * Write the transforms of [shipDatas], starting at [start], until the next one would make [buf] longer than
+         * [maxSize] bytes. At least one transform is always written.
+         *
+         * A packet starts with:
+         * - The physics tick
+         * - The id of the snapshot in [channel] the packet is [part] of
+         * - The precision of the transforms
+         * - An origin: the block the first ship is in
+         *
+         * Then each transform is:
+         * - The ship's index in [transformIndices] as a short, instead of its 8 byte id
+         * - A byte of flags
+         * - If [FLAG_DELTA] is set, how many snapshots before this one the transform's baseline is, then the
+         *   differences between the center of mass, position and rotation components and those in the baseline, as
+         *   zigzag varints. The baseline is the newest snapshot the client acknowledged the ship's transform in, see
+         *   [baselines], or the newest snapshot the client acknowledged anything in if that's null. A transform is
+         *   only delta encoded if the baseline has the same precision, and if the rotation's largest component didn't
+         *   change.
+         * - Otherwise the center of mass relative to the center of the ship's chunk claim, and the position relative
+         *   to the origin, rounded to [VSCoreConfig.Server.transformPositionPrecisionBits] fraction bits and written
+         *   as zigzag varints, then the rotation in smallest three form (see [writeSmallestThreeQuatd]). If the
+         *   center of mass or the position is too far away to fit, both are written as doubles and
+         *   [FLAG_UNQUANTIZED] is set.
+         * - The scaling as 3 floats, only if it isn't 1 and [FLAG_SCALED] is set
+         *
+         * A typical transform takes 20 to 25 bytes, and around 10 when delta encoded, where it took 80 bytes as doubles
+         * and floats.
+         *
+         * @param channel The snapshots sent to this player, or null to send every transform whole
+         * @param baselines The snapshots each transform was last acknowledged in by this player
+         * @return the index in [shipDatas] of the first ship that wasn't written
+         */
+        fun writePacket(
+            buf: ByteBuf,
+            shipDatas: List<ShipData>,
+            frame: VSPhysicsFrame,
+            transformIndices: Long2IntMap,
+            start: Int = 0,
+            maxSize: Int = Int.MAX_VALUE,
+            channel: DeltaEncodedChannelServer<ShipTransformSnapshot>? = null,
+            snapshotId: Int = 0,
+            part: Int = 0,
+            baselines: ShipTransformBaselines? = null
+        ): Int {
+            val snapshot = channel?.getSnapshot(snapshotId)
+            if (snapshot != null && part == 0) {
+                snapshot.clear(
+                    VSCoreConfig.SERVER.transformPositionPrecisionBits.coerceIn(0, MAX_POSITION_BITS),
+                    VSCoreConfig.SERVER.transformRotationBits.coerceIn(MIN_ROTATION_BITS, MAX_ROTATION_BITS)
+                )
             }
+            // Every part of a snapshot has the same precision, even if the config changes in between
+            val positionBits = snapshot?.positionBits
+                ?: VSCoreConfig.SERVER.transformPositionPrecisionBits.coerceIn(0, MAX_POSITION_BITS)
+            val rotationBits = snapshot?.rotationBits
+                ?: VSCoreConfig.SERVER.transformRotationBits.coerceIn(MIN_ROTATION_BITS, MAX_ROTATION_BITS)
+
+            val newestBaselineId = channel?.getBaselineId()
+
+            val packetStart = buf.writerIndex()
+            val origin = Vector3i()
+            val claimCenter = Vector3i()
+            val current = LongArray(ShipTransformSnapshot.VALUES)
+            val previous = LongArray(ShipTransformSnapshot.VALUES)
+
+            var next = start
+            while (next < shipDatas.size) {
+                val shipData = shipDatas[next]
+                val transform = getTransform(frame, shipData)
+                val position = transform.shipPositionInWorldCoordinates
+                val centerOfMass = transform.shipPositionInShipCoordinates
+
+                if (next == start) {
+                    origin.set(floor(position.x()).toInt(), floor(position.y()).toInt(), floor(position.z()).toInt())
+                    buf.writeInt(frame.physTickNumber)
+                    buf.writeInt(snapshotId)
+                    buf.writeVarInt(part)
+                    buf.writeByte(positionBits)
+                    buf.writeByte(rotationBits)
+                    buf.writeZigZagVarInt(origin.x)
+                    buf.writeZigZagVarInt(origin.y)
+                    buf.writeZigZagVarInt(origin.z)
+                }
+                val shipStart = buf.writerIndex()
+                val index = transformIndices.get(shipData.id)
+
+                shipData.chunkClaim.getCenterBlockCoordinates(claimCenter)
+                current[COM_X] = quantize(centerOfMass.x() - claimCenter.x, positionBits)
+                current[COM_Y] = quantize(centerOfMass.y() - claimCenter.y, positionBits)
+                current[COM_Z] = quantize(centerOfMass.z() - claimCenter.z, positionBits)
+                current[POS_X] = quantize(position.x(), positionBits)
+                current[POS_Y] = quantize(position.y(), positionBits)
+                current[POS_Z] = quantize(position.z(), positionBits)
+                current[ROT] = packSmallestThreeQuatd(transform.shipCoordinatesToWorldCoordinatesRotation, rotationBits)
+
+                val unquantized = !canQuantize(current, origin, positionBits)
+                val baselineId = if (channel != null && !unquantized) {
+                    baselines?.getBaselineId(index) ?: newestBaselineId
+                } else {
+                    null
+                }
+                // Deltas are only written against a baseline with the same precision
+                val baseline = baselineId?.takeIf { it != snapshotId }?.let { channel?.getSnapshot(it) }
+                    ?.takeIf { it.positionBits == positionBits && it.rotationBits == rotationBits }
+                val baselinePart = baseline?.get(index, previous) ?: -1
+                val delta = baselinePart in 0 until DeltaEncodedChannelServer.MAX_PARTS &&
+                    channel!!.getAckedParts(baselineId!!) and (1L shl baselinePart) != 0L &&
+                    canDeltaEncode(current, previous, rotationBits)
+                val scaling = transform.shipCoordinatesToWorldCoordinatesScaling
+                val scaled = scaling.x() != 1.0 || scaling.y() != 1.0 || scaling.z() != 1.0
+
+                var flags = 0
+                if (unquantized) flags = flags or FLAG_UNQUANTIZED
+                if (scaled) flags = flags or FLAG_SCALED
+                if (delta) flags = flags or FLAG_DELTA
+
+                buf.writeShort(index)
+                buf.writeByte(flags)
+                if (unquantized) {
+                    buf.writeVec3d(centerOfMass)
+                    buf.writeVec3d(position)
+                    buf.writeSmallestThreeQuatd(current[ROT], rotationBits)
+                } else if (delta) {
+                    buf.writeVarInt(snapshotId - baselineId!!)
+                    for (i in COM_X..POS_Z) buf.writeZigZagVarInt((current[i] - previous[i]).toInt())
+                    for (n in 0 until 3) {
+                        buf.writeZigZagVarInt(
+                            smallestThreeComponent(current[ROT], rotationBits, n) -
+                                smallestThreeComponent(previous[ROT], rotationBits, n)
+                        )
+                    }
+                } else {
+                    for (i in COM_X..COM_Z) buf.writeZigZagVarInt(current[i].toInt())
+                    buf.writeZigZagVarInt((current[POS_X] - (origin.x.toLong() shl positionBits)).toInt())
+                    buf.writeZigZagVarInt((current[POS_Y] - (origin.y.toLong() shl positionBits)).toInt())
+                    buf.writeZigZagVarInt((current[POS_Z] - (origin.z.toLong() shl positionBits)).toInt())
+                    buf.writeSmallestThreeQuatd(current[ROT], rotationBits)
+                }
+                if (scaled) buf.writeVec3AsFloat(scaling)
+
+                if (next != start && buf.writerIndex() - packetStart > maxSize) {
+                    // Doesn't fit, leave it for the next packet
+                    buf.writerIndex(shipStart)
+                    break
+                }
+                // Transforms sent as doubles can't be a baseline
+                if (!unquantized) snapshot?.put(index, part, current)
+                next++
+            }
+            return next
+        }
+
+        private fun getTransform(frame: VSPhysicsFrame, shipData: ShipData): ShipTransform {
+            val view = shipInPhysicsFrame.get()
+            if (!view.moveTo(frame, shipData.id)) {
+                throw NoSuchElementException("Ship ${shipData.id} is not in physics frame ${frame.physTickNumber}")
+            }
+            return VSGamePipelineStage.generateTransformFromPhysicsFrameData(view, shipData)
+        }
+
+        private fun quantize(value: Double, bits: Int): Long = Math.round(value * (1 shl bits))
+
+        /**
+         * @return whether [values] fit in ints once the position is made relative to [origin]
+         */
+        private fun canQuantize(values: LongArray, origin: Vector3ic, positionBits: Int): Boolean =
+            fitsInInt(values[COM_X]) && fitsInInt(values[COM_Y]) && fitsInInt(values[COM_Z]) &&
+                fitsInInt(values[POS_X] - (origin.x().toLong() shl positionBits)) &&
+                fitsInInt(values[POS_Y] - (origin.y().toLong() shl positionBits)) &&
+                fitsInInt(values[POS_Z] - (origin.z().toLong() shl positionBits))
+
+        /**
+         * @return whether the differences between [current] and [previous] fit in ints, and the rotations have the
+         * same largest component
+         */
+        private fun canDeltaEncode(current: LongArray, previous: LongArray, rotationBits: Int): Boolean {
+            for (i in COM_X..POS_Z) if (!fitsInInt(current[i] - previous[i])) return false
+            return smallestThreeLargestIndex(current[ROT], rotationBits) ==
+                smallestThreeLargestIndex(previous[ROT], rotationBits)
         }
 
-        const val TRANSFORM_SIZE = 80
+        private fun fitsInInt(value: Long): Boolean = value == value.toInt().toLong()
+
+        internal const val FLAG_SCALED = 1
+        internal const val FLAG_UNQUANTIZED = 1 shl 1
+        internal const val FLAG_DELTA = 1 shl 2
+
+        // Indices into the values of a transform in a [ShipTransformSnapshot]
+        internal const val COM_X = ShipTransformSnapshot.CENTER_OF_MASS
+        internal const val COM_Y = ShipTransformSnapshot.CENTER_OF_MASS + 1
+        internal const val COM_Z = ShipTransformSnapshot.CENTER_OF_MASS + 2
+        internal const val POS_X = ShipTransformSnapshot.POSITION
+        internal const val POS_Y = ShipTransformSnapshot.POSITION + 1
+        internal const val POS_Z = ShipTransformSnapshot.POSITION + 2
+        internal const val ROT = ShipTransformSnapshot.ROTATION
+
+        /**
+         * The number of transform snapshots kept for each player, to delta encode against
+         */
+        internal const val TRANSFORM_SNAPSHOT_HISTORY = 32
+
+        // How many snapshots later the datagrams of a snapshot are judged lost if they weren't acknowledged. Snapshots
+        // are sent every other physics tick, so that's about a third of a second
+        private const val DELIVERY_JUDGE_DELAY = 10
+
+        internal const val MAX_POSITION_BITS = 16
+        internal const val MIN_ROTATION_BITS = 6
+        internal const val MAX_ROTATION_BITS = 20
+
+        // How long the network thread sleeps when no frames are pushed, if it isn't woken up
+        private const val IDLE_PARK_NS = 50_000_000L
+
         private val logger by logger()
     }
 }
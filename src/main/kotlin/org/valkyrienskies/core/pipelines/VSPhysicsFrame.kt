@@ -1,28 +1,333 @@
 package org.valkyrienskies.core.pipelines
 
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap
+import org.joml.Quaterniond
+import org.joml.Quaterniondc
+import org.joml.Vector3d
 import org.joml.Vector3dc
+import org.joml.primitives.AABBd
 import org.joml.primitives.AABBdc
 import org.valkyrienskies.core.game.ships.ShipId
-import org.valkyrienskies.physics_api.PoseVel
-import org.valkyrienskies.physics_api.RigidBodyInertiaData
-import org.valkyrienskies.physics_api.SegmentTracker
+import org.valkyrienskies.core.game.ships.ShipTransform
 import org.valkyrienskies.physics_api.voxel_updates.IVoxelShapeUpdate
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
 
 /**
  * A [VSPhysicsFrame] represents the state of all the bodies in the physics engine. It also has [voxelUpdatesMap] which
  * describes any changes the physics engine made to the voxels.
+ *
+ * Frames are reused by the physics stage, so the state of each ship is stored in primitive arrays indexed by a slot
+ * instead of in objects. Use [getSlot] to find the slot of a ship, then either the getters here or a
+ * [ShipInPhysicsFrameView] to read it.
+ *
+ * Each ship also has a [ShipTransform], which the physics stage computes once with [computeTransforms] so that the game
+ * and network stages don't each build their own.
+ *
+ * Sleeping ships are left out of frames, [sleepStateChanges] says when ships fall asleep or wake up.
+ *
+ * A frame must not be kept after the stage that received it is done with it, see [copy]. The [ShipTransform]s are
+ * immutable, so they can be kept.
  */
-data class VSPhysicsFrame(
-    val shipDataMap: Map<ShipId, ShipInPhysicsFrameData>,
-    val voxelUpdatesMap: Map<ShipId, List<IVoxelShapeUpdate>>,
-    val physTickNumber: Int
-)
-
-data class ShipInPhysicsFrameData(
-    val uuid: ShipId,
-    val inertiaData: RigidBodyInertiaData,
-    val poseVel: PoseVel,
-    val segments: SegmentTracker,
-    val shipVoxelOffset: Vector3dc, // The voxel offset of the ship at this physics frame
-    val aabb: AABBdc
-)
+class VSPhysicsFrame(initialCapacity: Int = 16) {
+
+    var physTickNumber = 0
+        private set
+
+    var createdAtNs = 0L
+        private set
+
+    // For now the physics doesn't send voxel updates, but it will in the future
+    val voxelUpdatesMap: Map<ShipId, List<IVoxelShapeUpdate>> = emptyMap()
+
+    /**
+     * The ships that fell asleep or woke up during the tick that made this frame
+     */
+    val sleepStateChanges: MutableList<ShipSleepStateChange> = ArrayList()
+
+    var shipCount = 0
+        private set
+
+    private var capacity = initialCapacity.coerceAtLeast(1)
+
+    // region Per slot data, vectors take 3 consecutive doubles and quaternions 4
+    private var shipIds = LongArray(capacity)
+    private var positions = DoubleArray(capacity * 3)
+    private var rotations = DoubleArray(capacity * 4)
+    private var velocities = DoubleArray(capacity * 3)
+    private var omegas = DoubleArray(capacity * 3)
+    private var voxelOffsets = DoubleArray(capacity * 3) // The voxel offset of each ship at this physics frame
+    private var scalings = DoubleArray(capacity)
+    private var aabbs = DoubleArray(capacity * 6) // minX, minY, minZ, maxX, maxY, maxZ
+    private var transforms = arrayOfNulls<ShipTransform>(capacity) // Null until computed
+    // endregion
+
+    private val shipIdToSlot = Long2IntOpenHashMap().apply { defaultReturnValue(-1) }
+
+    // region Writing
+    /**
+     * Remove every ship, so that this frame can be filled again for another physics tick
+     */
+    fun reset(physTickNumber: Int) {
+        this.physTickNumber = physTickNumber
+        createdAtNs = System.nanoTime()
+        shipCount = 0
+        shipIdToSlot.clear()
+        sleepStateChanges.clear()
+    }
+
+    /**
+     * @return the slot of the ship
+     */
+    fun addShip(
+        shipId: ShipId,
+        pos: Vector3dc,
+        rot: Quaterniondc,
+        vel: Vector3dc,
+        omega: Vector3dc,
+        voxelOffset: Vector3dc,
+        scaling: Double,
+        aabb: AABBdc
+    ): Int {
+        if (shipCount == capacity) grow()
+        val slot = shipCount++
+
+        shipIds[slot] = shipId
+        shipIdToSlot.put(shipId, slot)
+        positions.put3(slot, pos)
+        rotations[slot * 4] = rot.x()
+        rotations[slot * 4 + 1] = rot.y()
+        rotations[slot * 4 + 2] = rot.z()
+        rotations[slot * 4 + 3] = rot.w()
+        velocities.put3(slot, vel)
+        omegas.put3(slot, omega)
+        voxelOffsets.put3(slot, voxelOffset)
+        scalings[slot] = scaling
+        aabbs[slot * 6] = aabb.minX()
+        aabbs[slot * 6 + 1] = aabb.minY()
+        aabbs[slot * 6 + 2] = aabb.minZ()
+        aabbs[slot * 6 + 3] = aabb.maxX()
+        aabbs[slot * 6 + 4] = aabb.maxY()
+        aabbs[slot * 6 + 5] = aabb.maxZ()
+        transforms[slot] = null
+        return slot
+    }
+
+    /**
+     * Add the ship in [slot] of [source], with its transform if [source] computed it
+     *
+     * @return the slot of the ship in this frame
+     */
+    fun addShipFrom(source: VSPhysicsFrame, slot: Int): Int {
+        source.checkSlot(slot)
+        if (shipCount == capacity) grow()
+        val dest = shipCount++
+
+        shipIds[dest] = source.shipIds[slot]
+        shipIdToSlot.put(shipIds[dest], dest)
+        source.positions.copyInto(positions, dest * 3, slot * 3, slot * 3 + 3)
+        source.rotations.copyInto(rotations, dest * 4, slot * 4, slot * 4 + 4)
+        source.velocities.copyInto(velocities, dest * 3, slot * 3, slot * 3 + 3)
+        source.omegas.copyInto(omegas, dest * 3, slot * 3, slot * 3 + 3)
+        source.voxelOffsets.copyInto(voxelOffsets, dest * 3, slot * 3, slot * 3 + 3)
+        scalings[dest] = source.scalings[slot]
+        source.aabbs.copyInto(aabbs, dest * 6, slot * 6, slot * 6 + 6)
+        transforms[dest] = source.transforms[slot]
+        return dest
+    }
+
+    private fun grow() {
+        capacity *= 2
+        shipIds = shipIds.copyOf(capacity)
+        positions = positions.copyOf(capacity * 3)
+        rotations = rotations.copyOf(capacity * 4)
+        velocities = velocities.copyOf(capacity * 3)
+        omegas = omegas.copyOf(capacity * 3)
+        voxelOffsets = voxelOffsets.copyOf(capacity * 3)
+        scalings = scalings.copyOf(capacity)
+        aabbs = aabbs.copyOf(capacity * 6)
+        transforms = transforms.copyOf(capacity)
+    }
+
+    /**
+     * Compute the [ShipTransform] of every ship. With a [pool] the ships are split between its threads, this returns
+     * once every transform is computed.
+     */
+    fun computeTransforms(pool: ForkJoinPool? = null) {
+        if (pool == null || shipCount <= SHIPS_PER_TRANSFORM_TASK) {
+            for (slot in 0 until shipCount) transforms[slot] = createTransform(slot)
+        } else {
+            pool.invoke(ComputeTransformsTask(0, shipCount))
+        }
+    }
+
+    /**
+     * The transform of the ship in [slot] as seen by the physics engine. It uses the voxel offset of this frame, so
+     * [ShipTransform.shipPositionInShipCoordinates] is the center of mass physics knows about.
+     */
+    private fun createTransform(slot: Int): ShipTransform {
+        val scaling = scalings[slot]
+        val i = slot * 3
+        return ShipTransform.createFromCoordinatesAndRotationAndScaling(
+            Vector3d(positions[i] * scaling, positions[i + 1] * scaling, positions[i + 2] * scaling),
+            Vector3d(.5 - voxelOffsets[i], .5 - voxelOffsets[i + 1], .5 - voxelOffsets[i + 2]),
+            getRot(slot, Quaterniond()),
+            Vector3d(scaling)
+        )
+    }
+
+    private inner class ComputeTransformsTask(private val from: Int, private val to: Int) : RecursiveAction() {
+        override fun compute() {
+            if (to - from <= SHIPS_PER_TRANSFORM_TASK) {
+                for (slot in from until to) transforms[slot] = createTransform(slot)
+            } else {
+                val mid = (from + to) ushr 1
+                invokeAll(ComputeTransformsTask(from, mid), ComputeTransformsTask(mid, to))
+            }
+        }
+    }
+    // endregion
+
+    // region Reading
+    /**
+     * @return the slot of [shipId], or -1 if the ship isn't in this frame
+     */
+    fun getSlot(shipId: ShipId): Int = shipIdToSlot.get(shipId)
+
+    fun getShipId(slot: Int): ShipId = shipIds[checkSlot(slot)]
+
+    fun getPos(slot: Int, dest: Vector3d): Vector3d = positions.get3(checkSlot(slot), dest)
+
+    fun getRot(slot: Int, dest: Quaterniond): Quaterniond {
+        val i = checkSlot(slot) * 4
+        return dest.set(rotations[i], rotations[i + 1], rotations[i + 2], rotations[i + 3])
+    }
+
+    fun getVel(slot: Int, dest: Vector3d): Vector3d = velocities.get3(checkSlot(slot), dest)
+
+    fun getOmega(slot: Int, dest: Vector3d): Vector3d = omegas.get3(checkSlot(slot), dest)
+
+    fun getVoxelOffset(slot: Int, dest: Vector3d): Vector3d = voxelOffsets.get3(checkSlot(slot), dest)
+
+    fun getScaling(slot: Int): Double = scalings[checkSlot(slot)]
+
+    fun getAABB(slot: Int, dest: AABBd): AABBd {
+        val i = checkSlot(slot) * 6
+        return dest.setMin(aabbs[i], aabbs[i + 1], aabbs[i + 2]).setMax(aabbs[i + 3], aabbs[i + 4], aabbs[i + 5])
+    }
+
+    /**
+     * The transform computed by [computeTransforms]. Frames that skipped it compute the transform here instead.
+     */
+    fun getTransform(slot: Int): ShipTransform = transforms[checkSlot(slot)] ?: createTransform(slot)
+    // endregion
+
+    /**
+     * Copy this frame, for consumers that need to keep a frame after the stage that received it is done with it
+     *
+     * @param dest A frame to copy into instead of a new one, so consumers can reuse their copies
+     */
+    fun copy(dest: VSPhysicsFrame? = null): VSPhysicsFrame {
+        val copy = dest ?: VSPhysicsFrame(shipCount)
+        copy.reset(physTickNumber)
+        copy.createdAtNs = createdAtNs
+        while (copy.capacity < shipCount) copy.grow()
+        copy.shipCount = shipCount
+        shipIds.copyInto(copy.shipIds, endIndex = shipCount)
+        positions.copyInto(copy.positions, endIndex = shipCount * 3)
+        rotations.copyInto(copy.rotations, endIndex = shipCount * 4)
+        velocities.copyInto(copy.velocities, endIndex = shipCount * 3)
+        omegas.copyInto(copy.omegas, endIndex = shipCount * 3)
+        voxelOffsets.copyInto(copy.voxelOffsets, endIndex = shipCount * 3)
+        scalings.copyInto(copy.scalings, endIndex = shipCount)
+        aabbs.copyInto(copy.aabbs, endIndex = shipCount * 6)
+        transforms.copyInto(copy.transforms, endIndex = shipCount)
+        copy.shipIdToSlot.putAll(shipIdToSlot)
+        copy.sleepStateChanges.addAll(sleepStateChanges)
+        return copy
+    }
+
+    /**
+     * Copy only the ship in [slot] into a new frame
+     */
+    fun copySlot(slot: Int): VSPhysicsFrame {
+        checkSlot(slot)
+        val copy = VSPhysicsFrame(1)
+        copy.physTickNumber = physTickNumber
+        copy.createdAtNs = createdAtNs
+        copy.shipCount = 1
+        copy.shipIds[0] = shipIds[slot]
+        positions.copyInto(copy.positions, 0, slot * 3, slot * 3 + 3)
+        rotations.copyInto(copy.rotations, 0, slot * 4, slot * 4 + 4)
+        velocities.copyInto(copy.velocities, 0, slot * 3, slot * 3 + 3)
+        omegas.copyInto(copy.omegas, 0, slot * 3, slot * 3 + 3)
+        voxelOffsets.copyInto(copy.voxelOffsets, 0, slot * 3, slot * 3 + 3)
+        copy.scalings[0] = scalings[slot]
+        aabbs.copyInto(copy.aabbs, 0, slot * 6, slot * 6 + 6)
+        copy.transforms[0] = transforms[slot]
+        copy.shipIdToSlot.put(shipIds[slot], 0)
+        return copy
+    }
+
+    private fun checkSlot(slot: Int): Int {
+        if (slot < 0 || slot >= shipCount) throw IndexOutOfBoundsException("Slot $slot, ship count $shipCount")
+        return slot
+    }
+
+    companion object {
+        // Each task computes at most this many transforms, a transform only takes a few hundred nanoseconds
+        private const val SHIPS_PER_TRANSFORM_TASK = 64
+
+        private fun DoubleArray.put3(slot: Int, v: Vector3dc) {
+            this[slot * 3] = v.x()
+            this[slot * 3 + 1] = v.y()
+            this[slot * 3 + 2] = v.z()
+        }
+
+        private fun DoubleArray.get3(slot: Int, dest: Vector3d): Vector3d =
+            dest.set(this[slot * 3], this[slot * 3 + 1], this[slot * 3 + 2])
+    }
+}
+
+/**
+ * A reusable view of one ship in a [VSPhysicsFrame]. Reading through it copies into the given destinations, so a
+ * view can be pointed at many ships without allocating.
+ */
+class ShipInPhysicsFrameView {
+    lateinit var frame: VSPhysicsFrame
+        private set
+
+    var slot = -1
+        private set
+
+    val shipId: ShipId get() = frame.getShipId(slot)
+
+    val scaling: Double get() = frame.getScaling(slot)
+
+    /**
+     * Point this view at [shipId] in [frame].
+     *
+     * @return false if [shipId] isn't in [frame], then this view must not be read
+     */
+    fun moveTo(frame: VSPhysicsFrame, shipId: ShipId): Boolean = moveToSlot(frame, frame.getSlot(shipId))
+
+    fun moveToSlot(frame: VSPhysicsFrame, slot: Int): Boolean {
+        this.frame = frame
+        this.slot = slot
+        return slot in 0 until frame.shipCount
+    }
+
+    fun getPos(dest: Vector3d): Vector3d = frame.getPos(slot, dest)
+
+    fun getRot(dest: Quaterniond): Quaterniond = frame.getRot(slot, dest)
+
+    fun getVel(dest: Vector3d): Vector3d = frame.getVel(slot, dest)
+
+    fun getOmega(dest: Vector3d): Vector3d = frame.getOmega(slot, dest)
+
+    fun getVoxelOffset(dest: Vector3d): Vector3d = frame.getVoxelOffset(slot, dest)
+
+    fun getAABB(dest: AABBd): AABBd = frame.getAABB(slot, dest)
+
+    fun getTransform(): ShipTransform = frame.getTransform(slot)
+}
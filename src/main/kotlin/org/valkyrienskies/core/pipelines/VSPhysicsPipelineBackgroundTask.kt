@@ -1,74 +1,70 @@
 package org.valkyrienskies.core.pipelines
 
+import org.valkyrienskies.core.config.VSCoreConfig
 import org.valkyrienskies.core.util.logger
-import java.util.LinkedList
-import java.util.Queue
 import java.util.concurrent.ConcurrentLinkedQueue
-import kotlin.math.min
 
-class VSPhysicsPipelineBackgroundTask(private val vsPipeline: VSPipeline, private var idealPhysicsTps: Int = 60) :
-    Runnable {
+/**
+ * Ticks the physics of one [VSPhysicsShard] at a fixed rate
+ */
+internal class VSPhysicsPipelineBackgroundTask(
+    private val vsPipeline: VSPipeline,
+    private val shard: VSPhysicsShard
+) : Runnable {
     // When this is set to true, this task will kill itself at the next opportunity
+    @Volatile
     private var killTask = false
 
     // A non-blocking thread-safe queue
     private val queuedTasksQueue = ConcurrentLinkedQueue<() -> Unit>()
 
-    private var lostTime: Long = 0
+    private val qualityController = PhysicsQualityController()
 
-    private val prevPhysTicksTimeMillis: Queue<Long> = LinkedList()
+    private val scheduler = PhysicsTickScheduler(
+        { qualityController.ticksPerSecond },
+        { VSCoreConfig.SERVER.maxPhysicsCatchUpTicks }
+    )
 
     override fun run() {
         try {
+            shard.physicsStage.setPhysicsSubSteps(qualityController.subSteps)
             while (true) {
                 if (killTask) break // Stop looping
 
-                val timeToSimulateNs = 1e9 / idealPhysicsTps.toDouble()
-
-                val timeBeforePhysicsTick = System.nanoTime()
+                scheduler.awaitNextTick()
+                val tickStart = System.nanoTime()
 
                 // Execute queued tasks
                 while (!queuedTasksQueue.isEmpty()) queuedTasksQueue.remove()()
 
-                val timeStep = timeToSimulateNs / 1e9
-
                 // Run the physics tick
-                vsPipeline.tickPhysics(vsPipeline.getPhysicsGravity(), timeStep, vsPipeline.arePhysicsRunning)
-
-                val timeToRunPhysTick = System.nanoTime() - timeBeforePhysicsTick
-
-                // Keep track of when physics tick finished
-                val currentTimeMillis = System.currentTimeMillis()
-                prevPhysTicksTimeMillis.add(currentTimeMillis)
-                // Remove physics ticks that were over [PHYS_TICK_AVERAGE_WINDOW_MS] ms ago
-                while (prevPhysTicksTimeMillis.isNotEmpty() &&
-                    prevPhysTicksTimeMillis.peek() + PHYS_TICK_AVERAGE_WINDOW_MS < currentTimeMillis
-                ) {
-                    prevPhysTicksTimeMillis.remove()
-                }
-
-                // Ideal time minus actual time to run physics tick
-                val timeDif = timeToSimulateNs - timeToRunPhysTick
-
-                if (timeDif < 0) {
-                    // Physics tick took too long, store some lost time to catch up
-                    lostTime = min(lostTime - timeDif.toLong(), MAX_LOST_TIME)
-                } else {
-                    if (lostTime > timeDif) {
-                        // Catch up
-                        lostTime -= timeDif.toLong()
-                    } else {
-                        val timeToWait = timeDif - lostTime
-                        lostTime = 0
-                        Thread.sleep((timeToWait / 1e6).toLong())
-                    }
-                }
+                vsPipeline.tickPhysics(
+                    shard, vsPipeline.getPhysicsGravity(), scheduler.timeStep, vsPipeline.arePhysicsRunning
+                )
+
+                scheduler.tickFinished()
+                adjustQuality(System.nanoTime() - tickStart)
             }
         } catch (e: Exception) {
-            logger.error("Error in physics pipeline background task", e)
+            logger.error("Error in physics pipeline background task of ${shard.dimension}", e)
             repeat(10) { logger.error("!!!!!!! VS PHYSICS THREAD CRASHED !!!!!!!") }
         }
-        logger.warn("Physics pipeline ending")
+        logger.warn("Physics pipeline of ${shard.dimension} ending")
+    }
+
+    private fun adjustQuality(tickDurationNs: Long) {
+        val oldSubSteps = qualityController.subSteps
+        val oldTicksPerSecond = qualityController.ticksPerSecond
+        if (!qualityController.tickFinished(tickDurationNs)) return
+
+        shard.physicsStage.setPhysicsSubSteps(qualityController.subSteps)
+        shard.metrics.physicsQualityChanges.incrementAndGet()
+        logger.info(
+            "Physics quality of ${shard.dimension} is now level ${qualityController.qualityLevel}: " +
+                "sub-steps $oldSubSteps -> ${qualityController.subSteps}, " +
+                "TPS $oldTicksPerSecond -> ${qualityController.ticksPerSecond} " +
+                "(load ${"%.2f".format(qualityController.load)})"
+        )
     }
 
     fun tellTaskToKillItself() {
@@ -79,13 +75,24 @@ class VSPhysicsPipelineBackgroundTask(private val vsPipeline: VSPipeline, privat
         queuedTasksQueue.add(task)
     }
 
-    fun computePhysicsTPS(): Double {
-        return prevPhysTicksTimeMillis.size.toDouble() / (PHYS_TICK_AVERAGE_WINDOW_MS.toDouble() / 1000.0)
-    }
+    fun computePhysicsTPS(): Double = scheduler.ticksPerSecondMeasured
+
+    /**
+     * The physics sub-steps picked by [PhysicsQualityController]
+     */
+    fun getPhysicsSubSteps(): Int = qualityController.subSteps
+
+    /**
+     * The average time it took to run a physics tick recently, in nanoseconds
+     */
+    fun getAveragePhysicsTickTimeNs(): Long = scheduler.averageTickTimeNs
+
+    /**
+     * The number of physics ticks that were skipped because physics fell too far behind
+     */
+    fun getSkippedPhysicsTicks(): Long = scheduler.skippedTicks
 
     companion object {
-        private const val MAX_LOST_TIME: Long = 1e9.toLong()
-        private const val PHYS_TICK_AVERAGE_WINDOW_MS = 5000
         private val logger by logger()
     }
 }
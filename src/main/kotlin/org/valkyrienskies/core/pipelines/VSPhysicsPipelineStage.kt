@@ -1,90 +1,193 @@
 package org.valkyrienskies.core.pipelines
 
-import org.joml.Matrix3d
 import org.joml.Vector3d
 import org.joml.Vector3dc
 import org.joml.primitives.AABBd
-import org.valkyrienskies.core.api.impl.APIForcesApplier
-import org.valkyrienskies.core.game.ships.PhysInertia
+import org.valkyrienskies.core.config.VSCoreConfig
 import org.valkyrienskies.core.game.ships.PhysShip
 import org.valkyrienskies.core.game.ships.ShipId
-import org.valkyrienskies.core.util.logger
-import org.valkyrienskies.physics_api.PhysicsWorldReference
+import org.valkyrienskies.core.game.ships.ShipSimulationLod
+import org.valkyrienskies.core.physics.PhysicsEngineBackend
+import org.valkyrienskies.core.physics.PhysicsRigidBody
 import org.valkyrienskies.physics_api.PoseVel
-import org.valkyrienskies.physics_api.RigidBodyInertiaData
-import org.valkyrienskies.physics_api.SegmentTracker
-import org.valkyrienskies.physics_api.voxel_updates.IVoxelShapeUpdate
-import org.valkyrienskies.physics_api.voxel_updates.VoxelRigidBodyShapeUpdates
-import org.valkyrienskies.physics_api_krunch.KrunchBootstrap
-import org.valkyrienskies.physics_api_krunch.KrunchPhysicsWorldSettings
-import java.util.concurrent.ConcurrentLinkedQueue
-
-class VSPhysicsPipelineStage {
-    private val gameFramesQueue: ConcurrentLinkedQueue<VSGameFrame> = ConcurrentLinkedQueue()
-    private val physicsEngine: PhysicsWorldReference = KrunchBootstrap.createKrunchPhysicsWorld()
+import java.util.concurrent.ForkJoinPool
 
+/**
+ * @param physicsEngine The physics world this stage simulates ships in, it is deleted by [deleteResources]
+ */
+class VSPhysicsPipelineStage(
+    private val metrics: VSPipelineMetrics = VSPipelineMetrics(),
+    private val physicsEngine: PhysicsEngineBackend = VSCoreConfig.SERVER.physicsEngine.createBackend()
+) {
+    // Game frames can never be thrown away, so the game thread waits for the physics thread when this is full. Only
+    // the physics thread merges them, see [pollGameFrames], as merging on both ends could apply them out of order
+    private val gameFramesQueue = FrameQueue<VSGameFrame>(
+        "game frame",
+        VSCoreConfig.SERVER.gameFrameQueueCapacity,
+        FrameQueuePolicy.BLOCK,
+        VSCoreConfig.SERVER.frameQueueBlockTimeoutMs
+    )
     // Map ships ids to rigid bodies, and map rigid bodies to ship ids
     private val shipIdToPhysShip: MutableMap<ShipId, PhysShip> = HashMap()
+
+    // Created the first time forces inducers are run in parallel
+    private var parallelForcesEvaluator: ParallelForcesEvaluator? = null
+
+    // Reused every tick to give [parallelForcesEvaluator] an indexable list of ships
+    private val physShipsList = ArrayList<PhysShip>()
+
     private var physTick = 0
 
-    init {
-        // Apply physics engine settings
-        val settings = KrunchPhysicsWorldSettings()
-        // Only use 10 sub-steps
-        settings.subSteps = 10
-        // Decrease max de-penetration speed so that rigid bodies don't go
-        // flying apart when they overlap
-        settings.maxDePenetrationSpeed = 10.0
-        KrunchBootstrap.setKrunchSettings(physicsEngine, settings)
-    }
+    // region Sleeping
+    // Ships that fell asleep or woke up since the last physics frame was created
+    private val pendingSleepStateChanges = ArrayList<ShipSleepStateChange>()
+
+    // Reused every tick by [wakeTouchedShips]
+    private val awakeShips = ArrayList<PhysShip>()
+    private val sleepingShipsWakeableByContact = ArrayList<PhysShip>()
+    // endregion
+
+    // region Reused every tick by [createPhysicsFrame]
+    private val frameShips = ArrayList<PhysShip>()
+    private val rigidBodiesToRead = ArrayList<PhysicsRigidBody>()
+    private val aabbsToRead = ArrayList<AABBd>()
+    private val readPoseVels = ArrayList<PoseVel>()
+    // endregion
 
     /**
      * Push a game frame to the physics engine stage
      */
     fun pushGameFrame(gameFrame: VSGameFrame) {
-        if (gameFramesQueue.size >= 10) {
-            // throw IllegalStateException("Too many game frames in the game frame queue. Is the physics stage broken?")
-            logger.warn("Too many game frames in the game frame queue. Is the physics stage broken?")
-            Thread.sleep(1000L)
-        }
-        gameFramesQueue.add(gameFrame)
+        gameFramesQueue.push(gameFrame)
     }
 
+    fun getGameFrameQueueCounters(): FrameQueueCounters = gameFramesQueue.counters()
+
+    /**
+     * The number of game frames waiting to be applied, may be stale by the time it returns
+     */
+    fun getGameFrameQueueDepth(): Int = gameFramesQueue.size
+
     /**
      * Process queued game frames, tick the physics, then create a new physics frame
+     *
+     * @param recycledFrame A frame nothing uses anymore, it is filled and returned instead of allocating a new frame
      */
-    fun tickPhysics(gravity: Vector3dc, timeStep: Double, simulatePhysics: Boolean): VSPhysicsFrame {
+    fun tickPhysics(
+        gravity: Vector3dc, timeStep: Double, simulatePhysics: Boolean, recycledFrame: VSPhysicsFrame? = null
+    ): VSPhysicsFrame {
         // Apply game frames
-        while (gameFramesQueue.isNotEmpty()) {
-            val gameFrame = gameFramesQueue.remove()
+        pollGameFrames()?.let { gameFrame ->
+            val applyStart = System.nanoTime()
+            metrics.gameFrameAgeOnPhysics.record(applyStart - gameFrame.createdAtNs)
             applyGameFrame(gameFrame)
-        }
-
-        // Update the [poseVel] stored in [PhysShip]
-        shipIdToPhysShip.values.forEach {
-            it.poseVel = it.rigidBodyReference.poseVel
-            // TODO: In the future update the segment tracker too, probably do this after we've added portals to Krunch
-            // it.segments = it.rigidBodyReference.segments
+            metrics.gameFrameApplication.recordSince(applyStart)
         }
 
         // Compute and apply forces/torques for ships
-        shipIdToPhysShip.values.forEach {
-            val applier = APIForcesApplier(it.rigidBodyReference)
-            it.forceInducers.forEach { i -> i.applyForces(applier, it) }
+        if (VSCoreConfig.SERVER.parallelForcesInducers) {
+            computeForcesInParallel()
+        } else {
+            shipIdToPhysShip.values.forEach {
+                if (it.forceInducers.isEmpty() || it.simulationLod == ShipSimulationLod.FROZEN) return@forEach
+                // Forces are buffered even for awake ships, to know which were in effect when a ship falls asleep
+                val inducersRun = inducersRunThisTick(it)
+                if (inducersRun) it.forceInducers.forEach { i -> i.applyForces(it.forcesBuffer, it) }
+                applyBufferedForces(it, inducersRun)
+            }
         }
 
         // Run the physics engine
+        val tickStart = System.nanoTime()
         physicsEngine.tick(gravity, timeStep, simulatePhysics)
+        metrics.physicsEngineTick.recordSince(tickStart)
 
         // Return a new physics frame
-        return createPhysicsFrame()
+        val frameStart = System.nanoTime()
+        val physicsFrame = createPhysicsFrame(recycledFrame ?: VSPhysicsFrame(shipIdToPhysShip.size))
+        metrics.physicsFrameCreation.recordSince(frameStart)
+        return physicsFrame
+    }
+
+    /**
+     * Must be called from the thread that ticks this stage
+     */
+    fun setPhysicsSubSteps(subSteps: Int) {
+        physicsEngine.subSteps = subSteps
     }
 
     fun deleteResources() {
+        gameFramesQueue.close()
+        parallelForcesEvaluator?.shutdown()
         if (physicsEngine.hasBeenDeleted()) throw IllegalStateException("Physics engine has already been deleted!")
         physicsEngine.deletePhysicsWorldResources()
     }
 
+    private fun computeForcesInParallel() {
+        val evaluator = parallelForcesEvaluator ?: ParallelForcesEvaluator(
+            VSCoreConfig.SERVER.forcesInducerThreads.takeIf { it > 0 }
+                ?: (Runtime.getRuntime().availableProcessors() - 1).coerceAtLeast(1)
+        ).also { parallelForcesEvaluator = it }
+
+        physShipsList.clear()
+        shipIdToPhysShip.values.forEach {
+            if (it.forceInducers.isEmpty() || it.simulationLod == ShipSimulationLod.FROZEN) return@forEach
+            if (inducersRunThisTick(it)) physShipsList.add(it)
+        }
+        evaluator.computeForces(physShipsList)
+        shipIdToPhysShip.values.forEach {
+            if (it.forceInducers.isEmpty() || it.simulationLod == ShipSimulationLod.FROZEN) return@forEach
+            applyBufferedForces(it, inducersRunThisTick(it))
+        }
+    }
+
+    /**
+     * Pass the forces of [physShip] to its rigid body. If its inducers ran this tick, [PhysShip.forcesBuffer] becomes
+     * the [PhysShip.appliedForces], otherwise the applied forces are passed again.
+     *
+     * Sleeping ships keep the forces that were applied when they fell asleep, and are only woken up if their inducers
+     * compute different ones. So forces that hold a ship in place don't keep waking it up, and neither do the forces
+     * a [ShipSimulationLod.REDUCED] ship holds between runs of its inducers.
+     */
+    private fun applyBufferedForces(physShip: PhysShip, inducersRan: Boolean) {
+        if (inducersRan) {
+            if (physShip.isSleeping) {
+                if (physShip.forcesBuffer.hasSameForcesAs(physShip.appliedForces)) {
+                    physShip.forcesBuffer.clear()
+                    return
+                }
+                wakeUp(physShip)
+            }
+            physShip.swapForcesBuffers()
+        } else if (physShip.isSleeping) {
+            return
+        }
+        physShip.appliedForces.applyTo(physShip.rigidBodyReference, clear = false)
+    }
+
+    /**
+     * True if the inducers of [physShip] run this tick. The inducers of [ShipSimulationLod.REDUCED] ships only run
+     * every few ticks, spread over the ticks by ship id so they don't all run on the same tick.
+     */
+    private fun inducersRunThisTick(physShip: PhysShip): Boolean {
+        if (physShip.simulationLod != ShipSimulationLod.REDUCED) return true
+        val interval = VSCoreConfig.SERVER.lodReducedTickInterval.coerceAtLeast(1)
+        return ((physTick + physShip.shipId.toInt()) and Int.MAX_VALUE) % interval == 0
+    }
+
+    /**
+     * Poll every queued game frame. If the physics thread fell behind and there are several, they are merged into one.
+     */
+    private fun pollGameFrames(): VSGameFrame? {
+        val firstGameFrame = gameFramesQueue.poll() ?: return null
+        if (gameFramesQueue.isEmpty()) return firstGameFrame
+
+        val merger = VSGameFrameMerger()
+        merger.add(firstGameFrame)
+        gameFramesQueue.drain(merger::add)
+        return merger.build()
+    }
+
     private fun applyGameFrame(gameFrame: VSGameFrame) {
         // Delete deleted ships
         gameFrame.deletedShips.forEach { deletedShipId ->
@@ -94,8 +197,9 @@ class VSPhysicsPipelineStage {
                         " but no rigid body exists for this ship!"
                 )
 
-            val shipRigidBodyReference = shipRigidBodyReferenceAndId.rigidBodyReference
-            physicsEngine.deleteRigidBody(shipRigidBodyReference.rigidBodyId)
+            // The game can't be told about ships that don't exist anymore
+            pendingSleepStateChanges.removeIf { it.shipId == deletedShipId }
+            physicsEngine.deleteRigidBody(shipRigidBodyReferenceAndId.rigidBodyReference)
             shipIdToPhysShip.remove(deletedShipId)
         }
 
@@ -122,23 +226,27 @@ class VSPhysicsPipelineStage {
                 physicsEngine.createVoxelRigidBody(
                     dimension, minDefined, maxDefined, totalVoxelRegion
                 )
-            newRigidBodyReference.inertiaData = physInertiaToRigidBodyInertiaData(inertiaData)
+            newRigidBodyReference.setInertia(inertiaData)
             newRigidBodyReference.poseVel = poseVel
             newRigidBodyReference.collisionShapeOffset = newShipInGameFrameData.voxelOffset
             newRigidBodyReference.isStatic = isStatic
             newRigidBodyReference.isVoxelTerrainFullyLoaded = shipVoxelsFullyLoaded
             // TODO: This will need to be changed when we have multiple segments
-            newRigidBodyReference.setSegmentDisplacement(0, segments.segments.values.first().segmentDisplacement)
-
-            shipIdToPhysShip[shipId] =
-                PhysShip(
-                    shipId,
-                    newRigidBodyReference,
-                    newShipInGameFrameData.forcesInducers,
-                    inertiaData,
-                    poseVel,
-                    segments
-                )
+            val segmentDisplacement = segments.segments.values.first().segmentDisplacement
+            newRigidBodyReference.setSegmentDisplacement(0, segmentDisplacement)
+
+            val physShip = PhysShip(
+                shipId,
+                newRigidBodyReference,
+                newShipInGameFrameData.forcesInducers,
+                inertiaData,
+                poseVel,
+                segments
+            )
+            physShip.voxelOffset.set(newShipInGameFrameData.voxelOffset)
+            physShip.scaling = segmentDisplacement.scaling
+            physShip.voxelsFullyLoaded = shipVoxelsFullyLoaded
+            shipIdToPhysShip[shipId] = physShip
         }
 
         // Update existing ships
@@ -148,77 +256,194 @@ class VSPhysicsPipelineStage {
                     "Tried updating rigid body from ship with UUID $shipId, but no rigid body exists for this ship!"
                 )
 
-            val shipRigidBody = physShip.rigidBodyReference
-            val oldPoseVel = shipRigidBody.poseVel
+            // Wake the ship up first, so the changes below aren't undone when it wakes up later. The game sends an
+            // update whenever anything about the ship changed, so only changes physics uses wake it up.
+            if (physShip.isSleeping && changesPhysics(physShip, shipUpdate)) wakeUp(physShip)
+            if (physShip.simulationLod != shipUpdate.simulationLod) {
+                physShip.simulationLod = shipUpdate.simulationLod
+                // Don't hold on to forces computed for the old LOD. Sleeping ships keep the forces they fell asleep
+                // with, so the same forces computed at the new LOD don't wake them up.
+                if (!physShip.isSleeping) physShip.appliedForces.clear()
+            }
 
-            val oldVoxelOffset = shipRigidBody.collisionShapeOffset
+            // Only pass what changed to the engine. [PhysShip.poseVel] is what the engine ended the last tick with,
+            // so it doesn't have to be read back either.
+            val shipRigidBody = physShip.rigidBodyReference
             val newVoxelOffset = shipUpdate.newVoxelOffset
-            val deltaVoxelOffset = oldPoseVel.rot.transform(newVoxelOffset.sub(oldVoxelOffset, Vector3d()))
-            val isStatic = shipUpdate.isStatic
-            val shipVoxelsFullyLoaded = shipUpdate.shipVoxelsFullyLoaded
-
-            val newShipPoseVel = PoseVel(
-                oldPoseVel.pos.sub(deltaVoxelOffset, Vector3d()), oldPoseVel.rot, oldPoseVel.vel, oldPoseVel.omega
-            )
-
-            physShip._inertia = shipUpdate.inertiaData
+            if (newVoxelOffset != physShip.voxelOffset) {
+                val oldPoseVel = physShip.poseVel
+                val deltaVoxelOffset = oldPoseVel.rot.transform(newVoxelOffset.sub(physShip.voxelOffset, Vector3d()))
+                val newShipPoseVel = PoseVel(
+                    oldPoseVel.pos.sub(deltaVoxelOffset, Vector3d()), oldPoseVel.rot, oldPoseVel.vel, oldPoseVel.omega
+                )
 
-            shipRigidBody.collisionShapeOffset = newVoxelOffset
-            shipRigidBody.poseVel = newShipPoseVel
-            shipRigidBody.inertiaData = physInertiaToRigidBodyInertiaData(shipUpdate.inertiaData)
-            shipRigidBody.isStatic = isStatic
-            shipRigidBody.isVoxelTerrainFullyLoaded = shipVoxelsFullyLoaded
+                shipRigidBody.collisionShapeOffset = newVoxelOffset
+                shipRigidBody.poseVel = newShipPoseVel
+                physShip.voxelOffset.set(newVoxelOffset)
+                physShip.poseVel = newShipPoseVel
+            }
+            if (shipUpdate.inertiaData != physShip._inertia) {
+                physShip._inertia = shipUpdate.inertiaData
+                shipRigidBody.setInertia(shipUpdate.inertiaData)
+            }
+            if (shipUpdate.shipVoxelsFullyLoaded != physShip.voxelsFullyLoaded) {
+                physShip.voxelsFullyLoaded = shipUpdate.shipVoxelsFullyLoaded
+                shipRigidBody.isVoxelTerrainFullyLoaded = shipUpdate.shipVoxelsFullyLoaded
+            }
+            // Forces inducers may make ships static too, so this isn't cached. Sleeping ships are static until they
+            // wake up, and only stay asleep if this didn't change.
+            if (!physShip.isSleeping) shipRigidBody.isStatic = shipUpdate.isStatic
         }
 
         // Send voxel updates
-        gameFrame.voxelUpdatesMap.forEach { (shipId, voxelUpdatesList) ->
+        gameFrame.voxelUpdatesMap.forEach { (shipId, chunkUpdates) ->
             val shipRigidBodyReferenceAndId = shipIdToPhysShip[shipId]
                 ?: throw IllegalStateException(
                     "Tried sending voxel updates to rigid body from ship with UUID $shipId," +
                         " but no rigid body exists for this ship!"
                 )
 
-            val shipRigidBodyReference = shipRigidBodyReferenceAndId.rigidBodyReference
-            val voxelRigidBodyShapeUpdates =
-                VoxelRigidBodyShapeUpdates(shipRigidBodyReference.rigidBodyId, voxelUpdatesList.toTypedArray())
-            physicsEngine.queueVoxelShapeUpdates(arrayOf(voxelRigidBodyShapeUpdates))
+            wakeUp(shipRigidBodyReferenceAndId)
+            physicsEngine.queueVoxelUpdates(shipRigidBodyReferenceAndId.rigidBodyReference, chunkUpdates.values)
         }
     }
 
-    private fun createPhysicsFrame(): VSPhysicsFrame {
-        val shipDataMap: MutableMap<ShipId, ShipInPhysicsFrameData> = HashMap()
-        // For now the physics doesn't send voxel updates, but it will in the future
-        val voxelUpdatesMap: Map<ShipId, List<IVoxelShapeUpdate>> = emptyMap()
-        shipIdToPhysShip.forEach { (shipId, shipIdAndRigidBodyReference) ->
-            val rigidBodyReference = shipIdAndRigidBodyReference.rigidBodyReference
-            val inertiaData: RigidBodyInertiaData = rigidBodyReference.inertiaData
-            val poseVel: PoseVel = rigidBodyReference.poseVel
-            val segments: SegmentTracker = rigidBodyReference.segmentTracker
-            val shipVoxelOffset: Vector3dc = rigidBodyReference.collisionShapeOffset
-            val aabb = AABBd()
-            rigidBodyReference.getAABB(aabb)
-
-            shipDataMap[shipId] =
-                ShipInPhysicsFrameData(
-                    shipId, inertiaData, poseVel, segments, shipVoxelOffset, aabb
+    /**
+     * Fill [physicsFrame] with the state of every rigid body. This is also where [PhysShip.poseVel] is updated, so the
+     * forces inducers of the next tick see the pose physics ended this tick with.
+     */
+    private fun createPhysicsFrame(physicsFrame: VSPhysicsFrame): VSPhysicsFrame {
+        physicsFrame.reset(physTick++)
+        val shipSleeping = VSCoreConfig.SERVER.shipSleeping
+        awakeShips.clear()
+        sleepingShipsWakeableByContact.clear()
+        frameShips.clear()
+        rigidBodiesToRead.clear()
+        aabbsToRead.clear()
+        readPoseVels.clear()
+
+        shipIdToPhysShip.values.forEach { physShip ->
+            if (physShip.isSleeping) {
+                // Frozen ships stay asleep until the game gives them a better LOD
+                if (!physShip.wasStaticBeforeSleeping && physShip.simulationLod != ShipSimulationLod.FROZEN) {
+                    sleepingShipsWakeableByContact.add(physShip)
+                }
+                // Sleeping ships don't move, so they're only in the first few frames after they fall asleep, and
+                // their pose and AABB from when they fell asleep are still right
+                if (++physShip.ticksAsleep < SLEEPING_FRAMES) frameShips.add(physShip)
+            } else {
+                frameShips.add(physShip)
+                rigidBodiesToRead.add(physShip.rigidBodyReference)
+                aabbsToRead.add(physShip.aabb)
+            }
+        }
+
+        // Read every awake ship back from the engine in one pass
+        // TODO: In the future update the segment tracker too, probably do this after we've added portals to Krunch
+        physicsEngine.readRigidBodyStates(rigidBodiesToRead, readPoseVels, aabbsToRead)
+
+        var readIndex = 0
+        frameShips.forEach { physShip ->
+            var poseVel = if (physShip.isSleeping) physShip.poseVel else readPoseVels[readIndex++]
+
+            var fallingAsleep = false
+            if (!physShip.isSleeping) {
+                if (shipSleeping && isAtRest(poseVel)) physShip.ticksAtRest++ else physShip.ticksAtRest = 0
+                if (physShip.ticksAtRest >= VSCoreConfig.SERVER.shipSleepTicks ||
+                    physShip.simulationLod == ShipSimulationLod.FROZEN
+                ) {
+                    poseVel = fallAsleep(physShip, poseVel)
+                    fallingAsleep = true
+                } else {
+                    awakeShips.add(physShip)
+                }
+            }
+            physShip.poseVel = poseVel
+
+            val slot = physicsFrame.addShip(
+                physShip.shipId, poseVel.pos, poseVel.rot, poseVel.vel, poseVel.omega, physShip.voxelOffset,
+                physShip.scaling, physShip.aabb
+            )
+            if (fallingAsleep) {
+                pendingSleepStateChanges.add(
+                    ShipSleepStateChange(physShip.shipId, physicsFrame.physTickNumber, physicsFrame.copySlot(slot))
                 )
+            }
         }
-        return VSPhysicsFrame(shipDataMap, voxelUpdatesMap, physTick++)
+        wakeTouchedShips()
+
+        // Computed here once instead of by every consumer of the frame
+        physicsFrame.computeTransforms(
+            if (VSCoreConfig.SERVER.parallelPhysicsFrameTransforms) ForkJoinPool.commonPool() else null
+        )
+        physicsFrame.sleepStateChanges.addAll(pendingSleepStateChanges)
+        pendingSleepStateChanges.clear()
+        return physicsFrame
     }
 
-    companion object {
-        private fun physInertiaToRigidBodyInertiaData(inertia: PhysInertia): RigidBodyInertiaData {
-            val invMass = 1.0 / inertia.shipMass
-            if (!invMass.isFinite())
-                throw IllegalStateException("invMass is not finite!")
+    // region Sleeping
+    private fun isAtRest(poseVel: PoseVel): Boolean {
+        val maxVel = VSCoreConfig.SERVER.shipSleepLinearVelocity
+        val maxOmega = VSCoreConfig.SERVER.shipSleepAngularVelocity
+        return poseVel.vel.lengthSquared() < maxVel * maxVel && poseVel.omega.lengthSquared() < maxOmega * maxOmega
+    }
 
-            val invInertiaMatrix = inertia.momentOfInertiaTensor.invert(Matrix3d())
-            if (!invInertiaMatrix.isFinite)
-                throw IllegalStateException("invInertiaMatrix is not finite!")
+    /**
+     * Freeze [physShip] by making its rigid body static
+     *
+     * @return [poseVel] without velocity
+     */
+    private fun fallAsleep(physShip: PhysShip, poseVel: PoseVel): PoseVel {
+        val rigidBody = physShip.rigidBodyReference
+        val sleepingPoseVel = PoseVel(poseVel.pos, poseVel.rot, Vector3d(), Vector3d())
+        physShip.ticksAsleep = 0
+        physShip.wasStaticBeforeSleeping = rigidBody.isStatic
+        rigidBody.isStatic = true
+        rigidBody.poseVel = sleepingPoseVel
+        return sleepingPoseVel
+    }
 
-            return RigidBodyInertiaData(invMass, invInertiaMatrix)
+    /**
+     * True if [shipUpdate] changes anything physics uses for sleeping [physShip]. LOD downgrades don't, and neither
+     * does any other change the game sends updates for.
+     */
+    private fun changesPhysics(physShip: PhysShip, shipUpdate: UpdateShipInGameFrameData): Boolean =
+        shipUpdate.newVoxelOffset != physShip.voxelOffset ||
+            shipUpdate.inertiaData != physShip._inertia ||
+            shipUpdate.isStatic != physShip.wasStaticBeforeSleeping ||
+            shipUpdate.shipVoxelsFullyLoaded != physShip.voxelsFullyLoaded ||
+            shipUpdate.simulationLod < physShip.simulationLod
+
+    /**
+     * Make [physShip] move again if it's sleeping, and make it wait the full [VSCoreConfig.Server.shipSleepTicks]
+     * before it may fall asleep again
+     */
+    private fun wakeUp(physShip: PhysShip) {
+        physShip.ticksAtRest = 0
+        if (!physShip.isSleeping) return
+        physShip.ticksAsleep = -1
+        physShip.rigidBodyReference.isStatic = physShip.wasStaticBeforeSleeping
+        // [physTick] is the number of the next frame made, which is the first one this ship is in again
+        pendingSleepStateChanges.add(ShipSleepStateChange(physShip.shipId, physTick, null))
+    }
+
+    /**
+     * Wake up the sleeping ships that awake ships touch. Ships that were static before falling asleep stay asleep,
+     * since touching them doesn't move them anyway.
+     *
+     * Usually only a few ships are awake, so every awake ship is checked against every sleeping ship.
+     */
+    private fun wakeTouchedShips() {
+        if (awakeShips.isEmpty()) return
+        sleepingShipsWakeableByContact.forEach { sleeping ->
+            if (awakeShips.any { it.aabb.intersectsAABB(sleeping.aabb) }) wakeUp(sleeping)
         }
+    }
+    // endregion
 
-        private val logger by logger()
+    companion object {
+        // Sleeping ships are still in this many frames, counting the one they fell asleep in, so that the network
+        // stage which skips every other frame still sends where the ship stopped
+        private const val SLEEPING_FRAMES = 2
     }
 }
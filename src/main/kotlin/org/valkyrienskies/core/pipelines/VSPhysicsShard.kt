@@ -0,0 +1,31 @@
+package org.valkyrienskies.core.pipelines
+
+import org.valkyrienskies.core.game.DimensionId
+import kotlin.concurrent.thread
+
+/**
+ * The physics of one dimension. Dimensions never interact physically, so each one gets its own physics world and its
+ * own thread, and a busy dimension doesn't slow down the others.
+ *
+ * Created by [VSPipeline] the first time a game frame touches [dimension], and retired once [dimension] has no ships
+ * left. A dimension that gets ships again later gets a new shard.
+ */
+internal class VSPhysicsShard(val dimension: DimensionId, vsPipeline: VSPipeline, val metrics: VSPipelineMetrics) {
+    val physicsStage = VSPhysicsPipelineStage(metrics)
+
+    val backgroundTask = VSPhysicsPipelineBackgroundTask(vsPipeline, this)
+
+    // Set by [retire], the physics thread then deletes the physics world and stops
+    @Volatile
+    var isRetired = false
+        private set
+
+    // The thread the physics engine of this dimension runs on
+    private val physicsThread: Thread = thread(start = true, priority = 8, name = "Physics thread ($dimension)") {
+        backgroundTask.run()
+    }
+
+    fun retire() {
+        isRetired = true
+    }
+}
@@ -2,8 +2,17 @@ package org.valkyrienskies.core.pipelines
 
 import org.joml.Vector3d
 import org.joml.Vector3dc
+import org.valkyrienskies.core.game.DimensionId
 import org.valkyrienskies.core.game.ships.ShipObjectServerWorld
-import kotlin.concurrent.thread
+import org.valkyrienskies.core.networking.RegisteredHandler
+import org.valkyrienskies.core.pipelines.replay.GameFrameRecorder
+import org.valkyrienskies.core.pipelines.replay.VoxelShapeUpdateCodec
+import org.valkyrienskies.core.util.events.EventConsumer
+import org.valkyrienskies.core.util.logger
+import org.valkyrienskies.core.util.tryAndPrint
+import java.io.IOException
+import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
 
 /**
  * A pipeline that moves data between the game, the physics, and the network stages.
@@ -13,23 +22,38 @@ import kotlin.concurrent.thread
  * The Physics stage sends [VSPhysicsFrame]s to the Game stage and to the Network stage.
  *
  * Game <--> Physics --> Network
+ *
+ * Each dimension has its own Physics stage running on its own thread, see [VSPhysicsShard]. Game frames are split by
+ * dimension, and the Game and Network stages take the physics frames of every dimension. The Network stage sends on
+ * its own thread, so slow networking doesn't hold up physics.
  */
 class VSPipeline(private val shipWorld: ShipObjectServerWorld) {
-    private val gameStage = VSGamePipelineStage(shipWorld)
-    private val physicsStage = VSPhysicsPipelineStage()
-    private val networkStage = VSNetworkPipelineStage(shipWorld)
+    /**
+     * Latency histograms of every stage, see [snapshotMetrics]
+     */
+    val metrics = VSPipelineMetrics()
+
+    private val gameStage = VSGamePipelineStage(shipWorld, metrics)
+    private val networkStage = VSNetworkPipelineStage(shipWorld, metrics)
 
-    private val physicsPipelineBackgroundTask: VSPhysicsPipelineBackgroundTask = VSPhysicsPipelineBackgroundTask(this)
+    // Only changed by the game thread, read by anyone asking for stats
+    private val physicsShards = ConcurrentHashMap<DimensionId, VSPhysicsShard>()
 
     @Volatile
     var arePhysicsRunning = false
 
-    // The thread the physics engine runs on
-    private val physicsThread: Thread = thread(start = true, priority = 8, name = "Physics thread") {
-        physicsPipelineBackgroundTask.run()
-    }
-
+    /**
+     * Set to delete the physics world of every dimension and stop the network stage
+     */
+    @Volatile
     var deleteResources = false
+        set(value) {
+            // Shut down once here, the physics threads each only delete their own physics world
+            if (value && !field) networkStage.shutdown()
+            field = value
+        }
+
+    private var gameFrameRecorder: GameFrameRecorder? = null
 
     fun preTickGame() {
         gameStage.preTickGame()
@@ -37,25 +61,138 @@ class VSPipeline(private val shipWorld: ShipObjectServerWorld) {
 
     fun postTickGame() {
         val gameFrame = gameStage.postTickGame()
-        physicsStage.pushGameFrame(gameFrame)
+        // Recorded before physics gets the frame, physics may modify it when merging frames
+        gameFrameRecorder?.let { recordGameFrame(it, gameFrame) }
+        gameStage.splitGameFrameByDimension(gameFrame).forEach { (dimension, dimensionGameFrame) ->
+            physicsShards.getOrPut(dimension) { VSPhysicsShard(dimension, this, metrics) }
+                .physicsStage.pushGameFrame(dimensionGameFrame)
+            // The physics thread may stop before it applies this frame, which is fine as the frame deleted every ship
+            if (!gameStage.dimensionHasShips(dimension)) physicsShards.remove(dimension)?.retire()
+        }
+    }
+
+    /**
+     * Start writing every game frame to [path], see [GameFrameRecorder]. Must be called from the game thread.
+     */
+    fun startRecordingGameFrames(path: Path, voxelCodec: VoxelShapeUpdateCodec? = null) {
+        stopRecordingGameFrames()
+        gameFrameRecorder = GameFrameRecorder(path, voxelCodec)
+        logger.info("Recording game frames to $path")
+    }
+
+    /**
+     * Must be called from the game thread.
+     *
+     * @return the number of frames recorded, or 0 if we weren't recording
+     */
+    fun stopRecordingGameFrames(): Int {
+        val recorder = gameFrameRecorder ?: return 0
+        gameFrameRecorder = null
+        recorder.close()
+        return recorder.framesRecorded
+    }
+
+    private fun recordGameFrame(recorder: GameFrameRecorder, gameFrame: VSGameFrame) {
+        try {
+            recorder.record(gameFrame)
+        } catch (e: IOException) {
+            // Recording is for debugging, it shouldn't take the server down
+            logger.error("Failed to record game frame, stopping recording", e)
+            gameFrameRecorder = null
+            tryAndPrint { recorder.close() }
+        }
     }
 
-    fun tickPhysics(gravity: Vector3dc, timeStep: Double, simulatePhysics: Boolean) {
-        if (deleteResources) {
-            physicsStage.deleteResources()
-            physicsPipelineBackgroundTask.tellTaskToKillItself()
+    /**
+     * Tick the physics of [shard], called on the physics thread of [shard]
+     */
+    internal fun tickPhysics(shard: VSPhysicsShard, gravity: Vector3dc, timeStep: Double, simulatePhysics: Boolean) {
+        if (deleteResources || shard.isRetired) {
+            shard.physicsStage.deleteResources()
+            shard.backgroundTask.tellTaskToKillItself()
             return
         }
-        val physicsFrame = physicsStage.tickPhysics(gravity, timeStep, simulatePhysics)
-        gameStage.pushPhysicsFrame(physicsFrame)
-        networkStage.pushPhysicsFrame(physicsFrame)
+        val physicsFrame = shard.physicsStage.tickPhysics(
+            gravity, timeStep, simulatePhysics, gameStage.getRecycledPhysicsFrame(shard.dimension)
+        )
+        gameStage.pushPhysicsFrame(shard.dimension, physicsFrame)
+        networkStage.pushPhysicsFrame(shard.dimension, physicsFrame)
     }
 
     fun getPhysicsGravity(): Vector3dc {
         return Vector3d(0.0, -10.0, 0.0)
     }
 
+    /**
+     * The physics TPS of the slowest dimension, or 0 if no dimension has physics yet
+     */
     fun computePhysTps(): Double {
-        return physicsPipelineBackgroundTask.computePhysicsTPS()
+        return physicsShards.values.minOfOrNull { it.backgroundTask.computePhysicsTPS() } ?: 0.0
+    }
+
+    /**
+     * The physics TPS of [dimension], or 0 if it has no physics yet
+     */
+    fun computePhysTps(dimension: DimensionId): Double {
+        return physicsShards[dimension]?.backgroundTask?.computePhysicsTPS() ?: 0.0
+    }
+
+    /**
+     * The physics sub-steps of [dimension], or 0 if it has no physics yet
+     */
+    fun getPhysicsSubSteps(dimension: DimensionId): Int =
+        physicsShards[dimension]?.backgroundTask?.getPhysicsSubSteps() ?: 0
+
+    /**
+     * The dimensions that have their own physics world and thread
+     */
+    fun getPhysicsDimensions(): Set<DimensionId> = physicsShards.keys
+
+    /**
+     * The latencies recorded in [metrics] since the last [VSPipelineMetrics.reset], the current queue depths, and the
+     * number of ships at each simulation LOD
+     */
+    fun snapshotMetrics(): VSPipelineMetricsSnapshot = metrics.snapshot(
+        physicsShards.values.sumOf { it.physicsStage.getGameFrameQueueDepth() },
+        gameStage.getPhysicsFrameHistoryDepth(),
+        shipWorld.getShipCountsBySimulationLod()
+    )
+
+    /**
+     * The average physics tick time of the slowest dimension
+     */
+    fun getAveragePhysicsTickTimeNs(): Long =
+        physicsShards.values.maxOfOrNull { it.backgroundTask.getAveragePhysicsTickTimeNs() } ?: 0L
+
+    /**
+     * The physics ticks skipped in every dimension
+     */
+    fun getSkippedPhysicsTicks(): Long = physicsShards.values.sumOf { it.backgroundTask.getSkippedPhysicsTicks() }
+
+    /**
+     * How often the game thread had to wait on, or merge frames for, the physics threads
+     */
+    fun getGameFrameQueueCounters(): FrameQueueCounters =
+        physicsShards.values.fold(FrameQueueCounters.ZERO) { sum, shard ->
+            sum + shard.physicsStage.getGameFrameQueueCounters()
+        }
+
+    /**
+     * Listen to every physics frame, see [VSGamePipelineStage.onPhysicsFrame]
+     */
+    fun onPhysicsFrame(cb: EventConsumer<VSPhysicsFrame>): RegisteredHandler = gameStage.onPhysicsFrame(cb)
+
+    /**
+     * The number of physics frames the game thread skipped because a newer one was already available
+     */
+    fun getSkippedPhysicsFrameCount(): Long = gameStage.getSkippedPhysicsFrameCount()
+
+    /**
+     * How many physics frames were dropped before physics frame listeners received them
+     */
+    fun getPhysicsFrameHistoryCounters(): FrameQueueCounters = gameStage.getPhysicsFrameHistoryCounters()
+
+    companion object {
+        private val logger by logger()
     }
 }
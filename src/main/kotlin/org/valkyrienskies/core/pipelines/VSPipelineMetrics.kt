@@ -0,0 +1,101 @@
+package org.valkyrienskies.core.pipelines
+
+import org.valkyrienskies.core.datastructures.LatencyHistogram
+import org.valkyrienskies.core.datastructures.LatencySnapshot
+import org.valkyrienskies.core.game.ships.ShipSimulationLod
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Latency histograms for each stage of a [VSPipeline]. Every stage of a pipeline records into the same instance.
+ */
+class VSPipelineMetrics {
+    // region Game stage
+    val gameFrameCreation = LatencyHistogram()
+
+    // Time from a physics frame being created to the game applying it
+    val physicsFrameAgeOnGame = LatencyHistogram()
+    // endregion
+
+    // region Physics stage
+    val gameFrameApplication = LatencyHistogram()
+    val physicsEngineTick = LatencyHistogram()
+    val physicsFrameCreation = LatencyHistogram()
+
+    // Time from a game frame being created to physics applying it. For merged frames this is the oldest frame's age
+    val gameFrameAgeOnPhysics = LatencyHistogram()
+
+    // The number of times any dimension lowered or raised its physics quality, see [PhysicsQualityController]
+    val physicsQualityChanges = AtomicLong()
+    // endregion
+
+    // region Network stage
+    // Time to write the transform packets of one physics frame for every player, and then to hand them to the socket
+    val networkEncode = LatencyHistogram()
+    val networkSend = LatencyHistogram()
+
+    // Time from a physics frame being created to the network thread starting on it
+    val physicsFrameAgeOnNetwork = LatencyHistogram()
+
+    // Physics frames replaced by a newer one before the network thread got to them
+    val networkSkippedFrames = AtomicLong()
+
+    // Transform packets written but not handed to the socket yet
+    val networkSendQueueDepth = AtomicInteger()
+    // endregion
+
+    fun snapshot(
+        gameFrameQueueDepth: Int,
+        physicsFrameHistoryDepth: Int,
+        shipsPerSimulationLod: Map<ShipSimulationLod, Int> = emptyMap()
+    ): VSPipelineMetricsSnapshot =
+        VSPipelineMetricsSnapshot(
+            gameFrameCreation.snapshot(),
+            physicsFrameAgeOnGame.snapshot(),
+            gameFrameApplication.snapshot(),
+            physicsEngineTick.snapshot(),
+            physicsFrameCreation.snapshot(),
+            gameFrameAgeOnPhysics.snapshot(),
+            physicsQualityChanges.get(),
+            networkEncode.snapshot(),
+            networkSend.snapshot(),
+            physicsFrameAgeOnNetwork.snapshot(),
+            networkSkippedFrames.get(),
+            gameFrameQueueDepth,
+            physicsFrameHistoryDepth,
+            networkSendQueueDepth.get(),
+            shipsPerSimulationLod
+        )
+
+    fun reset() {
+        gameFrameCreation.reset()
+        physicsFrameAgeOnGame.reset()
+        gameFrameApplication.reset()
+        physicsEngineTick.reset()
+        physicsFrameCreation.reset()
+        gameFrameAgeOnPhysics.reset()
+        physicsQualityChanges.set(0)
+        networkEncode.reset()
+        networkSend.reset()
+        physicsFrameAgeOnNetwork.reset()
+        networkSkippedFrames.set(0)
+    }
+}
+
+data class VSPipelineMetricsSnapshot(
+    val gameFrameCreation: LatencySnapshot,
+    val physicsFrameAgeOnGame: LatencySnapshot,
+    val gameFrameApplication: LatencySnapshot,
+    val physicsEngineTick: LatencySnapshot,
+    val physicsFrameCreation: LatencySnapshot,
+    val gameFrameAgeOnPhysics: LatencySnapshot,
+    val physicsQualityChanges: Long,
+    val networkEncode: LatencySnapshot,
+    val networkSend: LatencySnapshot,
+    val physicsFrameAgeOnNetwork: LatencySnapshot,
+    val networkSkippedFrames: Long,
+    val gameFrameQueueDepth: Int, // Game frames waiting for the physics thread
+    val physicsFrameHistoryDepth: Int, // Physics frames waiting for physics frame listeners
+    val networkSendQueueDepth: Int, // Transform packets waiting for the network thread to send them
+    val shipsPerSimulationLod: Map<ShipSimulationLod, Int> // The number of loaded ships at each LOD
+)
@@ -0,0 +1,97 @@
+package org.valkyrienskies.core.pipelines
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap
+import it.unimi.dsi.fastutil.ints.IntArrayList
+import org.joml.Vector3ic
+import org.valkyrienskies.physics_api.voxel_updates.DenseVoxelShapeUpdate
+import org.valkyrienskies.physics_api.voxel_updates.IVoxelShapeUpdate
+import org.valkyrienskies.physics_api.voxel_updates.SparseVoxelShapeUpdate
+
+/**
+ * The voxel changes made to one 16x16x16 chunk of a ship.
+ *
+ * [baseUpdate] replaces the voxels of the whole chunk (for example when the chunk was loaded), then the single voxel
+ * edits are applied on top of it. We keep the single voxel edits ourselves instead of in a [SparseVoxelShapeUpdate] so
+ * that [VSGameFrameMerger] can combine the edits of several game frames.
+ */
+class VoxelChunkUpdate(val chunkPos: Vector3ic, baseUpdate: IVoxelShapeUpdate? = null) {
+
+    var baseUpdate: IVoxelShapeUpdate? = baseUpdate
+        private set
+
+    // Each edit is packed as (voxelIndex shl 8) or voxelState, where voxelIndex = x or (y shl 4) or (z shl 8)
+    private val edits = IntArrayList()
+
+    // Maps voxelIndex -> position in [edits], so that editing a voxel twice keeps only the latest state
+    private val voxelIndexToEdit = Int2IntOpenHashMap().apply { defaultReturnValue(-1) }
+
+    val editCount: Int get() = edits.size
+
+    /**
+     * Set the voxel at local chunk position [x], [y], [z] (each in [0, 15]) to [voxelState].
+     */
+    fun setVoxel(x: Int, y: Int, z: Int, voxelState: Byte) {
+        when (val base = baseUpdate) {
+            is DenseVoxelShapeUpdate -> {
+                // Edit the dense update directly, it already contains the rest of the chunk
+                base.setVoxel(x, y, z, voxelState)
+                return
+            }
+            is SparseVoxelShapeUpdate -> {
+                base.addUpdate(x, y, z, voxelState)
+                return
+            }
+            // An empty base still has to clear the chunk first, so the edit is applied on top of it
+        }
+
+        val voxelIndex = x or (y shl 4) or (z shl 8)
+        val packed = (voxelIndex shl 8) or (voxelState.toInt() and 0xFF)
+        val editPos = voxelIndexToEdit.get(voxelIndex)
+        if (editPos >= 0) {
+            edits[editPos] = packed
+        } else {
+            voxelIndexToEdit.put(voxelIndex, edits.size)
+            edits.add(packed)
+        }
+    }
+
+    /**
+     * Apply the changes of [newer] on top of this one. [newer] must be for the same chunk, and must not be used
+     * afterwards.
+     */
+    fun merge(newer: VoxelChunkUpdate) {
+        require(chunkPos == newer.chunkPos) { "Cannot merge voxel updates of $chunkPos and ${newer.chunkPos}" }
+
+        val newerBase = newer.baseUpdate
+        if (newerBase != null) {
+            // The newer update replaces the whole chunk, so everything we had is overwritten
+            baseUpdate = newerBase
+            edits.clear()
+            voxelIndexToEdit.clear()
+        }
+        newer.forEachEdit(::setVoxel)
+    }
+
+    inline fun forEachEdit(action: (x: Int, y: Int, z: Int, voxelState: Byte) -> Unit) {
+        for (i in 0 until editCount) {
+            val packed = getPackedEdit(i)
+            val voxelIndex = packed ushr 8
+            action(voxelIndex and 15, (voxelIndex shr 4) and 15, voxelIndex shr 8, packed.toByte())
+        }
+    }
+
+    @PublishedApi
+    internal fun getPackedEdit(i: Int): Int = edits.getInt(i)
+
+    /**
+     * Add the [IVoxelShapeUpdate]s that apply this update to [dest], in the order they must be applied.
+     */
+    fun toVoxelShapeUpdates(dest: MutableList<IVoxelShapeUpdate>) {
+        baseUpdate?.let(dest::add)
+        if (editCount != 0) {
+            val sparseUpdate = SparseVoxelShapeUpdate.createSparseVoxelShapeUpdate(chunkPos)
+            forEachEdit(sparseUpdate::addUpdate)
+            dest.add(sparseUpdate)
+        }
+    }
+}
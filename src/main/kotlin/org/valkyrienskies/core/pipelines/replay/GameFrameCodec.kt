@@ -0,0 +1,285 @@
+package org.valkyrienskies.core.pipelines.replay
+
+import io.netty.buffer.ByteBuf
+import org.joml.Matrix3d
+import org.joml.Matrix3dc
+import org.joml.Vector3i
+import org.joml.Vector3ic
+import org.joml.primitives.AABBi
+import org.joml.primitives.AABBic
+import org.valkyrienskies.core.game.ships.PhysInertia
+import org.valkyrienskies.core.game.ships.ShipId
+import org.valkyrienskies.core.game.ships.ShipPhysicsData
+import org.valkyrienskies.core.game.ships.ShipSimulationLod
+import org.valkyrienskies.core.pipelines.NewShipInGameFrameData
+import org.valkyrienskies.core.pipelines.SegmentUtils
+import org.valkyrienskies.core.pipelines.UpdateShipInGameFrameData
+import org.valkyrienskies.core.pipelines.VSGameFrame
+import org.valkyrienskies.core.pipelines.VoxelChunkUpdate
+import org.valkyrienskies.core.util.readQuatd
+import org.valkyrienskies.core.util.readVec3d
+import org.valkyrienskies.core.util.writeQuatd
+import org.valkyrienskies.core.util.writeVec3d
+import org.valkyrienskies.physics_api.PoseVel
+
+/**
+ * Converts [VSGameFrame]s to and from bytes for [GameFrameRecorder] and [GameFrameReader].
+ *
+ * Two things can't be recorded:
+ * - [NewShipInGameFrameData.forcesInducers] are arbitrary objects, ships are replayed without them
+ * - Whole chunk voxel updates are left out unless [voxelCodec] supports them, see [VoxelShapeUpdateCodec]
+ *
+ * Both are counted so that replays can report what was missing.
+ */
+class GameFrameCodec(private val voxelCodec: VoxelShapeUpdateCodec? = null) {
+
+    var omittedVoxelShapeUpdates = 0L
+        private set
+
+    var omittedForcesInducers = 0L
+        private set
+
+    /**
+     * @param startNs subtracted from [VSGameFrame.createdAtNs], so that frame times start at 0 in a recording
+     */
+    fun write(frame: VSGameFrame, startNs: Long, buf: ByteBuf) {
+        buf.writeLong(frame.createdAtNs - startNs)
+
+        buf.writeInt(frame.deletedShips.size)
+        frame.deletedShips.forEach { buf.writeLong(it) }
+
+        buf.writeInt(frame.newShips.size)
+        frame.newShips.forEach { writeNewShip(it, buf) }
+
+        buf.writeInt(frame.updatedShips.size)
+        frame.updatedShips.values.forEach { writeUpdatedShip(it, buf) }
+
+        buf.writeInt(frame.voxelUpdatesMap.size)
+        frame.voxelUpdatesMap.forEach { (shipId, chunkUpdates) ->
+            buf.writeLong(shipId)
+            buf.writeInt(chunkUpdates.size)
+            chunkUpdates.values.forEach { writeChunkUpdate(it, buf) }
+        }
+    }
+
+    /**
+     * @param startNs added to the recorded frame time
+     */
+    fun read(buf: ByteBuf, startNs: Long): VSGameFrame {
+        val createdAtNs = buf.readLong() + startNs
+
+        val deletedShipCount = buf.readInt()
+        val deletedShips = ArrayList<ShipId>(deletedShipCount)
+        repeat(deletedShipCount) { deletedShips.add(buf.readLong()) }
+
+        val newShipCount = buf.readInt()
+        val newShips = ArrayList<NewShipInGameFrameData>(newShipCount)
+        repeat(newShipCount) { newShips.add(readNewShip(buf)) }
+
+        val updatedShipCount = buf.readInt()
+        val updatedShips = HashMap<ShipId, UpdateShipInGameFrameData>(updatedShipCount)
+        repeat(updatedShipCount) { readUpdatedShip(buf).let { updatedShips[it.uuid] = it } }
+
+        val voxelShipCount = buf.readInt()
+        val voxelUpdatesMap = HashMap<ShipId, Map<Vector3ic, VoxelChunkUpdate>>(voxelShipCount)
+        repeat(voxelShipCount) {
+            val shipId = buf.readLong()
+            val chunkCount = buf.readInt()
+            val chunkUpdates = HashMap<Vector3ic, VoxelChunkUpdate>(chunkCount)
+            repeat(chunkCount) { readChunkUpdate(buf)?.let { chunkUpdates[it.chunkPos] = it } }
+            voxelUpdatesMap[shipId] = chunkUpdates
+        }
+
+        return VSGameFrame(newShips, deletedShips, updatedShips, voxelUpdatesMap, createdAtNs)
+    }
+
+    // region New and updated ships
+    private fun writeNewShip(ship: NewShipInGameFrameData, buf: ByteBuf) {
+        buf.writeLong(ship.uuid)
+        buf.writeInt(ship.dimension)
+        buf.writeVec3i(ship.minDefined)
+        buf.writeVec3i(ship.maxDefined)
+        buf.writeAABBi(ship.totalVoxelRegion)
+        buf.writeInertia(ship.inertiaData)
+        buf.writePhysicsData(ship.physicsData)
+        buf.writeVec3d(ship.poseVel.pos)
+        buf.writeQuatd(ship.poseVel.rot)
+        buf.writeVec3d(ship.poseVel.vel)
+        buf.writeVec3d(ship.poseVel.omega)
+        // Physics only uses the scaling of the first segment, see [VSPhysicsPipelineStage.applyGameFrame]
+        buf.writeDouble(ship.segments.segments.values.first().segmentDisplacement.scaling)
+        buf.writeVec3d(ship.voxelOffset)
+        buf.writeBoolean(ship.isStatic)
+        buf.writeBoolean(ship.shipVoxelsFullyLoaded)
+        omittedForcesInducers += ship.forcesInducers.size
+    }
+
+    private fun readNewShip(buf: ByteBuf): NewShipInGameFrameData {
+        val uuid = buf.readLong()
+        val dimension = buf.readInt()
+        val minDefined = buf.readVec3i()
+        val maxDefined = buf.readVec3i()
+        val totalVoxelRegion = buf.readAABBi()
+        val inertiaData = buf.readInertia()
+        val physicsData = buf.readPhysicsData()
+        val poseVel = PoseVel(buf.readVec3d(), buf.readQuatd(), buf.readVec3d(), buf.readVec3d())
+        val segments = SegmentUtils.createSegmentTrackerFromScaling(dimension, buf.readDouble())
+        val voxelOffset = buf.readVec3d()
+        val isStatic = buf.readBoolean()
+        val shipVoxelsFullyLoaded = buf.readBoolean()
+
+        return NewShipInGameFrameData(
+            uuid,
+            dimension,
+            minDefined,
+            maxDefined,
+            totalVoxelRegion,
+            inertiaData,
+            physicsData,
+            poseVel,
+            segments,
+            voxelOffset,
+            isStatic,
+            shipVoxelsFullyLoaded,
+            emptyList()
+        )
+    }
+
+    private fun writeUpdatedShip(ship: UpdateShipInGameFrameData, buf: ByteBuf) {
+        buf.writeLong(ship.uuid)
+        buf.writeVec3d(ship.newVoxelOffset)
+        buf.writeInertia(ship.inertiaData)
+        buf.writePhysicsData(ship.physicsData)
+        buf.writeBoolean(ship.isStatic)
+        buf.writeBoolean(ship.shipVoxelsFullyLoaded)
+        buf.writeByte(ship.simulationLod.ordinal)
+    }
+
+    private fun readUpdatedShip(buf: ByteBuf): UpdateShipInGameFrameData = UpdateShipInGameFrameData(
+        buf.readLong(), buf.readVec3d(), buf.readInertia(), buf.readPhysicsData(), buf.readBoolean(), buf.readBoolean(),
+        SIMULATION_LODS[buf.readByte().toInt()]
+    )
+    // endregion
+
+    // region Voxel updates
+    private fun writeChunkUpdate(chunkUpdate: VoxelChunkUpdate, buf: ByteBuf) {
+        buf.writeVec3i(chunkUpdate.chunkPos)
+
+        val baseUpdate = chunkUpdate.baseUpdate
+        if (baseUpdate == null) {
+            buf.writeByte(BASE_NONE)
+        } else {
+            // Length prefixed, so that recordings can be read without the codec that wrote them
+            buf.writeByte(BASE_ENCODED)
+            val lengthIndex = buf.writerIndex()
+            buf.writeInt(0)
+            if (voxelCodec?.write(baseUpdate, buf) == true) {
+                buf.setInt(lengthIndex, buf.writerIndex() - lengthIndex - 4)
+            } else {
+                buf.writerIndex(lengthIndex - 1)
+                buf.writeByte(BASE_OMITTED)
+                omittedVoxelShapeUpdates++
+            }
+        }
+
+        buf.writeInt(chunkUpdate.editCount)
+        chunkUpdate.forEachEdit { x, y, z, voxelState ->
+            buf.writeInt((x or (y shl 4) or (z shl 8)) or ((voxelState.toInt() and 0xFF) shl 12))
+        }
+    }
+
+    /**
+     * @return null if the chunk update only had a base update that couldn't be read
+     */
+    private fun readChunkUpdate(buf: ByteBuf): VoxelChunkUpdate? {
+        val chunkPos = buf.readVec3i()
+
+        var baseOmitted = false
+        val chunkUpdate = when (buf.readByte().toInt()) {
+            BASE_NONE -> VoxelChunkUpdate(chunkPos)
+            BASE_ENCODED -> {
+                val length = buf.readInt()
+                if (voxelCodec != null) {
+                    VoxelChunkUpdate(chunkPos, voxelCodec.read(chunkPos, buf.readSlice(length)))
+                } else {
+                    buf.skipBytes(length)
+                    baseOmitted = true
+                    VoxelChunkUpdate(chunkPos)
+                }
+            }
+            BASE_OMITTED -> {
+                baseOmitted = true
+                VoxelChunkUpdate(chunkPos)
+            }
+            else -> throw IllegalStateException("Unknown voxel base update type in recording")
+        }
+        if (baseOmitted) omittedVoxelShapeUpdates++
+
+        repeat(buf.readInt()) {
+            val edit = buf.readInt()
+            chunkUpdate.setVoxel(edit and 15, (edit shr 4) and 15, (edit shr 8) and 15, (edit ushr 12).toByte())
+        }
+
+        return if (baseOmitted && chunkUpdate.editCount == 0) null else chunkUpdate
+    }
+    // endregion
+
+    companion object {
+        private const val BASE_NONE = 0
+        private const val BASE_ENCODED = 1
+        private const val BASE_OMITTED = 2
+
+        private val SIMULATION_LODS = ShipSimulationLod.values()
+
+        private fun ByteBuf.writeVec3i(v: Vector3ic) {
+            writeInt(v.x())
+            writeInt(v.y())
+            writeInt(v.z())
+        }
+
+        private fun ByteBuf.readVec3i(): Vector3i = Vector3i(readInt(), readInt(), readInt())
+
+        private fun ByteBuf.writeAABBi(aabb: AABBic) {
+            writeInt(aabb.minX())
+            writeInt(aabb.minY())
+            writeInt(aabb.minZ())
+            writeInt(aabb.maxX())
+            writeInt(aabb.maxY())
+            writeInt(aabb.maxZ())
+        }
+
+        private fun ByteBuf.readAABBi(): AABBi = AABBi(readInt(), readInt(), readInt(), readInt(), readInt(), readInt())
+
+        private fun ByteBuf.writeInertia(inertia: PhysInertia) {
+            writeDouble(inertia.shipMass)
+            writeMatrix3d(inertia.momentOfInertiaTensor)
+        }
+
+        private fun ByteBuf.readInertia(): PhysInertia = PhysInertia(readDouble(), readMatrix3d())
+
+        private fun ByteBuf.writeMatrix3d(m: Matrix3dc) {
+            writeDouble(m.m00())
+            writeDouble(m.m01())
+            writeDouble(m.m02())
+            writeDouble(m.m10())
+            writeDouble(m.m11())
+            writeDouble(m.m12())
+            writeDouble(m.m20())
+            writeDouble(m.m21())
+            writeDouble(m.m22())
+        }
+
+        private fun ByteBuf.readMatrix3d(): Matrix3d = Matrix3d(
+            readDouble(), readDouble(), readDouble(),
+            readDouble(), readDouble(), readDouble(),
+            readDouble(), readDouble(), readDouble()
+        )
+
+        private fun ByteBuf.writePhysicsData(physicsData: ShipPhysicsData) {
+            writeVec3d(physicsData.linearVelocity)
+            writeVec3d(physicsData.angularVelocity)
+        }
+
+        private fun ByteBuf.readPhysicsData(): ShipPhysicsData = ShipPhysicsData(readVec3d(), readVec3d())
+    }
+}
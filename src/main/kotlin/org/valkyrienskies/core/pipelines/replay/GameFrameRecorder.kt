@@ -0,0 +1,104 @@
+package org.valkyrienskies.core.pipelines.replay
+
+import io.netty.buffer.Unpooled
+import org.valkyrienskies.core.pipelines.VSGameFrame
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Writes every [VSGameFrame] passed to [record] to a file, which can be replayed later with [GameFrameReplayDriver].
+ *
+ * The file starts with [GameFrameRecording.MAGIC] and [GameFrameRecording.VERSION], followed by each frame as an int
+ * length and the bytes written by [GameFrameCodec].
+ *
+ * Not thread safe, frames must be recorded on the thread that creates them, before they are pushed to physics.
+ */
+class GameFrameRecorder(path: Path, voxelCodec: VoxelShapeUpdateCodec? = null) : Closeable {
+
+    val codec = GameFrameCodec(voxelCodec)
+
+    private val out = DataOutputStream(BufferedOutputStream(Files.newOutputStream(path)))
+
+    // Reused for every frame
+    private val buf = Unpooled.buffer()
+
+    // Frame times in the recording are relative to the first frame
+    private var startNs = 0L
+
+    var framesRecorded = 0
+        private set
+
+    init {
+        out.writeInt(GameFrameRecording.MAGIC)
+        out.writeInt(GameFrameRecording.VERSION)
+    }
+
+    fun record(frame: VSGameFrame) {
+        if (framesRecorded == 0) startNs = frame.createdAtNs
+
+        buf.clear()
+        codec.write(frame, startNs, buf)
+        out.writeInt(buf.readableBytes())
+        buf.readBytes(out, buf.readableBytes())
+        framesRecorded++
+    }
+
+    override fun close() {
+        out.close()
+        buf.release()
+    }
+}
+
+/**
+ * Reads the frames written by a [GameFrameRecorder] one at a time.
+ */
+class GameFrameReader(path: Path, voxelCodec: VoxelShapeUpdateCodec? = null) : Closeable {
+
+    val codec = GameFrameCodec(voxelCodec)
+
+    private val input = DataInputStream(BufferedInputStream(Files.newInputStream(path)))
+
+    // Grows to fit the largest frame
+    private var bytes = ByteArray(0)
+
+    init {
+        val magic = input.readInt()
+        if (magic != GameFrameRecording.MAGIC) throw IllegalStateException("$path is not a game frame recording")
+        val version = input.readInt()
+        if (version != GameFrameRecording.VERSION) {
+            throw IllegalStateException(
+                "$path is a version $version recording, but only version ${GameFrameRecording.VERSION} is supported"
+            )
+        }
+    }
+
+    /**
+     * @param startNs added to the frame times in the recording
+     * @return the next frame, or null at the end of the recording
+     */
+    fun next(startNs: Long = 0): VSGameFrame? {
+        val length = try {
+            input.readInt()
+        } catch (e: EOFException) {
+            return null
+        }
+        if (bytes.size < length) bytes = ByteArray(length)
+        input.readFully(bytes, 0, length)
+        return codec.read(Unpooled.wrappedBuffer(bytes, 0, length), startNs)
+    }
+
+    override fun close() {
+        input.close()
+    }
+}
+
+object GameFrameRecording {
+    const val MAGIC = 0x56534746 // "VSGF"
+    const val VERSION = 2 // 2 added UpdateShipInGameFrameData.simulationLod
+}
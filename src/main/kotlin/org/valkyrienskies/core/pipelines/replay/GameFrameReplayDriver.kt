@@ -0,0 +1,130 @@
+package org.valkyrienskies.core.pipelines.replay
+
+import org.joml.Vector3d
+import org.joml.Vector3dc
+import org.valkyrienskies.core.datastructures.LatencySnapshot
+import org.valkyrienskies.core.physics.PhysicsEngineType
+import org.valkyrienskies.core.pipelines.VSNetworkPipelineStage
+import org.valkyrienskies.core.pipelines.VSPhysicsFrame
+import org.valkyrienskies.core.pipelines.VSPhysicsPipelineStage
+import org.valkyrienskies.core.pipelines.VSPipelineMetrics
+import org.valkyrienskies.core.pipelines.VSPipelineMetricsSnapshot
+import java.nio.file.Paths
+
+/**
+ * Feeds a recording made by [GameFrameRecorder] through the physics and network stages as fast as possible, and
+ * reports how long each stage took.
+ *
+ * Frames are replayed in order, each followed by [physicsTicksPerGameFrame] physics ticks.
+ *
+ * @param metrics Pass the same instance to a network stage to include it in the report
+ */
+class GameFrameReplayDriver(
+    private val physicsTicksPerGameFrame: Int = 3,
+    private val timeStep: Double = 1.0 / 60.0,
+    private val gravity: Vector3dc = Vector3d(0.0, -10.0, 0.0),
+    val metrics: VSPipelineMetrics = VSPipelineMetrics()
+) {
+    init {
+        require(physicsTicksPerGameFrame > 0) { "physicsTicksPerGameFrame must be positive" }
+    }
+
+    /**
+     * Replays every frame of [reader]. [physicsStage] should be new, as the recording starts from an empty world.
+     *
+     * @param networkStage Receives every physics frame if not null. It only sends to the players tracking ships in its
+     * ship world, so it must be set up by the caller to measure anything.
+     */
+    fun replay(
+        reader: GameFrameReader,
+        physicsStage: VSPhysicsPipelineStage = VSPhysicsPipelineStage(metrics),
+        networkStage: VSNetworkPipelineStage? = null
+    ): GameFrameReplayReport {
+        var gameFrames = 0
+        // Nothing keeps physics frames after the network stage, so each tick reuses the last tick's frame
+        var physicsFrame: VSPhysicsFrame? = null
+        var recordedDurationNs = 0L
+        val replayStart = System.nanoTime()
+
+        while (true) {
+            val recordedFrame = reader.next() ?: break
+            recordedDurationNs = recordedFrame.createdAtNs
+            // Restamp the frame, so frame ages measure the replay rather than the recording
+            physicsStage.pushGameFrame(recordedFrame.copy(createdAtNs = System.nanoTime()))
+            gameFrames++
+
+            repeat(physicsTicksPerGameFrame) {
+                physicsFrame = physicsStage.tickPhysics(gravity, timeStep, true, physicsFrame).also {
+                    networkStage?.sendPhysicsFrame(REPLAY_DIMENSION, it)
+                }
+            }
+        }
+
+        return GameFrameReplayReport(
+            gameFrames,
+            gameFrames * physicsTicksPerGameFrame,
+            recordedDurationNs,
+            System.nanoTime() - replayStart,
+            metrics.snapshot(physicsStage.getGameFrameQueueDepth(), 0),
+            reader.codec.omittedVoxelShapeUpdates,
+            reader.codec.omittedForcesInducers
+        )
+    }
+
+    companion object {
+        // The network stage keeps track of sleeping ships per dimension, and a recording is of one physics shard
+        private const val REPLAY_DIMENSION = "replay"
+    }
+}
+
+data class GameFrameReplayReport(
+    val gameFrames: Int,
+    val physicsTicks: Int,
+    val recordedDurationNs: Long, // Time between the first and last frame when they were recorded
+    val replayDurationNs: Long,
+    val metrics: VSPipelineMetricsSnapshot,
+    val omittedVoxelShapeUpdates: Long, // Whole chunk voxel updates that weren't in the recording
+    val omittedForcesInducers: Long // Forces inducers of new ships that weren't in the recording
+) {
+    fun format(): String = buildString {
+        appendLine("Replayed $gameFrames game frames and $physicsTicks physics ticks")
+        appendLine("Recorded over ${recordedDurationNs / 1_000_000} ms, replayed in ${replayDurationNs / 1_000_000} ms")
+        appendLine(formatLatency("Game frame application", metrics.gameFrameApplication))
+        appendLine(formatLatency("Physics engine tick", metrics.physicsEngineTick))
+        appendLine(formatLatency("Physics frame creation", metrics.physicsFrameCreation))
+        appendLine(formatLatency("Network encode", metrics.networkEncode))
+        appendLine(formatLatency("Network send", metrics.networkSend))
+        if (omittedVoxelShapeUpdates != 0L || omittedForcesInducers != 0L) {
+            appendLine(
+                "Not replayed: $omittedVoxelShapeUpdates whole chunk voxel updates, " +
+                    "$omittedForcesInducers forces inducers"
+            )
+        }
+    }
+
+    companion object {
+        private fun formatLatency(name: String, latency: LatencySnapshot): String =
+            "$name: n=${latency.count} p50=${latency.p50Ns / 1000} us p99=${latency.p99Ns / 1000} us " +
+                "max=${latency.maxNs / 1000} us"
+    }
+}
+
+/**
+ * Replays a recording from the command line: `<recording> [physics ticks per game frame] [physics engine]`
+ *
+ * The physics engine is one of [PhysicsEngineType], replaying with `REFERENCE` measures the rest of the pipeline
+ * without the cost of Krunch.
+ */
+fun main(args: Array<String>) {
+    require(args.isNotEmpty()) { "Usage: <recording> [physics ticks per game frame] [physics engine]" }
+    val driver = GameFrameReplayDriver(args.getOrNull(1)?.toInt() ?: 3)
+    val physicsEngineType = args.getOrNull(2)?.let { PhysicsEngineType.valueOf(it) } ?: PhysicsEngineType.KRUNCH
+    val physicsStage = VSPhysicsPipelineStage(driver.metrics, physicsEngineType.createBackend())
+    try {
+        GameFrameReader(Paths.get(args[0])).use { reader ->
+            println(driver.replay(reader, physicsStage).format())
+        }
+    } finally {
+        physicsStage.deleteResources()
+    }
+}
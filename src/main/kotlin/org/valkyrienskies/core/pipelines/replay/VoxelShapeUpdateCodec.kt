@@ -0,0 +1,23 @@
+package org.valkyrienskies.core.pipelines.replay
+
+import io.netty.buffer.ByteBuf
+import org.joml.Vector3ic
+import org.valkyrienskies.physics_api.voxel_updates.IVoxelShapeUpdate
+
+/**
+ * Writes and reads the [IVoxelShapeUpdate]s that replace whole chunks, such as the updates created when a chunk loads.
+ *
+ * Core only ever writes to these updates, it can't read their voxels back, so recordings leave them out unless the
+ * code that created them provides a codec.
+ */
+interface VoxelShapeUpdateCodec {
+    /**
+     * @return false if [update] isn't supported, then it is left out of the recording
+     */
+    fun write(update: IVoxelShapeUpdate, buf: ByteBuf): Boolean
+
+    /**
+     * Read an update written by [write]. [buf] is reused once this returns, so the update must not keep it.
+     */
+    fun read(chunkPos: Vector3ic, buf: ByteBuf): IVoxelShapeUpdate
+}
@@ -12,6 +12,8 @@ import org.joml.Vector3ic
 import java.nio.ByteBuffer
 import java.util.function.Consumer
 import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.roundToLong
 import kotlin.math.sqrt
 
 fun Int.squared(): Int = this * this
@@ -100,6 +102,101 @@ fun ByteBuf.read3FAsNormQuatd(): Quaterniond {
     return Quaterniond(x, y, z, w).normalize()
 }
 
+/**
+ * Write [q] with "smallest three" compression: the index of its largest component in 2 bits, then its other three
+ * components in [bits] bits each, in as few whole bytes as fit. The largest component is recomputed by
+ * [readSmallestThreeQuatd], which works because [q] is normalized and q and -q are the same rotation.
+ *
+ * The other components are all between -1/sqrt(2) and 1/sqrt(2), so each is off by at most
+ * 1/sqrt(2) / (2^[bits] - 1) after reading.
+ */
+fun ByteBuf.writeSmallestThreeQuatd(q: Quaterniondc, bits: Int) =
+    writeSmallestThreeQuatd(packSmallestThreeQuatd(q, bits), bits)
+
+/**
+ * Write a quaternion packed by [packSmallestThreeQuatd]
+ */
+fun ByteBuf.writeSmallestThreeQuatd(packed: Long, bits: Int) {
+    for (byte in smallestThreeBytes(bits) - 1 downTo 0) writeByte((packed ushr (byte * 8)).toInt())
+}
+
+fun ByteBuf.readSmallestThreeQuatd(bits: Int, dest: Quaterniond = Quaterniond()): Quaterniond =
+    unpackSmallestThreeQuatd(readPackedSmallestThreeQuatd(bits), bits, dest)
+
+fun ByteBuf.readPackedSmallestThreeQuatd(bits: Int): Long {
+    var packed = 0L
+    repeat(smallestThreeBytes(bits)) { packed = (packed shl 8) or readUnsignedByte().toLong() }
+    return packed
+}
+
+/**
+ * Pack [q] like [writeSmallestThreeQuatd] writes it, into the low bits of a long. The quantized components can be
+ * taken back out with [smallestThreeComponent].
+ */
+fun packSmallestThreeQuatd(q: Quaterniondc, bits: Int): Long {
+    require(bits in 1..20) { "Can't pack a quaternion with $bits bits per component" }
+    val components = doubleArrayOf(q.x(), q.y(), q.z(), q.w())
+    val length = sqrt(q.lengthSquared())
+    var largest = 0
+    for (i in 1 until 4) if (abs(components[i]) > abs(components[largest])) largest = i
+    // Make the largest component positive, so that its sign doesn't need to be sent
+    val scale = if (components[largest] < 0) -1.0 / length else 1.0 / length
+
+    val maxQuantized = (1 shl bits) - 1
+    var packed = largest.toLong()
+    for (i in 0 until 4) {
+        if (i == largest) continue
+        val normalized = (components[i] * scale + SMALLEST_THREE_MAX) / (2 * SMALLEST_THREE_MAX)
+        packed = (packed shl bits) or (normalized * maxQuantized).roundToLong().coerceIn(0L, maxQuantized.toLong())
+    }
+    return packed
+}
+
+fun unpackSmallestThreeQuatd(packed: Long, bits: Int, dest: Quaterniond = Quaterniond()): Quaterniond {
+    require(bits in 1..20) { "Can't unpack a quaternion with $bits bits per component" }
+    val maxQuantized = (1 shl bits) - 1
+    val components = DoubleArray(4)
+    val largest = smallestThreeLargestIndex(packed, bits)
+    var remaining = packed
+    var sumSq = 0.0
+    for (i in 3 downTo 0) {
+        if (i == largest) continue
+        val quantized = (remaining and maxQuantized.toLong()).toDouble()
+        remaining = remaining ushr bits
+        components[i] = quantized / maxQuantized * (2 * SMALLEST_THREE_MAX) - SMALLEST_THREE_MAX
+        sumSq += components[i] * components[i]
+    }
+    components[largest] = sqrt(max(0.0, 1.0 - sumSq))
+
+    return dest.set(components[0], components[1], components[2], components[3]).normalize()
+}
+
+/**
+ * @return the index of the component of a packed quaternion that wasn't sent
+ */
+fun smallestThreeLargestIndex(packed: Long, bits: Int): Int = (packed ushr (bits * 3)).toInt() and 3
+
+/**
+ * @return the [n]th of the three quantized components of a packed quaternion, from 0 to 2^[bits] - 1
+ */
+fun smallestThreeComponent(packed: Long, bits: Int, n: Int): Int =
+    (packed ushr (bits * (2 - n))).toInt() and ((1 shl bits) - 1)
+
+/**
+ * @return a packed quaternion with the largest component index [largest], and quantized components [a], [b] and [c]
+ */
+fun smallestThreeOf(largest: Int, a: Int, b: Int, c: Int, bits: Int): Long {
+    var packed = largest.toLong()
+    packed = (packed shl bits) or a.toLong()
+    packed = (packed shl bits) or b.toLong()
+    return (packed shl bits) or c.toLong()
+}
+
+private fun smallestThreeBytes(bits: Int) = (2 + bits * 3 + 7) / 8
+
+// The largest absolute value the three smallest components of a normalized quaternion can have
+private val SMALLEST_THREE_MAX = 1.0 / sqrt(2.0)
+
 fun ByteBuf.writeQuatd(q: Quaterniondc) {
     writeDouble(q.x())
     writeDouble(q.y())
@@ -121,6 +218,42 @@ fun ByteBuf.readVec3d(): Vector3d {
     return Vector3d(readDouble(), readDouble(), readDouble())
 }
 
+/**
+ * Write [value] in 1 to 5 bytes, 7 bits at a time. Small non-negative values take the fewest bytes, negative values
+ * always take 5, use [writeZigZagVarInt] for those.
+ */
+fun ByteBuf.writeVarInt(value: Int) {
+    var remaining = value
+    while (remaining and 0x7F.inv() != 0) {
+        writeByte((remaining and 0x7F) or 0x80)
+        remaining = remaining ushr 7
+    }
+    writeByte(remaining)
+}
+
+fun ByteBuf.readVarInt(): Int {
+    var value = 0
+    var shift = 0
+    while (true) {
+        val byte = readByte().toInt()
+        value = value or ((byte and 0x7F) shl shift)
+        if (byte and 0x80 == 0) return value
+        shift += 7
+        if (shift >= 35) throw IllegalStateException("VarInt is longer than 5 bytes")
+    }
+}
+
+/**
+ * Write [value] as a [writeVarInt] after mapping 0, -1, 1, -2, ... to 0, 1, 2, 3, ..., so values close to zero take
+ * few bytes whatever their sign
+ */
+fun ByteBuf.writeZigZagVarInt(value: Int) = writeVarInt((value shl 1) xor (value shr 31))
+
+fun ByteBuf.readZigZagVarInt(): Int {
+    val zigZag = readVarInt()
+    return (zigZag ushr 1) xor -(zigZag and 1)
+}
+
 /**
  * Returns an array containing the results of applying the
  * given [transform] function to each element in the original array.
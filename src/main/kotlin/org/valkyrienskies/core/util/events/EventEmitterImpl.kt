@@ -11,6 +11,8 @@ class EventEmitterImpl<T> : EventEmitter<T> {
         listeners.forEach { it.accept(value) }
     }
 
+    fun hasListeners(): Boolean = listeners.isNotEmpty()
+
     override fun on(cb: EventConsumer<T>): RegisteredHandler {
         val listener = EventListener(cb)
         listener.handler = RegisteredHandler { listeners.remove(listener) }
@@ -0,0 +1,73 @@
+package org.valkyrienskies.core
+
+import org.joml.Matrix3d
+import org.joml.Quaterniond
+import org.joml.Vector3d
+import org.joml.Vector3i
+import org.joml.Vector3ic
+import org.joml.primitives.AABBi
+import org.valkyrienskies.core.api.ShipForcesInducer
+import org.valkyrienskies.core.game.ships.PhysInertia
+import org.valkyrienskies.core.game.ships.ShipId
+import org.valkyrienskies.core.game.ships.ShipPhysicsData
+import org.valkyrienskies.core.game.ships.ShipSimulationLod
+import org.valkyrienskies.core.pipelines.NewShipInGameFrameData
+import org.valkyrienskies.core.pipelines.SegmentUtils
+import org.valkyrienskies.core.pipelines.UpdateShipInGameFrameData
+import org.valkyrienskies.core.pipelines.VSGameFrame
+import org.valkyrienskies.core.pipelines.VoxelChunkUpdate
+import org.valkyrienskies.physics_api.PoseVel
+import org.valkyrienskies.physics_api.voxel_updates.KrunchVoxelStates
+
+/**
+ * This singleton builds the game frames, and the ships in them, for unit tests of the pipeline stages.
+ */
+internal object VSGameFrameFixtures {
+
+    fun gameFrame(
+        newShips: List<NewShipInGameFrameData> = emptyList(),
+        deletedShips: List<ShipId> = emptyList(),
+        updatedShips: List<UpdateShipInGameFrameData> = emptyList(),
+        voxelUpdates: Map<ShipId, Map<Vector3ic, VoxelChunkUpdate>> = emptyMap()
+    ) = VSGameFrame(newShips, deletedShips, updatedShips.associateBy { it.uuid }, voxelUpdates)
+
+    /**
+     * A ship with a unit inertia and no voxels, at [pos] moving with [vel]
+     */
+    fun newShip(
+        id: ShipId,
+        dimension: Int = 0,
+        pos: Vector3d = Vector3d(),
+        vel: Vector3d = Vector3d(),
+        forcesInducers: List<ShipForcesInducer> = emptyList(),
+        isStatic: Boolean = false
+    ) = NewShipInGameFrameData(
+        id, dimension, Vector3i(), Vector3i(), AABBi(), inertia(), ShipPhysicsData.createEmpty(),
+        PoseVel(pos, Quaterniond(), vel, Vector3d()), SegmentUtils.createSegmentTrackerFromScaling(dimension, 1.0),
+        Vector3d(), isStatic, true, forcesInducers
+    )
+
+    /**
+     * An update that only changes what's given, for ships made by [newShip]
+     */
+    fun updateShip(
+        id: ShipId,
+        simulationLod: ShipSimulationLod = ShipSimulationLod.FULL,
+        voxelOffset: Vector3d = Vector3d(),
+        isStatic: Boolean = false
+    ) = UpdateShipInGameFrameData(
+        id, voxelOffset, inertia(), ShipPhysicsData.createEmpty(), isStatic, true, simulationLod
+    )
+
+    /**
+     * The update of the chunk at (0, 0, 0) that places a single solid voxel at (0, 0, 0)
+     */
+    fun solidVoxelAtOrigin(): Map<Vector3ic, VoxelChunkUpdate> {
+        val chunkPos: Vector3ic = Vector3i()
+        val update = VoxelChunkUpdate(chunkPos)
+        update.setVoxel(0, 0, 0, KrunchVoxelStates.SOLID_STATE)
+        return mapOf(chunkPos to update)
+    }
+
+    fun inertia() = PhysInertia(1.0, Matrix3d())
+}
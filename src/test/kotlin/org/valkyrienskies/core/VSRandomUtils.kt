@@ -17,12 +17,7 @@ import org.valkyrienskies.core.game.ships.ShipId
 import org.valkyrienskies.core.game.ships.ShipInertiaData
 import org.valkyrienskies.core.game.ships.ShipPhysicsData
 import org.valkyrienskies.core.game.ships.ShipTransform
-import org.valkyrienskies.core.pipelines.ShipInPhysicsFrameData
-import org.valkyrienskies.physics_api.PoseVel
-import org.valkyrienskies.physics_api.RigidBodyInertiaData
-import org.valkyrienskies.physics_api.Segment
-import org.valkyrienskies.physics_api.SegmentDisplacement
-import org.valkyrienskies.physics_api.SingleSegmentTracker
+import org.valkyrienskies.core.pipelines.VSPhysicsFrame
 import kotlin.math.sqrt
 import kotlin.random.Random
 import kotlin.random.asJavaRandom
@@ -223,22 +218,21 @@ internal object VSRandomUtils {
     @Suppress("WeakerAccess")
     fun randomShipId(): ShipId = Random.nextLong()
 
+    /**
+     * Adds a ship with a random state to [frame]
+     *
+     * @return the slot of the ship
+     */
     @Suppress("WeakerAccess")
-    fun randomShipInPhysicsFrame(id: ShipId = randomShipId()): ShipInPhysicsFrameData =
-        ShipInPhysicsFrameData(
+    fun addRandomShipToPhysicsFrame(frame: VSPhysicsFrame, id: ShipId = randomShipId()): Int =
+        frame.addShip(
             id,
-            RigidBodyInertiaData(
-                Random.nextDouble(),
-                randomMatrix3d()
-            ),
-            PoseVel(
-                randomVector3d(),
-                randomQuaterniond(),
-                randomVector3d(),
-                randomVector3d()
-            ),
-            SingleSegmentTracker(Segment(0, SegmentDisplacement(PoseVel.NULL_POSE_VEL, 1.0, 0))),
             randomVector3d(),
+            randomQuaterniond(),
+            randomVector3d(),
+            randomVector3d(),
+            randomVector3d(),
+            1.0,
             randomAABBd()
         )
 
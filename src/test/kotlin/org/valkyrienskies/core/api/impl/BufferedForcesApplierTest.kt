@@ -0,0 +1,110 @@
+package org.valkyrienskies.core.api.impl
+
+import org.joml.Vector3d
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.valkyrienskies.core.physics.RecordingRigidBody
+
+internal class BufferedForcesApplierTest {
+
+    private val applier = BufferedForcesApplier()
+    private val body = RecordingRigidBody()
+
+    @Test
+    fun forcesWithoutPositionAreSummed() {
+        applier.applyRotDependentForce(Vector3d(1.0, 0.0, 0.0))
+        applier.applyRotDependentForce(Vector3d(2.0, 0.0, 0.0))
+        applier.applyInvariantForce(Vector3d(0.0, 1.0, 0.0))
+        applier.applyInvariantForce(Vector3d(0.0, 2.0, 0.0))
+        applier.applyRotDependentTorque(Vector3d(0.0, 0.0, 3.0))
+        applier.applyInvariantTorque(Vector3d(4.0, 0.0, 0.0))
+        applier.applyInvariantTorque(Vector3d(-1.0, 0.0, 0.0))
+        applier.applyTo(body)
+
+        assertEquals(
+            listOf(
+                "rotDependentForce (3.0, 0.0, 0.0)",
+                "invariantForce (0.0, 3.0, 0.0)",
+                "rotDependentTorque (0.0, 0.0, 3.0)",
+                "invariantTorque (3.0, 0.0, 0.0)"
+            ),
+            body.forces
+        )
+    }
+
+    @Test
+    fun kindsThatSumToZeroAreNotPassed() {
+        applier.applyInvariantForce(Vector3d(1.0, 0.0, 0.0))
+        applier.applyInvariantForce(Vector3d(-1.0, 0.0, 0.0))
+        applier.applyTo(body)
+
+        assertEquals(emptyList<String>(), body.forces)
+    }
+
+    @Test
+    fun forcesAtPositionsArePassedOneByOneInOrder() {
+        applier.applyInvariantForceToPos(Vector3d(1.0, 0.0, 0.0), Vector3d(0.0, 1.0, 0.0))
+        applier.applyInvariantForceToPos(Vector3d(2.0, 0.0, 0.0), Vector3d(0.0, 1.0, 0.0))
+        applier.applyInvariantForceToPos(Vector3d(0.0, 0.0, 5.0), Vector3d(1.0, 2.0, 3.0))
+        applier.applyTo(body)
+
+        assertEquals(
+            listOf(
+                "invariantForceAtPos (1.0, 0.0, 0.0) at (0.0, 1.0, 0.0)",
+                "invariantForceAtPos (2.0, 0.0, 0.0) at (0.0, 1.0, 0.0)",
+                "invariantForceAtPos (0.0, 0.0, 5.0) at (1.0, 2.0, 3.0)"
+            ),
+            body.forces
+        )
+    }
+
+    @Test
+    fun setStaticIsOnlyPassedIfSet() {
+        body.isStatic = true
+        applier.applyInvariantForce(Vector3d(1.0, 0.0, 0.0))
+        applier.applyTo(body)
+        assertTrue(body.isStatic)
+
+        applier.setStatic(false)
+        assertFalse(applier.isEmpty())
+        applier.applyTo(body)
+        assertFalse(body.isStatic)
+    }
+
+    @Test
+    fun forcesAreKeptUnlessCleared() {
+        applier.applyInvariantForce(Vector3d(1.0, 0.0, 0.0))
+        applier.applyInvariantForceToPos(Vector3d(1.0, 0.0, 0.0), Vector3d(0.0, 1.0, 0.0))
+        applier.setStatic(true)
+
+        applier.applyTo(body, clear = false)
+        assertFalse(applier.isEmpty())
+        applier.applyTo(body)
+        assertTrue(applier.isEmpty())
+        applier.applyTo(body)
+
+        val once = listOf("invariantForce (1.0, 0.0, 0.0)", "invariantForceAtPos (1.0, 0.0, 0.0) at (0.0, 1.0, 0.0)")
+        assertEquals(once + once, body.forces)
+    }
+
+    @Test
+    fun sameForcesAreComparedByValue() {
+        val other = BufferedForcesApplier()
+        assertTrue(applier.hasSameForcesAs(other))
+
+        applier.applyInvariantForce(Vector3d(1.0, 0.0, 0.0))
+        applier.applyInvariantForceToPos(Vector3d(1.0, 0.0, 0.0), Vector3d(0.0, 1.0, 0.0))
+        other.applyInvariantForce(Vector3d(0.5, 0.0, 0.0))
+        other.applyInvariantForce(Vector3d(0.5, 0.0, 0.0))
+        other.applyInvariantForceToPos(Vector3d(1.0, 0.0, 0.0), Vector3d(0.0, 1.0, 0.0))
+        assertTrue(applier.hasSameForcesAs(other))
+
+        other.setStatic(true)
+        assertFalse(applier.hasSameForcesAs(other))
+        applier.setStatic(true)
+        applier.applyInvariantTorque(Vector3d(0.0, 1.0, 0.0))
+        assertFalse(applier.hasSameForcesAs(other))
+    }
+}
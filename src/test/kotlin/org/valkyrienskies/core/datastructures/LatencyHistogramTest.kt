@@ -0,0 +1,35 @@
+package org.valkyrienskies.core.datastructures
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+internal class LatencyHistogramTest {
+
+    @Test
+    fun bucketsCoverEveryValue() {
+        var previousIndex = -1
+        for (value in listOf(0L, 1L, 7L, 8L, 15L, 16L, 17L, 1000L, 123_456_789L, Long.MAX_VALUE)) {
+            val index = LatencyHistogram.bucketIndex(value)
+            assertTrue(index > previousIndex, "Buckets must be increasing")
+            assertTrue(value <= LatencyHistogram.bucketUpperBound(index))
+            if (index > 0) assertTrue(value > LatencyHistogram.bucketUpperBound(index - 1))
+            previousIndex = index
+        }
+    }
+
+    @Test
+    fun quantilesAreWithinBucketError() {
+        val histogram = LatencyHistogram()
+        for (i in 1..1000L) histogram.record(i * 1000)
+
+        val snapshot = histogram.snapshot()
+        assertEquals(1000L, snapshot.count)
+        assertEquals(1_000_000L, snapshot.maxNs)
+        assertTrue(snapshot.p50Ns in 500_000L..562_500L, "p50 was ${snapshot.p50Ns}")
+        assertTrue(snapshot.p99Ns in 990_000L..1_000_000L, "p99 was ${snapshot.p99Ns}")
+
+        histogram.reset()
+        assertEquals(LatencySnapshot(0, 0, 0, 0), histogram.snapshot())
+    }
+}
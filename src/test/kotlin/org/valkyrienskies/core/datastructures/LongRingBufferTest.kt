@@ -0,0 +1,38 @@
+package org.valkyrienskies.core.datastructures
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+
+internal class LongRingBufferTest {
+
+    @Test
+    fun overwritesOldestWhenFull() {
+        val buffer = LongRingBuffer(3)
+        assertTrue(buffer.isEmpty())
+
+        buffer.add(1)
+        buffer.add(2)
+        assertEquals(2, buffer.size)
+        assertEquals(1L, buffer.oldest())
+        assertEquals(2L, buffer.newest())
+
+        buffer.add(3)
+        buffer.add(4)
+        buffer.add(5)
+        assertEquals(3, buffer.size)
+        assertEquals(listOf(3L, 4L, 5L), (0 until buffer.size).map { buffer[it] })
+        assertEquals(12L, buffer.sum())
+    }
+
+    @Test
+    fun getOutOfBoundsThrows() {
+        val buffer = LongRingBuffer(4)
+        buffer.add(1)
+        assertThrows<IndexOutOfBoundsException> { buffer[1] }
+
+        buffer.clear()
+        assertThrows<IndexOutOfBoundsException> { buffer.newest() }
+    }
+}
@@ -0,0 +1,69 @@
+package org.valkyrienskies.core.datastructures
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import kotlin.concurrent.thread
+
+internal class SpscRingBufferTest {
+
+    @Test
+    fun capacityIsRoundedToPowerOfTwo() {
+        assertEquals(1, SpscRingBuffer<Int>(1).capacity)
+        assertEquals(16, SpscRingBuffer<Int>(16).capacity)
+        assertEquals(32, SpscRingBuffer<Int>(17).capacity)
+    }
+
+    @Test
+    fun offerFailsWhenFull() {
+        val buffer = SpscRingBuffer<Int>(4)
+        repeat(4) { assertTrue(buffer.offer(it)) }
+        assertTrue(buffer.isFull())
+        assertFalse(buffer.offer(4))
+
+        assertEquals(0, buffer.poll())
+        assertTrue(buffer.offer(4))
+        assertEquals(4, buffer.size)
+    }
+
+    @Test
+    fun pollIsFifo() {
+        val buffer = SpscRingBuffer<Int>(8)
+        // Wrap around a few times
+        for (lap in 0 until 5) {
+            repeat(6) { buffer.offer(lap * 10 + it) }
+            val drained = ArrayList<Int>()
+            assertEquals(6, buffer.drain { drained.add(it) })
+            assertEquals((0 until 6).map { lap * 10 + it }, drained)
+        }
+        assertNull(buffer.poll())
+        assertTrue(buffer.isEmpty())
+    }
+
+    @Test
+    fun producerAndConsumerThreads() {
+        val buffer = SpscRingBuffer<Int>(16)
+        val count = 200_000
+        val received = IntArray(count)
+
+        val consumer = thread {
+            var receivedCount = 0
+            while (receivedCount < count) {
+                val value = buffer.poll() ?: continue
+                received[receivedCount++] = value
+            }
+        }
+
+        for (i in 0 until count) {
+            while (!buffer.offer(i)) Thread.yield()
+        }
+        consumer.join()
+
+        // Every element must arrive exactly once and in order
+        for (i in 0 until count) {
+            assertEquals(i, received[i])
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.valkyrienskies.core.datastructures
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import kotlin.concurrent.thread
+
+internal class TripleBufferTest {
+
+    @Test
+    fun pollReturnsLatestValueOnce() {
+        val buffer = TripleBuffer<Int>()
+        assertNull(buffer.poll())
+
+        assertFalse(buffer.publish(1))
+        assertTrue(buffer.publish(2))
+        assertTrue(buffer.publish(3))
+        assertTrue(buffer.hasFresh())
+
+        assertEquals(3, buffer.poll())
+        assertNull(buffer.poll())
+        assertFalse(buffer.hasFresh())
+
+        assertFalse(buffer.publish(4))
+        assertEquals(4, buffer.poll())
+    }
+
+    @Test
+    fun readerSeesIncreasingValues() {
+        val buffer = TripleBuffer<IntArray>()
+        val count = 200_000
+
+        val writer = thread {
+            // Each value is written before it is published, the reader must never see a half written array
+            for (i in 1..count) buffer.publish(intArrayOf(i, -i))
+        }
+
+        var last = 0
+        while (last != count) {
+            val value = buffer.poll() ?: continue
+            assertEquals(-value[0], value[1])
+            assertTrue(value[0] > last, "Got ${value[0]} after $last")
+            last = value[0]
+        }
+        writer.join()
+    }
+}
@@ -1,7 +1,9 @@
 package org.valkyrienskies.core.game
 
+import org.joml.Vector3i
 import org.junit.jupiter.api.Assertions
 import org.junit.jupiter.api.RepeatedTest
+import org.junit.jupiter.api.Test
 import org.valkyrienskies.core.VSRandomUtils
 import org.valkyrienskies.core.game.ships.ShipData
 import org.valkyrienskies.core.util.serialization.VSJacksonUtil
@@ -24,4 +26,24 @@ internal class ShipDataTest {
         // Verify that both are equal
         Assertions.assertEquals(shipData, blockPosSetDeserialized)
     }
+
+    @Test
+    fun testPhysicsDirtyFlags() {
+        val shipData = VSRandomUtils.randomShipData()
+        shipData.consumePhysicsDirtyFlags()
+        val pos = shipData.chunkClaim.getCenterBlockCoordinates(Vector3i())
+
+        // Changes physics doesn't care about don't make the ship dirty
+        shipData.onSetBlock(pos.x, pos.y, pos.z, VSBlockType.AIR, VSBlockType.AIR, 0.0, 0.0)
+        shipData.isStatic = shipData.isStatic
+        Assertions.assertEquals(0, shipData.consumePhysicsDirtyFlags())
+
+        shipData.onSetBlock(pos.x, pos.y, pos.z, VSBlockType.AIR, VSBlockType.SOLID, 0.0, 10.0)
+        shipData.isStatic = !shipData.isStatic
+        Assertions.assertEquals(
+            ShipData.PhysicsDirtyFlags.INERTIA or ShipData.PhysicsDirtyFlags.STATIC,
+            shipData.consumePhysicsDirtyFlags()
+        )
+        Assertions.assertEquals(0, shipData.consumePhysicsDirtyFlags())
+    }
 }
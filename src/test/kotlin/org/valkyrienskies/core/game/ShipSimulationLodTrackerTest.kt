@@ -0,0 +1,67 @@
+package org.valkyrienskies.core.game
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap
+import org.joml.Vector3d
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.valkyrienskies.core.VSRandomUtils
+import org.valkyrienskies.core.config.VSCoreConfig
+import org.valkyrienskies.core.game.ships.ShipObjectServer
+import org.valkyrienskies.core.game.ships.ShipSimulationLod
+import org.valkyrienskies.core.game.ships.ShipSimulationLodTracker
+import org.valkyrienskies.core.game.ships.ShipTransform
+import java.util.UUID
+
+internal class ShipSimulationLodTrackerTest {
+
+    private val tracker = ShipSimulationLodTracker()
+    private val ship = ShipObjectServer(
+        VSRandomUtils.randomShipData().apply {
+            shipTransform = ShipTransform.createFromCoordinates(Vector3d(), Vector3d())
+        }
+    )
+    private val watching = Long2ObjectOpenHashMap<Set<IPlayer>>()
+
+    @Test
+    fun shipsGetWorseLodsAfterDelayAndBetterLodsRightAway() {
+        val player = TestPlayer(Vector3d(VSCoreConfig.SERVER.lodFrozenDistance * 2, 0.0, 0.0), dimension())
+
+        // Far from every player
+        repeat(VSCoreConfig.SERVER.lodDowngradeDelayTicks - 1) { update(player) }
+        assertEquals(ShipSimulationLod.FULL, ship.shipData.simulationLod)
+        update(player)
+        assertEquals(ShipSimulationLod.FROZEN, ship.shipData.simulationLod)
+        assertArrayEquals(intArrayOf(0, 0, 1), tracker.shipCounts)
+
+        // The player approaches
+        player.pos.set(VSCoreConfig.SERVER.lodFrozenDistance / 2, 0.0, 0.0)
+        update(player)
+        assertEquals(ShipSimulationLod.REDUCED, ship.shipData.simulationLod)
+
+        // The player watches the ship
+        watching[ship.shipData.id] = setOf(player)
+        update(player)
+        assertEquals(ShipSimulationLod.FULL, ship.shipData.simulationLod)
+        assertArrayEquals(intArrayOf(1, 0, 0), tracker.shipCounts)
+    }
+
+    @Test
+    fun playersInOtherDimensionsAreIgnored() {
+        val player = TestPlayer(Vector3d(), dimension() + "_other")
+
+        repeat(VSCoreConfig.SERVER.lodDowngradeDelayTicks) { update(player) }
+        assertEquals(ShipSimulationLod.FROZEN, ship.shipData.simulationLod)
+    }
+
+    private fun dimension(): DimensionId = ship.shipData.chunkClaimDimension
+
+    private fun update(player: IPlayer) = tracker.update(listOf(ship), listOf(player), watching)
+
+    private class TestPlayer(val pos: Vector3d, override val dimension: DimensionId) : IPlayer {
+        override fun getPosition(dest: Vector3d): Vector3d = dest.set(pos)
+        override val uuid: UUID = UUID.randomUUID()
+        override val isAdmin: Boolean = false
+        override val canModifyServerConfig: Boolean = false
+    }
+}
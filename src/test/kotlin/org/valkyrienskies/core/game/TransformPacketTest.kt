@@ -1,34 +1,364 @@
 package org.valkyrienskies.core.game
 
+import io.netty.buffer.ByteBufUtil
 import io.netty.buffer.Unpooled
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap
+import org.joml.Quaterniondc
+import org.joml.Vector3d
+import org.joml.Vector3dc
+import org.joml.Vector3i
+import org.joml.primitives.AABBd
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.RepeatedTest
+import org.junit.jupiter.api.Test
 import org.valkyrienskies.core.VSRandomUtils
-import org.valkyrienskies.core.game.ships.QueryableShipDataImpl
+import org.valkyrienskies.core.config.VSCoreConfig
 import org.valkyrienskies.core.game.ships.ShipData
+import org.valkyrienskies.core.game.ships.ShipInertiaData
+import org.valkyrienskies.core.game.ships.ShipObjectClient
+import org.valkyrienskies.core.game.ships.ShipTransform
+import org.valkyrienskies.core.game.ships.networking.ShipObjectNetworkManagerClient
+import org.valkyrienskies.core.game.ships.networking.ShipTransformBaselines
+import org.valkyrienskies.core.game.ships.networking.ShipTransformSnapshot
+import org.valkyrienskies.core.networking.delta.DeltaEncodedChannelClientUDP
+import org.valkyrienskies.core.networking.delta.DeltaEncodedChannelServer
 import org.valkyrienskies.core.pipelines.VSNetworkPipelineStage
 import org.valkyrienskies.core.pipelines.VSPhysicsFrame
+import kotlin.math.abs
+import kotlin.math.acos
+import kotlin.math.min
+import kotlin.math.sqrt
 import kotlin.random.Random
 
 internal class TransformPacketTest {
 
-    // @RepeatedTest(25) TODO fix this test
-    fun testSerializationAndDeSerialization() {
-        val queryableShipData = QueryableShipDataImpl<ShipData>()
-        val buf = Unpooled.buffer(508)
-        val shipDatas = queryableShipData.idToShipData.values.chunked(504 / VSNetworkPipelineStage.TRANSFORM_SIZE)
-
-        shipDatas.forEach { ships ->
-            val fakeFrame = VSPhysicsFrame(
-                ships.map { it.id }.associateWith { VSRandomUtils.randomShipInPhysicsFrame(it) },
-                emptyMap(),
-                Random.nextInt()
+    private val positionBits = VSCoreConfig.SERVER.transformPositionPrecisionBits
+    private val rotationBits = VSCoreConfig.SERVER.transformRotationBits
+
+    @RepeatedTest(25)
+    fun transformsAreWithinErrorBounds() {
+        // Ships near each other, as players see them, and one far away that can't be quantized
+        val origin = VSRandomUtils.randomVector3d()
+        val frame = VSPhysicsFrame(SHIPS)
+        frame.reset(Random.nextInt(0, Int.MAX_VALUE))
+        val shipDatas = List(SHIPS) { i ->
+            val pos = if (i == SHIPS - 1) Vector3d(origin).add(1e7, 0.0, 0.0) else randomNear(origin, 500.0)
+            val scaling = if (i % 3 == 0) Random.nextDouble(0.5, 2.0) else 1.0
+            addShip(frame, pos, scaling)
+        }
+
+        val (clientShips, transformIndices) = watch(shipDatas)
+        val buf = Unpooled.buffer()
+        assertEquals(SHIPS, VSNetworkPipelineStage.writePacket(buf, shipDatas, frame, transformIndices))
+        ShipObjectNetworkManagerClient.readShipTransform(buf, clientShips)
+        assertEquals(0, buf.readableBytes())
+
+        shipDatas.forEach { shipData ->
+            val ship = clientShips.get(transformIndices.get(shipData.id))
+            assertEquals(frame.physTickNumber, ship.latestNetworkTTick)
+            assertTransformClose(frame.getTransform(frame.getSlot(shipData.id)), ship.latestNetworkTransform)
+        }
+    }
+
+    @Test
+    fun manyMoreTransformsFitInOneUdpPacket() {
+        val origin = VSRandomUtils.randomVector3d()
+        val frame = VSPhysicsFrame(SHIPS)
+        frame.reset(1)
+        val shipDatas = List(SHIPS) { addShip(frame, randomNear(origin, 200.0), 1.0) }
+        val (clientShips, transformIndices) = watch(shipDatas)
+
+        val buf = Unpooled.buffer()
+        var next = 0
+        var packets = 0
+        while (next < shipDatas.size) {
+            buf.clear()
+            val start = next
+            next = VSNetworkPipelineStage.writePacket(buf, shipDatas, frame, transformIndices, next, UDP_PAYLOAD)
+            assertTrue(buf.readableBytes() <= UDP_PAYLOAD)
+            // 6 transforms fit before they were quantized
+            if (next < shipDatas.size) assertTrue(next - start >= 15, "Only ${next - start} transforms fit")
+
+            ShipObjectNetworkManagerClient.readShipTransform(buf, clientShips)
+            packets++
+        }
+
+        assertTrue(packets < SHIPS / 6)
+        clientShips.values.forEach { assertEquals(1, it.latestNetworkTTick) }
+    }
+
+    @Test
+    fun transformsOfUnknownShipsAreSkipped() {
+        val frame = VSPhysicsFrame(SHIPS)
+        frame.reset(1)
+        val shipDatas = List(3) { i -> addShip(frame, randomNear(Vector3d(), 100.0), if (i == 1) 2.0 else 1.0) }
+        val (clientShips, transformIndices) = watch(shipDatas)
+        clientShips.remove(transformIndices.get(shipDatas[1].id))
+
+        val buf = Unpooled.buffer()
+        VSNetworkPipelineStage.writePacket(buf, shipDatas, frame, transformIndices)
+        ShipObjectNetworkManagerClient.readShipTransform(buf, clientShips)
+
+        val expected = frame.getTransform(frame.getSlot(shipDatas[2].id)).shipPositionInWorldCoordinates
+        val actual = clientShips.get(transformIndices.get(shipDatas[2].id))
+            .latestNetworkTransform.shipPositionInWorldCoordinates
+        assertVectorsClose(expected, actual, 1.0 / (1 shl positionBits))
+    }
+
+    @RepeatedTest(10)
+    fun deltaEncodedTransformsSurviveLossyTransport() {
+        val baselines = ShipTransformBaselines()
+        val serverChannel = DeltaEncodedChannelServer(
+            VSNetworkPipelineStage.TRANSFORM_SNAPSHOT_HISTORY, ::ShipTransformSnapshot, { it.clear() },
+            baselines::onAcked
+        )
+        val clientChannel = DeltaEncodedChannelClientUDP(
+            VSNetworkPipelineStage.TRANSFORM_SNAPSHOT_HISTORY, ::ShipTransformSnapshot
+        ) { it.clear() }
+        val transformPackets = LossyTransport()
+        val ackPackets = LossyTransport()
+
+        // Moving and turning ships
+        val origin = VSRandomUtils.randomVector3d()
+        val shipDatas = List(SHIPS) { createShip() }
+        val positions = List(SHIPS) { randomNear(origin, 200.0) }
+        val velocities = List(SHIPS) { randomNear(Vector3d(), 0.3) }
+        val rotations = List(SHIPS) { VSRandomUtils.randomQuaterniond() }
+        val (clientShips, transformIndices) = watch(shipDatas)
+        val frames = Int2ObjectOpenHashMap<VSPhysicsFrame>()
+
+        val buf = Unpooled.buffer()
+        var deltaBytes = 0
+        var wholeBytes = 0
+        for (tick in 1..FRAMES) {
+            // The last frames aren't lost, so every ship must end up at the last frame
+            val lossy = tick <= FRAMES - LossyTransport.MAX_DELAY
+            val frame = VSPhysicsFrame(SHIPS)
+            frame.reset(tick)
+            shipDatas.forEachIndexed { i, shipData ->
+                positions[i].add(velocities[i])
+                rotations[i].rotateXYZ(randomAngle(), randomAngle(), randomAngle())
+                addToFrame(frame, shipData, positions[i], rotations[i], 1.0)
+            }
+            frames[tick] = frame
+
+            val snapshotId = serverChannel.nextSnapshot()
+            var part = 0
+            var next = 0
+            while (next < SHIPS) {
+                buf.clear()
+                next = VSNetworkPipelineStage.writePacket(
+                    buf, shipDatas, frame, transformIndices, next, UDP_PAYLOAD, serverChannel, snapshotId, part++,
+                    baselines
+                )
+                assertTrue(buf.readableBytes() <= UDP_PAYLOAD)
+                deltaBytes += buf.readableBytes()
+                transformPackets.send(ByteBufUtil.getBytes(buf), tick, lossy)
+            }
+            next = 0
+            while (next < SHIPS) {
+                buf.clear()
+                next = VSNetworkPipelineStage.writePacket(buf, shipDatas, frame, transformIndices, next, UDP_PAYLOAD)
+                wholeBytes += buf.readableBytes()
+            }
+
+            transformPackets.receive(tick).forEach {
+                ShipObjectNetworkManagerClient.readShipTransform(Unpooled.wrappedBuffer(it), clientShips, clientChannel)
+            }
+            // Every transform the client has must be one the server sent
+            shipDatas.forEach { shipData ->
+                val ship = clientShips.get(transformIndices.get(shipData.id))
+                val sentIn = frames[ship.latestNetworkTTick] ?: return@forEach
+                assertTransformClose(sentIn.getTransform(sentIn.getSlot(shipData.id)), ship.latestNetworkTransform)
+            }
+
+            buf.clear()
+            if (clientChannel.writeAcks(buf)) ackPackets.send(ByteBufUtil.getBytes(buf), tick, lossy)
+            ackPackets.receive(tick).forEach { serverChannel.receiveAcks(Unpooled.wrappedBuffer(it)) }
+        }
+
+        transformPackets.receive(Int.MAX_VALUE).forEach {
+            ShipObjectNetworkManagerClient.readShipTransform(Unpooled.wrappedBuffer(it), clientShips, clientChannel)
+        }
+        clientShips.values.forEach { assertEquals(FRAMES, it.latestNetworkTTick) }
+        assertTrue(deltaBytes < wholeBytes * 0.8, "Delta encoding took $deltaBytes bytes, instead of $wholeBytes")
+    }
+
+    @Test
+    fun shipsSentInTurnsAreDeltaEncoded() {
+        val baselines = ShipTransformBaselines()
+        val serverChannel = DeltaEncodedChannelServer(
+            VSNetworkPipelineStage.TRANSFORM_SNAPSHOT_HISTORY, ::ShipTransformSnapshot, { it.clear() },
+            baselines::onAcked
+        )
+        val clientChannel = DeltaEncodedChannelClientUDP(
+            VSNetworkPipelineStage.TRANSFORM_SNAPSHOT_HISTORY, ::ShipTransformSnapshot
+        ) { it.clear() }
+
+        val origin = VSRandomUtils.randomVector3d()
+        val shipDatas = List(SHIPS) { createShip() }
+        val positions = List(SHIPS) { randomNear(origin, 200.0) }
+        val rotations = List(SHIPS) { VSRandomUtils.randomQuaterniond() }
+        val (clientShips, transformIndices) = watch(shipDatas)
+
+        // Like a player whose byte budget only fits some of the ships each tick, so the newest snapshot the player
+        // acknowledged never has the ships that are sent next
+        val turns = 5
+        val buf = Unpooled.buffer()
+        for (tick in 1..turns * 4) {
+            val frame = VSPhysicsFrame(SHIPS)
+            frame.reset(tick)
+            shipDatas.forEachIndexed { i, shipData ->
+                positions[i].add(0.01, 0.0, 0.0)
+                addToFrame(frame, shipData, positions[i], rotations[i], 1.0)
+            }
+            val turn = shipDatas.subList((tick % turns) * SHIPS / turns, (tick % turns + 1) * SHIPS / turns)
+
+            buf.clear()
+            val snapshotId = serverChannel.nextSnapshot()
+            assertEquals(
+                turn.size,
+                VSNetworkPipelineStage.writePacket(
+                    buf, turn, frame, transformIndices, 0, Int.MAX_VALUE, serverChannel, snapshotId, 0, baselines
+                )
             )
+            val deltaBytes = buf.readableBytes()
+            ShipObjectNetworkManagerClient.readShipTransform(buf, clientShips, clientChannel)
+            buf.clear()
+            clientChannel.writeAcks(buf)
+            serverChannel.receiveAcks(buf)
 
             buf.clear()
-            VSNetworkPipelineStage.writePacket(buf, ships, fakeFrame)
-            // ShipObjectNetworkManagerClient.readShipTransform(buf, queryableShipData.idTo)
-            // ShipObjectNetworkManagerClient.latestReceived.forEach {
-            //    Assertions.assertEquals(it.value.lastTransform, fakeFrame.shipDataMap[it.key]!!.shipTransform)
-            // }
+            VSNetworkPipelineStage.writePacket(buf, turn, frame, transformIndices)
+            if (tick > turns) {
+                assertTrue(
+                    deltaBytes < buf.readableBytes() * 0.8,
+                    "Delta encoding took $deltaBytes bytes, instead of ${buf.readableBytes()}"
+                )
+            }
+            turn.forEach { shipData ->
+                val ship = clientShips.get(transformIndices.get(shipData.id))
+                assertEquals(tick, ship.latestNetworkTTick)
+                assertTransformClose(frame.getTransform(frame.getSlot(shipData.id)), ship.latestNetworkTransform)
+            }
         }
     }
+
+    /**
+     * Add a ship at [pos] in the world to [frame], whose center of mass is near the center of its chunk claim like
+     * real ships
+     */
+    private fun addShip(frame: VSPhysicsFrame, pos: Vector3d, scaling: Double): ShipData =
+        createShip().also { addToFrame(frame, it, pos, VSRandomUtils.randomQuaterniond(), scaling) }
+
+    private fun createShip(): ShipData {
+        val chunkClaim = VSRandomUtils.randomChunkClaim()
+        val claimCenter = chunkClaim.getCenterBlockCoordinates(Vector3i())
+        val centerOfMass = randomNear(Vector3d(claimCenter.x.toDouble(), 64.0, claimCenter.z.toDouble()), 50.0)
+        return ShipData(
+            id = VSRandomUtils.randomShipId(),
+            name = "ship",
+            chunkClaim = chunkClaim,
+            chunkClaimDimension = "dimension",
+            physicsData = VSRandomUtils.randomShipPhysicsData(),
+            inertiaData = ShipInertiaData(centerOfMass, 1000.0, VSRandomUtils.randomMatrix3d()),
+            shipTransform = ShipTransform.createEmpty(),
+            prevTickShipTransform = ShipTransform.createEmpty(),
+            shipAABB = AABBd(),
+            shipVoxelAABB = null,
+            shipActiveChunksSet = VSRandomUtils.randomShipActiveChunkSet(size = 1)
+        )
+    }
+
+    private fun addToFrame(
+        frame: VSPhysicsFrame, shipData: ShipData, pos: Vector3dc, rot: Quaterniondc, scaling: Double
+    ) {
+        frame.addShip(
+            shipData.id, Vector3d(pos).div(scaling), rot, Vector3d(), Vector3d(),
+            shipData.inertiaData.getCenterOfMassInShipSpace().negate(Vector3d()), scaling, AABBd()
+        )
+    }
+
+    /**
+     * @return client ships by transform index, and ship id -> transform index
+     */
+    private fun watch(shipDatas: List<ShipData>): Pair<Int2ObjectOpenHashMap<ShipObjectClient>, Long2IntOpenHashMap> {
+        val clientShips = Int2ObjectOpenHashMap<ShipObjectClient>()
+        val transformIndices = Long2IntOpenHashMap()
+        shipDatas.forEachIndexed { i, shipData ->
+            // Spread the indices out so that both bytes of the short matter
+            val index = i * 997
+            clientShips[index] = ShipObjectClient(shipData)
+            transformIndices[shipData.id] = index
+        }
+        return clientShips to transformIndices
+    }
+
+    private fun randomNear(center: Vector3d, distance: Double) = Vector3d(
+        center.x + Random.nextDouble(-distance, distance),
+        center.y + Random.nextDouble(-distance, distance),
+        center.z + Random.nextDouble(-distance, distance)
+    )
+
+    private fun randomAngle() = Random.nextDouble(-0.005, 0.005)
+
+    private fun assertTransformClose(expected: ShipTransform, actual: ShipTransform) {
+        val maxPositionError = 0.5 / (1 shl positionBits) + 1e-9
+        val maxRotationError = 8 / sqrt(2.0) / ((1 shl rotationBits) - 1)
+
+        assertVectorsClose(
+            expected.shipPositionInWorldCoordinates, actual.shipPositionInWorldCoordinates, maxPositionError
+        )
+        assertVectorsClose(
+            expected.shipPositionInShipCoordinates, actual.shipPositionInShipCoordinates, maxPositionError
+        )
+        assertVectorsClose(
+            expected.shipCoordinatesToWorldCoordinatesScaling, actual.shipCoordinatesToWorldCoordinatesScaling,
+            1e-6 * expected.shipCoordinatesToWorldCoordinatesScaling.x()
+        )
+        val dot = expected.shipCoordinatesToWorldCoordinatesRotation.dot(
+            actual.shipCoordinatesToWorldCoordinatesRotation
+        )
+        val angle = 2 * acos(min(1.0, abs(dot)))
+        assertTrue(angle <= maxRotationError, "Rotated $angle radians off")
+    }
+
+    private fun assertVectorsClose(expected: Vector3dc, actual: Vector3dc, maxError: Double) {
+        val difference = expected.sub(actual, Vector3d()).absolute()
+        val error = maxOf(difference.x, difference.y, difference.z)
+        assertTrue(error <= maxError, "$actual is $error away from $expected")
+    }
+
+    /**
+     * Delivers packets up to [MAX_DELAY] ticks late, out of order, twice, or not at all
+     */
+    private class LossyTransport {
+        private val inFlight = ArrayList<Pair<Int, ByteArray>>()
+
+        fun send(packet: ByteArray, tick: Int, lossy: Boolean) {
+            if (lossy && Random.nextDouble() < LOSS) return
+            inFlight.add(tick + Random.nextInt(MAX_DELAY) to packet)
+            if (lossy && Random.nextDouble() < DUPLICATION) inFlight.add(tick + Random.nextInt(MAX_DELAY) to packet)
+        }
+
+        fun receive(tick: Int): List<ByteArray> {
+            val arrived = inFlight.filter { it.first <= tick }
+            inFlight.removeAll(arrived)
+            return arrived.map { it.second }.shuffled()
+        }
+
+        companion object {
+            const val MAX_DELAY = 3
+            private const val LOSS = 0.2
+            private const val DUPLICATION = 0.05
+        }
+    }
+
+    companion object {
+        private const val SHIPS = 50
+        private const val FRAMES = 200
+        private const val UDP_PAYLOAD = 504
+    }
 }
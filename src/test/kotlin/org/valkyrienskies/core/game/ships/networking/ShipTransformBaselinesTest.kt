@@ -0,0 +1,70 @@
+package org.valkyrienskies.core.game.ships.networking
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.valkyrienskies.core.networking.delta.DeltaEncodedChannelServer
+
+internal class ShipTransformBaselinesTest {
+
+    private val baselines = ShipTransformBaselines()
+    private val channel = DeltaEncodedChannelServer(8, ::ShipTransformSnapshot, { it.clear() }, baselines::onAcked)
+
+    @Test
+    fun eachShipKeepsTheNewestSnapshotItWasAckedIn() {
+        // Ship 1 is in snapshot 0, ship 2 in snapshot 1
+        send(1 to 0)
+        send(2 to 0)
+
+        channel.receiveAck(1, 0b1)
+        channel.receiveAck(0, 0b1)
+        assertEquals(0, baselines.getBaselineId(1))
+        assertEquals(1, baselines.getBaselineId(2))
+        assertNull(baselines.getBaselineId(3))
+
+        // Late acks of older snapshots don't replace newer ones
+        send(1 to 0)
+        channel.receiveAck(2, 0b1)
+        channel.receiveAck(0, 0b1)
+        assertEquals(2, baselines.getBaselineId(1))
+    }
+
+    @Test
+    fun sleepPoseIsAckedOnceASnapshotSinceItWasSentIsAcked() {
+        send(1 to 0)
+        channel.receiveAck(0, 0b1)
+        assertFalse(baselines.isSleepPoseAcked(SHIP, 1, SLEEP_TICK))
+
+        // The first snapshot with the sleeping pose is lost
+        baselines.onSleepPoseSent(SHIP, SLEEP_TICK, send(1 to 0))
+        baselines.onSleepPoseSent(SHIP, SLEEP_TICK, send(1 to 0))
+        assertFalse(baselines.isSleepPoseAcked(SHIP, 1, SLEEP_TICK))
+        channel.receiveAck(2, 0b1)
+        assertTrue(baselines.isSleepPoseAcked(SHIP, 1, SLEEP_TICK))
+
+        // Falling asleep again needs the new pose to be acked
+        assertFalse(baselines.isSleepPoseAcked(SHIP, 1, SLEEP_TICK + 10))
+        baselines.pruneSleepPoses { false }
+        assertFalse(baselines.isSleepPoseAcked(SHIP, 1, SLEEP_TICK))
+    }
+
+    /**
+     * Send a snapshot with the ships in [indicesAndParts]
+     *
+     * @return the id of the snapshot
+     */
+    private fun send(vararg indicesAndParts: Pair<Int, Int>): Int {
+        val id = channel.nextSnapshot()
+        val snapshot = channel.getSnapshot(id)!!
+        snapshot.clear(0, 0)
+        indicesAndParts.forEach { (index, part) -> snapshot.put(index, part, LongArray(ShipTransformSnapshot.VALUES)) }
+        return id
+    }
+
+    companion object {
+        private const val SHIP = 42L
+        private const val SLEEP_TICK = 100
+    }
+}
@@ -0,0 +1,78 @@
+package org.valkyrienskies.core.game.ships.networking
+
+import org.joml.Quaterniond
+import org.joml.Vector3d
+import org.joml.primitives.AABBd
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.valkyrienskies.core.VSRandomUtils
+import org.valkyrienskies.core.game.ships.ShipData
+import org.valkyrienskies.core.pipelines.VSPhysicsFrame
+
+internal class ShipTransformPrioritiesTest {
+
+    private val player = Vector3d()
+
+    @Test
+    fun newShipsComeFirstThenCloseAndMovingShips() {
+        val priorities = ShipTransformPriorities()
+        val frame = VSPhysicsFrame(4)
+        frame.reset(1)
+        val far = addShip(frame, Vector3d(1000.0, 0.0, 0.0), Vector3d())
+        val near = addShip(frame, Vector3d(10.0, 0.0, 0.0), Vector3d())
+        val moving = addShip(frame, Vector3d(0.0, 10.0, 0.0), Vector3d(5.0, 0.0, 0.0))
+        val ships = mutableListOf(far, near, moving)
+        priorities.prioritize(ships, frame, player)
+        ships.forEach { priorities.onSent(it.id) }
+
+        val new = addShip(frame, Vector3d(2000.0, 0.0, 0.0), Vector3d())
+        ships.add(new)
+        priorities.prioritize(ships, frame, player)
+        assertEquals(listOf(new, moving, near, far), ships)
+    }
+
+    @Test
+    fun farRestingShipsAreNotStarved() {
+        val priorities = ShipTransformPriorities()
+        val frame = VSPhysicsFrame(4)
+        frame.reset(1)
+        val ships = MutableList(3) { addShip(frame, Vector3d(it * 5.0, 0.0, 0.0), Vector3d(10.0, 0.0, 0.0)) }
+        val far = addShip(frame, Vector3d(0.0, 0.0, 200.0), Vector3d())
+        ships.add(far)
+
+        // Only room for one ship each time
+        val sends = HashMap<ShipData, Int>()
+        repeat(1000) {
+            priorities.prioritize(ships, frame, player)
+            priorities.onSent(ships[0].id)
+            sends.merge(ships[0], 1, Int::plus)
+        }
+
+        val farSends = sends.getOrDefault(far, 0)
+        assertTrue(farSends > 0, "The far ship was never sent")
+        ships.filter { it != far }.forEach { assertTrue(sends.getValue(it) > farSends * 10) }
+    }
+
+    @Test
+    fun forgetsShipsNoLongerTracked() {
+        val priorities = ShipTransformPriorities()
+        val frame = VSPhysicsFrame(4)
+        frame.reset(1)
+        val ships = MutableList(3) { addShip(frame, Vector3d(), Vector3d()) }
+        priorities.prioritize(ships, frame, player)
+        ships.forEach { priorities.onSent(it.id) }
+
+        // The forgotten ships are treated as new again
+        val stillTracked = ships[0]
+        priorities.prune(listOf(stillTracked))
+        priorities.prioritize(ships, frame, player)
+        assertEquals(stillTracked, ships.last())
+    }
+
+    private fun addShip(frame: VSPhysicsFrame, pos: Vector3d, vel: Vector3d): ShipData {
+        val shipData = VSRandomUtils.randomShipData()
+        frame.addShip(shipData.id, pos, Quaterniond(), vel, Vector3d(), Vector3d(), 1.0, AABBd())
+        return shipData
+    }
+}
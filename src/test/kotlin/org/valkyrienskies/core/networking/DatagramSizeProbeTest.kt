@@ -0,0 +1,137 @@
+package org.valkyrienskies.core.networking
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.valkyrienskies.core.networking.DatagramSizeProbe.Companion.BLACK_HOLE_LOSSES
+import org.valkyrienskies.core.networking.DatagramSizeProbe.Companion.PROBE_ATTEMPTS
+import org.valkyrienskies.core.networking.DatagramSizeProbe.Companion.PROBE_TIMEOUT_NS
+import org.valkyrienskies.core.networking.DatagramSizeProbe.Companion.REPROBE_INTERVAL_NS
+
+internal class DatagramSizeProbeTest {
+
+    private var now = 0L
+
+    @Test
+    fun growsWhileProbesAreAcked() {
+        val probe = DatagramSizeProbe(SIZES)
+        assertEquals(500, probe.datagramSize)
+
+        assertEquals(1000, probe.poll(now))
+        // Nothing more is sent until the probe is acked or times out
+        assertEquals(0, probe.poll(now))
+        probe.onAck(1000)
+        assertEquals(1500, probe.poll(now))
+        assertEquals(1000, probe.datagramSize)
+        probe.onAck(1500)
+        assertEquals(0, probe.poll(now))
+        assertEquals(1500, probe.datagramSize)
+    }
+
+    @Test
+    fun givesUpOnSizesThatAreLost() {
+        val probe = DatagramSizeProbe(SIZES)
+        assertEquals(1000, probe.poll(now))
+        probe.onAck(1000)
+        assertEquals(1500, probe.poll(now))
+
+        // Retried until every attempt timed out
+        repeat(PROBE_ATTEMPTS - 1) { assertEquals(1500, probe.poll(timeout())) }
+        assertEquals(0, probe.poll(timeout()))
+        assertEquals(0, probe.poll(timeout()))
+        assertEquals(1000, probe.datagramSize)
+
+        // Tried again once the size in use is checked
+        now += REPROBE_INTERVAL_NS
+        assertEquals(1000, probe.poll(now))
+        probe.onAck(1000)
+        assertEquals(1500, probe.poll(now))
+    }
+
+    @Test
+    fun fallsBackWhenThePathShrinks() {
+        val probe = DatagramSizeProbe(SIZES)
+        probe.poll(now)
+        probe.onAck(1000)
+        probe.poll(now)
+        probe.onAck(1500)
+        probe.poll(now)
+        assertEquals(1500, probe.datagramSize)
+
+        now += REPROBE_INTERVAL_NS
+        assertEquals(1500, probe.poll(now))
+        repeat(PROBE_ATTEMPTS - 1) { assertEquals(1500, probe.poll(timeout())) }
+        assertEquals(0, probe.poll(timeout()))
+        assertEquals(1000, probe.datagramSize)
+    }
+
+    @Test
+    fun stepsDownWhenBigDatagramsAreLostAndSmallOnesArrive() {
+        val probe = grownProbe()
+        probe.onDelivery(800, true)
+        repeat(BLACK_HOLE_LOSSES - 1) { probe.onDelivery(1500, false) }
+        assertEquals(0, probe.poll(now))
+        assertEquals(1500, probe.datagramSize)
+
+        probe.onDelivery(1200, false)
+        assertEquals(0, probe.poll(now))
+        assertEquals(1000, probe.datagramSize)
+
+        // Datagrams sent before stepping down don't count against the smaller size
+        repeat(BLACK_HOLE_LOSSES) { probe.onDelivery(1500, false) }
+        assertEquals(0, probe.poll(now))
+        assertEquals(1000, probe.datagramSize)
+        // Nor against the bigger size, which is only probed again later
+        assertEquals(0, probe.poll(now + REPROBE_INTERVAL_NS - 1))
+    }
+
+    @Test
+    fun keepsSizeWhenBigDatagramsStillArrive() {
+        val probe = grownProbe()
+        probe.onDelivery(800, true)
+        repeat(3) {
+            repeat(BLACK_HOLE_LOSSES - 1) { probe.onDelivery(1500, false) }
+            probe.onDelivery(1500, true)
+        }
+        assertEquals(0, probe.poll(now))
+        assertEquals(1500, probe.datagramSize)
+
+        // Nothing arriving at all isn't a sign of the path shrinking
+        val silent = grownProbe()
+        repeat(BLACK_HOLE_LOSSES * 2) { silent.onDelivery(1500, false) }
+        silent.onDelivery(800, false)
+        assertEquals(0, silent.poll(now))
+        assertEquals(1500, silent.datagramSize)
+    }
+
+    @Test
+    fun ignoresAcksOfOtherSizes() {
+        val probe = DatagramSizeProbe(SIZES)
+        assertEquals(1000, probe.poll(now))
+        probe.onAck(1500)
+        assertEquals(0, probe.poll(now))
+        assertEquals(500, probe.datagramSize)
+    }
+
+    /**
+     * @return a probe that grew to the biggest size
+     */
+    private fun grownProbe(): DatagramSizeProbe {
+        val probe = DatagramSizeProbe(SIZES)
+        probe.poll(now)
+        probe.onAck(1000)
+        probe.poll(now)
+        probe.onAck(1500)
+        probe.poll(now)
+        assertEquals(1500, probe.datagramSize)
+        return probe
+    }
+
+    private fun timeout(): Long {
+        now += PROBE_TIMEOUT_NS
+        return now
+    }
+
+    companion object {
+        private val SIZES = intArrayOf(500, 1000, 1500)
+    }
+}
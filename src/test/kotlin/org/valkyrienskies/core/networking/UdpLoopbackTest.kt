@@ -0,0 +1,213 @@
+package org.valkyrienskies.core.networking
+
+import io.netty.buffer.Unpooled
+import org.joml.Vector3d
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import org.valkyrienskies.core.game.DimensionId
+import org.valkyrienskies.core.game.IPlayer
+import org.valkyrienskies.core.networking.impl.PacketRequestUdp
+import org.valkyrienskies.core.util.logger
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+internal class UdpLoopbackTest {
+
+    private val serverChannel = NetworkChannel()
+    private val clientChannel = NetworkChannel()
+    private val serverPacketType = serverChannel.registerPacket("Test")
+    private val clientPacketType = clientChannel.registerPacket("Test")
+    private val player = TestPlayer()
+
+    private lateinit var server: UdpServerImpl
+    private lateinit var client: UdpClientImpl
+
+    @BeforeEach
+    fun connect() {
+        serverChannel.serverIsReady()
+        clientChannel.clientIsReady()
+
+        val loopback = InetAddress.getLoopbackAddress()
+        server = UdpServerImpl(DatagramChannel.open().bind(InetSocketAddress(loopback, 0)), serverChannel)
+        val port = (server.localAddress as InetSocketAddress).port
+        val id = server.prepareIdentifier(player, PacketRequestUdp(0, VSCryptUtils.generateAES128Key().encoded))!!
+        client = UdpClientImpl(DatagramChannel.open(), clientChannel, InetSocketAddress(loopback, port), id)
+
+        waitFor { VSNetworking.clientUsesUDP }
+    }
+
+    @AfterEach
+    fun close() {
+        client.close()
+        server.close()
+        VSNetworking.clientUsesUDP = false
+        VSNetworking.serverUsesUDP = false
+    }
+
+    @Test
+    fun packetsReachTheOtherSide() {
+        val fromClient = AtomicReference<Pair<Long, IPlayer>>()
+        serverPacketType.registerServerHandler { packet, sender -> fromClient.set(packet.data.readLong() to sender) }
+        clientPacketType.sendToServer(Unpooled.buffer().writeLong(42))
+        waitFor { fromClient.get() != null }
+        assertEquals(42L, fromClient.get().first)
+        assertSame(player, fromClient.get().second)
+
+        val fromServer = AtomicInteger()
+        clientPacketType.registerClientHandler { packet -> fromServer.addAndGet(packet.data.readInt()) }
+        // Sent right away outside of a batch
+        serverPacketType.sendToClient(Unpooled.buffer().writeInt(1), player)
+        serverPacketType.sendToClient(Unpooled.buffer().writeInt(2), player)
+        waitFor { fromServer.get() == 3 }
+    }
+
+    @Test
+    fun batchedPacketsAreSentOnFlush() {
+        val fromServer = AtomicInteger()
+        clientPacketType.registerClientHandler { packet -> fromServer.addAndGet(packet.data.readInt()) }
+        serverChannel.beginBatchToClients()
+        serverPacketType.sendToClient(Unpooled.buffer().writeInt(1), player)
+        serverPacketType.sendToClient(Unpooled.buffer().writeInt(2), player)
+        serverChannel.flushToClients()
+        waitFor { fromServer.get() == 3 }
+
+        // The batch ended with the flush
+        serverPacketType.sendToClient(Unpooled.buffer().writeInt(4), player)
+        waitFor { fromServer.get() == 7 }
+    }
+
+    @Test
+    fun datagramSizeGrowsOverLoopback() {
+        assertEquals(UdpServerImpl.PACKET_SIZE - 4, serverChannel.maxPacketSize(player))
+        // Probes are sent on flush
+        waitFor {
+            serverChannel.flushToClients()
+            serverChannel.maxPacketSize(player) == UdpServerImpl.MAX_PACKET_SIZE - 4
+        }
+
+        val received = AtomicInteger()
+        clientPacketType.registerClientHandler { packet -> received.set(packet.data.readableBytes()) }
+        val payload = ByteArray(UdpServerImpl.MAX_PACKET_SIZE - 4)
+        serverPacketType.sendToClient(Unpooled.wrappedBuffer(payload), player)
+        waitFor { received.get() == payload.size }
+    }
+
+    /**
+     * Sends full size datagrams over loopback as fast as the client keeps up, and logs the throughput. A benchmark,
+     * so it only runs with `gradlew benchmark`
+     */
+    @Test
+    @Tag("benchmark")
+    fun loopbackThroughput() {
+        val received = AtomicInteger()
+        clientPacketType.registerClientHandler { received.incrementAndGet() }
+        val payload = ByteArray(UdpServerImpl.PACKET_SIZE - 4)
+
+        val start = System.nanoTime()
+        repeat(BATCHES) { batch ->
+            serverChannel.beginBatchToClients()
+            repeat(BATCH_SIZE) { serverPacketType.sendToClient(Unpooled.wrappedBuffer(payload), player) }
+            serverChannel.flushToClients()
+            // Loopback only drops datagrams when the receive buffer overflows, which one batch can't do
+            waitFor { received.get() == (batch + 1) * BATCH_SIZE }
+        }
+        val seconds = (System.nanoTime() - start) / 1e9
+
+        val datagrams = BATCHES * BATCH_SIZE
+        assertEquals(datagrams, received.get())
+        assertEquals(0L, server.droppedDatagrams.get())
+        logger.info(
+            "Sent $datagrams datagrams of ${UdpServerImpl.PACKET_SIZE} bytes over loopback: " +
+                "${(datagrams / seconds).toInt()} datagrams/s, " +
+                "${"%.1f".format(datagrams * UdpServerImpl.PACKET_SIZE / seconds / 1e6)} MB/s"
+        )
+    }
+
+    /**
+     * Floods a server receiving on several sockets from many clients at once, all packets must reach the handler
+     * from the right player, one at a time
+     */
+    @Test
+    fun shardedReceiveSurvivesClientFlood() {
+        val channel = NetworkChannel().apply { serverIsReady() }
+        val packetType = channel.registerPacket("Test")
+        val loopback = InetAddress.getLoopbackAddress()
+        val sharded = UdpServerImpl.bind(InetSocketAddress(loopback, 0), RECEIVE_THREADS, channel)
+        val clients = ArrayList<DatagramChannel>()
+        try {
+            assumeTrue(sharded.receiveThreads == RECEIVE_THREADS, "SO_REUSEPORT isn't supported")
+
+            val players = List(CLIENTS) { TestPlayer() }
+            val received = ConcurrentHashMap<IPlayer, AtomicInteger>()
+            val wrongSenders = AtomicInteger()
+            val handlerThreads = ConcurrentHashMap.newKeySet<Thread>()
+            packetType.registerServerHandler { packet, sender ->
+                if (players[packet.data.readInt()] !== sender) wrongSenders.incrementAndGet()
+                received.computeIfAbsent(sender) { AtomicInteger() }.incrementAndGet()
+                handlerThreads.add(Thread.currentThread())
+            }
+
+            players.forEach { player ->
+                val id = sharded.prepareIdentifier(player, PacketRequestUdp(0, ByteArray(16)))!!
+                val client = DatagramChannel.open().connect(sharded.localAddress)
+                clients.add(client)
+                client.write(ByteBuffer.allocate(8).putLong(0, id))
+                assertEquals(16, client.read(ByteBuffer.allocate(16)))
+            }
+
+            repeat(FLOOD_BATCHES) { batch ->
+                clients.forEachIndexed { i, client ->
+                    repeat(FLOOD_BATCH_SIZE) {
+                        client.write(ByteBuffer.allocate(8).putInt(0, packetType.id).putInt(4, i))
+                    }
+                }
+                waitFor { players.all { received[it]?.get() == (batch + 1) * FLOOD_BATCH_SIZE } }
+            }
+            assertEquals(0, wrongSenders.get())
+            assertEquals(1, handlerThreads.size)
+        } finally {
+            clients.forEach { it.close() }
+            sharded.close()
+        }
+    }
+
+    private fun waitFor(condition: () -> Boolean) {
+        val deadline = System.nanoTime() + TIMEOUT_NS
+        while (!condition()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out")
+            Thread.sleep(1)
+        }
+    }
+
+    private class TestPlayer : IPlayer {
+        override fun getPosition(dest: Vector3d): Vector3d = dest.zero()
+        override val dimension: DimensionId = "dimension"
+        override val uuid: UUID = UUID.randomUUID()
+        override val isAdmin: Boolean = false
+        override val canModifyServerConfig: Boolean = false
+    }
+
+    companion object {
+        private val logger by logger()
+
+        private const val BATCHES = 200
+        private const val BATCH_SIZE = 64
+        private const val RECEIVE_THREADS = 4
+        private const val CLIENTS = 32
+        private const val FLOOD_BATCHES = 400
+        private const val FLOOD_BATCH_SIZE = 2
+        private const val TIMEOUT_NS = 5_000_000_000L
+    }
+}
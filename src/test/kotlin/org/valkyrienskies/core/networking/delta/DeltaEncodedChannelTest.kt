@@ -0,0 +1,128 @@
+package org.valkyrienskies.core.networking.delta
+
+import io.netty.buffer.Unpooled
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Assertions.fail
+import org.junit.jupiter.api.Test
+
+internal class DeltaEncodedChannelTest {
+
+    @Test
+    fun baselineIsNewestAckedSnapshotInHistory() {
+        val server = server(4)
+        assertNull(server.getBaselineId())
+
+        repeat(3) { server.nextSnapshot() }
+        server.receiveAck(1, 0b10)
+        // Late acks of older snapshots don't replace the baseline, but are still recorded
+        server.receiveAck(0, 0b1)
+        server.receiveAck(1, 0b1)
+        assertEquals(1, server.getBaselineId())
+        assertEquals(0b11L, server.getAckedParts(1))
+        assertEquals(0b1L, server.getAckedParts(0))
+
+        // Snapshot 1 is replaced by snapshot 5
+        repeat(3) { server.nextSnapshot() }
+        assertNull(server.getBaselineId())
+        assertEquals(0L, server.getAckedParts(1))
+
+        // Acks of replaced or unsent snapshots are ignored
+        server.receiveAck(1, 0b1)
+        server.receiveAck(9, 0b1)
+        assertNull(server.getBaselineId())
+    }
+
+    @Test
+    fun onlyNewlyAckedPartsAreReported() {
+        val acked = ArrayList<Pair<Int, Long>>()
+        val server = DeltaEncodedChannelServer(4, { ArrayList<Int>() }, { it.clear() }) { id, _, parts ->
+            acked.add(id to parts)
+        }
+        repeat(2) { server.nextSnapshot() }
+
+        server.receiveAck(1, 0b01)
+        server.receiveAck(1, 0b11)
+        server.receiveAck(1, 0b11)
+        server.receiveAck(0, 0b10)
+        assertEquals(listOf(1 to 0b01L, 1 to 0b10L, 0 to 0b10L), acked)
+    }
+
+    @Test
+    fun deliveriesAreJudgedFromAcks() {
+        val server = server(4)
+        val id = server.nextSnapshot()
+        server.onPartSent(id, 0, 500)
+        server.onPartSent(id, 1, 1200)
+        server.onPartSent(id, 2, 300)
+        server.receiveAck(id, 0b101)
+
+        val judged = ArrayList<Pair<Int, Boolean>>()
+        server.judgeDeliveries(id) { size, delivered -> judged.add(size to delivered) }
+        assertEquals(listOf(500 to true, 1200 to false, 300 to true), judged)
+
+        // Each snapshot is only judged once, and replaced ones not at all
+        server.judgeDeliveries(id) { _, _ -> fail("Judged twice") }
+        repeat(4) { server.onPartSent(server.nextSnapshot(), 0, 500) }
+        server.judgeDeliveries(1) { _, _ -> fail("Judged a replaced snapshot") }
+    }
+
+    @Test
+    fun snapshotsAreReused() {
+        val server = server(2)
+        val first = server.getSnapshot(server.nextSnapshot())!!
+        first.add(1)
+        server.nextSnapshot()
+        val third = server.getSnapshot(server.nextSnapshot())
+
+        assertSame(first, third)
+        assertTrue(first.isEmpty())
+        assertNull(server.getSnapshot(0))
+    }
+
+    @Test
+    fun clientKeepsNewestSnapshotOfEachSlot() {
+        val client = client(4)
+        client.receiveSnapshot(6)!!.add(6)
+
+        // Snapshot 2 arrived after snapshot 6, which replaced it
+        assertNull(client.receiveSnapshot(2))
+        assertEquals(listOf(6), client.getSnapshot(6))
+        // Later parts of the same snapshot don't clear it
+        assertEquals(listOf(6), client.receiveSnapshot(6))
+
+        assertEquals(emptyList<Int>(), client.receiveSnapshot(10))
+        assertNull(client.getSnapshot(6))
+    }
+
+    @Test
+    fun acksReachServer() {
+        val server = server(8)
+        val client = client(8)
+        repeat(3) { server.nextSnapshot() }
+
+        val buf = Unpooled.buffer()
+        assertFalse(client.writeAcks(buf))
+        client.ackPart(2, 0)
+        client.ackPart(2, 3)
+        client.ackPart(1, 1)
+        assertTrue(client.writeAcks(buf))
+        assertFalse(client.writeAcks(buf))
+
+        server.receiveAcks(buf)
+        assertEquals(0, buf.readableBytes())
+        assertEquals(2, server.getBaselineId())
+        assertEquals(0b1001L, server.getAckedParts(2))
+        assertEquals(0b10L, server.getAckedParts(1))
+    }
+
+    // Snapshots are lists of numbers
+    private fun server(capacity: Int) =
+        DeltaEncodedChannelServer(capacity, { ArrayList<Int>() }, { it.clear() })
+
+    private fun client(capacity: Int) =
+        DeltaEncodedChannelClientUDP(capacity, { ArrayList<Int>() }, { it.clear() })
+}
@@ -0,0 +1,87 @@
+package org.valkyrienskies.core.networking.delta
+
+import io.netty.buffer.Unpooled
+import org.joml.primitives.AABBi
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Test
+import org.valkyrienskies.core.VSRandomUtils
+import org.valkyrienskies.core.game.ships.ShipDataCommon
+import org.valkyrienskies.core.game.ships.ShipDataCommon.NetworkDirtyFlags
+
+internal class ShipDataDeltaAlgorithmTest {
+
+    private val algorithm = ShipDataDeltaAlgorithm()
+
+    @Test
+    fun deltasRecreateTheNewShipData() {
+        val shipData = VSRandomUtils.randomShipData()
+        val old = algorithm.snapshot(shipData)
+        val client = algorithm.snapshot(shipData)
+
+        shipData.name = shipData.name + "_renamed"
+        shipData.shipVoxelAABB = AABBi(-20, 0, 5, 3, 17, 300)
+        val removed = ArrayList<Pair<Int, Int>>()
+        shipData.shipActiveChunksSet.iterateChunkPos { x, z -> if (x % 2 == 0) removed.add(x to z) }
+        removed.forEach { (x, z) -> shipData.shipActiveChunksSet.removeChunkPos(x, z) }
+        shipData.shipActiveChunksSet.addChunkPos(-3, 7)
+
+        val delta = algorithm.encode(old, shipData, Unpooled.buffer())
+        algorithm.applyInPlace(client, delta)
+
+        assertEquals(0, delta.readableBytes())
+        assertShipDataEquals(shipData, client)
+    }
+
+    @Test
+    fun unchangedShipDataEncodesToSizeAndFields() {
+        val shipData = VSRandomUtils.randomShipData()
+        val delta = algorithm.encode(algorithm.snapshot(shipData), shipData, Unpooled.buffer())
+        assertEquals(2, delta.readableBytes())
+    }
+
+    @Test
+    fun applyDoesNotChangeOld() {
+        val old = VSRandomUtils.randomShipData()
+        val new = algorithm.snapshot(old).apply { name = old.name + "_renamed" }
+        val oldName = old.name
+
+        val applied = algorithm.apply(old, algorithm.encode(old, new, Unpooled.buffer()))
+
+        assertEquals(oldName, old.name)
+        assertEquals(new.name, applied.name)
+    }
+
+    @Test
+    fun skipConsumesTheDelta() {
+        val old = VSRandomUtils.randomShipData()
+        val new = algorithm.snapshot(old).apply { shipVoxelAABB = AABBi(0, 0, 0, 1, 1, 1) }
+
+        val buf = algorithm.encode(old, new, Unpooled.buffer())
+        buf.writeInt(42)
+        algorithm.skip(buf)
+
+        assertEquals(42, buf.readInt())
+    }
+
+    @Test
+    fun changesMarkNetworkDirtyFlags() {
+        val shipData = VSRandomUtils.randomShipData()
+        shipData.consumeNetworkDirtyFlags()
+
+        shipData.name = shipData.name
+        assertEquals(0, shipData.networkDirtyFlags)
+
+        shipData.name = shipData.name + "_renamed"
+        shipData.shipVoxelAABB = AABBi(0, 0, 0, 1, 1, 1)
+        assertEquals(NetworkDirtyFlags.NAME or NetworkDirtyFlags.VOXEL_AABB, shipData.consumeNetworkDirtyFlags())
+        assertEquals(0, shipData.networkDirtyFlags)
+    }
+
+    private fun assertShipDataEquals(expected: ShipDataCommon, actual: ShipDataCommon) {
+        assertEquals(expected.name, actual.name)
+        assertEquals(expected.shipVoxelAABB, actual.shipVoxelAABB)
+        assertEquals(expected.shipActiveChunksSet, actual.shipActiveChunksSet)
+        assertNotEquals(0, actual.shipActiveChunksSet.getTotalChunks())
+    }
+}
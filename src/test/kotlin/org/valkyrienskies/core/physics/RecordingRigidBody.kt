@@ -0,0 +1,51 @@
+package org.valkyrienskies.core.physics
+
+import org.joml.Quaterniond
+import org.joml.Vector3d
+import org.joml.Vector3dc
+import org.joml.primitives.AABBd
+import org.valkyrienskies.core.game.ships.PhysInertia
+import org.valkyrienskies.physics_api.PoseVel
+import org.valkyrienskies.physics_api.SegmentDisplacement
+
+/**
+ * A [PhysicsRigidBody] that only records the forces given to it, as strings like `invariantForce (1.0, 0.0, 0.0)`
+ */
+internal class RecordingRigidBody : PhysicsRigidBody {
+    val forces = ArrayList<String>()
+
+    override var poseVel = PoseVel(Vector3d(), Quaterniond(), Vector3d(), Vector3d())
+    override var collisionShapeOffset: Vector3dc = Vector3d()
+    override var isStatic = false
+    override var isVoxelTerrainFullyLoaded = false
+
+    override fun setInertia(inertia: PhysInertia) {}
+
+    override fun setSegmentDisplacement(segmentId: Int, segmentDisplacement: SegmentDisplacement) {}
+
+    override fun getAABB(dest: AABBd) {
+        dest.setMin(0.0, 0.0, 0.0).setMax(0.0, 0.0, 0.0)
+    }
+
+    override fun addRotDependentForceToNextPhysTick(force: Vector3dc) {
+        forces.add("rotDependentForce ${format(force)}")
+    }
+
+    override fun addInvariantForceToNextPhysTick(force: Vector3dc) {
+        forces.add("invariantForce ${format(force)}")
+    }
+
+    override fun addInvariantForceAtPosToNextPhysTick(pos: Vector3dc, force: Vector3dc) {
+        forces.add("invariantForceAtPos ${format(force)} at ${format(pos)}")
+    }
+
+    override fun addRotDependentTorqueToNextPhysTick(torque: Vector3dc) {
+        forces.add("rotDependentTorque ${format(torque)}")
+    }
+
+    override fun addInvariantTorqueToNextPhysTick(torque: Vector3dc) {
+        forces.add("invariantTorque ${format(torque)}")
+    }
+
+    private fun format(v: Vector3dc) = "(${v.x()}, ${v.y()}, ${v.z()})"
+}
@@ -0,0 +1,103 @@
+package org.valkyrienskies.core.physics
+
+import org.joml.Matrix3d
+import org.joml.Quaterniond
+import org.joml.Vector3d
+import org.joml.Vector3i
+import org.joml.primitives.AABBd
+import org.joml.primitives.AABBi
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Test
+import org.valkyrienskies.core.game.ships.PhysInertia
+import org.valkyrienskies.core.pipelines.VoxelChunkUpdate
+import org.valkyrienskies.physics_api.PoseVel
+import org.valkyrienskies.physics_api.voxel_updates.KrunchVoxelStates
+
+internal class ReferencePhysicsEngineBackendTest {
+
+    private val gravity = Vector3d(0.0, -10.0, 0.0)
+    private val timeStep = 1.0 / 60.0
+
+    @Test
+    fun bodyFallsWithGravity() {
+        val engine = ReferencePhysicsEngineBackend()
+        val body = createBody(engine, Vector3d(0.0, 100.0, 0.0))
+
+        repeat(60) { engine.tick(gravity, timeStep, true) }
+
+        // Semi-implicit Euler after 1 second: v = -10, y = 100 - 10 * (61 / 120)
+        val poseVel = body.poseVel
+        assertEquals(-10.0, poseVel.vel.y(), 1e-9)
+        assertEquals(100.0 - 10.0 * 61.0 / 120.0, poseVel.pos.y(), 1e-9)
+    }
+
+    @Test
+    fun bodyDoesNotMoveWithoutSimulation() {
+        val engine = ReferencePhysicsEngineBackend()
+        val body = createBody(engine, Vector3d(0.0, 100.0, 0.0))
+        body.addInvariantForceToNextPhysTick(Vector3d(5.0, 0.0, 0.0))
+
+        engine.tick(gravity, timeStep, false)
+        engine.tick(gravity, timeStep, true)
+
+        // The force was thrown away by the tick that didn't simulate
+        assertEquals(0.0, body.poseVel.vel.x(), 1e-9)
+        assertEquals(100.0, body.poseVel.pos.y(), 1e-2)
+    }
+
+    @Test
+    fun bodyRestsOnStaticBody() {
+        val engine = ReferencePhysicsEngineBackend()
+        val ground = createBody(engine, Vector3d(0.0, 0.0, 0.0))
+        ground.isStatic = true
+        val floor = VoxelChunkUpdate(Vector3i(0, 0, 0))
+        for (x in 0 until 16) for (z in 0 until 16) floor.setVoxel(x, 0, z, KrunchVoxelStates.SOLID_STATE)
+        engine.queueVoxelUpdates(ground, listOf(floor))
+
+        val body = createBody(engine, Vector3d(3.0, 3.0, 3.0))
+
+        repeat(240) { engine.tick(gravity, timeStep, true) }
+
+        // The floor voxels cover y in [-0.5, 0.5], and so the single voxel of the body rests at y = 1
+        val aabb = AABBd()
+        body.getAABB(aabb)
+        assertEquals(0.5, aabb.minY, 1e-6)
+        assertEquals(1.0, body.poseVel.pos.y(), 1e-6)
+        assertEquals(0.0, body.poseVel.vel.y(), 1e-9)
+        assertEquals(0.0, ground.poseVel.pos.y(), 1e-9)
+    }
+
+    @Test
+    fun deletedBodiesAreRemoved() {
+        val engine = ReferencePhysicsEngineBackend()
+        val first = createBody(engine, Vector3d())
+        val second = createBody(engine, Vector3d())
+        val third = createBody(engine, Vector3d())
+
+        engine.deleteRigidBody(first)
+        assertEquals(2, engine.rigidBodyCount)
+        assertThrows(IllegalStateException::class.java) { engine.deleteRigidBody(first) }
+
+        engine.deleteRigidBody(third)
+        engine.deleteRigidBody(second)
+        assertEquals(0, engine.rigidBodyCount)
+
+        engine.deletePhysicsWorldResources()
+        assertThrows(IllegalStateException::class.java) { engine.tick(gravity, timeStep, true) }
+    }
+
+    /**
+     * Create a body made of the single voxel at (0, 0, 0)
+     */
+    private fun createBody(engine: ReferencePhysicsEngineBackend, pos: Vector3d): PhysicsRigidBody {
+        val body = engine.createVoxelRigidBody(0, Vector3i(), Vector3i(), AABBi())
+        body.setInertia(PhysInertia(1.0, Matrix3d()))
+        body.poseVel = PoseVel.createPoseVel(pos, Quaterniond())
+        body.isVoxelTerrainFullyLoaded = true
+        val voxel = VoxelChunkUpdate(Vector3i(0, 0, 0))
+        voxel.setVoxel(0, 0, 0, KrunchVoxelStates.SOLID_STATE)
+        engine.queueVoxelUpdates(body, listOf(voxel))
+        return body
+    }
+}
@@ -0,0 +1,78 @@
+package org.valkyrienskies.core.pipelines
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+internal class FrameQueueTest {
+
+    @Test
+    fun dropOldest() {
+        val queue = FrameQueue<Int>("test", 4, FrameQueuePolicy.DROP_OLDEST, 0)
+        repeat(6) { queue.push(it) }
+
+        assertEquals(listOf(2, 3, 4, 5), queue.drainToList())
+        assertEquals(FrameQueueCounters(0, 0, 2), queue.counters())
+    }
+
+    @Test
+    fun blockKeepsWaitingAfterTimeout() {
+        val queue = FrameQueue<Int>("test", 1, FrameQueuePolicy.BLOCK, 1)
+        queue.push(0)
+
+        val consumer = Thread {
+            Thread.sleep(50)
+            queue.poll()
+        }
+        consumer.start()
+        queue.push(1)
+        consumer.join()
+
+        // Nothing was merged or dropped, the push just waited longer
+        assertEquals(listOf(1), queue.drainToList())
+        val counters = queue.counters()
+        assertEquals(1, counters.blocked)
+        assertTrue(counters.blockTimeouts > 0)
+        assertEquals(0, counters.dropped)
+    }
+
+    @Test
+    fun blockGivesUpWhenClosed() {
+        val queue = FrameQueue<Int>("test", 1, FrameQueuePolicy.BLOCK, 1)
+        queue.push(0)
+
+        val closer = Thread {
+            Thread.sleep(50)
+            queue.close()
+        }
+        closer.start()
+        queue.push(1)
+        closer.join()
+
+        assertEquals(listOf(0), queue.drainToList())
+        assertEquals(1, queue.counters().dropped)
+    }
+
+    @Test
+    fun blockWaitsForConsumer() {
+        val queue = FrameQueue<Int>("test", 1, FrameQueuePolicy.BLOCK, 10_000)
+        queue.push(0)
+
+        val consumer = Thread {
+            Thread.sleep(50)
+            queue.poll()
+        }
+        consumer.start()
+        queue.push(1)
+        consumer.join()
+
+        assertEquals(listOf(1), queue.drainToList())
+        assertEquals(FrameQueueCounters(1, 0, 0), queue.counters())
+    }
+
+    private fun <T : Any> FrameQueue<T>.drainToList(): List<T> {
+        val list = ArrayList<T>()
+        drain { list.add(it) }
+        return list
+    }
+}
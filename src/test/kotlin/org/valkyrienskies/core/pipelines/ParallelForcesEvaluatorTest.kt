@@ -0,0 +1,100 @@
+package org.valkyrienskies.core.pipelines
+
+import org.joml.Matrix3d
+import org.joml.Quaterniond
+import org.joml.Vector3d
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.valkyrienskies.core.api.ForcesApplier
+import org.valkyrienskies.core.api.ShipForcesInducer
+import org.valkyrienskies.core.game.ships.PhysInertia
+import org.valkyrienskies.core.game.ships.PhysShip
+import org.valkyrienskies.core.physics.RecordingRigidBody
+import org.valkyrienskies.physics_api.PoseVel
+import java.util.Collections
+
+internal class ParallelForcesEvaluatorTest {
+
+    private val evaluator = ParallelForcesEvaluator(4)
+
+    @AfterEach
+    fun shutdown() {
+        evaluator.shutdown()
+    }
+
+    @Test
+    fun everyShipGetsItsOwnForces() {
+        // More ships than one task handles, so they're split between threads
+        val ships = List(SHIPS) { i -> physShip(i.toLong(), listOf(PushInducer(Vector3d(i + 1.0, 0.0, 0.0)))) }
+        evaluator.computeForces(ships)
+
+        ships.forEachIndexed { i, ship ->
+            val body = RecordingRigidBody()
+            ship.forcesBuffer.applyTo(body)
+            assertEquals(listOf("invariantForce (${i + 1.0}, 0.0, 0.0)"), body.forces)
+        }
+    }
+
+    @Test
+    fun inducersOfOneShipRunInOrderOnOneThread() {
+        val ships = List(SHIPS) { i ->
+            val calls = Collections.synchronizedList(ArrayList<Pair<Int, Thread>>())
+            physShip(i.toLong(), List(INDUCERS_PER_SHIP) { n -> RecordingInducer(n, calls) }) to calls
+        }
+        evaluator.computeForces(ships.map { it.first })
+
+        ships.forEach { (_, calls) ->
+            assertEquals(List(INDUCERS_PER_SHIP) { it }, calls.map { it.first })
+            assertEquals(1, calls.map { it.second }.distinct().size)
+        }
+    }
+
+    @Test
+    fun inducerExceptionsAreRethrown() {
+        val throwing = object : ShipForcesInducer {
+            override fun applyForces(forcesApplier: ForcesApplier, physShip: PhysShip) {
+                throw IllegalStateException("Inducer failed")
+            }
+        }
+        val ships = List(SHIPS) { i ->
+            physShip(i.toLong(), listOf(if (i == SHIPS / 2) throwing else PushInducer(Vector3d(1.0, 0.0, 0.0))))
+        }
+
+        val e = assertThrows(IllegalStateException::class.java) { evaluator.computeForces(ships) }
+        assertTrue(generateSequence<Throwable>(e) { it.cause }.any { it.message == "Inducer failed" })
+
+        // The pool still works afterwards
+        ships[0].forcesBuffer.clear()
+        evaluator.computeForces(listOf(ships[0]))
+        assertFalse(ships[0].forcesBuffer.isEmpty())
+    }
+
+    private fun physShip(id: Long, inducers: List<ShipForcesInducer>) = PhysShip(
+        id, RecordingRigidBody(), inducers, PhysInertia(1.0, Matrix3d()),
+        PoseVel(Vector3d(), Quaterniond(), Vector3d(), Vector3d()),
+        SegmentUtils.createSegmentTrackerFromScaling(0, 1.0)
+    )
+
+    private class PushInducer(private val force: Vector3d) : ShipForcesInducer {
+        override fun applyForces(forcesApplier: ForcesApplier, physShip: PhysShip) {
+            forcesApplier.applyInvariantForce(force)
+        }
+    }
+
+    private class RecordingInducer(
+        private val n: Int, private val calls: MutableList<Pair<Int, Thread>>
+    ) : ShipForcesInducer {
+        override fun applyForces(forcesApplier: ForcesApplier, physShip: PhysShip) {
+            calls.add(n to Thread.currentThread())
+        }
+    }
+
+    companion object {
+        private const val SHIPS = 100
+        private const val INDUCERS_PER_SHIP = 5
+    }
+}
@@ -0,0 +1,84 @@
+package org.valkyrienskies.core.pipelines
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.valkyrienskies.core.config.VSCoreConfig
+
+internal class PhysicsQualityControllerTest {
+
+    private val config = VSCoreConfig.Server().apply {
+        physicsTicksPerSecond = 60
+        maxPhysicsSubSteps = 10
+        minPhysicsSubSteps = 8
+        minPhysicsTicksPerSecond = 40
+        physicsTpsStep = 10
+        physicsQualityDegradeTicks = 5
+        physicsQualityUpgradeTicks = 20
+    }
+    private val controller = PhysicsQualityController(config)
+
+    @Test
+    fun lowersSubStepsThenStops() {
+        runAtLoad(2.0, 200)
+        assertEquals(8, controller.subSteps)
+        assertEquals(60, controller.ticksPerSecond)
+    }
+
+    @Test
+    fun lowersTpsAfterSubStepsWhenAllowed() {
+        config.adaptivePhysicsTps = true
+
+        runAtLoad(2.0, 200)
+        assertEquals(8, controller.subSteps)
+        assertEquals(40, controller.ticksPerSecond)
+        assertEquals(4, controller.qualityLevel)
+    }
+
+    @Test
+    fun singleSlowTicksDoNotLowerQuality() {
+        repeat(100) { tick ->
+            assertFalse(controller.tickFinished(budgetNs() * (if (tick % 10 == 0) 3 else 1) / 2))
+        }
+        assertEquals(10, controller.subSteps)
+    }
+
+    @Test
+    fun raisesQualityOnlyWellBelowBudget() {
+        runAtLoad(2.0, 200)
+
+        // Between the thresholds nothing changes
+        runAtLoad(0.75, 200)
+        assertEquals(8, controller.subSteps)
+
+        // Each level back up takes physicsQualityUpgradeTicks
+        val changes = runAtLoad(0.3, 200)
+        assertEquals(10, controller.subSteps)
+        assertEquals(2, changes)
+    }
+
+    @Test
+    fun disablingResetsToFullQuality() {
+        config.adaptivePhysicsTps = true
+        runAtLoad(2.0, 200)
+
+        config.adaptivePhysicsQuality = false
+        assertTrue(controller.tickFinished(budgetNs() * 2))
+        assertEquals(10, controller.subSteps)
+        assertEquals(60, controller.ticksPerSecond)
+    }
+
+    /**
+     * @return the number of times the quality changed
+     */
+    private fun runAtLoad(load: Double, ticks: Int): Int {
+        var changes = 0
+        repeat(ticks) {
+            if (controller.tickFinished((budgetNs() * load).toLong())) changes++
+        }
+        return changes
+    }
+
+    private fun budgetNs(): Long = 1_000_000_000L / controller.ticksPerSecond
+}
@@ -0,0 +1,82 @@
+package org.valkyrienskies.core.pipelines
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+internal class PhysicsTickSchedulerTest {
+
+    // Advances a little on every read so that waiting for a deadline terminates
+    private var time = 0L
+    private val clock = { time += CLOCK_STEP_NS; time }
+
+    private fun createScheduler(tps: () -> Int, maxCatchUpTicks: Int = 2) =
+        // Never park, so the test only depends on the fake clock
+        PhysicsTickScheduler(tps, { maxCatchUpTicks }, spinThresholdNs = Long.MAX_VALUE, nanoTime = clock)
+
+    @Test
+    fun ticksStartAtFixedDeadlines() {
+        val scheduler = createScheduler({ 100 })
+
+        repeat(10) { tick ->
+            scheduler.awaitNextTick()
+            val deadline = tick * PERIOD_NS
+            assertTrue(time in deadline..deadline + 3 * CLOCK_STEP_NS, "Tick $tick started at $time")
+
+            // Ticks that take a varying amount of time don't shift later deadlines
+            time += (tick % 3) * 3_000_000L
+            scheduler.tickFinished()
+        }
+        assertEquals(0.01, scheduler.timeStep, 1e-12)
+        assertEquals(0L, scheduler.skippedTicks)
+    }
+
+    @Test
+    fun catchesUpThenSkips() {
+        val scheduler = createScheduler({ 100 })
+
+        scheduler.awaitNextTick()
+        // One tick took 5.5 periods, only 2 of the missed ticks may be caught up
+        time += 55_000_000L
+        scheduler.tickFinished()
+        assertEquals(3L, scheduler.skippedTicks)
+
+        // The catch up ticks run without waiting
+        repeat(2) {
+            val before = time
+            scheduler.awaitNextTick()
+            assertTrue(time - before <= 3 * CLOCK_STEP_NS)
+            scheduler.tickFinished()
+        }
+
+        // Now we are back on schedule, the next tick waits for its deadline
+        val before = time
+        scheduler.awaitNextTick()
+        assertTrue(time - before > CLOCK_STEP_NS * 10)
+        scheduler.tickFinished()
+        assertEquals(3L, scheduler.skippedTicks)
+    }
+
+    @Test
+    fun ticksPerSecondCanChange() {
+        var tps = 100
+        val scheduler = createScheduler({ tps })
+
+        scheduler.awaitNextTick()
+        scheduler.tickFinished()
+        tps = 50
+
+        scheduler.awaitNextTick()
+        assertEquals(0.02, scheduler.timeStep, 1e-12)
+        scheduler.tickFinished()
+
+        val before = time
+        scheduler.awaitNextTick()
+        assertTrue(time - before >= 2 * PERIOD_NS - 5 * CLOCK_STEP_NS)
+    }
+
+    companion object {
+        private const val PERIOD_NS = 10_000_000L
+        private const val CLOCK_STEP_NS = 1_000L
+    }
+}
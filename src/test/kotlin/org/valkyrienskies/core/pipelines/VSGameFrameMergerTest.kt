@@ -0,0 +1,100 @@
+package org.valkyrienskies.core.pipelines
+
+import org.joml.Vector3i
+import org.joml.Vector3ic
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Test
+import org.valkyrienskies.core.VSGameFrameFixtures.gameFrame
+import org.valkyrienskies.core.VSGameFrameFixtures.newShip
+import org.valkyrienskies.core.VSGameFrameFixtures.updateShip
+import org.valkyrienskies.core.game.ships.ShipId
+import org.valkyrienskies.physics_api.voxel_updates.EmptyVoxelShapeUpdate
+import org.valkyrienskies.physics_api.voxel_updates.IVoxelShapeUpdate
+
+internal class VSGameFrameMergerTest {
+
+    @Test
+    fun singleFrameIsNotCopied() {
+        val frame = gameFrame(newShips = listOf(newShip(1)))
+        val merger = VSGameFrameMerger()
+        merger.add(frame)
+
+        assertSame(frame, merger.build())
+    }
+
+    @Test
+    fun createdThenDeletedShipsCancelOut() {
+        val merged = VSGameFrameMerger.merge(
+            gameFrame(newShips = listOf(newShip(1), newShip(2)), updatedShips = listOf(updateShip(1))),
+            gameFrame(deletedShips = listOf(1L, 3L))
+        )
+
+        assertEquals(listOf(2L), merged.newShips.map { it.uuid })
+        assertEquals(listOf(3L), merged.deletedShips)
+        assertEquals(emptySet<ShipId>(), merged.updatedShips.keys)
+    }
+
+    @Test
+    fun latestUpdateWins() {
+        val latest = updateShip(1, isStatic = true)
+        val merged = VSGameFrameMerger.merge(
+            gameFrame(updatedShips = listOf(updateShip(1), updateShip(2))),
+            gameFrame(updatedShips = listOf(latest))
+        )
+
+        assertSame(latest, merged.updatedShips[1L])
+        assertEquals(setOf(1L, 2L), merged.updatedShips.keys)
+    }
+
+    @Test
+    fun voxelEditsToTheSameChunkAreCombined() {
+        val chunkPos: Vector3ic = Vector3i(4, 0, 7)
+        val older = VoxelChunkUpdate(chunkPos).apply {
+            setVoxel(0, 0, 0, 1)
+            setVoxel(1, 2, 3, 1)
+        }
+        val newer = VoxelChunkUpdate(chunkPos).apply {
+            setVoxel(1, 2, 3, 0)
+            setVoxel(15, 15, 15, 1)
+        }
+
+        val merged = VSGameFrameMerger.merge(
+            gameFrame(voxelUpdates = mapOf(1L to mapOf(chunkPos to older))),
+            gameFrame(voxelUpdates = mapOf(1L to mapOf(chunkPos to newer)))
+        )
+
+        val edits = ArrayList<List<Int>>()
+        merged.voxelUpdatesMap.getValue(1L).getValue(chunkPos).forEachEdit { x, y, z, state ->
+            edits.add(listOf(x, y, z, state.toInt()))
+        }
+        assertEquals(listOf(listOf(0, 0, 0, 1), listOf(1, 2, 3, 0), listOf(15, 15, 15, 1)), edits)
+    }
+
+    @Test
+    fun editsToAClearedChunkKeepTheClear() {
+        val chunkPos: Vector3ic = Vector3i(4, 0, 7)
+        val clear = EmptyVoxelShapeUpdate(chunkPos.x(), chunkPos.y(), chunkPos.z(), false, true)
+        val older = VoxelChunkUpdate(chunkPos).apply { setVoxel(0, 0, 0, 1) }
+        val cleared = VoxelChunkUpdate(chunkPos, clear)
+        val newer = VoxelChunkUpdate(chunkPos).apply { setVoxel(1, 2, 3, 1) }
+
+        val merger = VSGameFrameMerger()
+        listOf(older, cleared, newer).forEach { chunkUpdate ->
+            merger.add(gameFrame(voxelUpdates = mapOf(1L to mapOf(chunkPos to chunkUpdate))))
+        }
+        val merged = merger.build()!!
+
+        // The chunk is cleared first, then only the edit made after the clear is applied
+        val update = merged.voxelUpdatesMap.getValue(1L).getValue(chunkPos)
+        assertSame(clear, update.baseUpdate)
+        val edits = ArrayList<List<Int>>()
+        update.forEachEdit { x, y, z, state -> edits.add(listOf(x, y, z, state.toInt())) }
+        assertEquals(listOf(listOf(1, 2, 3, 1)), edits)
+
+        val shapeUpdates = ArrayList<IVoxelShapeUpdate>()
+        update.toVoxelShapeUpdates(shapeUpdates)
+        assertSame(clear, shapeUpdates[0])
+        assertEquals(2, shapeUpdates.size)
+    }
+}
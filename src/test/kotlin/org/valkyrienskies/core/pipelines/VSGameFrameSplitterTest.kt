@@ -0,0 +1,87 @@
+package org.valkyrienskies.core.pipelines
+
+import org.joml.Vector3i
+import org.joml.Vector3ic
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.valkyrienskies.core.VSGameFrameFixtures.gameFrame
+import org.valkyrienskies.core.VSGameFrameFixtures.newShip
+import org.valkyrienskies.core.VSGameFrameFixtures.updateShip
+import org.valkyrienskies.core.game.ships.ShipId
+
+internal class VSGameFrameSplitterTest {
+
+    private val dimensions = mapOf(0 to "overworld", 1 to "nether")
+
+    @Test
+    fun frameInOneDimensionIsNotCopied() {
+        val splitter = VSGameFrameSplitter(dimensions::get)
+        val frame = gameFrame(newShips = listOf(newShip(1, 0), newShip(2, 0)))
+
+        val split = splitter.split(frame)
+
+        assertEquals(setOf("overworld"), split.keys)
+        assertSame(frame, split["overworld"])
+    }
+
+    @Test
+    fun laterFramesAreRoutedToTheDimensionShipsWereCreatedIn() {
+        val splitter = VSGameFrameSplitter(dimensions::get)
+        splitter.split(gameFrame(newShips = listOf(newShip(1, 0), newShip(2, 1))))
+
+        val chunkPos: Vector3ic = Vector3i(0, 0, 0)
+        val frame = gameFrame(
+            updatedShips = listOf(updateShip(1), updateShip(2)),
+            voxelUpdates = mapOf(2L to mapOf(chunkPos to VoxelChunkUpdate(chunkPos))),
+            deletedShips = listOf(1L)
+        )
+        val split = splitter.split(frame)
+
+        assertEquals(setOf("overworld", "nether"), split.keys)
+        val overworld = split.getValue("overworld")
+        val nether = split.getValue("nether")
+        assertEquals(setOf(1L), overworld.updatedShips.keys)
+        assertEquals(listOf(1L), overworld.deletedShips)
+        assertEquals(emptySet<ShipId>(), overworld.voxelUpdatesMap.keys)
+        assertEquals(setOf(2L), nether.updatedShips.keys)
+        assertEquals(setOf(2L), nether.voxelUpdatesMap.keys)
+        assertEquals(frame.createdAtNs, nether.createdAtNs)
+    }
+
+    @Test
+    fun deletedShipsAreForgotten() {
+        val splitter = VSGameFrameSplitter(dimensions::get)
+        splitter.split(gameFrame(newShips = listOf(newShip(1, 0))))
+        splitter.split(gameFrame(deletedShips = listOf(1L)))
+
+        assertThrows(IllegalStateException::class.java) {
+            splitter.split(gameFrame(updatedShips = listOf(updateShip(1))))
+        }
+    }
+
+    @Test
+    fun dimensionHasShipsUntilItsLastShipIsDeleted() {
+        val splitter = VSGameFrameSplitter(dimensions::get)
+        splitter.split(gameFrame(newShips = listOf(newShip(1, 0), newShip(2, 0), newShip(3, 1))))
+        assertTrue(splitter.hasShips("overworld"))
+        assertTrue(splitter.hasShips("nether"))
+
+        splitter.split(gameFrame(deletedShips = listOf(1L, 3L)))
+        assertTrue(splitter.hasShips("overworld"))
+        assertFalse(splitter.hasShips("nether"))
+
+        splitter.split(gameFrame(deletedShips = listOf(2L)))
+        assertFalse(splitter.hasShips("overworld"))
+    }
+
+    @Test
+    fun emptyFrameIsDropped() {
+        val splitter = VSGameFrameSplitter(dimensions::get)
+
+        assertEquals(emptyMap<String, VSGameFrame>(), splitter.split(gameFrame()))
+    }
+}
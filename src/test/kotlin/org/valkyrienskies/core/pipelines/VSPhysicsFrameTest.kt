@@ -0,0 +1,179 @@
+package org.valkyrienskies.core.pipelines
+
+import org.joml.Quaterniond
+import org.joml.Vector3d
+import org.joml.primitives.AABBd
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Test
+import java.util.concurrent.ForkJoinPool
+
+internal class VSPhysicsFrameTest {
+
+    @Test
+    fun shipsCanBeReadBackAfterGrowing() {
+        val frame = VSPhysicsFrame(1)
+        frame.reset(7)
+        for (i in 0 until 10) addShip(frame, i.toLong())
+
+        assertEquals(7, frame.physTickNumber)
+        assertEquals(10, frame.shipCount)
+        for (i in 0 until 10) assertShip(frame, i.toLong())
+        assertEquals(-1, frame.getSlot(10))
+    }
+
+    @Test
+    fun resetRemovesShips() {
+        val frame = VSPhysicsFrame()
+        frame.reset(0)
+        addShip(frame, 1)
+        frame.reset(1)
+
+        assertEquals(0, frame.shipCount)
+        assertEquals(-1, frame.getSlot(1))
+        assertThrows(IndexOutOfBoundsException::class.java) { frame.getScaling(0) }
+
+        addShip(frame, 2)
+        assertShip(frame, 2)
+    }
+
+    @Test
+    fun copyIsIndependent() {
+        val frame = VSPhysicsFrame()
+        frame.reset(3)
+        addShip(frame, 1)
+        addShip(frame, 2)
+
+        val copy = frame.copy()
+        frame.reset(4)
+        addShip(frame, 5)
+
+        assertEquals(3, copy.physTickNumber)
+        assertEquals(2, copy.shipCount)
+        assertShip(copy, 1)
+        assertShip(copy, 2)
+        assertEquals(-1, copy.getSlot(5))
+    }
+
+    @Test
+    fun copyIntoSmallerFrameReplacesItsShips() {
+        val frame = VSPhysicsFrame()
+        frame.reset(3)
+        for (i in 0 until 10) addShip(frame, i.toLong())
+        val dest = VSPhysicsFrame(1)
+        dest.reset(1)
+        addShip(dest, 42)
+
+        assertSame(dest, frame.copy(dest))
+        assertEquals(3, dest.physTickNumber)
+        assertEquals(frame.createdAtNs, dest.createdAtNs)
+        assertEquals(10, dest.shipCount)
+        for (i in 0 until 10) assertShip(dest, i.toLong())
+        assertEquals(-1, dest.getSlot(42))
+    }
+
+    @Test
+    fun addShipFromCopiesOneShip() {
+        val source = VSPhysicsFrame()
+        source.reset(3)
+        addShip(source, 1)
+        addShip(source, 2)
+        source.computeTransforms()
+        val frame = VSPhysicsFrame(1)
+        frame.reset(4)
+        addShip(frame, 5)
+
+        assertEquals(1, frame.addShipFrom(source, 1))
+        assertEquals(2, frame.shipCount)
+        assertShip(frame, 2)
+        assertShip(frame, 5)
+        assertEquals(-1, frame.getSlot(1))
+        assertSame(source.getTransform(1), frame.getTransform(1))
+    }
+
+    @Test
+    fun viewReadsShip() {
+        val frame = VSPhysicsFrame()
+        frame.reset(0)
+        addShip(frame, 1)
+        addShip(frame, 2)
+
+        val view = ShipInPhysicsFrameView()
+        assertTrue(view.moveTo(frame, 2))
+        assertEquals(2L, view.shipId)
+        assertEquals(Vector3d(2.0, 3.0, 4.0), view.getPos(Vector3d()))
+        assertFalse(view.moveTo(frame, 3))
+    }
+
+    @Test
+    fun transformPlacesCenterOfMassAtPhysicsPosition() {
+        val frame = VSPhysicsFrame()
+        frame.reset(0)
+        addShip(frame, 1)
+        frame.computeTransforms()
+
+        val transform = frame.getTransform(0)
+        // The voxel offset is (0.5, 1, 0.5), so the center of mass is at (0, -0.5, 0) in ship coordinates
+        assertEquals(Vector3d(0.0, -0.5, 0.0), transform.shipPositionInShipCoordinates)
+        // Scaled by 2
+        assertEquals(Vector3d(2.0, 4.0, 6.0), transform.shipPositionInWorldCoordinates)
+        assertEquals(
+            2.0, transform.shipToWorldMatrix.transformPosition(Vector3d(0.0, 0.5, 0.0)).distance(2.0, 4.0, 6.0),
+            1e-12
+        )
+        assertSame(transform, frame.getTransform(0))
+    }
+
+    @Test
+    fun parallelTransformsMatchSerialTransforms() {
+        val parallel = VSPhysicsFrame()
+        val serial = VSPhysicsFrame()
+        parallel.reset(0)
+        serial.reset(0)
+        for (i in 0 until 500) {
+            addShip(parallel, i.toLong())
+            addShip(serial, i.toLong())
+        }
+
+        val pool = ForkJoinPool(4)
+        try {
+            parallel.computeTransforms(pool)
+        } finally {
+            pool.shutdown()
+        }
+        serial.computeTransforms()
+
+        for (slot in 0 until 500) assertEquals(serial.getTransform(slot), parallel.getTransform(slot))
+        assertSame(parallel.getTransform(3), parallel.copy().getTransform(3))
+    }
+
+    private fun addShip(frame: VSPhysicsFrame, id: Long) {
+        val d = id.toDouble()
+        frame.addShip(
+            id,
+            Vector3d(d, d + 1, d + 2),
+            Quaterniond().rotateY(d),
+            Vector3d(-d, 0.0, 0.0),
+            Vector3d(0.0, -d, 0.0),
+            Vector3d(0.5, d, 0.5),
+            d + 1,
+            AABBd(d, 0.0, 0.0, d + 1, 1.0, 1.0)
+        )
+    }
+
+    private fun assertShip(frame: VSPhysicsFrame, id: Long) {
+        val d = id.toDouble()
+        val slot = frame.getSlot(id)
+        assertEquals(id, frame.getShipId(slot))
+        assertEquals(Vector3d(d, d + 1, d + 2), frame.getPos(slot, Vector3d()))
+        assertEquals(Quaterniond().rotateY(d), frame.getRot(slot, Quaterniond()))
+        assertEquals(Vector3d(-d, 0.0, 0.0), frame.getVel(slot, Vector3d()))
+        assertEquals(Vector3d(0.0, -d, 0.0), frame.getOmega(slot, Vector3d()))
+        assertEquals(Vector3d(0.5, d, 0.5), frame.getVoxelOffset(slot, Vector3d()))
+        assertEquals(d + 1, frame.getScaling(slot))
+        assertEquals(AABBd(d, 0.0, 0.0, d + 1, 1.0, 1.0), frame.getAABB(slot, AABBd()))
+    }
+}
@@ -0,0 +1,225 @@
+package org.valkyrienskies.core.pipelines
+
+import org.joml.Vector3d
+import org.joml.Vector3dc
+import org.joml.Vector3i
+import org.joml.Vector3ic
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.valkyrienskies.core.VSGameFrameFixtures.gameFrame
+import org.valkyrienskies.core.VSGameFrameFixtures.newShip
+import org.valkyrienskies.core.VSGameFrameFixtures.solidVoxelAtOrigin
+import org.valkyrienskies.core.VSGameFrameFixtures.updateShip
+import org.valkyrienskies.core.api.ForcesApplier
+import org.valkyrienskies.core.api.ShipForcesInducer
+import org.valkyrienskies.core.config.VSCoreConfig
+import org.valkyrienskies.core.game.ships.PhysShip
+import org.valkyrienskies.core.game.ships.ShipSimulationLod
+import org.valkyrienskies.core.physics.ReferencePhysicsEngineBackend
+import org.valkyrienskies.physics_api.voxel_updates.KrunchVoxelStates
+
+internal class VSPhysicsPipelineStageTest {
+
+    private val stage = VSPhysicsPipelineStage(VSPipelineMetrics(), ReferencePhysicsEngineBackend())
+    private val noGravity: Vector3dc = Vector3d()
+
+    @AfterEach
+    fun deleteStage() {
+        stage.deleteResources()
+    }
+
+    @Test
+    fun stillShipFallsAsleepAndIsLeftOutOfFrames() {
+        stage.pushGameFrame(newShipsFrame(newShip(1)))
+
+        val frames = tickUntilSleepStateChanges()
+        val sleepFrame = frames.last()
+        assertEquals(VSCoreConfig.SERVER.shipSleepTicks, frames.size)
+        val change = sleepFrame.sleepStateChanges.single()
+        assertEquals(1L, change.shipId)
+        assertTrue(change.isSleeping)
+        assertEquals(0, change.sleepingState!!.getSlot(1))
+        assertNotEquals(-1, sleepFrame.getSlot(1))
+
+        // Still sent once more, for stages that skip frames
+        assertNotEquals(-1, tick().getSlot(1))
+        assertEquals(-1, tick().getSlot(1))
+    }
+
+    @Test
+    fun voxelChangeWakesShipUp() {
+        stage.pushGameFrame(newShipsFrame(newShip(1)))
+        tickUntilSleepStateChanges()
+
+        val chunkPos: Vector3ic = Vector3i()
+        val update = VoxelChunkUpdate(chunkPos)
+        update.setVoxel(1, 0, 0, KrunchVoxelStates.SOLID_STATE)
+        stage.pushGameFrame(gameFrame(voxelUpdates = mapOf(1L to mapOf(chunkPos to update))))
+
+        val frame = tick()
+        assertFalse(frame.sleepStateChanges.single().isSleeping)
+        assertNotEquals(-1, frame.getSlot(1))
+    }
+
+    @Test
+    fun forcesInducerWakesShipUp() {
+        val inducer = PushOnceInducer()
+        stage.pushGameFrame(newShipsFrame(newShip(1, forcesInducers = listOf(inducer))))
+        tickUntilSleepStateChanges()
+
+        inducer.push = true
+        val frame = tick()
+        assertFalse(frame.sleepStateChanges.single().isSleeping)
+        assertNotEquals(-1, frame.getSlot(1))
+        assertTrue(frame.getVel(frame.getSlot(1), Vector3d()).x > 0.0)
+    }
+
+    @Test
+    fun heldForcesDontWakeShipUpUntilTheyChange() {
+        val inducer = BalancedInducer()
+        stage.pushGameFrame(newShipsFrame(newShip(1, forcesInducers = listOf(inducer))))
+        tickUntilSleepStateChanges()
+
+        // The inducer computes the same forces as when the ship fell asleep
+        repeat(VSCoreConfig.SERVER.shipSleepTicks) { assertTrue(tick().sleepStateChanges.isEmpty()) }
+
+        inducer.enabled = false
+        assertFalse(tick().sleepStateChanges.single().isSleeping)
+    }
+
+    @Test
+    fun reducedShipHoldingForcesStaysAsleep() {
+        val inducer = BalancedInducer()
+        stage.pushGameFrame(newShipsFrame(newShip(1, forcesInducers = listOf(inducer))))
+        stage.pushGameFrame(gameFrame(updatedShips = listOf(updateShip(1, ShipSimulationLod.REDUCED))))
+        tickUntilSleepStateChanges()
+
+        repeat(VSCoreConfig.SERVER.lodReducedTickInterval * 5) { assertTrue(tick().sleepStateChanges.isEmpty()) }
+    }
+
+    @Test
+    fun awakeShipWakesUpShipItTouches() {
+        stage.pushGameFrame(newShipsFrame(newShip(1)))
+        tickUntilSleepStateChanges()
+
+        // Overlaps the sleeping ship. Static, so the sleeping ship doesn't push it away first
+        val touchingShip = newShip(2, pos = Vector3d(0.5, 0.0, 0.0), isStatic = true)
+        stage.pushGameFrame(newShipsFrame(touchingShip))
+        val frame = tick()
+        val change = frame.sleepStateChanges.single()
+        assertEquals(1L, change.shipId)
+        assertFalse(change.isSleeping)
+        assertNotEquals(-1, tick().getSlot(1))
+    }
+
+    @Test
+    fun frozenShipFallsAsleepRightAway() {
+        stage.pushGameFrame(newShipsFrame(newShip(1, vel = Vector3d(1.0, 0.0, 0.0))))
+        tick()
+
+        stage.pushGameFrame(gameFrame(updatedShips = listOf(updateShip(1, ShipSimulationLod.FROZEN))))
+        val change = tick().sleepStateChanges.single()
+        assertTrue(change.isSleeping)
+        assertEquals(0.0, change.sleepingState!!.getVel(0, Vector3d()).length())
+    }
+
+    @Test
+    fun lodDowngradeDoesntWakeShipUp() {
+        stage.pushGameFrame(newShipsFrame(newShip(1)))
+        tickUntilSleepStateChanges()
+
+        stage.pushGameFrame(gameFrame(updatedShips = listOf(updateShip(1, ShipSimulationLod.REDUCED))))
+        assertTrue(tick().sleepStateChanges.isEmpty())
+        stage.pushGameFrame(gameFrame(updatedShips = listOf(updateShip(1, ShipSimulationLod.FROZEN))))
+        assertTrue(tick().sleepStateChanges.isEmpty())
+
+        stage.pushGameFrame(gameFrame(updatedShips = listOf(updateShip(1, ShipSimulationLod.FULL))))
+        assertFalse(tick().sleepStateChanges.single().isSleeping)
+    }
+
+    @Test
+    fun reducedShipOnlyRunsInducersEveryFewTicks() {
+        val inducer = CountingInducer()
+        stage.pushGameFrame(newShipsFrame(newShip(1, forcesInducers = listOf(inducer))))
+        stage.pushGameFrame(gameFrame(updatedShips = listOf(updateShip(1, ShipSimulationLod.REDUCED))))
+
+        val interval = VSCoreConfig.SERVER.lodReducedTickInterval
+        repeat(interval * 3) { tick() }
+        assertEquals(3, inducer.calls)
+
+        // The held force is applied every tick from the first one the inducer ran on, which is tick interval - 1 for
+        // ship 1, not just on the ticks the inducer runs
+        val frame = tick()
+        val ticksWithForce = interval * 3 - (interval - 1) + 1
+        assertEquals(ticksWithForce / 60.0, frame.getVel(frame.getSlot(1), Vector3d()).x, 1e-9)
+    }
+
+    @Test
+    fun newVoxelOffsetKeepsVoxelsInPlace() {
+        stage.pushGameFrame(newShipsFrame(newShip(1)))
+        tick()
+
+        val newVoxelOffset = Vector3d(1.0, 0.0, 0.0)
+        stage.pushGameFrame(gameFrame(updatedShips = listOf(updateShip(1, voxelOffset = newVoxelOffset))))
+        val frame = tick()
+        val slot = frame.getSlot(1)
+        assertEquals(-1.0, frame.getPos(slot, Vector3d()).x, 1e-9)
+        assertEquals(newVoxelOffset, frame.getVoxelOffset(slot, Vector3d()))
+    }
+
+    private fun tick(): VSPhysicsFrame = stage.tickPhysics(noGravity, 1.0 / 60.0, true)
+
+    /**
+     * @return every frame up to and including the first one with sleep state changes
+     */
+    private fun tickUntilSleepStateChanges(): List<VSPhysicsFrame> {
+        val frames = ArrayList<VSPhysicsFrame>()
+        repeat(VSCoreConfig.SERVER.shipSleepTicks * 2) {
+            val frame = tick()
+            frames.add(frame)
+            if (frame.sleepStateChanges.isNotEmpty()) return frames
+        }
+        throw AssertionError("No ship fell asleep")
+    }
+
+    private class PushOnceInducer : ShipForcesInducer {
+        var push = false
+
+        override fun applyForces(forcesApplier: ForcesApplier, physShip: PhysShip) {
+            if (push) forcesApplier.applyInvariantForce(Vector3d(60.0, 0.0, 0.0))
+            push = false
+        }
+    }
+
+    /**
+     * Pushes the ship both ways at once, so it can rest while its inducer applies forces every tick
+     */
+    private class BalancedInducer : ShipForcesInducer {
+        var enabled = true
+
+        override fun applyForces(forcesApplier: ForcesApplier, physShip: PhysShip) {
+            if (!enabled) return
+            forcesApplier.applyInvariantForceToPos(Vector3d(1.0, 0.0, 0.0), Vector3d())
+            forcesApplier.applyInvariantForceToPos(Vector3d(-1.0, 0.0, 0.0), Vector3d())
+        }
+    }
+
+    private class CountingInducer : ShipForcesInducer {
+        var calls = 0
+
+        override fun applyForces(forcesApplier: ForcesApplier, physShip: PhysShip) {
+            calls++
+            forcesApplier.applyInvariantForce(Vector3d(1.0, 0.0, 0.0))
+        }
+    }
+
+    /**
+     * A frame that adds [newShips], each with a single solid voxel at (0, 0, 0)
+     */
+    private fun newShipsFrame(vararg newShips: NewShipInGameFrameData) =
+        gameFrame(newShips = newShips.asList(), voxelUpdates = newShips.associate { it.uuid to solidVoxelAtOrigin() })
+}
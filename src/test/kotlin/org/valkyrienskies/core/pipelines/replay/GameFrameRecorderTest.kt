@@ -0,0 +1,86 @@
+package org.valkyrienskies.core.pipelines.replay
+
+import org.joml.Matrix3d
+import org.joml.Quaterniond
+import org.joml.Vector3d
+import org.joml.Vector3i
+import org.joml.Vector3ic
+import org.joml.primitives.AABBi
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.valkyrienskies.core.game.ships.PhysInertia
+import org.valkyrienskies.core.game.ships.ShipPhysicsData
+import org.valkyrienskies.core.game.ships.ShipSimulationLod
+import org.valkyrienskies.core.pipelines.NewShipInGameFrameData
+import org.valkyrienskies.core.pipelines.SegmentUtils
+import org.valkyrienskies.core.pipelines.UpdateShipInGameFrameData
+import org.valkyrienskies.core.pipelines.VSGameFrame
+import org.valkyrienskies.core.pipelines.VoxelChunkUpdate
+import org.valkyrienskies.physics_api.PoseVel
+import java.nio.file.Path
+
+internal class GameFrameRecorderTest {
+
+    @TempDir
+    lateinit var tempDir: Path
+
+    @Test
+    fun framesSurviveRecordingAndReading() {
+        val chunkPos: Vector3ic = Vector3i(1, 2, 3)
+        val inertia = PhysInertia(12.5, Matrix3d(1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 7.0, 8.0, 9.0))
+        val newShip = NewShipInGameFrameData(
+            7, 42, Vector3i(-1, 0, -1), Vector3i(15, 255, 15), AABBi(-16, 0, -16, 32, 255, 32), inertia,
+            ShipPhysicsData(Vector3d(1.0, 0.0, 0.0), Vector3d(0.0, 0.5, 0.0)),
+            PoseVel.createPoseVel(Vector3d(10.0, 64.0, -3.0), Quaterniond().rotateY(0.5)),
+            SegmentUtils.createSegmentTrackerFromScaling(42, 2.0), Vector3d(-0.5, -0.5, -0.5), false, true, emptyList()
+        )
+        val updatedShip = UpdateShipInGameFrameData(
+            8, Vector3d(0.25, 0.0, 0.0), inertia, ShipPhysicsData.createEmpty(), true, false, ShipSimulationLod.REDUCED
+        )
+        val chunkUpdate = VoxelChunkUpdate(chunkPos).apply {
+            setVoxel(0, 0, 0, 1)
+            setVoxel(15, 7, 3, 2)
+        }
+
+        val first = VSGameFrame(listOf(newShip), emptyList(), emptyMap(), emptyMap(), 1_000)
+        val second = VSGameFrame(
+            emptyList(), listOf(9L), mapOf(8L to updatedShip), mapOf(7L to mapOf(chunkPos to chunkUpdate)), 51_000
+        )
+
+        val path = tempDir.resolve("frames.vsgf")
+        GameFrameRecorder(path).use { recorder ->
+            recorder.record(first)
+            recorder.record(second)
+        }
+
+        GameFrameReader(path).use { reader ->
+            val readFirst = reader.next()!!
+            assertEquals(0L, readFirst.createdAtNs)
+            val readShip = readFirst.newShips.single()
+            assertEquals(newShip.uuid, readShip.uuid)
+            assertEquals(newShip.dimension, readShip.dimension)
+            assertEquals(newShip.totalVoxelRegion, readShip.totalVoxelRegion)
+            assertEquals(newShip.inertiaData, readShip.inertiaData)
+            assertEquals(newShip.physicsData, readShip.physicsData)
+            assertEquals(newShip.poseVel.pos, readShip.poseVel.pos)
+            assertEquals(newShip.poseVel.rot, readShip.poseVel.rot)
+            assertEquals(2.0, readShip.segments.segments.values.first().segmentDisplacement.scaling)
+            assertEquals(newShip.voxelOffset, readShip.voxelOffset)
+
+            val readSecond = reader.next()!!
+            assertEquals(50_000L, readSecond.createdAtNs)
+            assertEquals(listOf(9L), readSecond.deletedShips)
+            assertEquals(updatedShip, readSecond.updatedShips[8L])
+
+            val edits = ArrayList<List<Int>>()
+            readSecond.voxelUpdatesMap.getValue(7L).getValue(chunkPos).forEachEdit { x, y, z, state ->
+                edits.add(listOf(x, y, z, state.toInt()))
+            }
+            assertEquals(listOf(listOf(0, 0, 0, 1), listOf(15, 7, 3, 2)), edits)
+
+            assertNull(reader.next())
+        }
+    }
+}
@@ -2,12 +2,18 @@ package org.valkyrienskies.core.util
 
 import com.google.common.collect.ImmutableSet
 import io.kotest.core.spec.style.StringSpec
+import io.kotest.matchers.doubles.shouldBeLessThanOrEqual
 import io.kotest.matchers.shouldBe
 import io.kotest.property.Arb
+import io.kotest.property.arbitrary.int
 import io.kotest.property.checkAll
 import io.netty.buffer.Unpooled
 import org.valkyrienskies.test_utils.generators.quatd
 import org.valkyrienskies.test_utils.generators.vector3d
+import kotlin.math.abs
+import kotlin.math.acos
+import kotlin.math.min
+import kotlin.math.sqrt
 
 class VSCoreUtilTest : StringSpec({
 
@@ -57,4 +63,32 @@ class VSCoreUtilTest : StringSpec({
             buf.readQuatd() shouldBe it
         }
     }
+
+    "read and write smallest three quatd" {
+        checkAll(Arb.quatd(), Arb.int(6..20)) { q, bits ->
+            val buf = Unpooled.buffer(8)
+            buf.writeSmallestThreeQuatd(q, bits)
+            buf.readableBytes() shouldBe (2 + bits * 3 + 7) / 8
+
+            // Each component is off by at most 1/sqrt(2) / (2^bits - 1), which bounds the angle between the rotations
+            val maxComponentError = 1.0 / sqrt(2.0) / ((1 shl bits) - 1)
+            val read = buf.readSmallestThreeQuatd(bits)
+            2 * acos(min(1.0, abs(read.dot(q)))) shouldBeLessThanOrEqual 8 * maxComponentError
+        }
+    }
+
+    "read and write varints" {
+        checkAll<Int> {
+            val buf = Unpooled.buffer(10)
+            buf.writeVarInt(it)
+            buf.writeZigZagVarInt(it)
+            buf.readVarInt() shouldBe it
+            buf.readZigZagVarInt() shouldBe it
+        }
+
+        val buf = Unpooled.buffer()
+        buf.writeVarInt(127)
+        buf.writeZigZagVarInt(-64)
+        buf.readableBytes() shouldBe 2
+    }
 })